@@ -0,0 +1,224 @@
+/**
+ * X-Cure-Chat
+ * Copyright (C) 2013  Dr. Ivan S. Zapreev
+ * www: https://nl.linkedin.com/in/zapreevis
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.#
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * The stand-alone benchmarks package, not a part of the web application.
+ * (C) Ivan S. Zapreev, 2009
+ */
+package com.xcurechat.bench;
+
+import java.awt.Color;
+import java.awt.GradientPaint;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import com.xcurechat.client.data.FileData;
+import com.xcurechat.server.files.ImageProcessor;
+
+/**
+ * @author zapreevis
+ * The benchmark of the uploaded images processing. For every input image format it compares
+ * the previous processing, that decoded the complete upload, resized it and then decoded the
+ * resized image once again to make the thumbnail, with the current ImageProcessor.processImage()
+ * that decodes the upload once with the source subsampling. Reports the mean processing time
+ * and the peak heap growth of one image. The input images are generated, with gradients, shapes
+ * and noise, so that they do not compress too well. Run it with a small young generation,
+ * e.g. -XX:+UseSerialGC -Xmn16m, then the large image buffers are allocated in the old
+ * generation and the peak heap growth shows how much of them is alive at the same time.
+ * Usage: ImageProcessorBenchmark [<iterations> [<width>x<height> ...]]
+ */
+public class ImageProcessorBenchmark {
+	
+	//The default number of measured iterations per image and path
+	private static final int DEFAULT_NUMBER_OF_ITERATIONS = 10;
+	//The default input image sizes, a 27, an 8 and a 2 mega pixel photo. Only the first one is
+	//subsampled, the others have less than two source pixels per pixel of the resized image
+	private static final String[] DEFAULT_IMAGE_SIZES = { "6000x4500", "3264x2448", "1600x1200" };
+	//The number of not measured warm up iterations per image and path
+	private static final int NUMBER_OF_WARM_UP_ITERATIONS = 3;
+	//The input image formats, these are also used for the output images
+	private static final String[] IMAGE_FORMATS = { "jpeg", "png", "gif" };
+	//The dimensions of the images, as used for the chat files
+	private static final int MAX_HEIGHT = ImageProcessor.MAX_IMAGE_HEIGHT_768;
+	private static final int MAX_WIDTH = ImageProcessor.MAX_IMAGE_WIDTH_1024;
+	private static final int THUMB_HEIGHT = ImageProcessor.THUMBNAIL_HEIGHT;
+	private static final int THUMB_WIDTH = ImageProcessor.THUMBNAIL_WIDTH;
+	
+	/**
+	 * @author zapreevis
+	 * The processing path under test
+	 */
+	private interface ImagePath {
+		public void process( final byte[] imageData, final String format ) throws Exception;
+	}
+	
+	/**
+	 * @author zapreevis
+	 * The previous processing: the full decoding of the upload and the decoding of the resized image for the thumbnail
+	 */
+	private static final class FullDecodingPath implements ImagePath {
+		public void process( final byte[] imageData, final String format ) throws IOException {
+			final FileData fileDesc = new FileData();
+			final InputStream inputStream = new ByteArrayInputStream( imageData );
+			final ByteArrayOutputStream outputStream = ImageProcessor.resizeImage( inputStream, MAX_HEIGHT, MAX_WIDTH,
+																				   ImageProcessor.DEFAULT_BACKGROUND_COLOR,
+																				   format, false, true, fileDesc );
+			fileDesc.fileData = outputStream.toByteArray();
+			fileDesc.thumbnailData = ImageProcessor.resizeImage( outputStream, THUMB_HEIGHT, THUMB_WIDTH,
+																 ImageProcessor.DEFAULT_BACKGROUND_COLOR,
+																 format, false ).toByteArray();
+		}
+	}
+	
+	/**
+	 * @author zapreevis
+	 * The current processing: one subsampled decoding of the upload
+	 */
+	private static final class SubsampledDecodingPath implements ImagePath {
+		public void process( final byte[] imageData, final String format ) throws Exception {
+			ImageProcessor.processImage( new ByteArrayInputStream( imageData ), MAX_HEIGHT, MAX_WIDTH,
+										 THUMB_HEIGHT, THUMB_WIDTH, ImageProcessor.DEFAULT_BACKGROUND_COLOR,
+										 format, true, true, new FileData() );
+		}
+	}
+	
+	/**
+	 * Allows to generate the input image
+	 * @param width the image width
+	 * @param height the image height
+	 * @param format the image format
+	 * @return the encoded image
+	 */
+	private static byte[] generateImage( final int width, final int height, final String format ) throws IOException {
+		//The GIF images are palette based, draw them directly in the default palette
+		final BufferedImage image = new BufferedImage( width, height, "gif".equals( format ) ?
+													   BufferedImage.TYPE_BYTE_INDEXED : BufferedImage.TYPE_INT_RGB );
+		final Random random = new Random( width * 31 + height );
+		final Graphics2D graphics = image.createGraphics();
+		graphics.setPaint( new GradientPaint( 0, 0, Color.ORANGE, width, height, Color.BLUE ) );
+		graphics.fillRect( 0, 0, width, height );
+		for( int i = 0; i < 200; i++ ) {
+			graphics.setColor( new Color( random.nextInt( 0x1000000 ) ) );
+			graphics.fillOval( random.nextInt( width ), random.nextInt( height ), 1 + random.nextInt( width / 4 ), 1 + random.nextInt( height / 4 ) );
+		}
+		graphics.dispose();
+		//Add some noise
+		for( int i = 0; i < width * height / 8; i++ ) {
+			image.setRGB( random.nextInt( width ), random.nextInt( height ), random.nextInt( 0x1000000 ) );
+		}
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		ImageIO.write( image, format, output );
+		return output.toByteArray();
+	}
+	
+	/**
+	 * Allows to get the used heap, summed over all of the heap memory pools
+	 * @param isPeak if true then the peak usage since the last reset is returned
+	 * @return the used heap in bytes
+	 */
+	private static long getUsedHeap( final boolean isPeak ) {
+		long used = 0;
+		for( MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans() ) {
+			if( pool.getType() == MemoryType.HEAP ) {
+				used += ( isPeak ? pool.getPeakUsage() : pool.getUsage() ).getUsed();
+			}
+		}
+		return used;
+	}
+	
+	private static void resetPeakHeap() {
+		for( MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans() ) {
+			if( pool.getType() == MemoryType.HEAP ) {
+				pool.resetPeakUsage();
+			}
+		}
+	}
+	
+	/**
+	 * Runs the processing path on the image
+	 * @param path the processing path
+	 * @param imageData the encoded image
+	 * @param format the image format
+	 * @param numberOfIterations the number of measured iterations
+	 * @return the mean time in milliseconds and the maximum peak heap growth in bytes
+	 */
+	private static double[] run( final ImagePath path, final byte[] imageData, final String format,
+								 final int numberOfIterations ) throws Exception {
+		for( int i = 0; i < NUMBER_OF_WARM_UP_ITERATIONS; i++ ) {
+			path.process( imageData, format );
+		}
+		long totalNanos = 0;
+		long maxPeakGrowth = 0;
+		for( int i = 0; i < numberOfIterations; i++ ) {
+			System.gc();
+			resetPeakHeap();
+			final long usedBefore = getUsedHeap( false );
+			final long startTime = System.nanoTime();
+			path.process( imageData, format );
+			totalNanos += System.nanoTime() - startTime;
+			maxPeakGrowth = Math.max( maxPeakGrowth, getUsedHeap( true ) - usedBefore );
+		}
+		return new double[]{ totalNanos / 1e6 / numberOfIterations, maxPeakGrowth };
+	}
+	
+	public static void main( final String[] args ) throws Exception {
+		BasicConfigurator.configure();
+		Logger.getRootLogger().setLevel( Level.WARN );
+		
+		final int numberOfIterations = ( args.length > 0 ) ? Integer.parseInt( args[0] ) : DEFAULT_NUMBER_OF_ITERATIONS;
+		String[] imageSizes = DEFAULT_IMAGE_SIZES;
+		if( args.length > 1 ) {
+			imageSizes = new String[ args.length - 1 ];
+			System.arraycopy( args, 1, imageSizes, 0, imageSizes.length );
+		}
+		
+		System.out.println( "ImageProcessor benchmark: resize into " + MAX_WIDTH + "x" + MAX_HEIGHT + " with a " +
+							THUMB_WIDTH + "x" + THUMB_HEIGHT + " thumbnail, " + numberOfIterations + " iterations, " +
+							( Runtime.getRuntime().maxMemory() / ( 1024 * 1024 ) ) + " MB max heap" );
+		System.out.println( "image\tformat\tsize KB\tfull ms\tsubsampled ms\tfull peak MB\tsubsampled peak MB" );
+		final ImagePath fullDecoding = new FullDecodingPath();
+		final ImagePath subsampledDecoding = new SubsampledDecodingPath();
+		for( String imageSize : imageSizes ) {
+			final String[] dimensions = imageSize.split( "x" );
+			final int width = Integer.parseInt( dimensions[0] );
+			final int height = Integer.parseInt( dimensions[1] );
+			for( String format : IMAGE_FORMATS ) {
+				final byte[] imageData = generateImage( width, height, format );
+				final double[] full = run( fullDecoding, imageData, format, numberOfIterations );
+				final double[] subsampled = run( subsampledDecoding, imageData, format, numberOfIterations );
+				System.out.println( imageSize + "\t" + format + "\t" + ( imageData.length / 1024 ) + "\t" +
+									String.format( "%.1f", full[0] ) + "\t" + String.format( "%.1f", subsampled[0] ) + "\t" +
+									String.format( "%.1f", full[1] / ( 1024 * 1024 ) ) + "\t" +
+									String.format( "%.1f", subsampled[1] / ( 1024 * 1024 ) ) );
+			}
+		}
+	}
+}
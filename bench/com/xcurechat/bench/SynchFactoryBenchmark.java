@@ -0,0 +1,234 @@
+/**
+ * X-Cure-Chat
+ * Copyright (C) 2013  Dr. Ivan S. Zapreev
+ * www: https://nl.linkedin.com/in/zapreevis
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.#
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * The stand-alone benchmarks package, not a part of the web application.
+ * (C) Ivan S. Zapreev, 2009
+ */
+package com.xcurechat.bench;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import com.xcurechat.server.core.SynchFactory;
+
+/**
+ * @author zapreevis
+ * The contention benchmark of the SynchFactory. Compares the lock-free factory with the
+ * previous implementation that had all of its methods synchronized, the latter is copied
+ * here as LockedSynchFactory. Every benchmark thread repeatedly gets the synchronization
+ * object of a random data ID, does a small amount of work while holding it, releases the
+ * object and sometimes calls the clean up, as it is done on every session expiration.
+ * Usage: SynchFactoryBenchmark [<duration sec> [<number of data IDs> [<threads> ...]]]
+ */
+public class SynchFactoryBenchmark {
+	
+	//The default measurement duration of one run in seconds
+	private static final int DEFAULT_DURATION_SEC = 5;
+	//The default number of distinct data IDs, e.g. the online users
+	private static final int DEFAULT_NUMBER_OF_DATA_IDS = 1000;
+	//The default numbers of threads to run with
+	private static final int[] DEFAULT_NUMBERS_OF_THREADS = { 1, 8, 64, 128, 256 };
+	//The warm up duration of every run in milliseconds
+	private static final int WARM_UP_MILLISEC = 2000;
+	//One in this number of operations calls the clean up
+	private static final int CLEAN_UP_PERIOD = 100;
+	
+	/**
+	 * @author zapreevis
+	 * The factory under test
+	 */
+	private interface Factory {
+		public Object getSynchObject( final int dataID );
+		public void releaseSynchObject( final int dataID );
+		public void cleanUp();
+	}
+	
+	/**
+	 * @author zapreevis
+	 * The previous synchronized implementation of the SynchFactory
+	 */
+	private static final class LockedSynchFactory implements Factory {
+		private static final Logger logger = Logger.getLogger( LockedSynchFactory.class );
+		private final Map<Integer, Object> dataIDToSynchObjMap = new HashMap<Integer, Object>();
+		private final Map<Integer, Integer> dataIDToInUseMap = new HashMap<Integer, Integer>();
+		private long lastCleanUpTime = System.currentTimeMillis();
+		
+		public synchronized Object getSynchObject( final int dataID ) {
+			Object synchObject = dataIDToSynchObjMap.get( dataID );
+			Integer inUseCunt = dataIDToInUseMap.get( dataID );
+			if( synchObject == null ){
+				synchObject = new Object();
+				inUseCunt = 0;
+				dataIDToSynchObjMap.put( dataID , synchObject );
+			}
+			dataIDToInUseMap.put( dataID , inUseCunt + 1 );
+			if( logger.isDebugEnabled() ) {
+				logger.debug( "Getting synchronization object for " + dataID );
+			}
+			return synchObject;
+		}
+		
+		public synchronized void releaseSynchObject( final int dataID ) {
+			if( dataIDToSynchObjMap.keySet().contains( dataID ) ) {
+				dataIDToInUseMap.put( dataID , dataIDToInUseMap.get( dataID ) - 1 );
+				if( logger.isDebugEnabled() ) {
+					logger.debug( "Releasing synchronization object for " + dataID );
+				}
+			}
+		}
+		
+		public synchronized void cleanUp() {
+			logger.info( "Starting clean up of the synchronization mappings");
+			if( ( System.currentTimeMillis() - SynchFactory.MIN_CLEAN_UP_INTERVAL_MILLISEC ) > lastCleanUpTime ) {
+				Iterator<Integer> dataIDsIter = dataIDToSynchObjMap.keySet().iterator();
+				while( dataIDsIter.hasNext() ){
+					int dataID = dataIDsIter.next();
+					if( dataIDToInUseMap.get( dataID ) == 0 ) {
+						dataIDsIter.remove();
+						dataIDToInUseMap.remove( dataID );
+					}
+				}
+				lastCleanUpTime = System.currentTimeMillis();
+			}
+		}
+	}
+	
+	/**
+	 * @author zapreevis
+	 * The current lock-free implementation
+	 */
+	private static final class LockFreeSynchFactory implements Factory {
+		private final SynchFactory factory;
+		
+		public LockFreeSynchFactory( final String name ) {
+			factory = SynchFactory.getSynchFactory( name );
+		}
+		
+		public Object getSynchObject( final int dataID ) {
+			return factory.getSynchObject( dataID );
+		}
+		
+		public void releaseSynchObject( final int dataID ) {
+			factory.releaseSynchObject( dataID );
+		}
+		
+		public void cleanUp() {
+			factory.cleanUp();
+		}
+	}
+	
+	/**
+	 * Runs the benchmark threads on the factory
+	 * @param factory the factory under test
+	 * @param numberOfThreads the number of threads
+	 * @param numberOfDataIDs the number of distinct data IDs
+	 * @param durationMillisec the measurement duration
+	 * @return the number of get/release operations per second
+	 */
+	private static double run( final Factory factory, final int numberOfThreads,
+							   final int numberOfDataIDs, final long durationMillisec ) throws InterruptedException {
+		final AtomicBoolean isMeasuring = new AtomicBoolean( false );
+		final AtomicBoolean isStopped = new AtomicBoolean( false );
+		final long[] operations = new long[ numberOfThreads ];
+		final CountDownLatch stoppedLatch = new CountDownLatch( numberOfThreads );
+		for( int i = 0; i < numberOfThreads; i++ ) {
+			final int threadIndex = i;
+			final Thread thread = new Thread( "SynchFactoryBenchmark-" + i ) {
+				public void run() {
+					final Random random = new Random( threadIndex );
+					long iterations = 0;
+					long count = 0;
+					long sink = 0;
+					while( ! isStopped.get() ) {
+						final int dataID = random.nextInt( numberOfDataIDs );
+						final Object synchObject = factory.getSynchObject( dataID );
+						try {
+							synchronized( synchObject ) {
+								sink += dataID;
+							}
+						} finally {
+							factory.releaseSynchObject( dataID );
+						}
+						if( ( ++iterations % CLEAN_UP_PERIOD ) == 0 ) {
+							factory.cleanUp();
+						}
+						//Only count the operations done while measuring
+						if( isMeasuring.get() ) {
+							count++;
+						}
+					}
+					operations[ threadIndex ] = count;
+					//Do not let the work be optimized away
+					if( sink == Long.MIN_VALUE ) {
+						System.out.print( "" );
+					}
+					stoppedLatch.countDown();
+				}
+			};
+			thread.setDaemon( true );
+			thread.start();
+		}
+		Thread.sleep( WARM_UP_MILLISEC );
+		isMeasuring.set( true );
+		final long startTime = System.nanoTime();
+		Thread.sleep( durationMillisec );
+		isMeasuring.set( false );
+		final long elapsedNanos = System.nanoTime() - startTime;
+		isStopped.set( true );
+		stoppedLatch.await();
+		long total = 0;
+		for( long count : operations ) {
+			total += count;
+		}
+		return total * 1e9 / elapsedNanos;
+	}
+	
+	public static void main( final String[] args ) throws InterruptedException {
+		BasicConfigurator.configure();
+		Logger.getRootLogger().setLevel( Level.WARN );
+		
+		final int durationSec = ( args.length > 0 ) ? Integer.parseInt( args[0] ) : DEFAULT_DURATION_SEC;
+		final int numberOfDataIDs = ( args.length > 1 ) ? Integer.parseInt( args[1] ) : DEFAULT_NUMBER_OF_DATA_IDS;
+		int[] numbersOfThreads = DEFAULT_NUMBERS_OF_THREADS;
+		if( args.length > 2 ) {
+			numbersOfThreads = new int[ args.length - 2 ];
+			for( int i = 2; i < args.length; i++ ) {
+				numbersOfThreads[ i - 2 ] = Integer.parseInt( args[i] );
+			}
+		}
+		
+		System.out.println( "SynchFactory contention benchmark: " + numberOfDataIDs + " data IDs, " +
+							durationSec + " sec per run, " + Runtime.getRuntime().availableProcessors() + " CPUs" );
+		System.out.println( "threads\tlocked ops/sec\tlock-free ops/sec\tspeed-up" );
+		for( int numberOfThreads : numbersOfThreads ) {
+			final double locked = run( new LockedSynchFactory(), numberOfThreads, numberOfDataIDs, durationSec * 1000L );
+			final double lockFree = run( new LockFreeSynchFactory( "benchmark-" + numberOfThreads ), numberOfThreads,
+										 numberOfDataIDs, durationSec * 1000L );
+			System.out.println( numberOfThreads + "\t" + String.format( "%.0f", locked ) + "\t" +
+								String.format( "%.0f", lockFree ) + "\t" + String.format( "%.2fx", lockFree / locked ) );
+		}
+	}
+}
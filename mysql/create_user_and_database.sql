@@ -39,7 +39,9 @@ CREATE TABLE profile_files (
 	mimeType VARCHAR(256) CHARSET utf8 NOT NULL COMMENT 'The MIME type of the file',
 	fileName VARCHAR(128) CHARSET utf8 NOT NULL COMMENT 'The uploaded file name',
 	thumbnail BLOB COMMENT 'File preview thumbnail',
-	data LONGBLOB NOT NULL COMMENT 'The data of the uploaded file',
+	data LONGBLOB COMMENT 'The data of the uploaded file, if it is not in the files storage',
+	data_md5 CHAR(32) CHARSET ascii DEFAULT NULL COMMENT 'The MD5 sum of the file data in the files storage',
+	thumbnail_md5 CHAR(32) CHARSET ascii DEFAULT NULL COMMENT 'The MD5 sum of the thumbnail in the files storage',
 	widthPixels INTEGER UNSIGNED DEFAULT 0 COMMENT 'The width of the data file, if applickable, not the thimbnail',
 	heightPixels INTEGER UNSIGNED DEFAULT 0 COMMENT 'The height of the data file, if applickable, not the thimbnail',
 	uploadDate DATETIME NOT NULL COMMENT 'The date-time when the file was uploaded',
@@ -50,7 +52,8 @@ CREATE TABLE profile_files (
 CREATE TABLE avatar_images (
 	uid INTEGER UNSIGNED NOT NULL UNIQUE COMMENT 'User id',
 	FOREIGN KEY (uid) REFERENCES users (uid) ON DELETE CASCADE,
-	image MEDIUMBLOB NOT NULL COMMENT 'Avatar image itself',
+	image MEDIUMBLOB COMMENT 'Avatar image itself, if it is not in the files storage',
+	image_md5 CHAR(32) CHARSET ascii DEFAULT NULL COMMENT 'The MD5 sum of the avatar image in the files storage',
 	mimeType VARCHAR(256) CHARSET utf8 NOT NULL COMMENT 'The MIME type of the file',
 	INDEX( uid )
 ) ENGINE = INNODB;
@@ -136,7 +139,9 @@ CREATE TABLE chat_files (
 	mimeType VARCHAR(256) CHARSET utf8 NOT NULL COMMENT 'The MIME type of the file',
 	fileName VARCHAR(128) CHARSET utf8 NOT NULL COMMENT 'The uploaded file name',
 	thumbnail BLOB COMMENT 'File preview thumbnail',
-	data LONGBLOB NOT NULL COMMENT 'The data of the uploaded file',
+	data LONGBLOB COMMENT 'The data of the uploaded file, if it is not in the files storage',
+	data_md5 CHAR(32) CHARSET ascii DEFAULT NULL COMMENT 'The MD5 sum of the file data in the files storage',
+	thumbnail_md5 CHAR(32) CHARSET ascii DEFAULT NULL COMMENT 'The MD5 sum of the thumbnail in the files storage',
 	widthPixels INTEGER UNSIGNED DEFAULT 0 COMMENT 'The width of the image file, not the thimbnail',
 	heightPixels INTEGER UNSIGNED DEFAULT 0 COMMENT 'The height of the image file, not the thimbnail',
 	is_public BOOLEAN DEFAULT FALSE COMMENT 'True if this chat files is attached to a public chat message',
@@ -145,7 +150,6 @@ CREATE TABLE chat_files (
 ) ENGINE = INNODB;
 
 -- Create the table storing the chat messages
--- WARNING: ENGINE = MEMORY DOES NOT SUPPORT FOREING KEY CONSTRAINTS 
 CREATE TABLE chat_messages (
 	messageID INTEGER UNSIGNED NOT NULL AUTO_INCREMENT PRIMARY KEY COMMENT 'The chat message id',
 	sentDate DATETIME NOT NULL COMMENT 'The date-time when the message was sent',
@@ -164,10 +168,9 @@ CREATE TABLE chat_messages (
 	fontSize INTEGER UNSIGNED DEFAULT 2 COMMENT 'The font size to be used when visualizing this message',
 	fontColor INTEGER UNSIGNED DEFAULT 0 COMMENT 'The font color to be used when visualizing this message',
 	INDEX( messageID, senderID, roomID, messageType, sentDate )
-) ENGINE = MEMORY;
+) ENGINE = INNODB;
 
 -- Create the table storing the mapping from the private chat message ID to the recepient ID
--- WARNING: ENGINE = MEMORY DOES NOT SUPPORT FOREING KEY CONSTRAINTS 
 CREATE TABLE chat_msg_recepient (
 	cmrID INTEGER UNSIGNED NOT NULL AUTO_INCREMENT PRIMARY KEY COMMENT 'The chat message recipient entry id',
 	sentDate DATETIME NOT NULL COMMENT 'The date-time when the message-recepient was added',
@@ -176,7 +179,7 @@ CREATE TABLE chat_msg_recepient (
 	recepientID INTEGER UNSIGNED NOT NULL COMMENT 'The private chat message recepient id',
 	FOREIGN KEY (recepientID) REFERENCES users (uid) ON DELETE CASCADE,
 	INDEX( cmrID, messageID, recepientID, sentDate )
-) ENGINE = MEMORY;
+) ENGINE = INNODB;
 
 -- Create the forum messages table
 CREATE TABLE forum_messages (
@@ -220,7 +223,9 @@ CREATE TABLE forum_files (
 	mimeType VARCHAR(256) CHARSET utf8 NOT NULL COMMENT 'The MIME type of the file',
 	fileName VARCHAR(128) CHARSET utf8 NOT NULL COMMENT 'The uploaded file name',
 	thumbnail BLOB COMMENT 'File preview thumbnail',
-	data LONGBLOB NOT NULL COMMENT 'The data of the uploaded file',
+	data LONGBLOB COMMENT 'The data of the uploaded file, if it is not in the files storage',
+	data_md5 CHAR(32) CHARSET ascii DEFAULT NULL COMMENT 'The MD5 sum of the file data in the files storage',
+	thumbnail_md5 CHAR(32) CHARSET ascii DEFAULT NULL COMMENT 'The MD5 sum of the thumbnail in the files storage',
 	widthPixels INTEGER UNSIGNED DEFAULT 0 COMMENT 'The width of the image file, not the thimbnail',
 	heightPixels INTEGER UNSIGNED DEFAULT 0 COMMENT 'The height of the image file, not the thimbnail',
 	INDEX( fileID, messageID, ownerID, mimeType )
@@ -1,3 +1,29 @@
+--
+--						DATE: 18.10.2026
+--
+--Moving the uploaded files data and thumbnails out of the DB into the content-addressed files storage,
+--the rows keep the MD5 sums of the stored blobs. The data columns become optional, they are only set for
+--the files that are not yet moved to the storage, see com.xcurechat.server.files.BlobStoreMigrator
+ALTER TABLE profile_files MODIFY COLUMN data LONGBLOB COMMENT 'The data of the uploaded file, if it is not in the files storage';
+ALTER TABLE profile_files ADD COLUMN data_md5 CHAR(32) CHARSET ascii DEFAULT NULL COMMENT 'The MD5 sum of the file data in the files storage';
+ALTER TABLE profile_files ADD COLUMN thumbnail_md5 CHAR(32) CHARSET ascii DEFAULT NULL COMMENT 'The MD5 sum of the thumbnail in the files storage';
+ALTER TABLE avatar_images MODIFY COLUMN image MEDIUMBLOB COMMENT 'Avatar image itself, if it is not in the files storage';
+ALTER TABLE avatar_images ADD COLUMN image_md5 CHAR(32) CHARSET ascii DEFAULT NULL COMMENT 'The MD5 sum of the avatar image in the files storage';
+ALTER TABLE chat_files MODIFY COLUMN data LONGBLOB COMMENT 'The data of the uploaded file, if it is not in the files storage';
+ALTER TABLE chat_files ADD COLUMN data_md5 CHAR(32) CHARSET ascii DEFAULT NULL COMMENT 'The MD5 sum of the file data in the files storage';
+ALTER TABLE chat_files ADD COLUMN thumbnail_md5 CHAR(32) CHARSET ascii DEFAULT NULL COMMENT 'The MD5 sum of the thumbnail in the files storage';
+ALTER TABLE forum_files MODIFY COLUMN data LONGBLOB COMMENT 'The data of the uploaded file, if it is not in the files storage';
+ALTER TABLE forum_files ADD COLUMN data_md5 CHAR(32) CHARSET ascii DEFAULT NULL COMMENT 'The MD5 sum of the file data in the files storage';
+ALTER TABLE forum_files ADD COLUMN thumbnail_md5 CHAR(32) CHARSET ascii DEFAULT NULL COMMENT 'The MD5 sum of the thumbnail in the files storage';
+
+--
+--						DATE: 18.10.2026
+--
+--Moving the chat messages and their recipients to InnoDB, the messages and the recipients
+--are now inserted in one transaction instead of locking both tables for every private message
+ALTER TABLE chat_messages ENGINE = INNODB;
+ALTER TABLE chat_msg_recepient ENGINE = INNODB;
+
 --
 --						DATE: 25.09.2010 -- ON THE SERVER
 --
@@ -70,6 +70,17 @@ public class MainSiteMenuUI extends Composite {
 		}
 	}
 	
+	/**
+	 * Allows to set the number of new messages delivered with some other server response,
+	 * then the checks for new messages are postponed
+	 * @param unreadMsgNumber the number of unread messages
+	 */
+	public void onNewNumberOfMessages( final int unreadMsgNumber ) {
+		if( newMsgsUpdateTimer != null ) {
+			newMsgsUpdateTimer.setNewNumberOfMessages( unreadMsgNumber );
+		}
+	}
+	
 	/**
 	 * Starts the checks for new messages, done by timer.
 	 * Should be called when the user is logged in to the chat system.
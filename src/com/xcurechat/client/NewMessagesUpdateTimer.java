@@ -91,6 +91,25 @@ public class NewMessagesUpdateTimer extends Timer {
 		lastNumberOfNewMsgs = newNumberOfNewMsgs;
 	}
 	
+	/**
+	 * Allows to set the number of new messages that was delivered with some other server response,
+	 * e.g. with the chat room-data update. Then the next server probing is postponed, so while the
+	 * number of new messages is delivered by the other responses, the server is not probed at all.
+	 * @param newNumberOfNewMsgs the new number of msgs from the server
+	 */
+	public void setNewNumberOfMessages( final int newNumberOfNewMsgs ) {
+		if( doUpdates ) {
+			//Set the new number of unread messages for the menu
+			siteMenu.setNewNumberOfMessages( newNumberOfNewMsgs );
+			
+			//Update the interval for probing the server
+			updateProbingInterval( newNumberOfNewMsgs );
+			
+			//Postpone the next update from the server
+			cancel(); schedule( MAX_SERVER_PROBING_INTERVAL_MILLISEC );
+		}
+	}
+	
 	/**
 	 * Allows to initiate fast updates for some time
 	 */
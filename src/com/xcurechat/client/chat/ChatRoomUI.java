@@ -314,16 +314,34 @@ public class ChatRoomUI extends Composite implements UserAvatarImageWidget.Avata
 	/**
 	 * Allows to update the chat room's data with the new data from the server
 	 * @param exception the exception that occurs while getting the room update or null 
-	 * @param currentVisibleUsers the set of short user data of the currently visible room users
+	 * @param currentVisibleUsers the set of short user data of the currently visible room users or null if
+	 * only the changes of the visible users are sent
+	 * @param updatedVisibleUsers the visible users that entered the room or whose data has changed, or null
+	 * @param leftVisibleUserIDs the IDs of the users that are not visible any more, or null
 	 * @param newMsgs the list of new messages to be appended to the existing ones
 	 */
-	public void updateRoomActualData( SiteException exception, Map<Integer, ShortUserData> currentVisibleUsers, List<ChatMessage> newMsgs) {
+	public void updateRoomActualData( SiteException exception, Map<Integer, ShortUserData> currentVisibleUsers,
+									  Map<Integer, ShortUserData> updatedVisibleUsers, List<Integer> leftVisibleUserIDs,
+									  List<ChatMessage> newMsgs) {
 		if( exception == null ) {
 			//If there is a update for users
 			if( currentVisibleUsers != null ) {
 				//Update the list of visible users
 				visibleUsers = currentVisibleUsers;
 				updatePeopleTree();
+			} else if( ( updatedVisibleUsers != null ) || ( leftVisibleUserIDs != null ) ) {
+				//Apply the changes to a copy, the old list of visible users might still be in use
+				Map<Integer, ShortUserData> newVisibleUsers = new HashMap<Integer, ShortUserData>( visibleUsers );
+				if( leftVisibleUserIDs != null ) {
+					for( Integer userID : leftVisibleUserIDs ) {
+						newVisibleUsers.remove( userID );
+					}
+				}
+				if( updatedVisibleUsers != null ) {
+					newVisibleUsers.putAll( updatedVisibleUsers );
+				}
+				visibleUsers = newVisibleUsers;
+				updatePeopleTree();
 			}
 			//If there are new messages
 			if( ( newMsgs != null ) && ( newMsgs.size() > 0 ) ) {
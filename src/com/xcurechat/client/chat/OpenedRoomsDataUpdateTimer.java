@@ -32,6 +32,7 @@ import java.util.Set;
 import com.google.gwt.user.client.Timer;
 import com.google.gwt.user.client.rpc.AsyncCallback;
 
+import com.xcurechat.client.MainSiteMenuUI;
 import com.xcurechat.client.NewMessageAlertWidget;
 import com.xcurechat.client.SiteManager;
 
@@ -59,6 +60,16 @@ class OpenedRoomsDataUpdateTimer extends Timer {
 	private static final int OPENED_ROOMS_DATA_UPDATE_LONG_INTERVAL_MILLISEC = 10 * OPENED_ROOMS_DATA_UPDATE_SHORT_INTERVAL_MILLISEC;
 	//The immediate update time interval
 	private static final int IMMEDIATE_UPDATE_TIME_INTERVAL_MILLISEC = 10;
+	//In the fast updates mode we use long polls, the server waits for the room updates
+	//before responding, if there is no response in this time, the request is considered lost
+	private static final int LONG_POLL_REQUEST_TIME_OUT_MILLISEC = 30000;
+	
+	//The time in milliseconds when the pending long-poll request was sent, zero if there is none
+	private long longPollRequestSentMillis = 0;
+	//The list of room IDs for which the pending long-poll request was sent
+	private List<Integer> longPollRoomIDs = new ArrayList<Integer>();
+	//The number of the long-poll requests in a row that the server did not park because it is overloaded
+	private int numberOfRejectedLongPolls = 0;
 	
 	//True if the room list updates should be done
 	private boolean doUpdates = true;
@@ -69,6 +80,12 @@ class OpenedRoomsDataUpdateTimer extends Timer {
 	//The room ID is mapped to the ID of the last chat message retrieved from this room
 	private Map<Integer, Integer> nextUpdateOldestMsgIDs = new HashMap<Integer, Integer>();
 	
+	//The room ID is mapped to the version of the room's visible users we know
+	private Map<Integer, Integer> visibleUsersVersions = new HashMap<Integer, Integer>();
+	
+	//The number of new private messages we know, negative if we do not know it yet
+	private int knownNewMessagesCount = -1;
+	
 	//The set of opened room IDs for which we had errors when getting data
 	private Set<Integer> problematicRoomIDs = new HashSet<Integer>();
 	
@@ -94,6 +111,7 @@ class OpenedRoomsDataUpdateTimer extends Timer {
 	void start() {
 		doUpdates = true;
 		isRepeated = false;
+		knownNewMessagesCount = -1;
 		schedule( IMMEDIATE_UPDATE_TIME_INTERVAL_MILLISEC );
 	}
 	
@@ -108,11 +126,13 @@ class OpenedRoomsDataUpdateTimer extends Timer {
 	/**
 	 * Removes the given room Id from the list of rooms for which we got
 	 * errors while retrieving their actual data. Also removed it from
-	 * the mapping of the room id to the oldest message id 
+	 * the mapping of the room id to the oldest message id and from the
+	 * mapping of the room id to the visible users version
 	 * @param roomID the room ID to be removed
 	 */
 	public void removeRoomFromDataUpdate( final int roomID ) {
 		nextUpdateOldestMsgIDs.remove( roomID );
+		visibleUsersVersions.remove( roomID );
 		problematicRoomIDs.remove( roomID );
 	}
 	
@@ -149,12 +169,58 @@ class OpenedRoomsDataUpdateTimer extends Timer {
 		scheduleRepeatingUpdates();
 	}
 	
+	/**
+	 * Allows to check if there is a pending long-poll request for the given rooms, which is not yet timed out
+	 * @param openedRoomIDs the list of rooms we want to get the update for
+	 * @return true if there is a pending long-poll request for the same rooms
+	 */
+	private boolean isLongPollPending( final List<Integer> openedRoomIDs ) {
+		return ( longPollRequestSentMillis != 0 ) && longPollRoomIDs.equals( openedRoomIDs ) &&
+			   ( System.currentTimeMillis() - longPollRequestSentMillis < LONG_POLL_REQUEST_TIME_OUT_MILLISEC );
+	}
+	
+	/**
+	 * Must be called when the long-poll request is completed, then the next long poll is scheduled right away.
+	 * If the server did not park the request, because it is overloaded, then the next long poll is sent after
+	 * the short update interval, which is doubled for every rejected request in a row up to the long interval.
+	 * @param requestSentMillis the time when the completed request was sent
+	 * @param isSuccess true if the request was completed successfully
+	 * @param isRejected true if the server did not park the request
+	 */
+	private void onLongPollCompleted( final long requestSentMillis, final boolean isSuccess, final boolean isRejected ) {
+		//Only if this is the last sent long poll request
+		if( longPollRequestSentMillis == requestSentMillis ) {
+			longPollRequestSentMillis = 0;
+			if( isSuccess && doUpdates && ( currentRoomsUpdateInterval == OPENED_ROOMS_DATA_UPDATE_SHORT_INTERVAL_MILLISEC ) ) {
+				if( isRejected ) {
+					int delay = OPENED_ROOMS_DATA_UPDATE_SHORT_INTERVAL_MILLISEC;
+					for( int i = 0; ( i < numberOfRejectedLongPolls ) && ( delay < OPENED_ROOMS_DATA_UPDATE_LONG_INTERVAL_MILLISEC ); i++ ) {
+						delay *= 2;
+					}
+					numberOfRejectedLongPolls++;
+					schedule( Math.min( delay, OPENED_ROOMS_DATA_UPDATE_LONG_INTERVAL_MILLISEC ) );
+				} else {
+					numberOfRejectedLongPolls = 0;
+					schedule( IMMEDIATE_UPDATE_TIME_INTERVAL_MILLISEC );
+				}
+				isRepeated = false; //This is needed to go back to the repeating (safety) updates
+			}
+		}
+	}
+	
 	public void run(){
 		//Get the list of rooms and open the default room if needed
 		final List<Integer> openedRoomIDs = new ArrayList<Integer>();
 		openedRoomIDs.addAll( roomsManager.getOpenRoomIdToChatRoomUI().keySet() );
 		openedRoomIDs.removeAll( problematicRoomIDs );
-		if( ! openedRoomIDs.isEmpty() ) {
+		//In the fast update mode we do long polls, but only one at a time
+		final boolean isLongPoll = ( currentRoomsUpdateInterval == OPENED_ROOMS_DATA_UPDATE_SHORT_INTERVAL_MILLISEC );
+		if( ! openedRoomIDs.isEmpty() && ! ( isLongPoll && isLongPollPending( openedRoomIDs ) ) ) {
+			final long requestSentMillis = System.currentTimeMillis();
+			if( isLongPoll ) {
+				longPollRequestSentMillis = requestSentMillis;
+				longPollRoomIDs = openedRoomIDs;
+			}
 			//Ensure lazy loading
 			(new SplitLoad(){
 				@Override
@@ -164,9 +230,22 @@ class OpenedRoomsDataUpdateTimer extends Timer {
 						public void onSuccess(ChatRoomDataUpdate updateData) {
 							if( doUpdates ) {
 								nextUpdateOldestMsgIDs = updateData.nextUpdateOldestMsgIDs;
+								visibleUsersVersions = updateData.visibleUsersVersions;
 								
-								//True if the actual user status was checked in this data array
-								boolean wasUserChecked = false;
+								//Set the actual user online status and its gold pieces 
+								final ShortUserData theLoggedInUser = updateData.loggedInUserData;
+								if( theLoggedInUser != null ) {
+									//Ensure delayed loading the this java script code
+									final SplitLoad loader = new SplitLoad(){
+										@Override
+										public void execute() {
+											SiteManager.setShortUserData( theLoggedInUser );
+											UserTreasureWidget.getInstance().setGoldPieceCount( theLoggedInUser.getGoldPiecesCount() );
+											UserStatusManager.getInstance().setActualChatUserStatus( theLoggedInUser.getUserStatus() );
+										}
+									};
+									loader.execute();
+								}
 								
 								//We initiate the new chat messages update, notify the message notifier
 								NewMessageAlertWidget.getInstance().initiateChatMessagesUpdate();
@@ -180,43 +259,33 @@ class OpenedRoomsDataUpdateTimer extends Timer {
 										problematicRoomIDs.add( roomID );
 									}
 									
-									//Set the actual user online status and its gold pieces 
-									if( ! wasUserChecked ) {
-										final Map<Integer,ShortUserData> userIDToShortData = updateData.roomIDToVisibleUsers.get( roomID );
-										if( userIDToShortData != null ) {
-											final ShortUserData theLoggedInUser = userIDToShortData.get( SiteManager.getUserID() );
-											if( theLoggedInUser != null ) {
-												//Ensure delayed loading the this java script code
-												final SplitLoad loader = new SplitLoad(){
-													@Override
-													public void execute() {
-														SiteManager.setShortUserData( theLoggedInUser );
-														UserTreasureWidget.getInstance().setGoldPieceCount( theLoggedInUser.getGoldPiecesCount() );
-														UserStatusManager.getInstance().setActualChatUserStatus( theLoggedInUser.getUserStatus() );
-													}
-												};
-												loader.execute();
-												
-												wasUserChecked = false;
-											}
-										}
-									}
-									
 									//Update the lists of users in opened rooms and also add new messages
 									ChatRoomUI roomInterface = openRoomIdToChatRoomUI.get( roomID );
 									if( roomInterface != null ) {
 										roomInterface.updateRoomActualData( updateData.roomIDToException.get( roomID ),
 																			updateData.roomIDToVisibleUsers.get( roomID ),
+																			updateData.roomIDToUpdatedVisibleUsers.get( roomID ),
+																			updateData.roomIDToLeftVisibleUsers.get( roomID ),
 																			updateData.roomIDToChatMessages.get( roomID ) );
 									}
 								}
 								
 								//Update the active room visitors
 								ChatRoomUI.updateActiveRoomVisitors( updateData.activeRoomVisitors );
+								
+								//Update the number of new private messages
+								knownNewMessagesCount = updateData.newMessagesCount;
+								MainSiteMenuUI.getMainSiteMenuUI().onNewNumberOfMessages( updateData.newMessagesCount );
+							}
+							if( isLongPoll ) {
+								onLongPollCompleted( requestSentMillis, true, updateData.isLongPollRejected );
 							}
 						}
 						
 						public void onFailure(Throwable caught) {
+							if( isLongPoll ) {
+								onLongPollCompleted( requestSentMillis, false, false );
+							}
 							if( doUpdates ) {
 								if ( caught instanceof UserStateException ) {
 									//Report, that the user is not logged in, this will also log-out the interface
@@ -237,11 +306,20 @@ class OpenedRoomsDataUpdateTimer extends Timer {
 
 					//Perform the update
 					RoomManagerAsync roomMNGAsync = RPCAccessManager.getRoomManagerAsync();
-					roomMNGAsync.getOpenedRoomsData( SiteManager.getUserID(), SiteManager.getUserSessionId(),
-													 openedRoomIDs, nextUpdateOldestMsgIDs, callback);
+					if( isLongPoll ) {
+						roomMNGAsync.waitForOpenedRoomsData( SiteManager.getUserID(), SiteManager.getUserSessionId(),
+															 openedRoomIDs, nextUpdateOldestMsgIDs, visibleUsersVersions,
+															 knownNewMessagesCount, callback);
+					} else {
+						roomMNGAsync.getOpenedRoomsData( SiteManager.getUserID(), SiteManager.getUserSessionId(),
+														 openedRoomIDs, nextUpdateOldestMsgIDs, visibleUsersVersions, callback);
+					}
 				}
 				@Override
 				public void recover() {
+					if( isLongPoll ) {
+						onLongPollCompleted( requestSentMillis, false, false );
+					}
 					if( doUpdates ) {
 						//Re-schedule the next update, but take some longer time
 						scheduleSlowUpdate();
@@ -26,7 +26,7 @@ import java.util.Map;
 import com.google.gwt.user.client.Timer;
 import com.google.gwt.user.client.rpc.AsyncCallback;
 import com.xcurechat.client.SiteManager;
-import com.xcurechat.client.data.ChatRoomData;
+import com.xcurechat.client.data.ActiveChatRoomsData;
 import com.xcurechat.client.dialogs.system.messages.ErrorMessagesDialogUI;
 import com.xcurechat.client.rpc.RPCAccessManager;
 import com.xcurechat.client.rpc.RoomManagerAsync;
@@ -54,6 +54,9 @@ public class RoomListUpdateTimer extends Timer {
 	//True if the timer is already running repeatedly
 	private boolean isRepeated = false;
 	
+	//The version of the rooms list that was last retrieved from the server
+	private long knownRoomsVersion = ActiveChatRoomsData.UNKNOWN_VERSION;
+	
 	//The instance of the current rooms manager
 	private final RoomsManagerUI roomsManager;
 	
@@ -74,6 +77,7 @@ public class RoomListUpdateTimer extends Timer {
 		doUpdates = true;
 		wereRoomsReOpened = false;
 		isRepeated = false;
+		knownRoomsVersion = ActiveChatRoomsData.UNKNOWN_VERSION;
 	}
 	
 	/**
@@ -110,14 +114,19 @@ public class RoomListUpdateTimer extends Timer {
 			@Override
 			public void execute() {
 				//Get the list of all available rooms callback
-				AsyncCallback<Map<Integer, ChatRoomData>> callback = new AsyncCallback<Map<Integer, ChatRoomData>>() {
-					public void onSuccess(Map<Integer, ChatRoomData> availableRooms) {
+				AsyncCallback<ActiveChatRoomsData> callback = new AsyncCallback<ActiveChatRoomsData>() {
+					public void onSuccess(ActiveChatRoomsData activeRooms) {
 						if( doUpdates ) {
-							//Update the list of rooms
-							roomsManager.registerAvailableRooms( availableRooms );
-							
-							//Update the opened tab's room trees
-							ChatRoomUI.updateRoomsTree( availableRooms, roomsManager );
+							//If the list of rooms was not modified then the rooms are not sent
+							if( activeRooms.rooms != null ) {
+								knownRoomsVersion = activeRooms.version;
+								
+								//Update the list of rooms
+								roomsManager.registerAvailableRooms( activeRooms.rooms );
+								
+								//Update the opened tab's room trees
+								ChatRoomUI.updateRoomsTree( activeRooms.rooms, roomsManager );
+							}
 							
 							//Update the opened rooms data
 							roomsManager.updateOpenedRoomsData();
@@ -168,7 +177,7 @@ public class RoomListUpdateTimer extends Timer {
 				
 				//Get the list of rooms and open the default room if needed
 				RoomManagerAsync roomMNGAsync = RPCAccessManager.getRoomManagerAsync();
-				roomMNGAsync.getAllRooms( SiteManager.getUserID(), SiteManager.getUserSessionId(), callback);
+				roomMNGAsync.getAllRoomsIfModified( SiteManager.getUserID(), SiteManager.getUserSessionId(), knownRoomsVersion, callback);
 			}
 		}).loadAndExecute();
 		
@@ -0,0 +1,46 @@
+/**
+ * X-Cure-Chat
+ * Copyright (C) 2013  Dr. Ivan S. Zapreev
+ * www: https://nl.linkedin.com/in/zapreevis
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.#
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * The user data objects package.
+ * (C) Ivan S. Zapreev, 2008
+ */
+package com.xcurechat.client.data;
+
+import java.util.Map;
+
+import com.google.gwt.user.client.rpc.IsSerializable;
+
+/**
+ * @author zapreevis
+ * This class stores a versioned snapshot of the list of active chat rooms.
+ * This information comes from the server to the client. If the client already
+ * knows the current version of the list then the rooms are not sent again.
+ */
+public class ActiveChatRoomsData implements IsSerializable {
+	
+	//The version used by the client when it does not know any list of rooms yet
+	public static final long UNKNOWN_VERSION = 0;
+	
+	public ActiveChatRoomsData(){}
+	
+	//The version of the list of active rooms
+	public long version = UNKNOWN_VERSION;
+	
+	//The mapping from the room ID to the room data, is null if the list of rooms was not modified
+	public Map<Integer, ChatRoomData> rooms = null;
+}
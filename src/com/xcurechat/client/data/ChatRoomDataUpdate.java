@@ -40,9 +40,25 @@ public class ChatRoomDataUpdate  implements IsSerializable {
 	//Contains the mapping between the room ID and the exception that occured during the data retrieval
 	public Map<Integer, SiteException> roomIDToException = null;
 	
-	//This map contains the mapping from the room ID to the set of the visible room visitors
+	//This map contains the mapping from the room ID to the complete set of the visible room
+	//visitors, it is only present for the rooms for which the client's visible users version
+	//is unknown or is too old to send the changes to the visible users
 	public Map<Integer, Map<Integer, ShortUserData>> roomIDToVisibleUsers = null;
 	
+	//This map contains the mapping from the room ID to the visible room visitors that have entered
+	//the room or whose data has changed since the client's visible users version of the room
+	public Map<Integer, Map<Integer, ShortUserData>> roomIDToUpdatedVisibleUsers = null;
+	
+	//This map contains the mapping from the room ID to the IDs of the room visitors that
+	//are not visible any more since the client's visible users version of the room
+	public Map<Integer, List<Integer>> roomIDToLeftVisibleUsers = null;
+	
+	//The room ID is mapped to the version of the room's visible users known to the client
+	public Map<Integer, Integer> visibleUsersVersions = null;
+	
+	//The short data of the user the update is for, is used to keep the user's status and gold up to date
+	public ShortUserData loggedInUserData = null;
+	
 	//This map contains the mapping between the roomID and the list of new room messages
 	public Map<Integer, List<ChatMessage>> roomIDToChatMessages = null;
 	
@@ -51,4 +67,11 @@ public class ChatRoomDataUpdate  implements IsSerializable {
 	
 	//The mapping from the active room ID to the number of the chat room's visitors
 	public Map<Integer, Integer> activeRoomVisitors = null;
+	
+	//The number of the new private messages of the user the update is for
+	public int newMessagesCount = 0;
+	
+	//True if the long-poll request was not parked to wait for the room updates, because the server
+	//has too many waiting requests, then the client should not send the next long poll right away
+	public boolean isLongPollRejected = false;
 }
@@ -31,9 +31,34 @@ public class FileData extends ShortFileDescriptor {
 	public transient byte[] fileData = null;
 	//The thumbnail for the file
 	public transient byte[] thumbnailData = null;
+	//The MD5 sums of the file data and the thumbnail, if known. If the data is not
+	//loaded, i.e. is null, then it is in the files storage under this MD5 sum key
+	public transient String fileDataMD5 = null;
+	public transient String thumbnailDataMD5 = null;
 
 	public FileData() {
 		super();
 	}
+	
+	/**
+	 * Allows to copy the descriptor of the given file into the given object, i.e. everything
+	 * but the file and the thumbnail data. The MD5 sums of the data are copied.
+	 * @param target the object into which we want to copy the descriptor
+	 * @return the same object as was provided for an argument, this is just for simplicity
+	 */
+	protected FileData copyFileDescriptorTo( final FileData target ) {
+		copyTo( target );
+		target.fileDataMD5 = fileDataMD5;
+		target.thumbnailDataMD5 = thumbnailDataMD5;
+		return target;
+	}
+	
+	/**
+	 * Allows to clone the descriptor of the given file, the file and the thumbnail data are not copied
+	 * @return the new object of the same class with the file descriptor but without the data
+	 */
+	public FileData cloneFileDescriptor() {
+		return copyFileDescriptorTo( new FileData() );
+	}
 
 }
\ No newline at end of file
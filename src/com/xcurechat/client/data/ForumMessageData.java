@@ -51,4 +51,31 @@ public class ForumMessageData extends ShortForumMessageData {
 	public boolean isLastReplySenderRegistered() {
 		return (numberOfReplies > 0) && ( lastReplyUser != null ) ? !lastReplyUser.getUserLoginName().equals( ShortUserData.DELETED_USER_LOGIN_NAME ) : false;
 	}
+
+	/**
+	 * Allows to create a clone of the given message, the attached file indeces are copied
+	 * but the sender and the last reply user data objects are shared with the original.
+	 * @return an exact copy of the given message
+	 */
+	public ForumMessageData cloneForumMessage() {
+		ForumMessageData newMessage = new ForumMessageData();
+		newMessage.messageID = messageID;
+		newMessage.parentMessageID = parentMessageID;
+		newMessage.senderID = senderID;
+		newMessage.messageTitle = messageTitle;
+		newMessage.messageBody = messageBody;
+		newMessage.messagePathID = messagePathID;
+		newMessage.isApproved = isApproved;
+		newMessage.hasVoted = hasVoted;
+		newMessage.numVotes = numVotes;
+		newMessage.voteValue = voteValue;
+		newMessage.attachedFileIds.addAll( attachedFileIds );
+		newMessage.sentDate = sentDate;
+		newMessage.updateDate = updateDate;
+		newMessage.senderData = senderData;
+		newMessage.numberOfReplies = numberOfReplies;
+		newMessage.lastReplyDate = lastReplyDate;
+		newMessage.lastReplyUser = lastReplyUser;
+		return newMessage;
+	}
 }
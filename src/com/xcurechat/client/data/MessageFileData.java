@@ -30,4 +30,14 @@ public class MessageFileData extends UserFileData {
 	//The id of the message to which this file belongs,
 	//Might not be set if the related message is not created yet.
 	public int messageID = ShortForumMessageData.UNKNOWN_MESSAGE_ID;
+	
+	protected FileData copyFileDescriptorTo( final FileData target ) {
+		super.copyFileDescriptorTo( target );
+		( (MessageFileData) target ).messageID = messageID;
+		return target;
+	}
+	
+	public FileData cloneFileDescriptor() {
+		return copyFileDescriptorTo( new MessageFileData() );
+	}
 }
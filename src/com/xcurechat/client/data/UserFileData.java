@@ -33,5 +33,15 @@ public class UserFileData extends FileData {
 	public UserFileData() {
 		super();
 	}
+	
+	protected FileData copyFileDescriptorTo( final FileData target ) {
+		super.copyFileDescriptorTo( target );
+		( (UserFileData) target ).ownerID = ownerID;
+		return target;
+	}
+	
+	public FileData cloneFileDescriptor() {
+		return copyFileDescriptorTo( new UserFileData() );
+	}
 
 }
\ No newline at end of file
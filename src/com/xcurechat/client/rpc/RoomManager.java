@@ -26,6 +26,7 @@ import com.google.gwt.user.client.rpc.RemoteService;
 import java.util.List;
 import java.util.Map;
 
+import com.xcurechat.client.data.ActiveChatRoomsData;
 import com.xcurechat.client.data.ChatMessage;
 import com.xcurechat.client.data.RoomUserAccessData;
 import com.xcurechat.client.data.ChatRoomData;
@@ -98,6 +99,16 @@ public interface RoomManager extends RemoteService {
 	 */
 	public Map<Integer, ChatRoomData> getAllRooms( final int userID, final String userSessionId ) throws SiteException;
 	
+	/**
+	 * Get the list of available rooms, if it has changed since the given version.
+	 * @param userID the user unique ID
+	 * @param userSessionId the id of the user session
+	 * @param knownVersion the version of the rooms list known to the client or ActiveChatRoomsData.UNKNOWN_VERSION
+	 * @return the current version of the rooms list, the rooms are null if the list was not modified
+	 * @throws SiteException in case something goes wrong
+	 */
+	public ActiveChatRoomsData getAllRoomsIfModified( final int userID, final String userSessionId, final long knownVersion ) throws SiteException;
+	
 	/**
 	 * This method allows count the number of rooms of the given user
 	 * @param userID the user unique ID
@@ -219,15 +230,39 @@ public interface RoomManager extends RemoteService {
 	 * @param userSessionId the user's session id
 	 * @param openedRoomIDS the list of opened room IDs
 	 * @param nextUpdateOldestMsgIDs the room ID is mapped to the ID of the last chat message retrieved from this room
+	 * @param visibleUsersVersions the room ID is mapped to the version of the room's visible users known to the client
 	 * @return the requested data
 	 * @throws SiteException if the user is not logged in or we
 	 *			try to validate the session too often or smth else!
 	 */
 	public ChatRoomDataUpdate getOpenedRoomsData( final int userID, final String userSessionId,
 													final List<Integer> openedRoomIDS,
-													final Map<Integer, Integer> nextUpdateOldestMsgIDs )
+													final Map<Integer, Integer> nextUpdateOldestMsgIDs,
+													final Map<Integer, Integer> visibleUsersVersions )
 													throws SiteException;
 	
+	/**
+	 * This method allows retrieve the list of users in the rooms and new messages.
+	 * If there are no new messages then the request is kept on the server until
+	 * there is an update in one of the opened rooms, a change of the number of new
+	 * private messages or the waiting times out.
+	 * @param userID the user unique ID
+	 * @param userSessionId the user's session id
+	 * @param openedRoomIDS the list of opened room IDs
+	 * @param nextUpdateOldestMsgIDs the room ID is mapped to the ID of the last chat message retrieved from this room
+	 * @param visibleUsersVersions the room ID is mapped to the version of the room's visible users known to the client
+	 * @param knownNewMessagesCount the number of new private messages known to the client, negative if it is not known
+	 * @return the requested data
+	 * @throws SiteException if the user is not logged in or we
+	 *			try to validate the session too often or smth else!
+	 */
+	public ChatRoomDataUpdate waitForOpenedRoomsData( final int userID, final String userSessionId,
+														final List<Integer> openedRoomIDS,
+														final Map<Integer, Integer> nextUpdateOldestMsgIDs,
+														final Map<Integer, Integer> visibleUsersVersions,
+														final int knownNewMessagesCount )
+														throws SiteException;
+	
 	/**
 	 * Sends the request to the room owner for letting the user access the room
 	 * @param userID the ID of the user who sends the request
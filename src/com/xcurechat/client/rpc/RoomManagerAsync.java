@@ -26,6 +26,7 @@ import java.util.Map;
 
 import com.google.gwt.user.client.rpc.AsyncCallback;
 
+import com.xcurechat.client.data.ActiveChatRoomsData;
 import com.xcurechat.client.data.ChatRoomData;
 import com.xcurechat.client.data.ChatMessage;
 import com.xcurechat.client.data.RoomUserAccessData;
@@ -75,6 +76,12 @@ public interface RoomManagerAsync {
 	public void getAllRooms( final int userID, final String userSessionId,
 							AsyncCallback< Map<Integer, ChatRoomData> > callback);
 	
+	/**
+	 * Get the list of available rooms, if it has changed since the given version.
+	 */
+	public void getAllRoomsIfModified( final int userID, final String userSessionId,
+									   final long knownVersion, AsyncCallback<ActiveChatRoomsData> callback);
+	
 	/**
 	 * This method allows count the number of rooms of the given user
 	 */
@@ -145,8 +152,20 @@ public interface RoomManagerAsync {
 	public void getOpenedRoomsData( final int userID, final String userSessionId,
 									final List<Integer> openedRoomIDS,
 									final Map<Integer, Integer> nextUpdateOldestMsgID,
+									final Map<Integer, Integer> visibleUsersVersions,
 									AsyncCallback<ChatRoomDataUpdate> callback );
 	
+	/**
+	 * This method allows retrieve the list of users in the rooms and new messages,
+	 * the request waits on the server until there is an update or a time out.
+	 */
+	public void waitForOpenedRoomsData( final int userID, final String userSessionId,
+										final List<Integer> openedRoomIDS,
+										final Map<Integer, Integer> nextUpdateOldestMsgID,
+										final Map<Integer, Integer> visibleUsersVersions,
+										final int knownNewMessagesCount,
+										AsyncCallback<ChatRoomDataUpdate> callback );
+	
 	/**
 	 * Sends the request to the room owner for letting the user access the room
 	 */
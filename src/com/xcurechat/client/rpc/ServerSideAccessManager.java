@@ -211,7 +211,6 @@ public class ServerSideAccessManager {
 	public static final String FOR_USER_ID_IMAGE_SERVLET_PARAM = "forUserID";
 	public static final String IS_THUMBNAIL_SERVLET_PARAM = "thumb";
 	public static final String IS_IMAGE_SERVLET_PARAM = "isImg";
-	public static final String DUMMY_TIME_SERVLET_PARAM = "time";
 	public static final String ROOM_ID_CHAT_FILES_SERVLET_PARAM = "roomID";
 	public static final String FILE_ID_CHAT_FILES_SERVLET_PARAM = "imageID";
 	public static final String FILE_ID_SERVLET_PARAM = "fileID";
@@ -325,6 +324,10 @@ public class ServerSideAccessManager {
 	//Parameters of the user profile avatar retrieval servlet
 	public static final String FOR_USER_ID_AVATAR_SERVLET_PARAM = "forUserID";
 	public static final String FOR_USER_GENDER_AVATAR_SERVLET_PARAM = "gender";
+	//The version of the avatar, if present then the avatar can be cached by the browser for a while, the changed avatar gets a new version
+	public static final String AVATAR_VERSION_SERVLET_PARAM = "version";
+	//The time period in milliseconds for which the other users' avatar URLs do not change
+	public static final long AVATAR_VERSION_PERIOD_MILLISEC = 10 * 60000;
 	
 	//COnstants that devfine path prefixes for various site images
 	public static final String SITE_IMAGES_LOCATION = "images" + SERVER_CONTEXT_DELIMITER;
@@ -74,9 +74,11 @@ public class UserAvatarImageWidget extends Composite implements MouseOverHandler
 	private static final UITitlesI18N i18nTitles = I18NManager.getTitles();
 	private static final UIInfoMessages i18nInfo = I18NManager.getInfoMessages();
 	
-	//The next time the avatar images will we re-requested from the server
-	private static long myAvatarUpdateTimeMillisec = System.currentTimeMillis(); 
-	private static long otherAvatarsUpdateTimeMillisec = System.currentTimeMillis();
+	//The versions of the avatar images, are put into the avatar URLs. The version of the user's own
+	//avatar changes when it is updated, the versions of the other users' avatars change periodically
+	//but are the same in all pages, so the browser can reuse the avatar images it has loaded.
+	private static long myAvatarVersion = System.currentTimeMillis(); 
+	private static long otherAvatarsVersionShift = 0;
 	
 	/**
 	 * @author zapreevis
@@ -333,25 +335,25 @@ public class UserAvatarImageWidget extends Composite implements MouseOverHandler
 	 * @return the required URL
 	 */
 	private static String getProfileAvatarURL( final int userID, final boolean isMale, final boolean update ) {
-		long time; final boolean isMyAvatar = (userID == SiteManager.getUserID());
-		if( isMyAvatar ) {
-			if( update || myAvatarUpdateTimeMillisec < System.currentTimeMillis() ) {
-				myAvatarUpdateTimeMillisec += 60000;
+		long version;
+		if( userID == SiteManager.getUserID() ) {
+			if( update ) {
+				myAvatarVersion++;
 			}
-			time = myAvatarUpdateTimeMillisec;
+			version = myAvatarVersion;
 		} else {
-			if( update || otherAvatarsUpdateTimeMillisec < System.currentTimeMillis() ) {
-				otherAvatarsUpdateTimeMillisec += 60000;
+			if( update ) {
+				otherAvatarsVersionShift++;
 			}
-			time = otherAvatarsUpdateTimeMillisec;
+			version = System.currentTimeMillis() / ServerSideAccessManager.AVATAR_VERSION_PERIOD_MILLISEC + otherAvatarsVersionShift;
 		}
 		
 		return	URL.encode( GWT.getModuleBaseURL() +
 				ServerSideAccessManager.USER_PROFILE_AVATAR_SERVLET_CONTEXT + ServerSideAccessManager.URL_QUERY_DELIMITER +
 				ServerSideAccessManager.FOR_USER_ID_AVATAR_SERVLET_PARAM + ServerSideAccessManager.SERVER_PARAM_NAME_VAL_DELIM + userID + ServerSideAccessManager.SERVLET_PARAMETERS_DELIMITER +
 				ServerSideAccessManager.FOR_USER_GENDER_AVATAR_SERVLET_PARAM + ServerSideAccessManager.SERVER_PARAM_NAME_VAL_DELIM + ( isMale ? "1" : "0") + ServerSideAccessManager.SERVLET_PARAMETERS_DELIMITER +
-				ServerSideAccessManager.DUMMY_TIME_SERVLET_PARAM + ServerSideAccessManager.SERVER_PARAM_NAME_VAL_DELIM + time );
-		//NOTE: The last parameter is only used for updating the avatar images
+				ServerSideAccessManager.AVATAR_VERSION_SERVLET_PARAM + ServerSideAccessManager.SERVER_PARAM_NAME_VAL_DELIM + version );
+		//NOTE: The last parameter makes the browser reload the image when the avatar version changes
 	}
 
 	@Override
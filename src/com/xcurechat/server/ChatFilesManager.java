@@ -25,6 +25,7 @@ import java.util.List;
 import java.util.Iterator;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpSession;
@@ -50,6 +51,7 @@ import com.xcurechat.server.cache.ServerDataFileCache;
 import com.xcurechat.server.core.ChatRoomsManager;
 import com.xcurechat.server.core.UserSessionManager;
 
+import com.xcurechat.server.files.BlobStoreManager;
 import com.xcurechat.server.files.FileServletHelper;
 import com.xcurechat.server.files.FileUploadWrapper;
 import com.xcurechat.server.files.ImageProcessor;
@@ -62,7 +64,6 @@ import com.xcurechat.server.jdbc.chat.images.RemoveOtherFilesWithMD5Executor;
 import com.xcurechat.server.security.statistics.StatisticsSecurityManager;
 
 import com.xcurechat.server.utils.HTTPUtils;
-import com.xcurechat.server.utils.MD5;
 
 public class ChatFilesManager extends HttpServlet {
 	
@@ -80,20 +81,26 @@ public class ChatFilesManager extends HttpServlet {
 	public static final long MAX_UPLOAD_FILE_REQUEST_SIZE_BYTES = MAX_UPLOAD_FILE_SIZE_BYTES + 2048;
 	
 	//The cache for the chat files
-	private static final ServerDataFileCache filesCache = new ServerDataFileCache( 5 * MAX_UPLOAD_FILE_SIZE_MB, 20, 1, "chat-files");
+	private static final ServerDataFileCache filesCache = new ServerDataFileCache( ServerDataFileCache.DEFAULT_THUMBNAILS_CAPACITY_MB, 5 * MAX_UPLOAD_FILE_SIZE_MB, 20, 1, "chat-files");
 	
-	//The default chat message image stored as a byte array 
+	//The default chat message image stored as a byte array, and its MD5 sum
 	private byte[] defaultImageThumb = null;
+	private String defaultImageThumbMD5 = null;
 	
-	//The default chat message video stored as a byte array 
+	//The default chat message video stored as a byte array, and its MD5 sum
 	private byte[] defaultVideoThumb = null;
+	private String defaultVideoThumbMD5 = null;
 	
 	public void init() {
+		//Set up the storage for the uploaded files data
+		BlobStoreManager.configure( getServletContext() );
 		//Load default thumbnail images
 		logger.info("Starting to load default chat message's image thumbnail.");
 		String imagePath =  getServletContext().getRealPath("/") + getInitParameter("relative-images-path");
 		defaultImageThumb = FileServletHelper.getReadFileDataInBytes( logger, imagePath + "chat_message_picture.jpg" );
 		defaultVideoThumb = FileServletHelper.getReadFileDataInBytes( logger, imagePath + "chat_message_video.jpg" );
+		defaultImageThumbMD5 = FileServletHelper.getDataMD5( defaultImageThumb );
+		defaultVideoThumbMD5 = FileServletHelper.getDataMD5( defaultVideoThumb );
 		logger.info("Loadig of default profile image thumbnails is complete.");
 	}
 	
@@ -145,14 +152,11 @@ public class ChatFilesManager extends HttpServlet {
 																							 ImageProcessor.THUMBNAIL_WIDTH,
 																							 ImageProcessor.DEFAULT_BACKGROUND_COLOR, "chat" );
 					
-					//First clean up the old chat room messages and images
-					ChatRoomsManager.getInstance().cleanUpOldChatMessages();
-					
 					//Store files in the database
 					logger.debug("Inserting a new file for a chat message by user " + userID + ", room " + roomID );
 					
-					//Get the MD5 sum for the privided data
-					final String md5Sum = MD5.getMD5( fileData.fileData );
+					//Get the MD5 sum for the privided data, it was computed while the data was prepared
+					final String md5Sum = fileData.fileDataMD5;
 					//Insert the file data
 					InsertChatFileExecutor insertFileExec = new InsertChatFileExecutor( roomID, fileData, md5Sum );
 					ConnectionWrapper<Void> insertFileConnWrap = ConnectionWrapper.createConnectionWrapper( insertFileExec );
@@ -233,21 +237,25 @@ public class ChatFilesManager extends HttpServlet {
 			
 			//Try to retrieve the file either from the database or a default one from here
 			FileData fileDescriptor = new MessageFileData();
-			byte[] data; String mimeType; String fileName;
+			ByteBuffer data = null; String dataMD5 = null; String mimeType; String fileName;
 			//If we are retrieving an image file or we are retrieving a file but not its thumbnail then we search the database
 			if( isImageFile || !isThumbnail ) {
-				UserFileData fileData = (UserFileData) filesCache.get( fileID );
-				if( fileData != null ) {
+				ServerDataFileCache.CachedFile cachedFile = filesCache.get( fileID, isThumbnail );
+				if( cachedFile != null ) {
 					//The file is inside the cache
-					if( ChatRoomsManager.getInstance().canGetChatRoomMessageFile(userID, roomID, isMsgAtt, fileData) ) {
+					if( ChatRoomsManager.getInstance().canGetChatRoomMessageFile(userID, roomID, isMsgAtt, (UserFileData) cachedFile.descriptor) ) {
 						//If the user can view the file then we are done
-						fileDescriptor = fileData;
+						fileDescriptor = cachedFile.descriptor;
+						data = cachedFile.data;
+						dataMD5 = cachedFile.dataMD5;
 					} else {
 						//NOTE: Here we do nothing because if the user is not allowed to view the file then we return a dummy file data
 					}
 				} else {
 					//If the file was not cached, then retrieve it from the DB
 					fileDescriptor = ChatRoomsManager.getInstance().getChatRoomMessageFile( userID, roomID, fileID, isThumbnail, isMsgAtt );
+					data = FileServletHelper.wrapFileData( ( isThumbnail ) ? fileDescriptor.thumbnailData : fileDescriptor.fileData );
+					dataMD5 = ( isThumbnail ) ? fileDescriptor.thumbnailDataMD5 : fileDescriptor.fileDataMD5;
 					//NOTE: After the file was retrieved we do not place it into cache because this is most likely 
 					//to be a retrieval of the old file by a used who was late on viewing this file on time.
 				}
@@ -255,24 +263,24 @@ public class ChatFilesManager extends HttpServlet {
 				//Set the initial data and mime type
 				mimeType = fileDescriptor.mimeType;
 				fileName = ServerSideAccessManager.getURLAllowedFileName( fileDescriptor, ServerSideAccessManager.CHAT_FILE_DEFAULT_NAME_PREFIX );
-				data = ( isThumbnail ) ? fileDescriptor.thumbnailData : fileDescriptor.fileData;
 			} else {
 				//If the opposite is true i.e. ( !isImageFile && isThumbnail) then there is no thumbnail for such file 
 				//and we should load the default one, i.e. the database search is not actually needed for this case
-				data = defaultVideoThumb;
+				data = FileServletHelper.wrapFileData( defaultVideoThumb );
+				dataMD5 = defaultVideoThumbMD5;
 				mimeType = SupportedFileMimeTypes.JPEG_IMAGE_MIME.getMainMimeType();
 				fileName = ShortFileDescriptor.UNKNOWN_FILE_NAME;
 			}
 			
-			//If the data is null then set the default image data
-			if( data == null ) {
-				data = ( isThumbnail && SupportedFileMimeTypes.isPlayableMimeType( fileDescriptor.mimeType ) ) ? defaultVideoThumb : defaultImageThumb;
-				mimeType = SupportedFileMimeTypes.JPEG_IMAGE_MIME.getMainMimeType();
-				fileName = ShortFileDescriptor.UNKNOWN_FILE_NAME;
+			//If there is no data then write the default image data
+			if( ! FileServletHelper.writeOutputFile( logger, request, response, data, dataMD5, "chat-file", mimeType, fileName, true, isDownload ) ) {
+				final boolean isVideoThumb = isThumbnail && SupportedFileMimeTypes.isPlayableMimeType( fileDescriptor.mimeType );
 				logger.warn("Unable to retrieve chat file " + fileID +", is thumbnail: " + isThumbnail );
+				FileServletHelper.writeOutputFile( logger, request, response, isVideoThumb ? defaultVideoThumb : defaultImageThumb,
+												   isVideoThumb ? defaultVideoThumbMD5 : defaultImageThumbMD5, "chat-file",
+												   SupportedFileMimeTypes.JPEG_IMAGE_MIME.getMainMimeType(),
+												   ShortFileDescriptor.UNKNOWN_FILE_NAME, true, isDownload );
 			}
-			
-			FileServletHelper.writeOutputFile( logger, response, data, "chat-file", mimeType, fileName, true, isDownload );
 		} catch( SiteException ex) {
 			response.getWriter().println( ExceptionsSerializer.serialize( ex ) );
 		} finally {
@@ -25,6 +25,7 @@ import java.util.List;
 import java.util.Iterator;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpSession;
@@ -49,6 +50,7 @@ import com.xcurechat.client.data.UserFileData;
 import com.xcurechat.server.cache.ServerDataFileCache;
 import com.xcurechat.server.core.UserSessionManager;
 
+import com.xcurechat.server.files.BlobStoreManager;
 import com.xcurechat.server.files.FileServletHelper;
 import com.xcurechat.server.files.FileUploadWrapper;
 import com.xcurechat.server.files.ImageProcessor;
@@ -83,7 +85,7 @@ public class ForumFilesManager extends HttpServlet {
 	public static final long MAX_UPLOAD_FILE_REQUEST_SIZE_BYTES = MAX_UPLOAD_FILE_SIZE_BYTES + 2048;
 	
 	//The cache for the chat files
-	private static final ServerDataFileCache filesCache = new ServerDataFileCache( 5 * MAX_UPLOAD_FILE_SIZE_MB, 6*60, 60, "forum-files");
+	private static final ServerDataFileCache filesCache = new ServerDataFileCache( ServerDataFileCache.DEFAULT_THUMBNAILS_CAPACITY_MB, 5 * MAX_UPLOAD_FILE_SIZE_MB, 6*60, 60, "forum-files");
 	
 	//The length of lost forum files clean up in milliseconds
 	private static final long FILE_CLEAN_UP_INTERVAL_MILLISEC = DeleteLostForumFilesExecutor.AT_LEAST_N_HOURS_OLD * 60 * 1000;
@@ -92,6 +94,12 @@ public class ForumFilesManager extends HttpServlet {
 	private static final Object cleanUpSynchObj = new Object();
 	private static long lastCleanUpTimeMillisec = ( System.currentTimeMillis() - FILE_CLEAN_UP_INTERVAL_MILLISEC );
 	
+	@Override
+	public void init() {
+		//Set up the storage for the uploaded files data
+		BlobStoreManager.configure( getServletContext() );
+	}
+	
 	/**
 	 * This method, if called periodically, once a day cleans up the
 	 * uploaded forum files that are more than N hours old and have the
@@ -230,23 +238,30 @@ public class ForumFilesManager extends HttpServlet {
 			//NOTE: We do not validate the session here because in for forum the non-logged in users can browse the files
 			
 			//Try to retrieve the file from the cache
-			MessageFileData fileData = (MessageFileData) filesCache.get(fileID);
-			if( fileData == null ) {
+			FileData fileDescriptor; ByteBuffer data; String dataMD5;
+			ServerDataFileCache.CachedFile cachedFile = filesCache.get( fileID, isThumbnail );
+			if( cachedFile != null ) {
+				fileDescriptor = cachedFile.descriptor;
+				data = cachedFile.data;
+				dataMD5 = cachedFile.dataMD5;
+			} else {
 				//If the file is not in the cache, allocate a new data holder
-				fileData =new MessageFileData();
+				MessageFileData fileData =new MessageFileData();
 				//Retrieve the file from the database
 				ConnectionWrapper<MessageFileData> getFileDataConnWrap = ConnectionWrapper.createConnectionWrapper( new SelectForumFileExecutor( fileID ) );
 				getFileDataConnWrap.executeQuery( fileData, ConnectionWrapper.XCURE_CHAT_DB );
 				//Put the file into cache
 				filesCache.put( fileData );
+				fileDescriptor = fileData;
+				data = FileServletHelper.wrapFileData( isThumbnail ? fileData.thumbnailData : fileData.fileData );
+				dataMD5 = ( isThumbnail ? fileData.thumbnailDataMD5 : fileData.fileDataMD5 );
 			}
 			
-			byte[] data = (isThumbnail ? fileData.thumbnailData : fileData.fileData);
-			if( data == null ) {
+			final String properFileName = ServerSideAccessManager.getURLAllowedFileName( fileDescriptor, ServerSideAccessManager.FORUM_FILE_DEFAULT_NAME_PREFIX );
+			if( ! FileServletHelper.writeOutputFile( logger, request, response, data, dataMD5, "forum-file", fileDescriptor.mimeType, properFileName, true, isDownload ) ) {
 				logger.error("Unable to retrieve forum file " + fileID +", is thumbnail: " + isThumbnail );
+				throw new ServletException( "The servlet could not retrieve forum-file file with mime type \""+fileDescriptor.mimeType+"\"!" );
 			}
-			final String properFileName = ServerSideAccessManager.getURLAllowedFileName( fileData, ServerSideAccessManager.FORUM_FILE_DEFAULT_NAME_PREFIX );
-			FileServletHelper.writeOutputFile( logger, response, data, "forum-file", fileData.mimeType, properFileName, true, isDownload );
 		} catch( SiteException ex) {
 			response.getWriter().println( ExceptionsSerializer.serialize( ex ) );
 		} finally {
@@ -20,6 +20,7 @@ import com.xcurechat.client.data.ForumMessageData;
 import com.xcurechat.client.data.MainUserData;
 import com.xcurechat.client.data.ShortPrivateMessageData;
 import com.xcurechat.client.data.UserData;
+import com.xcurechat.client.data.ShortFileDescriptor;
 import com.xcurechat.client.data.ShortForumMessageData;
 import com.xcurechat.client.data.search.ForumSearchData;
 import com.xcurechat.client.data.search.OnePageViewData;
@@ -34,6 +35,9 @@ import com.xcurechat.client.utils.SmileyHandler;
 import com.xcurechat.client.utils.UserForumActivity;
 
 import com.xcurechat.server.cache.ForumQueriesCache;
+import com.xcurechat.server.cache.ForumSearchIndex;
+import com.xcurechat.server.cache.ForumTree;
+import com.xcurechat.server.core.NewMessagesCountManager;
 import com.xcurechat.server.core.SecureServerAccess;
 import com.xcurechat.server.core.ServerSideUserManager;
 import com.xcurechat.server.core.UserSessionManager;
@@ -44,6 +48,7 @@ import com.xcurechat.server.jdbc.forum.DeleteSenderForumMessageExecutor;
 import com.xcurechat.server.jdbc.forum.InsertForumMessageExecutor;
 import com.xcurechat.server.jdbc.forum.MoveForumMessageExecutor;
 import com.xcurechat.server.jdbc.forum.SearchMessagesExecutor;
+import com.xcurechat.server.jdbc.forum.SelectMessagesByIdsExecutor;
 import com.xcurechat.server.jdbc.forum.MsgParentsNotifyExecutor;
 import com.xcurechat.server.jdbc.forum.UpdateForumMessageExecutor;
 import com.xcurechat.server.jdbc.forum.DeleteForumMessageExecutor;
@@ -77,6 +82,10 @@ public class ForumManagerImpl extends RemoteServiceServlet implements ForumManag
 	private static final Logger logger = Logger.getLogger( ForumManagerImpl.class );
 	//The forum cache
 	private static final ForumQueriesCache forumCache = ForumQueriesCache.getInstane();
+	//The forum search index
+	private static final ForumSearchIndex searchIndex = ForumSearchIndex.getInstance();
+	//The in-memory forum tree
+	private static final ForumTree forumTree = ForumTree.getInstance();
 	//The xcure-chat domain name pattern
 	private static String xcureDomainPattern = null;
 	//The encoder that has to be used in the server side
@@ -95,6 +104,22 @@ public class ForumManagerImpl extends RemoteServiceServlet implements ForumManag
 	public void init() {
 	    // Read properties file.
 	    xcureDomainPattern = Configurator.getSiteDomainPattern( getServletContext() );
+	    //Set the memory budget of the forum cache
+	    forumCache.configure( Configurator.getIntegerProperty( getServletContext(), Configurator.FORUM_CACHE_MEMORY_BUDGET_MB_PROP_NAME, ForumQueriesCache.DEFAULT_MEMORY_BUDGET_MB ),
+	    					  Configurator.getIntegerProperty( getServletContext(), Configurator.FORUM_CACHE_NEWS_SHARE_PROP_NAME, ForumQueriesCache.DEFAULT_NEWS_QUERIES_SHARE ),
+	    					  Configurator.getIntegerProperty( getServletContext(), Configurator.FORUM_CACHE_NAVIGATION_SHARE_PROP_NAME, ForumQueriesCache.DEFAULT_NAVIGATION_QUERIES_SHARE ),
+	    					  Configurator.getIntegerProperty( getServletContext(), Configurator.FORUM_CACHE_CUSTOM_SHARE_PROP_NAME, ForumQueriesCache.DEFAULT_CUSTOM_QUERIES_SHARE ) );
+	    //Start building the forum search index, until it is built the searches go to the DB
+	    searchIndex.buildInBackground();
+	    //Start building the forum tree, until it is built the navigation goes to the DB
+	    forumTree.buildInBackground();
+	}
+	
+	@Override
+	public void destroy() {
+		//Write the pending forum updates into the DB
+		forumTree.shutDown();
+		super.destroy();
 	}
 	
 	/**
@@ -125,6 +150,7 @@ public class ForumManagerImpl extends RemoteServiceServlet implements ForumManag
 				if( fileIDS != null && fileIDS.size() > 0 ) {
 					forumCache.removeFormMessageFile( fileIDS.get(0) );
 				}
+				forumTree.removeMessageFiles( fileIDS );
 				
 				//Nothing the be returned here
 				return null;
@@ -152,6 +178,36 @@ public class ForumManagerImpl extends RemoteServiceServlet implements ForumManag
 		userData.decrementGoldPiecesCount( price );
 	}
 	
+	/**
+	 * Allows to schedule the update of the last reply date and sender for the parent messages in the DB,
+	 * also the replies count if needed. The update is done in the background, the forum tree has the
+	 * parent messages updated at once. Must be called while the forum modifications are synchronized.
+	 * @param message the sent or updated message, with the path id and the update date set, is copied
+	 * @param isNewMessage true if the message is a new one, then the replies count is incremented
+	 */
+	private static void scheduleParentsNotify( final ShortForumMessageData message, final boolean isNewMessage ) {
+		final ShortForumMessageData notifyMessage = message.clone( false );
+		notifyMessage.updateDate = message.updateDate;
+		forumTree.writeBehind( new MsgParentsNotifyExecutor( notifyMessage, isNewMessage ) );
+	}
+	
+	/**
+	 * Allows to retrieve the files attached to the given forum message from the DB
+	 * @param messageID the id of the message
+	 * @return the list of attached files
+	 * @throws SiteException if the files could not be retrieved
+	 */
+	private static List<ShortFileDescriptor> getMessageFiles( final int messageID ) throws SiteException {
+		final ForumMessageData message = new ForumMessageData();
+		message.messageID = messageID;
+		LinkedHashMap<Integer,ForumMessageData> tmpResult = new  LinkedHashMap<Integer,ForumMessageData>();
+		tmpResult.put( messageID, message );
+		SelectMessageFilesExecutor selectMsgFilesExec = new SelectMessageFilesExecutor( tmpResult );
+		ConnectionWrapper<Void> selectMsgFilesConnWrap = ConnectionWrapper.createConnectionWrapper( selectMsgFilesExec );
+		selectMsgFilesConnWrap.executeQuery( ConnectionWrapper.XCURE_CHAT_DB );
+		return message.attachedFileIds;
+	}
+	
 	/* (non-Javadoc)
 	 * @see com.xcurechat.client.rpc.ForumManager#sendMessage(int, java.lang.String, com.xcurechat.client.data.ForumMessageData, java.lang.String)
 	 */
@@ -211,10 +267,24 @@ public class ForumManagerImpl extends RemoteServiceServlet implements ForumManag
 						ConnectionWrapper<Void> insertMsgConnWrap = ConnectionWrapper.createConnectionWrapper( insertMsgExec );
 						insertMsgConnWrap.executeQuery( ConnectionWrapper.XCURE_CHAT_DB );
 						
+						//Get the new message as it is stored in the DB, with the path id computed by the DB
+						final ForumMessageData newMessage = new ForumMessageData();
+						GetMessageExecutor getMessageExec = new GetMessageExecutor( message.messageID );
+						ConnectionWrapper<ForumMessageData> getMessageConnWrap = ConnectionWrapper.createConnectionWrapper( getMessageExec );
+						getMessageConnWrap.executeQuery( newMessage, ConnectionWrapper.XCURE_CHAT_DB );
+						if( newMessage.messageID != ShortForumMessageData.UNKNOWN_MESSAGE_ID ) {
+							message.messagePathID = newMessage.messagePathID;
+							forumTree.addMessage( newMessage );
+						} else {
+							logger.error( "Unable to retrieve the new forum message " + message.messageID + ", re-building the forum tree" );
+							forumTree.rebuild();
+						}
+						
 						//Update the last reply date and time for the parent messages, also the replies count
-						MsgParentsNotifyExecutor updateParentsExec = new MsgParentsNotifyExecutor( message, true );
-						ConnectionWrapper<Void> updateParentsConnWrap = ConnectionWrapper.createConnectionWrapper( updateParentsExec );
-						updateParentsConnWrap.executeQuery( ConnectionWrapper.XCURE_CHAT_DB );
+						scheduleParentsNotify( message, true );
+						
+						//Index the new message, while the forum modifications are synchronized
+						searchIndex.addMessage( message );
 					}
 					
 					//If this is a reply to some post we are posting, then send a notification to the post owner 
@@ -232,6 +302,7 @@ public class ForumManagerImpl extends RemoteServiceServlet implements ForumManag
 																							   parentMessage.messageTitle, originalPostURL );
 							ConnectionWrapper<Void> sendSimpleMessageConnWrap = ConnectionWrapper.createConnectionWrapper( sendSmplMsgExec );
 							sendSimpleMessageConnWrap.executeQuery( ConnectionWrapper.XCURE_CHAT_DB );
+							NewMessagesCountManager.getInstance().onMessageSent( parentMessage.senderID );
 						}
 					}
 					
@@ -240,6 +311,7 @@ public class ForumManagerImpl extends RemoteServiceServlet implements ForumManag
 						SetMessageIDExecutor fileUpdateExec = new SetMessageIDExecutor( message.messageID, userID, message.attachedFileIds );
 						ConnectionWrapper<Void> fileUpdateConnWrap =  ConnectionWrapper.createConnectionWrapper( fileUpdateExec );
 						fileUpdateConnWrap.executeQuery( ConnectionWrapper.XCURE_CHAT_DB );
+						forumTree.setMessageFiles( message.messageID, getMessageFiles( message.messageID ) );
 					}
 					
 					//Update the forum cache
@@ -297,9 +369,11 @@ public class ForumManagerImpl extends RemoteServiceServlet implements ForumManag
 					updateMsgConnWrap.executeQuery( ConnectionWrapper.XCURE_CHAT_DB );
 					
 					//Update the last reply date and time for the parent messages
-					MsgParentsNotifyExecutor updateParentsExec = new MsgParentsNotifyExecutor( message, false );
-					ConnectionWrapper<Void> updateParentsConnWrap = ConnectionWrapper.createConnectionWrapper( updateParentsExec );
-					updateParentsConnWrap.executeQuery( ConnectionWrapper.XCURE_CHAT_DB );
+					scheduleParentsNotify( message, false );
+					forumTree.updateMessage( message, ! isUpdatedByAdmin );
+					
+					//Re-index the updated message, the message is disapproved if not updated by the admin
+					searchIndex.updateMessage( message, ! isUpdatedByAdmin );
 				}
 				
 				if( message.attachedFileIds != null && ! message.attachedFileIds.isEmpty() ) {
@@ -308,6 +382,7 @@ public class ForumManagerImpl extends RemoteServiceServlet implements ForumManag
 					SetMessageIDExecutor fileUpdateExec = new SetMessageIDExecutor( message.messageID, userID, message.attachedFileIds );
 					ConnectionWrapper<Void> fileUpdateConnWrap =  ConnectionWrapper.createConnectionWrapper( fileUpdateExec );
 					fileUpdateConnWrap.executeQuery( ConnectionWrapper.XCURE_CHAT_DB );
+					forumTree.setMessageFiles( message.messageID, getMessageFiles( message.messageID ) );
 				}
 				
 				//Update the forum cache
@@ -336,6 +411,9 @@ public class ForumManagerImpl extends RemoteServiceServlet implements ForumManag
 				
 				//This is a forum modification, has to be synchronized
 				synchronized( forumModifSynch ) {
+					//The parent messages data is re-computed in the DB, it has to be up to date
+					forumTree.flushWrites();
+					
 					//Get the latest message data
 					messageToDelete = getForumMessageInternal( userID, messageID, false );
 					
@@ -347,6 +425,13 @@ public class ForumManagerImpl extends RemoteServiceServlet implements ForumManag
 						DeleteForumMessageExecutor deleteMsgExec = new DeleteForumMessageExecutor( userID, messageToDelete, (userDataObject == null ? false : userDataObject.isAdmin()) );
 						ConnectionWrapper<Void> deleteMsgConnWrap = ConnectionWrapper.createConnectionWrapper( deleteMsgExec );
 						deleteMsgConnWrap.executeQuery( ConnectionWrapper.XCURE_CHAT_DB );
+						
+						//Remove the deleted message from the search index, the message is only
+						//deleted if the user is an admin or if he is the message sender
+						if( ( userDataObject != null && userDataObject.isAdmin() ) || ( messageToDelete.senderID == userID ) ) {
+							searchIndex.removeMessage( messageID );
+							forumTree.removeMessage( messageID );
+						}
 					} else {
 						logger.warn("User " + userID + " attempts to delete an unknon or root forum message " + messageID );
 					}
@@ -369,49 +454,62 @@ public class ForumManagerImpl extends RemoteServiceServlet implements ForumManag
 				logger.info( "Searching the forum by user " + userID + ", he is " +
 							 ( userID == UserData.UNKNOWN_UID || userID == UserData.DEFAULT_UID ? "<anonimous>" : "<regular>" ) );
 				
-				//Try to get the query result from the cache
-				OnePageViewData<ForumMessageData> result = forumCache.getQueryResult( searchParams, userID );
-				//NOTE: If the query result is not cached we could synch on the ForumQueriesCache.getInstane() while getting
-				// the result from the DB, that could reduce the workload in certain cases, but would also block other
-				//forum users for until the query is finished, therefore we do not do that here
-				
-				//If the cached query is not found, then check the database
-				if( result == null ) {
-					//Prepare the temporary and the resulting data sets
-					result = new OnePageViewData<ForumMessageData>();
-					LinkedHashMap<Integer,ForumMessageData> tmpResult = new  LinkedHashMap<Integer,ForumMessageData>();
-					
-					if( searchParams.MAX_NUMBER_OF_MESSAGES_PER_PAGE > result.MAX_NUMBER_OF_ENTRIES_PER_PAGE ) {
-						//Well it is of course up to developer to decide how much data to return, but still
-						//At least we make a warning, but it is just for feeling better :)
-						logger.warn( " The maximum number of retrieved forum messages should not exceed " +
-									  result.MAX_NUMBER_OF_ENTRIES_PER_PAGE + " but it is set to " +
-									  searchParams.MAX_NUMBER_OF_MESSAGES_PER_PAGE );
-					}
-					
-					//1) Get the list of messages
-					SearchMessagesExecutor searchMessageExec = new SearchMessagesExecutor( searchParams, result );
-					ConnectionWrapper<LinkedHashMap<Integer,ForumMessageData>> searchMessageConnWrap =  ConnectionWrapper.createConnectionWrapper( searchMessageExec );
-					searchMessageConnWrap.executeQuery( tmpResult, ConnectionWrapper.XCURE_CHAT_DB );
-					
-					//If there are actually some search results then make them complete
-					if( tmpResult.keySet().size() != 0 ) {
-						//2) Get the list of attached files for each message
-						SelectMessageFilesExecutor selectMsgFilesExec = new SelectMessageFilesExecutor( tmpResult );
-						ConnectionWrapper<Void> selectMsgFilesConnWrap = ConnectionWrapper.createConnectionWrapper( selectMsgFilesExec );
-						selectMsgFilesConnWrap.executeQuery( ConnectionWrapper.XCURE_CHAT_DB );
+				//Get the query result from the cache, if the query result is not cached then it is loaded
+				//from the forum tree or the DB. The concurrent misses of the same query wait for one load, while the other
+				//queries proceed, or get the stale query results if the query was just invalidated
+				return forumCache.getQueryResult( searchParams, userID, new ForumQueriesCache.QueryResultLoader() {
+					public OnePageViewData<ForumMessageData> load() throws SiteException {
+						//The forum navigation is served by the forum tree, if it is built
+						OnePageViewData<ForumMessageData> treeResult = forumTree.getPage( searchParams );
+						if( treeResult != null ) {
+							return treeResult;
+						}
+						
+						//Prepare the temporary and the resulting data sets
+						OnePageViewData<ForumMessageData> result = new OnePageViewData<ForumMessageData>();
+						LinkedHashMap<Integer,ForumMessageData> tmpResult = new  LinkedHashMap<Integer,ForumMessageData>();
+						
+						if( searchParams.MAX_NUMBER_OF_MESSAGES_PER_PAGE > result.MAX_NUMBER_OF_ENTRIES_PER_PAGE ) {
+							//Well it is of course up to developer to decide how much data to return, but still
+							//At least we make a warning, but it is just for feeling better :)
+							logger.warn( " The maximum number of retrieved forum messages should not exceed " +
+										  result.MAX_NUMBER_OF_ENTRIES_PER_PAGE + " but it is set to " +
+										  searchParams.MAX_NUMBER_OF_MESSAGES_PER_PAGE );
+						}
+						
+						//1) Get the list of messages, the custom searches are done using the search index, if it is built
+						final int offset = ( searchParams.pageIndex - 1 ) * ForumSearchData.MAX_NUMBER_OF_MESSAGES_PER_PAGE;
+						final ForumSearchIndex.SearchResult indexResult = searchIndex.search( searchParams, offset, ForumSearchData.MAX_NUMBER_OF_MESSAGES_PER_PAGE );
+						if( indexResult != null ) {
+							result.total_size = indexResult.totalSize;
+							if( ! indexResult.messageIDs.isEmpty() ) {
+								SelectMessagesByIdsExecutor selectMessagesExec = new SelectMessagesByIdsExecutor( indexResult.messageIDs );
+								ConnectionWrapper<LinkedHashMap<Integer,ForumMessageData>> selectMessagesConnWrap =  ConnectionWrapper.createConnectionWrapper( selectMessagesExec );
+								selectMessagesConnWrap.executeQuery( tmpResult, ConnectionWrapper.XCURE_CHAT_DB );
+							}
+						} else {
+							SearchMessagesExecutor searchMessageExec = new SearchMessagesExecutor( searchParams, result );
+							ConnectionWrapper<LinkedHashMap<Integer,ForumMessageData>> searchMessageConnWrap =  ConnectionWrapper.createConnectionWrapper( searchMessageExec );
+							searchMessageConnWrap.executeQuery( tmpResult, ConnectionWrapper.XCURE_CHAT_DB );
+						}
+						
+						//If there are actually some search results then make them complete
+						if( tmpResult.keySet().size() != 0 ) {
+							//2) Get the list of attached files for each message
+							SelectMessageFilesExecutor selectMsgFilesExec = new SelectMessageFilesExecutor( tmpResult );
+							ConnectionWrapper<Void> selectMsgFilesConnWrap = ConnectionWrapper.createConnectionWrapper( selectMsgFilesExec );
+							selectMsgFilesConnWrap.executeQuery( ConnectionWrapper.XCURE_CHAT_DB );
+						}
+						
+						//3) Complete the result object
+						result.offset = offset;
+						result.entries = new ArrayList<ForumMessageData>();
+						result.entries.addAll( tmpResult.values() );
+						
+						//NOTE: The result is put into the cache by the cache itself
+						return result;
 					}
-					
-					//3) Complete the result object
-					result.offset = ( searchParams.pageIndex - 1 ) * ForumSearchData.MAX_NUMBER_OF_MESSAGES_PER_PAGE;
-					result.entries = new ArrayList<ForumMessageData>();
-					result.entries.addAll( tmpResult.values() );
-					
-					//4) Add the result to the cache
-					forumCache.putQueryResult( searchParams, result, userID );
-				}
-				
-				return result;
+				});
 			}	
 		}).execute( true, true, false);
 	}
@@ -443,6 +541,11 @@ public class ForumManagerImpl extends RemoteServiceServlet implements ForumManag
 		//Try getting the message from the cache
 		ForumMessageData result = forumCache.getForumMessage( messageID, userID );
 		
+		if( result == null ) {
+			//Try getting the message from the forum tree, it is complete
+			result = forumTree.getMessage( messageID );
+		}
+		
 		if( result == null  ) {
 			//If the message is not in the cache, then get the message from the DB
 			result = new ForumMessageData();
@@ -517,6 +620,9 @@ public class ForumManagerImpl extends RemoteServiceServlet implements ForumManag
 				
 				//This is a forum modification, has to be synchronized
 				synchronized( forumModifSynch ) {
+					//The parent messages data is re-computed in the DB, it has to be up to date
+					forumTree.flushWrites();
+					
 					//Get the new parent message from the cache
 					newParentForumMessage = getForumMessageInternal( userID, newParentMessageID, false );
 					//Get the message we want to move from the cache
@@ -527,6 +633,10 @@ public class ForumManagerImpl extends RemoteServiceServlet implements ForumManag
 						( newParentForumMessage.messageID == ForumMessageData.UNKNOWN_MESSAGE_ID ) ) {
 						//One of the messages could not be found, throw an exception
 						throw new MessageException( MessageException.UNABLE_TO_RETRIEVE_MESSAGE );
+					} else if( newParentForumMessage.messagePathID.startsWith( forumMessage.messagePathID + forumMessage.messageID +
+																			  ShortForumMessageData.MESSAGE_PATH_ID_DELIMITER ) ) {
+						//The message can not be moved into its own replies, this would detach them from the forum
+						throw new InternalSiteException( InternalSiteException.INSUFFICIENT_ACCESS_RIGHTS_ERROR );
 					} else {
 						//It does not make sense to move the message to its current parent
 						if( forumMessage.parentMessageID != newParentMessageID ) {
@@ -534,6 +644,10 @@ public class ForumManagerImpl extends RemoteServiceServlet implements ForumManag
 							MoveForumMessageExecutor moveMsgExec = new MoveForumMessageExecutor( forumMessage, newParentForumMessage );
 							ConnectionWrapper<Void> moveMessageConnWrap = ConnectionWrapper.createConnectionWrapper( moveMsgExec );
 							moveMessageConnWrap.executeQuery( ConnectionWrapper.XCURE_CHAT_DB );
+							
+							//Move the message and its replies in the search index
+							searchIndex.moveMessage( messageID, newParentMessageID );
+							forumTree.moveMessage( messageID, newParentMessageID );
 						}
 					}
 				}
@@ -572,6 +686,10 @@ public class ForumManagerImpl extends RemoteServiceServlet implements ForumManag
 				ConnectionWrapper<Void> approveMessageConnWrap = ConnectionWrapper.createConnectionWrapper( approveMsgExec );
 				approveMessageConnWrap.executeQuery( ConnectionWrapper.XCURE_CHAT_DB );
 				
+				//Mark the message as approved/disapproved in the search index
+				searchIndex.approveMessage( messageID, approve );
+				forumTree.approveMessage( messageID, approve );
+				
 				//Mark the user message as approved/disapproved
 				forumCache.approveMessage( messageID, approve );
 				
@@ -616,6 +734,7 @@ public class ForumManagerImpl extends RemoteServiceServlet implements ForumManag
 				VoteForForumMessageExecutor voteForMsgExec = new VoteForForumMessageExecutor( messageID, voteFor );
 				ConnectionWrapper<Void> voteForMsgConnWrap = ConnectionWrapper.createConnectionWrapper( voteForMsgExec );
 				voteForMsgConnWrap.executeQuery( ConnectionWrapper.XCURE_CHAT_DB );
+				forumTree.voteForMessage( messageID, voteFor );
 				
 				//The exception was not thrown, the user has not voted yet, update the cache, count his vote
 				forumCache.voteForMessage( messageID, voteFor, userID );
@@ -655,5 +774,8 @@ public class ForumManagerImpl extends RemoteServiceServlet implements ForumManag
 			ConnectionWrapper<Void> deleteForumMsgSenderConnWrap = ConnectionWrapper.createConnectionWrapper( deleteForumMsgSenderExec ); 
 			deleteForumMsgSenderConnWrap.executeQuery(ConnectionWrapper.XCURE_CHAT_DB);
 		}
+		//The messages got the deleted user as the sender, whose id is only known to the DB
+		searchIndex.rebuild();
+		forumTree.rebuild();
 	}
 }
@@ -0,0 +1,57 @@
+/**
+ * X-Cure-Chat
+ * Copyright (C) 2013  Dr. Ivan S. Zapreev
+ * www: https://nl.linkedin.com/in/zapreevis
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.#
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * The server-side RPC package.
+ * (C) Ivan S. Zapreev, 2008
+ */
+package com.xcurechat.server;
+
+import javax.servlet.http.HttpServlet;
+
+import com.xcurechat.server.core.ChatRoomsWriteBehindManager;
+import com.xcurechat.server.core.MaintenanceScheduler;
+import com.xcurechat.server.core.UserStatisticsWriteBehindManager;
+
+/**
+ * @author zapreevis
+ * This servlet is loaded on the web application start up, right after the log4j initialization,
+ * it starts the periodic maintenance jobs. Thus the jobs run whether or not the other servlets,
+ * e.g. the rooms manager, got any requests. When the web application is stopped the maintenance
+ * jobs are stopped and the pending write-behind data is flushed into the DB.
+ */
+public class MaintenanceInit extends HttpServlet {
+	//The UID of the service, is needed for serialization
+	private static final long serialVersionUID = 1L;
+	
+	@Override
+	public void init() {
+		//Start the periodic maintenance jobs
+		MaintenanceScheduler.getInstance().start();
+	}
+	
+	@Override
+	public void destroy() {
+		//Stop the periodic maintenance jobs
+		MaintenanceScheduler.getInstance().shutDown();
+		//Flush the pending chat room info messages and visitor counters into the DB
+		ChatRoomsWriteBehindManager.getInstance().shutDown();
+		//Flush the pending user login/logout statistics and online statuses into the DB
+		UserStatisticsWriteBehindManager.getInstance().shutDown();
+		super.destroy();
+	}
+}
@@ -42,11 +42,11 @@ import com.xcurechat.client.rpc.exceptions.InternalSiteException;
 import com.xcurechat.client.rpc.exceptions.SiteException;
 import com.xcurechat.client.utils.SmileyHandler;
 
+import com.xcurechat.server.core.NewMessagesCountManager;
 import com.xcurechat.server.core.SecureServerAccess;
 import com.xcurechat.server.core.UserSessionManager;
 
 import com.xcurechat.server.jdbc.ConnectionWrapper;
-import com.xcurechat.server.jdbc.messages.CountNewUserMessagesExecutor;
 import com.xcurechat.server.jdbc.messages.HideMessagesExecutor;
 import com.xcurechat.server.jdbc.messages.CountUserMessagesExecutor;
 import com.xcurechat.server.jdbc.messages.SelectUserMessagesExecutor;
@@ -175,12 +175,8 @@ public class MessageManagerImpl extends RemoteServiceServlet implements MessageM
 			protected Integer action() throws SiteException {
 				logger.debug( "Counting the newly received private messages of user " + userID );
 				
-				//Get the avalable chat rooms
-				OnePageViewData<ShortPrivateMessageData> messages = new OnePageViewData<ShortPrivateMessageData>();
-				ConnectionWrapper<OnePageViewData<ShortPrivateMessageData>> countNewMsgsConnWrap = ConnectionWrapper.createConnectionWrapper( new CountNewUserMessagesExecutor(userID) );
-				countNewMsgsConnWrap.executeQuery( messages, ConnectionWrapper.XCURE_CHAT_DB );
-				
-				return messages.total_size;
+				//The number of new messages is kept in memory
+				return NewMessagesCountManager.getInstance().getNewMessagesCount( userID );
 			}
 		}).execute( false, false );
 	}
@@ -237,6 +233,7 @@ public class MessageManagerImpl extends RemoteServiceServlet implements MessageM
 																					message.getMessageBody() );
 				ConnectionWrapper<Void> sendSimpleMessageConnWrap = ConnectionWrapper.createConnectionWrapper( sendSmplMsgExec );
 				sendSimpleMessageConnWrap.executeQuery( ConnectionWrapper.XCURE_CHAT_DB );
+				NewMessagesCountManager.getInstance().onMessageSent( message.getToUID() );
 				
 				//Account for the sent message
 				userData.sentAnotherOfflineMessage();
@@ -269,8 +266,12 @@ public class MessageManagerImpl extends RemoteServiceServlet implements MessageM
 				
 				//If this was an incoming message we read and it is also unread then mark it as read
 				if( ( message.getToUID() == userID ) && ( ! message.isRead() ) ) {
-					ConnectionWrapper<Void> markMsgReadConnWrap = ConnectionWrapper.createConnectionWrapper( new MarkMessageAsReadExecutor(userID, messageID) );
+					MarkMessageAsReadExecutor markMsgReadExec = new MarkMessageAsReadExecutor(userID, messageID);
+					ConnectionWrapper<Void> markMsgReadConnWrap = ConnectionWrapper.createConnectionWrapper( markMsgReadExec );
 					markMsgReadConnWrap.executeQuery( ConnectionWrapper.XCURE_CHAT_DB );
+					if( markMsgReadExec.isMarked() ) {
+						NewMessagesCountManager.getInstance().onMessageRead( userID );
+					}
 				}
 				
 				return message;
@@ -307,6 +308,7 @@ public class MessageManagerImpl extends RemoteServiceServlet implements MessageM
 				hideMessagesConnWrap.executeQuery( ConnectionWrapper.XCURE_CHAT_DB );
 				hideMessagesConnWrap = ConnectionWrapper.createConnectionWrapper( new HideMessagesExecutor(forUserID, messageIDS, false) );
 				hideMessagesConnWrap.executeQuery( ConnectionWrapper.XCURE_CHAT_DB );
+				NewMessagesCountManager.getInstance().onMessagesHidden( forUserID );
 				
 				//Nothing the be returned here
 				return null;
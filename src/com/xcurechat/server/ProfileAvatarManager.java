@@ -22,6 +22,7 @@
 package com.xcurechat.server;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpSession;
@@ -43,7 +44,9 @@ import com.xcurechat.client.rpc.exceptions.ExceptionsSerializer;
 import com.xcurechat.client.rpc.exceptions.InternalSiteException;
 import com.xcurechat.client.utils.SupportedFileMimeTypes;
 
+import com.xcurechat.server.cache.ServerDataFileCache;
 import com.xcurechat.server.core.UserSessionManager;
+import com.xcurechat.server.files.BlobStoreManager;
 import com.xcurechat.server.files.FileServletHelper;
 import com.xcurechat.server.files.FileUploadWrapper;
 import com.xcurechat.server.files.ImageProcessor;
@@ -81,11 +84,26 @@ public class ProfileAvatarManager extends HttpServlet {
 	
 	private final String PROFILE_AVATAR_IMAGE_FILE_TYPE = SupportedFileMimeTypes.JPEG_IMAGE_MIME.getMainMTSuffix();
 	
-	//The image data for default male and female avatars 
+	//The cache for the avatar images, NOTE: it is keyed by the user ID, not by the file ID.
+	//The users without an avatar are cached as well, as the files without data.
+	private static final ServerDataFileCache avatarsCache = new ServerDataFileCache( 0, 20, 60, 10, "avatars");
+	
+	//The generation of the avatars, is incremented before and after every avatar change in the DB. The avatar
+	//read from the DB is only cached if the generation did not change while it was read, otherwise the reader
+	//that has read the old avatar could put it into the cache after the change has removed it from there.
+	private static long avatarsGeneration = 0;
+	//The synchronization object for the avatars generation and the avatar cache changes
+	private static final Object avatarsGenerationSynchObj = new Object();
+	
+	//The image data for default male and female avatars, and their MD5 sums
 	private byte[] maleAvatarImageData = null;
 	private byte[] femaleAvatarImageData = null;
+	private String maleAvatarImageDataMD5 = null;
+	private String femaleAvatarImageDataMD5 = null;
 	
 	public void init() {
+		//Set up the storage for the uploaded files data
+		BlobStoreManager.configure( getServletContext() );
 		logger.info("Starting to load default profile avatar images.");
 		//Load default thumbnail images
 		final String avatarPathPrefix =  getServletContext().getRealPath("/") + getInitParameter("relative-avatar-images-path");
@@ -93,10 +111,48 @@ public class ProfileAvatarManager extends HttpServlet {
 		//Load the two default avatars, one for male another for the female.
 		maleAvatarImageData = FileServletHelper.getReadFileDataInBytes( logger, avatarPathPrefix + "male.jpg" ); 
 		femaleAvatarImageData = FileServletHelper.getReadFileDataInBytes( logger, avatarPathPrefix + "female.jpg" );
+		maleAvatarImageDataMD5 = FileServletHelper.getDataMD5( maleAvatarImageData );
+		femaleAvatarImageDataMD5 = FileServletHelper.getDataMD5( femaleAvatarImageData );
 		
 		logger.info("Loadig of default profile avatar images is complete.");
 	}
 	
+	/**
+	 * Allows to remove the user's avatar from the cache, must be called right before and right after
+	 * the avatar is changed in the DB, so that the old avatar is not put back into the cache
+	 * @param userID the id of the user whose avatar is changed
+	 */
+	public static void invalidateAvatar( final int userID ) {
+		synchronized( avatarsGenerationSynchObj ) {
+			avatarsGeneration++;
+			avatarsCache.remove( userID );
+		}
+	}
+	
+	/**
+	 * @return the current generation of the avatars, must be taken before the avatar is read from the DB
+	 */
+	private static long getAvatarsGeneration() {
+		synchronized( avatarsGenerationSynchObj ) {
+			return avatarsGeneration;
+		}
+	}
+	
+	/**
+	 * Allows to put the avatar read from the DB into the cache, unless some avatar was changed since it was read
+	 * @param fileData the avatar with the file id set to the id of its user
+	 * @param generation the generation of the avatars taken before the avatar was read
+	 */
+	private static void cacheAvatar( final UserFileData fileData, final long generation ) {
+		synchronized( avatarsGenerationSynchObj ) {
+			if( generation == avatarsGeneration ) {
+				avatarsCache.put( fileData );
+			} else {
+				logger.debug( "The avatars have changed while the avatar of user " + fileData.fileID + " was read, it is not cached" );
+			}
+		}
+	}
+	
 	/**
 	 * This method allows to insert the new avatar into the database, or update it if it exists
 	 * @param userID the user id for which we insert/update the avatar
@@ -104,6 +160,8 @@ public class ProfileAvatarManager extends HttpServlet {
 	 * @throws SiteException if smth goes wrong
 	 */
 	public static void insertUpdateAvatar( UserFileData fileData ) throws SiteException {
+		//Remove the old avatar from the cache, the readers will not put it back
+		invalidateAvatar( fileData.ownerID );
 		//Here we try to insert the image and if we can not, i.e. the image is already there, we update it
 		try {
 			logger.info("Trying to insert a new avatar for user '" + fileData.ownerID + "'");
@@ -113,6 +171,9 @@ public class ProfileAvatarManager extends HttpServlet {
 			logger.info("The avatar exists, updating it for user '" + fileData.ownerID + "'");
 			ConnectionWrapper<Void> updateImagesConnWrap = ConnectionWrapper.createConnectionWrapper( new UpdateProfileAvatarExecutor( fileData ) );
 			updateImagesConnWrap.executeQuery( ConnectionWrapper.XCURE_CHAT_DB );
+		} finally {
+			//Remove the old avatar from the cache, in case it was read before the change
+			invalidateAvatar( fileData.ownerID );
 		}
 	}
 	
@@ -228,18 +289,39 @@ public class ProfileAvatarManager extends HttpServlet {
 			//      and this is just a data retrieval mehtod, i.e. we only do DB readings and this is it
 			//NOTE: We do not validate the session here because in for forum the non-logged inusers can browse the avatars
 			
-			//Try to retrieve the image either from the database or a default one from here
-			UserFileData fileData = new UserFileData();
-			ConnectionWrapper<UserFileData> getUserAvatarConnWrap = ConnectionWrapper.createConnectionWrapper( new SelectProfileAvatarExecutor( forUserID ) );
-			getUserAvatarConnWrap.executeQuery( fileData, ConnectionWrapper.XCURE_CHAT_DB );
-			if( fileData.fileData == null ) {
-				fileData.fileData = ( isMale ? maleAvatarImageData : femaleAvatarImageData );
-				fileData.mimeType = PROFILE_AVATAR_IMAGE_FILE_TYPE; 
-				fileData.ownerID = userID;
+			//Try to retrieve the image either from the cache or from the database
+			ByteBuffer data; String dataMD5; String mimeType;
+			final long generation = getAvatarsGeneration();
+			ServerDataFileCache.CachedFile cachedAvatar = avatarsCache.get( forUserID, false );
+			if( cachedAvatar != null ) {
+				data = cachedAvatar.data;
+				dataMD5 = cachedAvatar.dataMD5;
+				mimeType = cachedAvatar.descriptor.mimeType;
+			} else {
+				UserFileData fileData = new UserFileData();
+				ConnectionWrapper<UserFileData> getUserAvatarConnWrap = ConnectionWrapper.createConnectionWrapper( new SelectProfileAvatarExecutor( forUserID ) );
+				getUserAvatarConnWrap.executeQuery( fileData, ConnectionWrapper.XCURE_CHAT_DB );
+				//The avatars are cached by the user ID, also when there is no avatar
+				fileData.fileID = forUserID;
+				cacheAvatar( fileData, generation );
+				data = FileServletHelper.wrapFileData( fileData.fileData );
+				dataMD5 = fileData.fileDataMD5;
+				mimeType = fileData.mimeType;
 			}
 			
-			FileServletHelper.writeOutputFile( logger, response, fileData.fileData, "user-avatar",
-												fileData.mimeType, null, true, false );
+			//If the avatar URL contains its version then the browser does not need to ask for it again for a while,
+			//the version is not the hash of the avatar, so the browser still has to revalidate it after that
+			final String cacheControl = ( request.getParameter( ServerSideAccessManager.AVATAR_VERSION_SERVLET_PARAM ) != null ) ?
+										FileServletHelper.CACHE_FOR_A_DAY_CONTROL : FileServletHelper.CACHE_FOR_A_WEEK_CONTROL;
+			
+			//If there is no avatar then write the default one
+			if( ! FileServletHelper.writeOutputFile( logger, request, response, data, dataMD5,
+													 "user-avatar", mimeType, null, cacheControl, false ) ) {
+				FileServletHelper.writeOutputFile( logger, request, response,
+												   FileServletHelper.wrapFileData( isMale ? maleAvatarImageData : femaleAvatarImageData ),
+												   ( isMale ? maleAvatarImageDataMD5 : femaleAvatarImageDataMD5 ), "user-avatar",
+												   PROFILE_AVATAR_IMAGE_FILE_TYPE, null, cacheControl, false );
+			}
 		} catch( SiteException ex) {
 			response.getWriter().println( ExceptionsSerializer.serialize( ex ) );
 		} finally {
@@ -22,6 +22,7 @@
 package com.xcurechat.server;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpSession;
@@ -49,6 +50,7 @@ import com.xcurechat.server.cache.ServerDataFileCache;
 import com.xcurechat.server.cache.Top10UserDataCache;
 import com.xcurechat.server.core.SynchFactory;
 import com.xcurechat.server.core.UserSessionManager;
+import com.xcurechat.server.files.BlobStoreManager;
 import com.xcurechat.server.files.FileServletHelper;
 import com.xcurechat.server.files.FileUploadWrapper;
 import com.xcurechat.server.files.ImageProcessor;
@@ -85,19 +87,25 @@ public class ProfileFilesManager extends HttpServlet {
 	public static final long MAX_UPLOAD_FILE_REQUEST_SIZE_BYTES = MAX_UPLOAD_FILE_SIZE_BYTES + 2048; 
 	
 	//The cache for the chat files
-	public static final ServerDataFileCache filesCache = new ServerDataFileCache( 5 * MAX_UPLOAD_FILE_SIZE_MB, 6*60, 60, "profile-files");
+	public static final ServerDataFileCache filesCache = new ServerDataFileCache( ServerDataFileCache.DEFAULT_THUMBNAILS_CAPACITY_MB, 5 * MAX_UPLOAD_FILE_SIZE_MB, 6*60, 60, "profile-files");
 	
-	//This is the data for the default image
+	//This is the data for the default image, and its MD5 sum
 	private byte[] defaultImageData = null;
-	//This is the data for the default non-image file thumbnail
+	private String defaultImageDataMD5 = null;
+	//This is the data for the default non-image file thumbnail, and its MD5 sum
 	private byte[] defaultVideoThumb = null;
+	private String defaultVideoThumbMD5 = null;
 	
 	public void init() {
+		//Set up the storage for the uploaded files data
+		BlobStoreManager.configure( getServletContext() );
 		//Load default thumbnail image
 		logger.info("Starting to load default profile image thumbnails.");
 		String imagePath =  getServletContext().getRealPath("/") + getInitParameter("relative-images-path");
 		defaultImageData = FileServletHelper.getReadFileDataInBytes( logger, imagePath + "default_image.jpg" ); 
 		defaultVideoThumb = FileServletHelper.getReadFileDataInBytes( logger, imagePath + "default_non_image.jpg" );
+		defaultImageDataMD5 = FileServletHelper.getDataMD5( defaultImageData );
+		defaultVideoThumbMD5 = FileServletHelper.getDataMD5( defaultVideoThumb );
 		logger.info("Loadig of default profile image thumbnails is complete.");
 	}
 	
@@ -239,41 +247,49 @@ public class ProfileFilesManager extends HttpServlet {
 			//NOTE: We do not validate the session here because in for forum the non-logged in users can browse the files
 			
 			//Try to retrieve the file either from the database or a default one from here
-			byte[] data; String mimeType; String fileName;
+			ByteBuffer data; String dataMD5; String mimeType; String fileName;
 			//If we are retrieving an image file or we are retrieving a file but not its thumbnail then we search the database
 			if( isImageFile || !isThumbnail ) {
-				//Try to retrieve the image either from the database or a default one from here
-				UserFileData fileData = (UserFileData) filesCache.get(fileID);
-				if( fileData == null ) {
+				//Try to retrieve the image either from the cache or from the database
+				FileData fileDescriptor;
+				ServerDataFileCache.CachedFile cachedFile = filesCache.get( fileID, isThumbnail );
+				if( cachedFile != null ) {
+					fileDescriptor = cachedFile.descriptor;
+					data = cachedFile.data;
+					dataMD5 = cachedFile.dataMD5;
+				} else {
 					//If the file is not in the cache, allocate a new data holder
-					fileData = new UserFileData();
+					UserFileData fileData = new UserFileData();
 					//Retrieve the file from the database
 					ConnectionWrapper<UserFileData> registerUserConnWrap = ConnectionWrapper.createConnectionWrapper( new SelectProfileFileExecutor( forUserID, fileID ) );
 					registerUserConnWrap.executeQuery( fileData, ConnectionWrapper.XCURE_CHAT_DB );
 					//Put the file into cache
 					filesCache.put( fileData );
+					fileDescriptor = fileData;
+					data = FileServletHelper.wrapFileData( ( isThumbnail ) ? fileData.thumbnailData : fileData.fileData );
+					dataMD5 = ( isThumbnail ) ? fileData.thumbnailDataMD5 : fileData.fileDataMD5;
 				}
 				//Set the initial data and mime type
-				mimeType = fileData.mimeType;
-				fileName = ServerSideAccessManager.getURLAllowedFileName( fileData, ServerSideAccessManager.PROFILE_FILE_DEFAULT_NAME_PREFIX );
-				data = ( isThumbnail ) ? fileData.thumbnailData : fileData.fileData;
+				mimeType = fileDescriptor.mimeType;
+				fileName = ServerSideAccessManager.getURLAllowedFileName( fileDescriptor, ServerSideAccessManager.PROFILE_FILE_DEFAULT_NAME_PREFIX );
 			} else {
 				//If the opposite is true i.e. ( !isImageFile && isThumbnail) then there is no thumbnail for such file 
 				//and we should load the default one, i.e. the database search is not actually needed for this case
-				data = defaultVideoThumb;
+				data = FileServletHelper.wrapFileData( defaultVideoThumb );
+				dataMD5 = defaultVideoThumbMD5;
 				mimeType = SupportedFileMimeTypes.JPEG_IMAGE_MIME.getMainMimeType();
 				fileName = ShortFileDescriptor.UNKNOWN_FILE_NAME;
 			}
 			
-			//If the data is null then set the default image data
-			if( data == null ) {
-				data = ( isThumbnail && SupportedFileMimeTypes.isPlayableMimeType( mimeType ) ) ? defaultVideoThumb : defaultImageData;
-				mimeType = SupportedFileMimeTypes.JPEG_IMAGE_MIME.getMainMimeType();
-				fileName = ShortFileDescriptor.UNKNOWN_FILE_NAME;
+			//If there is no data then write the default image data
+			if( ! FileServletHelper.writeOutputFile( logger, request, response, data, dataMD5, "user-profile", mimeType, fileName, true, isDownload ) ) {
+				final boolean isVideoThumb = isThumbnail && SupportedFileMimeTypes.isPlayableMimeType( mimeType );
 				logger.warn("Unable to retrieve profile file " + fileID +", is thumbnail: " + isThumbnail + " for user " + forUserID );
+				FileServletHelper.writeOutputFile( logger, request, response, isVideoThumb ? defaultVideoThumb : defaultImageData,
+												   isVideoThumb ? defaultVideoThumbMD5 : defaultImageDataMD5, "user-profile",
+												   SupportedFileMimeTypes.JPEG_IMAGE_MIME.getMainMimeType(),
+												   ShortFileDescriptor.UNKNOWN_FILE_NAME, true, isDownload );
 			}
-			
-			FileServletHelper.writeOutputFile( logger, response, data, "user-profile", mimeType, fileName, true, isDownload);
 		} catch( SiteException ex) {
 			response.getWriter().println( ExceptionsSerializer.serialize( ex ) );
 		} finally {
@@ -30,6 +30,7 @@ import org.apache.log4j.Logger;
 
 import com.google.gwt.user.server.rpc.RemoteServiceServlet;
 
+import com.xcurechat.client.data.ActiveChatRoomsData;
 import com.xcurechat.client.data.ChatRoomData;
 import com.xcurechat.client.data.ChatRoomDataUpdate;
 import com.xcurechat.client.data.MainUserData;
@@ -46,7 +47,9 @@ import com.xcurechat.client.rpc.exceptions.SiteException;
 import com.xcurechat.client.rpc.exceptions.InternalSiteException;
 import com.xcurechat.client.utils.SmileyHandler;
 
+import com.xcurechat.server.core.ChatMessagesGroupCommitter;
 import com.xcurechat.server.core.ChatRoomsManager;
+import com.xcurechat.server.core.NewMessagesCountManager;
 import com.xcurechat.server.core.SecureServerAccess;
 import com.xcurechat.server.core.UserSessionManager;
 import com.xcurechat.server.core.ActiveChatRoom;
@@ -60,6 +63,7 @@ import com.xcurechat.server.jdbc.rooms.VerifyUserRoomOwnershipExecutor;
 import com.xcurechat.server.jdbc.rooms.access.CountRoomUsersExecutor;
 import com.xcurechat.server.jdbc.rooms.access.SelectRoomUserAccessExecutor;
 import com.xcurechat.server.security.statistics.MessageSendAbuseFilter;
+import com.xcurechat.server.utils.Configurator;
 
 /**
  * @author zapreevis
@@ -73,6 +77,12 @@ public class RoomManagerImpl extends RemoteServiceServlet implements RoomManager
 	//Get the Log4j logger object
 	private static final Logger logger = Logger.getLogger( RoomManagerImpl.class );
 
+	@Override
+	public void init() {
+		//Enable the group commit of the chat messages if it is configured
+		ChatMessagesGroupCommitter.getInstance().setEnabled( Configurator.isChatMessagesGroupCommit( getServletContext() ) );
+	}
+	
 	/**
 	 * Retrieves the HttpSession object if any.
 	 * @return the HttpSession object, either an old or a newly created one
@@ -220,6 +230,25 @@ public class RoomManagerImpl extends RemoteServiceServlet implements RoomManager
 		}).execute( false, false );
 	}
 	
+	/**
+	 * Get the list of available rooms, if it has changed since the given version.
+	 * @param userID the user unique ID
+	 * @param userSessionId the id of the user session
+	 * @param knownVersion the version of the rooms list known to the client
+	 * @return the current version of the rooms list, the rooms are null if the list was not modified
+	 * @throws SiteException in case smthing goes wrong
+	 */
+	public ActiveChatRoomsData getAllRoomsIfModified( final int userID, final String userSessionId, final long knownVersion) throws SiteException {
+		return (new SecureServerAccess<ActiveChatRoomsData>( getLocalHttpSession(), getThreadLocalRequest(), userID, userSessionId ) {
+			protected ActiveChatRoomsData action() throws SiteException {
+				logger.debug( "Getting list of available rooms for user " + userID + ", the known version is " + knownVersion );
+				
+				//Get the avalable chat rooms, if they were modified
+				return ChatRoomsManager.getInstance().getAllActiveRooms( knownVersion );
+			}
+		}).execute( false, false );
+	}
+	
 	/**
 	 * This method allows count the number of rooms of the given user
 	 * @param userID the user unique ID
@@ -522,13 +551,15 @@ public class RoomManagerImpl extends RemoteServiceServlet implements RoomManager
 	 * @param userSessionId the user's session id
 	 * @param openedRoomIDS the list of opened room IDs
 	 * @param lastUpdateNewestMsgIDs the room ID is mapped to the ID of the last chat message retrieved from this room
+	 * @param visibleUsersVersions the room ID is mapped to the version of the room's visible users known to the client
 	 * @return the requested data
 	 * @throws SiteException if the user is not logged in or we
 	 *			try to validate the session too often or smth else!
 	 */
 	public ChatRoomDataUpdate getOpenedRoomsData( final int userID, final String userSessionId,
 									final List<Integer>  openedRoomIDS,
-									final Map<Integer, Integer> lastUpdateNewestMsgIDs ) throws SiteException {
+									final Map<Integer, Integer> lastUpdateNewestMsgIDs,
+									final Map<Integer, Integer> visibleUsersVersions ) throws SiteException {
 		return (new SecureServerAccess<ChatRoomDataUpdate>( getLocalHttpSession(), getThreadLocalRequest(), userID, userSessionId ) {
 			protected ChatRoomDataUpdate action() throws SiteException {
 				logger.debug( "Retrieving the new data for the opened rooms: " + openedRoomIDS.toString() +
@@ -536,15 +567,79 @@ public class RoomManagerImpl extends RemoteServiceServlet implements RoomManager
 							  ", by user: " + userID );
 				
 				//Get the actual room's data
-				ChatRoomDataUpdate result = ChatRoomsManager.getInstance().getOpenedRoomDataUpdate( userID, openedRoomIDS, lastUpdateNewestMsgIDs );
+				ChatRoomDataUpdate result = ChatRoomsManager.getInstance().getOpenedRoomDataUpdate( userID, openedRoomIDS, lastUpdateNewestMsgIDs, visibleUsersVersions );
 				//Get the active chat room visitors
 				result.activeRoomVisitors = ActiveChatRoom.getActiveRoomVisitors();
+				//Get the number of new private messages, this way the client does not have to ask for it
+				result.newMessagesCount = NewMessagesCountManager.getInstance().getNewMessagesCount( userID );
 				//Return the result
 				return result;
 			}
 		}).execute(false, false);
 	}
 	
+	/**
+	 * This method allows retrieve the list of users in the rooms and new messages, in case there are
+	 * no new messages in the opened rooms the request waits (a long poll) until there is an update in
+	 * one of the rooms, a change of the user's number of new private messages, or the waiting times
+	 * out. Then the actual rooms data is retrieved again.
+	 * NOTE: The waiting is done outside of the secure server access, because we should not block the
+	 * other user's requests while waiting.
+	 * @param userID the user unique ID
+	 * @param userSessionId the user's session id
+	 * @param openedRoomIDS the list of opened room IDs
+	 * @param lastUpdateNewestMsgIDs the room ID is mapped to the ID of the last chat message retrieved from this room
+	 * @param visibleUsersVersions the room ID is mapped to the version of the room's visible users known to the client
+	 * @param knownNewMessagesCount the number of new private messages known to the client, negative if it is not known
+	 * @return the requested data
+	 * @throws SiteException if the user is not logged in or we
+	 *			try to validate the session too often or smth else!
+	 */
+	public ChatRoomDataUpdate waitForOpenedRoomsData( final int userID, final String userSessionId,
+													  final List<Integer> openedRoomIDS,
+													  final Map<Integer, Integer> lastUpdateNewestMsgIDs,
+													  final Map<Integer, Integer> visibleUsersVersions,
+													  final int knownNewMessagesCount ) throws SiteException {
+		//Get the room data versions before retrieving the data, so that we do not miss any updates
+		final Map<Integer, Long> roomIDToVersion = ChatRoomsManager.getInstance().getOpenedRoomsUpdateVersions( openedRoomIDS );
+		final long messagesCountVersion = NewMessagesCountManager.getInstance().getUpdateVersion( userID );
+		
+		//Get the actual rooms data, if there is nothing new then wait for the updates
+		ChatRoomDataUpdate result = getOpenedRoomsData( userID, userSessionId, openedRoomIDS, lastUpdateNewestMsgIDs, visibleUsersVersions );
+		if( ! openedRoomIDS.isEmpty() && isEmptyRoomsDataUpdate( result, knownNewMessagesCount ) ) {
+			logger.debug( "Waiting for the updates of the opened rooms: " + openedRoomIDS + ", by user: " + userID );
+			if( ChatRoomsManager.getInstance().waitForOpenedRoomsUpdate( userID, roomIDToVersion, messagesCountVersion ) ) {
+				//Get the fresh rooms data, also to update the visible users and the user's room presence
+				result = getOpenedRoomsData( userID, userSessionId, openedRoomIDS, result.nextUpdateOldestMsgIDs, result.visibleUsersVersions );
+			} else {
+				//There are too many waiting requests, the client has to back off
+				result.isLongPollRejected = true;
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Allows to check that the room-data update does not contain new messages, visible users changes,
+	 * room errors or a number of new private messages that is different from the one the client knows
+	 * @param update the update to check
+	 * @param knownNewMessagesCount the number of new private messages known to the client, negative if it is not known
+	 * @return true if the update has no new messages, no visible users changes, no errors and the same number of new private messages
+	 */
+	private static boolean isEmptyRoomsDataUpdate( final ChatRoomDataUpdate update, final int knownNewMessagesCount ) {
+		if( ( update.newMessagesCount != knownNewMessagesCount ) ||
+			! update.roomIDToException.isEmpty() || ! update.roomIDToVisibleUsers.isEmpty() ||
+			! update.roomIDToUpdatedVisibleUsers.isEmpty() || ! update.roomIDToLeftVisibleUsers.isEmpty() ) {
+			return false;
+		}
+		for( List<ChatMessage> messages : update.roomIDToChatMessages.values() ) {
+			if( ! messages.isEmpty() ) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
 	/**
 	 * Sends the request to the room owner for letting the user access the room
 	 * @param userID the ID of the user who sends the request
@@ -568,6 +663,7 @@ public class RoomManagerImpl extends RemoteServiceServlet implements RoomManager
 																						"", "" );
 				ConnectionWrapper<Void> sendAccRequestMsgConnWrap = ConnectionWrapper.createConnectionWrapper( sendAccRequestMsgExec );
 				sendAccRequestMsgConnWrap.executeQuery( ConnectionWrapper.XCURE_CHAT_DB );
+				NewMessagesCountManager.getInstance().onMessageSent( roomData.getOwnerID() );
 				
 				//Nothing to be returned here
 				return null;
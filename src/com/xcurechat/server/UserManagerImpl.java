@@ -64,6 +64,7 @@ import com.xcurechat.server.core.SynchFactory;
 import com.xcurechat.server.core.UserSessionManager;
 import com.xcurechat.server.core.SiteUsersStatisticsManager;
 
+import com.xcurechat.server.files.BlobStoreManager;
 import com.xcurechat.server.files.FileServletHelper;
 
 import com.xcurechat.server.jdbc.ConnectionWrapper;
@@ -110,6 +111,12 @@ public class UserManagerImpl extends RemoteServiceServlet implements UserManager
 	//Get the Log4j logger object
 	private static final Logger logger = Logger.getLogger( UserManagerImpl.class );
 
+	@Override
+	public void init() {
+		//Set up the storage for the uploaded files data, the avatars are stored on registration
+		BlobStoreManager.configure( getServletContext() );
+	}
+	
 	/**
 	 * Retrieves the HttpSession object if any.
 	 * @return the HttpSession object, either an old or a newly created one
@@ -226,8 +233,14 @@ public class UserManagerImpl extends RemoteServiceServlet implements UserManager
 			protected Void action() throws SiteException {
 				logger.info( "Deleting an avatar for user " + userID );
 				
-				ConnectionWrapper<Void> deleteAvatarConnWrap = ConnectionWrapper.createConnectionWrapper( new DeleteProfileAvatarExecutor( userID ) );
-				deleteAvatarConnWrap.executeQuery(ConnectionWrapper.XCURE_CHAT_DB);
+				//Remove the avatar from the cache, before and after the deletion
+				ProfileAvatarManager.invalidateAvatar( userID );
+				try {
+					ConnectionWrapper<Void> deleteAvatarConnWrap = ConnectionWrapper.createConnectionWrapper( new DeleteProfileAvatarExecutor( userID ) );
+					deleteAvatarConnWrap.executeQuery(ConnectionWrapper.XCURE_CHAT_DB);
+				} finally {
+					ProfileAvatarManager.invalidateAvatar( userID );
+				}
 				
 				return null;
 			}
@@ -38,8 +38,8 @@ public class ForumMessageCacheWrapper {
 	//The short user data cache
 	private static ShortUserDataCache userDataCache = ShortUserDataCache.getInstance( ShortUserDataCache.CacheIds.FORUM_CACHE_ID ); 
 	
-	//Contains the forum message data
-	private ForumMessageData messageData;
+	//Contains the forum message data, is read without locking
+	private volatile ForumMessageData messageData;
 	
 	//Contains the query to message reference counter, is initialized with one, i.e. there is alway one reference
 	private int queryRefCounter = 1;
@@ -142,9 +142,9 @@ public class ForumMessageCacheWrapper {
 	}
 	
 	/**
-	 * @return the messageData
+	 * @return the messageData, this method is not synchronized
 	 */
-	public synchronized ForumMessageData getMessageData() {
+	public ForumMessageData getMessageData() {
 		return messageData;
 	}
 }
@@ -22,12 +22,19 @@
 package com.xcurechat.server.cache;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 
@@ -36,39 +43,254 @@ import com.xcurechat.client.data.ShortForumMessageData;
 import com.xcurechat.client.data.ShortUserData;
 import com.xcurechat.client.data.search.ForumSearchData;
 import com.xcurechat.client.data.search.OnePageViewData;
-import com.xcurechat.server.utils.ServerEncoder;
+import com.xcurechat.client.rpc.exceptions.SiteException;
 
 /**
  * @author zapreevis
- * This class is responsible for caching the forum queries
+ * This class is responsible for caching the forum queries. The look ups are done
+ * without locking, on the concurrent maps, the cache modifications are synchronized.
+ * The cached queries are indexed by the ids of their messages, files and base messages,
+ * so that the invalidation only touches the queries affected by the forum change.
+ * NOTE: The cached forum messages are shared between the queries and the users,
+ * therefore they are never marked as voted for, the user-specific copies are used.
+ * The cache misses are coalesced per query, only one thread loads the query results
+ * while the others wait for them. If the query was invalidated by a forum change then
+ * its stale results are kept for a while and are returned to the readers during the reload.
+ * The cache has a memory budget, in estimated bytes retained by the cached messages, that is
+ * shared between the news, navigation and custom search queries. Each of these query types
+ * has its own segmented LRU, see QueryTypeSegments, which evicts the queries of this type.
  */
 public class ForumQueriesCache {
-	//The encoder that has to be used in the server side
-	private static final ServerEncoder encoder = new ServerEncoder(); 
-	
 	//Get the Log4j logger object
 	private static final Logger logger = Logger.getLogger( ForumQueriesCache.class );
 	
-	//The minimum time interval between the successive cache clean-ups
-	private static final int MIN_CACHE_CLEAN_UP_INTERVAL_MILLISEC = 5000;
+	//The default memory budget of the cache in Mb
+	public static final int DEFAULT_MEMORY_BUDGET_MB = 40;
+	//The default shares of the memory budget, in percent, for the news, navigation and custom search queries
+	public static final int DEFAULT_NEWS_QUERIES_SHARE = 30;
+	public static final int DEFAULT_NAVIGATION_QUERIES_SHARE = 50;
+	public static final int DEFAULT_CUSTOM_QUERIES_SHARE = 20;
+	//The part of the query type budget, in percent, given to the protected segment
+	private static final int PROTECTED_SEGMENT_SHARE = 80;
+	
+	/**
+	 * @author zapreevis
+	 * The segmented LRU of the cached queries of one type. The new queries are put into the
+	 * probation segment. The readers only mark the queries as referenced, without locking, and
+	 * when the eviction finds the referenced query in the probation segment it moves the query
+	 * into the protected segment. The queries referenced while being in the protected segment are
+	 * moved to its tail when they reach its head, so the protected segment is kept in the access order
+	 * and its least recently used queries go back to the probation segment on overflow.
+	 * The victims are the not referenced queries from the head of the probation segment.
+	 * NOTE: This class is not synchronized, it is guarded by the cache object.
+	 */
+	private static final class QueryTypeSegments {
+		//The name of the query type, for logging
+		public final String name;
+		//The memory budget of this query type in bytes
+		public long budgetBytes;
+		//The probation and the protected segments, in the LRU order
+		public final LinkedHashMap<ForumQueryKey, Long> probation = new LinkedHashMap<ForumQueryKey, Long>();
+		public final LinkedHashMap<ForumQueryKey, Long> protectedSegment = new LinkedHashMap<ForumQueryKey, Long>();
+		//The number of bytes in the segments
+		public long probationBytes = 0;
+		public long protectedBytes = 0;
+		
+		public QueryTypeSegments( final String name, final long budgetBytes ) {
+			this.name = name;
+			this.budgetBytes = budgetBytes;
+		}
+		
+		/**
+		 * @return the number of bytes used by the queries of this type
+		 */
+		public long getUsedBytes() {
+			return probationBytes + protectedBytes;
+		}
+		
+		/**
+		 * Adds the new query to the tail of the probation segment
+		 */
+		public void add( final ForumQueryKey query, final long bytes ) {
+			probation.put( query, bytes );
+			probationBytes += bytes;
+		}
+		
+		/**
+		 * Removes the query from the segments
+		 */
+		public void remove( final ForumQueryKey query ) {
+			Long bytes = probation.remove( query );
+			if( bytes != null ) {
+				probationBytes -= bytes;
+			} else {
+				bytes = protectedSegment.remove( query );
+				if( bytes != null ) {
+					protectedBytes -= bytes;
+				}
+			}
+		}
+		
+		/**
+		 * Moves the referenced queries from the head of the protected segment to its tail and clears
+		 * their referenced flag. As the hits do not lock, this is how a hit re-orders the protected query.
+		 * The number of moves is bounded by the segment size, so it terminates under concurrent hits.
+		 * @param queryToResult the cached queries, to check and clear the referenced flag
+		 */
+		public void renewProtectedHead( final Map<ForumQueryKey, ForumQueryResultCache> queryToResult ) {
+			for( int step = protectedSegment.size(); step > 0; step-- ) {
+				final Map.Entry<ForumQueryKey, Long> eldest = protectedSegment.entrySet().iterator().next();
+				final ForumQueryResultCache cachedQueryWrap = queryToResult.get( eldest.getKey() );
+				if( ( cachedQueryWrap == null ) || ! cachedQueryWrap.clearReferenced() ) {
+					break;
+				}
+				protectedSegment.remove( eldest.getKey() );
+				protectedSegment.put( eldest.getKey(), eldest.getValue() );
+			}
+		}
+		
+		/**
+		 * Moves the query from the probation segment to the tail of the protected one,
+		 * the least recently used protected queries are moved back if there is no space
+		 * @param queryToResult the cached queries, to clear the referenced flag of the demoted queries
+		 */
+		public void promote( final ForumQueryKey query, final Map<ForumQueryKey, ForumQueryResultCache> queryToResult ) {
+			final Long bytes = probation.remove( query );
+			if( bytes != null ) {
+				probationBytes -= bytes;
+				protectedSegment.put( query, bytes );
+				protectedBytes += bytes;
+				final long protectedBudgetBytes = budgetBytes * PROTECTED_SEGMENT_SHARE / 100;
+				while( ( protectedBytes > protectedBudgetBytes ) && ( protectedSegment.size() > 1 ) ) {
+					renewProtectedHead( queryToResult );
+					final Map.Entry<ForumQueryKey, Long> eldest = protectedSegment.entrySet().iterator().next();
+					protectedSegment.remove( eldest.getKey() );
+					protectedBytes -= eldest.getValue();
+					final ForumQueryResultCache demoted = queryToResult.get( eldest.getKey() );
+					if( demoted != null ) {
+						demoted.clearReferenced();
+					}
+					probation.put( eldest.getKey(), eldest.getValue() );
+					probationBytes += eldest.getValue();
+				}
+			}
+		}
+	}
+	
+	//The segments of the news, navigation (with one message views) and custom search queries, guarded by the cache object
+	private final QueryTypeSegments newsSegments = new QueryTypeSegments( "news", getShareBytes( DEFAULT_MEMORY_BUDGET_MB, DEFAULT_NEWS_QUERIES_SHARE ) );
+	private final QueryTypeSegments navigationSegments = new QueryTypeSegments( "navigation", getShareBytes( DEFAULT_MEMORY_BUDGET_MB, DEFAULT_NAVIGATION_QUERIES_SHARE ) );
+	private final QueryTypeSegments customSegments = new QueryTypeSegments( "custom", getShareBytes( DEFAULT_MEMORY_BUDGET_MB, DEFAULT_CUSTOM_QUERIES_SHARE ) );
 	
-	//The maximum number of cached messages
-	private static final int MAX_NUMBER_CACHED_MESSAGES = 2500; //About 40 Mb of data with the max message sizes
+	//The cache statistics counters
+	private final AtomicLong hitsCount = new AtomicLong( 0 );
+	private final AtomicLong staleHitsCount = new AtomicLong( 0 );
+	private final AtomicLong missesCount = new AtomicLong( 0 );
+	private final AtomicLong evictionsCount = new AtomicLong( 0 );
+	private final AtomicLong rejectionsCount = new AtomicLong( 0 );
 	
 	//The only instance of this object
 	private static final ForumQueriesCache instance = new ForumQueriesCache();
 	
-	//Stores mapping from the serialized forum search data to the query result
-	private Map<String, ForumQueryResultCache> queryToResult = new HashMap<String, ForumQueryResultCache>();
+	//Stores mapping from the forum query key to the query result
+	private final ConcurrentMap<ForumQueryKey, ForumQueryResultCache> queryToResult = new ConcurrentHashMap<ForumQueryKey, ForumQueryResultCache>();
 	
 	//Known messages map, it maps the message id to the message wrapper
-	private Map<Integer, ForumMessageCacheWrapper> idToMessageWrap = new HashMap<Integer, ForumMessageCacheWrapper>();
+	private final ConcurrentMap<Integer, ForumMessageCacheWrapper> idToMessageWrap = new ConcurrentHashMap<Integer, ForumMessageCacheWrapper>();
 	
 	//Known message votes map, it maps the message id to the set of user ID of the users who voted for this message
-	private Map<Integer, Set<Integer>> idToVoterIds = new HashMap<Integer, Set<Integer>>();
+	private final ConcurrentMap<Integer, Set<Integer>> idToVoterIds = new ConcurrentHashMap<Integer, Set<Integer>>();
+	
+	//The indexes of the cached queries, are guarded by the cache object
+	//Maps the message id to the queries containing the message
+	private final Map<Integer, Set<ForumQueryKey>> messageIdToQueries = new HashMap<Integer, Set<ForumQueryKey>>();
+	//Maps the file id to the queries containing a message with the file
+	private final Map<Integer, Set<ForumQueryKey>> fileIdToQueries = new HashMap<Integer, Set<ForumQueryKey>>();
+	//Maps the base message id to the queries with this base message
+	private final Map<Integer, Set<ForumQueryKey>> baseMessageIdToQueries = new HashMap<Integer, Set<ForumQueryKey>>();
+	//The news browsing queries
+	private final Set<ForumQueryKey> newsQueries = new HashSet<ForumQueryKey>();
+	//The custom search queries
+	private final Set<ForumQueryKey> customQueries = new HashSet<ForumQueryKey>();
+	//The one-message view queries
+	private final Set<ForumQueryKey> oneMessageQueries = new HashSet<ForumQueryKey>();
 	
-	//The last cache clean up
-	private long lastCachCleanUp = System.currentTimeMillis();
+	//The maximum number of invalidated queries for which the stale results are kept
+	private static final int MAX_NUMBER_OF_STALE_QUERIES = 100;
+	//The time after which the stale query results are not used any more
+	private static final int STALE_QUERY_TIME_OUT_MILLISEC = 60000;
+	//The maximum time a reader waits for the results loaded by another thread
+	private static final int MAX_QUERY_LOAD_WAIT_MILLISEC = 30000;
+	
+	/**
+	 * @author zapreevis
+	 * The loader of the query results, is called on the cache miss
+	 */
+	public interface QueryResultLoader {
+		/**
+		 * Loads the query results from the DB
+		 * @return the query results
+		 * @throws SiteException if the results could not be loaded
+		 */
+		public OnePageViewData<ForumMessageData> load() throws SiteException;
+	}
+	
+	/**
+	 * @author zapreevis
+	 * The query results load that is in progress, the other readers can wait for it
+	 */
+	private static final class QueryLoad {
+		//Is counted down when the load is finished
+		private final CountDownLatch loadLatch = new CountDownLatch( 1 );
+		//The loaded results, or null if the load failed
+		private volatile OnePageViewData<ForumMessageData> result = null;
+		
+		/**
+		 * Marks the load as finished
+		 * @param result the loaded results, or null if the load failed
+		 */
+		public void finish( final OnePageViewData<ForumMessageData> result ) {
+			this.result = result;
+			loadLatch.countDown();
+		}
+		
+		/**
+		 * Waits for the load to finish
+		 * @return the loaded results, or null if the load failed or took too long
+		 */
+		public OnePageViewData<ForumMessageData> waitForResult() {
+			try {
+				if( loadLatch.await( MAX_QUERY_LOAD_WAIT_MILLISEC, TimeUnit.MILLISECONDS ) ) {
+					return result;
+				}
+			} catch ( InterruptedException e ) {
+				Thread.currentThread().interrupt();
+			}
+			return null;
+		}
+	}
+	
+	/**
+	 * @author zapreevis
+	 * The results of the invalidated query
+	 */
+	private static final class StaleQueryResult {
+		//The invalidated query results
+		public final ForumQueryResultCache result;
+		//The time when the query was invalidated
+		public final long invalidationTime = System.currentTimeMillis();
+		
+		public StaleQueryResult( final ForumQueryResultCache result ) {
+			this.result = result;
+		}
+	}
+	
+	//The query loads in progress
+	private final ConcurrentMap<ForumQueryKey, QueryLoad> queryToLoad = new ConcurrentHashMap<ForumQueryKey, QueryLoad>();
+	//The stale results of the invalidated queries
+	private final ConcurrentMap<ForumQueryKey, StaleQueryResult> queryToStaleResult = new ConcurrentHashMap<ForumQueryKey, StaleQueryResult>();
+	//The number of the cache invalidations, the results loaded before an invalidation are not cached
+	private volatile long invalidationsCount = 0;
 	
 	/**
 	 * The class is used a a singleton 
@@ -82,6 +304,98 @@ public class ForumQueriesCache {
 		return instance;
 	}
 	
+	/**
+	 * Allows to compute the share of the memory budget in bytes
+	 * @param memoryBudgetMb the memory budget in Mb
+	 * @param share the share in percent
+	 * @return the share in bytes
+	 */
+	private static long getShareBytes( final int memoryBudgetMb, final int share ) {
+		return ( (long) memoryBudgetMb ) * 1024 * 1024 * share / 100;
+	}
+	
+	/**
+	 * Allows to set the memory budget of the cache and its shares for the query types,
+	 * if the cache uses more memory than the new budget allows then the queries are evicted
+	 * @param memoryBudgetMb the memory budget in Mb
+	 * @param newsShare the share of the news queries in percent
+	 * @param navigationShare the share of the forum navigation queries, including one message views, in percent
+	 * @param customShare the share of the custom search queries in percent
+	 */
+	public synchronized void configure( final int memoryBudgetMb, final int newsShare, final int navigationShare, final int customShare ) {
+		logger.info( "Setting the forum cache memory budget to " + memoryBudgetMb + " Mb, the shares are: news " + newsShare +
+					 "%, navigation " + navigationShare + "%, custom search " + customShare + "%" );
+		newsSegments.budgetBytes = getShareBytes( memoryBudgetMb, newsShare );
+		navigationSegments.budgetBytes = getShareBytes( memoryBudgetMb, navigationShare );
+		customSegments.budgetBytes = getShareBytes( memoryBudgetMb, customShare );
+		makeSpace( newsSegments, 0 );
+		makeSpace( navigationSegments, 0 );
+		makeSpace( customSegments, 0 );
+	}
+	
+	/**
+	 * @return the number of the cache hits
+	 */
+	public long getHitsCount() {
+		return hitsCount.get();
+	}
+	
+	/**
+	 * @return the number of the cache misses answered with the stale query results
+	 */
+	public long getStaleHitsCount() {
+		return staleHitsCount.get();
+	}
+	
+	/**
+	 * @return the number of the cache misses
+	 */
+	public long getMissesCount() {
+		return missesCount.get();
+	}
+	
+	/**
+	 * @return the number of the queries evicted from the cache to free memory
+	 */
+	public long getEvictionsCount() {
+		return evictionsCount.get();
+	}
+	
+	/**
+	 * @return the number of the query results that were not cached because they were too large
+	 */
+	public long getRejectionsCount() {
+		return rejectionsCount.get();
+	}
+	
+	/**
+	 * @return the string with the cache statistics
+	 */
+	public synchronized String getStatistics() {
+		return "Forum queries cache: hits = " + hitsCount.get() + ", stale hits = " + staleHitsCount.get() +
+			   ", misses = " + missesCount.get() + ", evictions = " + evictionsCount.get() + ", rejections = " +
+			   rejectionsCount.get() + ", queries = " + queryToResult.size() + ", messages = " + idToMessageWrap.size() +
+			   ", bytes used: news " + newsSegments.getUsedBytes() + " of " + newsSegments.budgetBytes +
+			   ", navigation " + navigationSegments.getUsedBytes() + " of " + navigationSegments.budgetBytes +
+			   ", custom " + customSegments.getUsedBytes() + " of " + customSegments.budgetBytes;
+	}
+	
+	/**
+	 * Allows to get the segments for the queries of the given type
+	 * @param queryType the query type, see ForumQueryResultCache
+	 * @return the segments of the query type
+	 */
+	private QueryTypeSegments getSegments( final int queryType ) {
+		switch( queryType ) {
+			case ForumQueryResultCache.NEWS_PAGE_FORUM_QUERY_TYPE:
+				return newsSegments;
+			case ForumQueryResultCache.FORUM_CUSTOM_QUERY_TYPE:
+				return customSegments;
+			default:
+				return navigationSegments;
+		}
+	}
+	
 	/**
 	 * Allows to update the message in the cache with a new vote
 	 * NOTE: This method is synchronized
@@ -106,14 +420,17 @@ public class ForumQueriesCache {
 	 * Just mark that the user has voted for this message, no counters are incremented
 	 * The method marks the vote if the user ID is not equal to
 	 * ShortUserData.UNKNOWN_UID or ShortUserData.DEFAULT_UID
+	 * and the message is cached, otherwise the vote is known from the DB
+	 * NOTE: This method is synchronized
 	 * @param messageID the message we vote for
 	 * @param userID the user who votes 
 	 */
 	public synchronized void registerUserVote( final int messageID, final int userID ) {
-		if( ( userID != ShortUserData.UNKNOWN_UID ) && ( userID != ShortUserData.DEFAULT_UID ) ) {
+		if( ( userID != ShortUserData.UNKNOWN_UID ) && ( userID != ShortUserData.DEFAULT_UID ) &&
+			idToMessageWrap.containsKey( messageID ) ) {
 			Set<Integer> voters = idToVoterIds.get( messageID );
 			if( voters == null ) {
-				voters = new HashSet<Integer>();
+				voters = Collections.newSetFromMap( new ConcurrentHashMap<Integer, Boolean>() );
 				idToVoterIds.put( messageID, voters );
 			}
 			voters.add( userID );
@@ -122,39 +439,184 @@ public class ForumQueriesCache {
 	
 	/**
 	 * Allows to retrieve the forum search result object based on the request, in case this object is cached 
-	 * NOTE: This method is synchronized
+	 * NOTE: This method is not synchronized
 	 * @param searchData the search query for which we try to retrieve the results from the cache
 	 * @param userID the id of the user retrieving these messages
 	 * @return the query result or null if nothing is cached
 	 */
-	public synchronized OnePageViewData<ForumMessageData> getQueryResult( final ForumSearchData searchData, final int userID ) {
-		//Serialize the message for proper hashing
-		final String query = searchData.serialize(encoder);
-		logger.debug("Searching for the cached query " + query);
-		final ForumQueryResultCache resultSet = queryToResult.get( query );
-		
+	public OnePageViewData<ForumMessageData> getQueryResult( final ForumSearchData searchData, final int userID ) {
+		return getQueryResult( new ForumQueryKey( searchData ), userID );
+	}
+	
+	/**
+	 * Allows to retrieve the forum search result object based on the request, in case this object is cached 
+	 * NOTE: This method is not synchronized
+	 * @param query the key of the search query
+	 * @param userID the id of the user retrieving these messages
+	 * @return the query result or null if nothing is cached
+	 */
+	private OnePageViewData<ForumMessageData> getQueryResult( final ForumQueryKey query, final int userID ) {
+		return getQueryResult( queryToResult.get( query ), userID );
+	}
+	
+	/**
+	 * Allows to construct the forum search result object from the cached query results
+	 * @param resultSet the cached query results or null
+	 * @param userID the id of the user retrieving these messages
+	 * @return the query result or null if resultSet is null
+	 */
+	private OnePageViewData<ForumMessageData> getQueryResult( final ForumQueryResultCache resultSet, final int userID ) {
 		OnePageViewData<ForumMessageData> result = null;
 		if( resultSet != null ) {
-			logger.debug("The cached query " + query + " is found");
+			logger.debug("The cached query is found");
 			//Construct the resulting object
 			result = new OnePageViewData<ForumMessageData>();
 			result.total_size = resultSet.getTotalSize();
 			result.offset = resultSet.getOffset();
-			result.entries = resultSet.getMessages( idToMessageWrap, idToVoterIds, userID );
+			result.entries = resultSet.getMessages( idToVoterIds, userID );
 		} else {
-			logger.debug("The cached query " + query + " is not found");
+			logger.debug("The cached query is not found");
 		}
 		
 		return result;
 	}
 	
+	/**
+	 * Allows to retrieve the forum search result object based on the request, if it is not
+	 * cached then it is loaded with the given loader and is put into the cache. Only one
+	 * thread loads the results of the given query at a time, the others get the stale
+	 * results of the query, if there are any, or wait for the load to finish.
+	 * NOTE: This method is not synchronized
+	 * @param searchData the search query for which we retrieve the results
+	 * @param userID the id of the user retrieving these messages
+	 * @param loader the loader of the query results from the DB
+	 * @return the query result
+	 * @throws SiteException if the results could not be loaded
+	 */
+	public OnePageViewData<ForumMessageData> getQueryResult( final ForumSearchData searchData, final int userID,
+															 final QueryResultLoader loader ) throws SiteException {
+		final ForumQueryKey query = new ForumQueryKey( searchData );
+		OnePageViewData<ForumMessageData> result = getQueryResult( query, userID );
+		if( result != null ) {
+			hitsCount.incrementAndGet();
+		} else {
+			missesCount.incrementAndGet();
+			final QueryLoad load = new QueryLoad();
+			final QueryLoad otherLoad = queryToLoad.putIfAbsent( query, load );
+			if( otherLoad != null ) {
+				//The query is being loaded, use its stale results or wait for the load
+				result = getStaleQueryResult( query, userID );
+				if( result == null ) {
+					logger.debug( "Waiting for the results of the query " + query + " loaded by another thread" );
+					result = otherLoad.waitForResult();
+					if( result != null ) {
+						result = getUserView( result );
+					} else {
+						//The other load failed or is too slow, load the results here
+						logger.warn( "The results of the query " + query + " were not loaded by another thread, loading them" );
+						result = loader.load();
+					}
+				} else {
+					staleHitsCount.incrementAndGet();
+					logger.debug( "Returning the stale results of the query " + query + " while it is being loaded" );
+				}
+			} else {
+				OnePageViewData<ForumMessageData> loadedResult = null;
+				try {
+					//The results could have been put into the cache by the previous load
+					result = getQueryResult( query, userID );
+					if( result == null ) {
+						final long loadInvalidationsCount = invalidationsCount;
+						loadedResult = loader.load();
+						synchronized( this ) {
+							//If the cache was invalidated during the load then the results can be outdated
+							if( loadInvalidationsCount == invalidationsCount ) {
+								putQueryResult( searchData, loadedResult, userID );
+							} else {
+								logger.debug( "The cache was invalidated while loading the query " + query + ", the results are not cached" );
+							}
+						}
+						result = loadedResult;
+					}
+				} finally {
+					queryToLoad.remove( query, load );
+					load.finish( loadedResult );
+				}
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Allows to get the stale results of the invalidated query, if they are not too old
+	 * @param query the key of the search query
+	 * @param userID the id of the user retrieving these messages
+	 * @return the stale query result or null if there is none
+	 */
+	private OnePageViewData<ForumMessageData> getStaleQueryResult( final ForumQueryKey query, final int userID ) {
+		final StaleQueryResult staleResult = queryToStaleResult.get( query );
+		if( staleResult != null ) {
+			if( ( staleResult.invalidationTime + STALE_QUERY_TIME_OUT_MILLISEC ) > System.currentTimeMillis() ) {
+				return getQueryResult( staleResult.result, userID );
+			} else {
+				queryToStaleResult.remove( query, staleResult );
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * The results loaded by one user are shared with the other ones, so
+	 * they should not contain the messages marked as voted for
+	 * @param result the loaded query results
+	 * @return the query results that can be given to any user
+	 */
+	private static OnePageViewData<ForumMessageData> getUserView( final OnePageViewData<ForumMessageData> result ) {
+		OnePageViewData<ForumMessageData> userResult = new OnePageViewData<ForumMessageData>();
+		userResult.total_size = result.total_size;
+		userResult.offset = result.offset;
+		if( result.entries != null ) {
+			userResult.entries = new ArrayList<ForumMessageData>( result.entries.size() );
+			for( ForumMessageData message : result.entries ) {
+				if( message.hasVoted ) {
+					message = message.cloneForumMessage();
+					message.hasVoted = false;
+				}
+				userResult.entries.add( message );
+			}
+		}
+		return userResult;
+	}
+	
+	/**
+	 * Allows to keep the results of the invalidated query, they can be used while the query is re-loaded
+	 * WARNING: This method is not synchronized
+	 * @param cachedQueryWrap the invalidated query results
+	 */
+	private void keepStaleQueryResult( final ForumQueryResultCache cachedQueryWrap ) {
+		if( queryToStaleResult.size() >= MAX_NUMBER_OF_STALE_QUERIES ) {
+			//Drop the stale results that are too old to be used
+			final long currentTime = System.currentTimeMillis();
+			Iterator<StaleQueryResult> iter = queryToStaleResult.values().iterator();
+			while( iter.hasNext() ) {
+				if( ( iter.next().invalidationTime + STALE_QUERY_TIME_OUT_MILLISEC ) <= currentTime ) {
+					iter.remove();
+				}
+			}
+		}
+		if( queryToStaleResult.size() < MAX_NUMBER_OF_STALE_QUERIES ) {
+			queryToStaleResult.put( cachedQueryWrap.getQueryKey(), new StaleQueryResult( cachedQueryWrap ) );
+		}
+	}
+	
 	/**
 	 * Allows to get a forum message from the cache
+	 * NOTE: This method is not synchronized
 	 * @param messageID the id of the forum message to get
 	 * @param userID the id of the user who gets the message
 	 * @return the found cached message or null
 	 */
-	public synchronized ForumMessageData getForumMessage( final int messageID, final int userID ) {
+	public ForumMessageData getForumMessage( final int messageID, final int userID ) {
 		logger.debug("Attempting to get a single forum message " + messageID + " for the user " + userID );
 		ForumMessageData message = null;
 		ForumMessageCacheWrapper messageWrap = idToMessageWrap.get( messageID );
@@ -162,9 +624,9 @@ public class ForumQueriesCache {
 			message = messageWrap.getMessageData(); 
 			Set<Integer> msgVoters = idToVoterIds.get( messageID );
 			if( msgVoters != null && msgVoters.contains( userID ) ) {
+				//The cached message is shared, return the user's copy
+				message = message.cloneForumMessage();
 				message.hasVoted = true;
-			} else {
-				message.hasVoted = false;
 			}
 		}
 		
@@ -179,25 +641,34 @@ public class ForumQueriesCache {
 	 * @param result the search query result set.
 	 */
 	public synchronized void putQueryResult( final ForumSearchData searchData, OnePageViewData<ForumMessageData> result, final int userID ) {
-		//Serialize the message for proper hashing
-		final String query = searchData.serialize(encoder);
+		final ForumQueryKey query = new ForumQueryKey( searchData );
 		logger.debug("Attempting to put results for query " + query + " into the cache");
 		if( ! queryToResult.containsKey( query ) ) {
-			//Compute the number of messages
+			//Compute the number of messages and their size
 			final int numberOfMsgs = (result.entries != null ? result.entries.size() : 0 );
-			logger.debug("The query " + query + " results in " + numberOfMsgs + " messages each of which should be cahed");
+			final long retainedBytes = ForumQueryResultCache.estimateRetainedBytes( result.entries );
+			logger.debug("The query " + query + " results in " + numberOfMsgs + " messages each of which should be cahed, " +
+						 "they take about " + retainedBytes + " bytes");
 			
-			//Check if there is space for storing more query results
-			if( canCacheMoreQueries( numberOfMsgs ) ) {
+			//Check if there is space for storing the query results, evict other queries of this type if needed
+			final QueryTypeSegments segments = getSegments( ForumQueryResultCache.getForumQueryType( searchData, query ) );
+			if( makeSpace( segments, retainedBytes ) ) {
 				//If the query results are not cached yet
-				final List<ForumMessageData> messages = new ArrayList<ForumMessageData>();
+				final List<ForumMessageCacheWrapper> messageWraps = new ArrayList<ForumMessageCacheWrapper>();
 				
-				//Get the messages and place them into the pool and store their ids
+				//Get the messages and place them into the pool and store their wrappers
 				for( ForumMessageData messageData : result.entries ) {
+					//The cached messages are shared, so they are never marked as voted for
+					ForumMessageData cachedMessageData = messageData;
+					if( messageData.hasVoted ) {
+						cachedMessageData = messageData.cloneForumMessage();
+						cachedMessageData.hasVoted = false;
+					}
+					
 					ForumMessageCacheWrapper cachedMessageWrap = idToMessageWrap.get( messageData.messageID );
 					if ( cachedMessageWrap == null ) {
 						//The message is not cached yet
-						cachedMessageWrap = new ForumMessageCacheWrapper( messageData );
+						cachedMessageWrap = new ForumMessageCacheWrapper( cachedMessageData );
 						//Put the message into the pool
 						idToMessageWrap.put( messageData.messageID, cachedMessageWrap );
 					} else {
@@ -206,7 +677,7 @@ public class ForumQueriesCache {
 						//attributes such are replies count and the message
 						//can still be in cache because it is e.g. in the
 						//news results 
-						cachedMessageWrap.registerNewMessageReference( messageData );
+						cachedMessageWrap.registerNewMessageReference( cachedMessageData );
 					}
 					
 					//Mark if the user has voted for this message
@@ -214,21 +685,130 @@ public class ForumQueriesCache {
 						registerUserVote( messageData.messageID, userID );
 					}
 					
-					//Store the message id in the result set, re-use the message from the pool!!!
+					//Store the message wrapper in the result set, re-use the message from the pool!!!
 					//Do not store the original message in order to reduce memory consumption 
-					messages.add( cachedMessageWrap.getMessageData() );
+					messageWraps.add( cachedMessageWrap );
 				}
 				
-				//Construct the wrapper and put it to the query to result set mapping
-				queryToResult.put(query, new ForumQueryResultCache( result.total_size, result.offset, searchData, query, messages ) );
+				//Construct the wrapper, index it and put it to the query to result set mapping
+				final ForumQueryResultCache cachedQueryWrap = new ForumQueryResultCache( result.total_size, result.offset, searchData, query, messageWraps );
+				addToIndexes( cachedQueryWrap );
+				segments.add( query, cachedQueryWrap.getRetainedBytes() );
+				queryToResult.put( query, cachedQueryWrap );
+				//The stale results of this query are not needed any more
+				queryToStaleResult.remove( query );
 			} else {
-				logger.warn("There is no space left in cache, storing the results of query " + query + " is cancelled");
+				rejectionsCount.incrementAndGet();
+				logger.warn("The results of query " + query + " do not fit into the " + segments.name + " queries budget, storing them is cancelled");
 			}
 		} else {
 			logger.debug("The results for query " + query + " are already cached");
 		}
 	}
 	
+	/**
+	 * Allows to add the key of the cached query to the given index
+	 * WARNING: This method is not synchronized
+	 * @param index the index to add to
+	 * @param id the id to index the query by
+	 * @param query the query key
+	 */
+	private static void addToIndex( final Map<Integer, Set<ForumQueryKey>> index, final int id, final ForumQueryKey query ) {
+		Set<ForumQueryKey> queries = index.get( id );
+		if( queries == null ) {
+			queries = new HashSet<ForumQueryKey>();
+			index.put( id, queries );
+		}
+		queries.add( query );
+	}
+	
+	/**
+	 * Allows to remove the key of the cached query from the given index
+	 * WARNING: This method is not synchronized
+	 * @param index the index to remove from
+	 * @param id the id the query is indexed by
+	 * @param query the query key
+	 */
+	private static void removeFromIndex( final Map<Integer, Set<ForumQueryKey>> index, final int id, final ForumQueryKey query ) {
+		Set<ForumQueryKey> queries = index.get( id );
+		if( queries != null ) {
+			queries.remove( query );
+			if( queries.isEmpty() ) {
+				index.remove( id );
+			}
+		}
+	}
+	
+	/**
+	 * Allows to add the cached query to all of the indexes
+	 * WARNING: This method is not synchronized
+	 * @param cachedQueryWrap the cached query
+	 */
+	private void addToIndexes( final ForumQueryResultCache cachedQueryWrap ) {
+		final ForumQueryKey query = cachedQueryWrap.getQueryKey();
+		for( Integer messageID : cachedQueryWrap.getMessageIds() ) {
+			addToIndex( messageIdToQueries, messageID, query );
+		}
+		for( Integer fileID : cachedQueryWrap.getFileIds() ) {
+			addToIndex( fileIdToQueries, fileID, query );
+		}
+		addToIndex( baseMessageIdToQueries, cachedQueryWrap.getBaseMessageID(), query );
+		if( cachedQueryWrap.isNewsPageBrowsing() ) {
+			newsQueries.add( query );
+		} else if( cachedQueryWrap.isCustomBrowsing() ) {
+			customQueries.add( query );
+		} else if( cachedQueryWrap.isOneMessageView() ) {
+			oneMessageQueries.add( query );
+		}
+	}
+	
+	/**
+	 * Allows to remove the cached query from the cache and from all of the indexes,
+	 * the query messages are removed from the messages pool if they are not used
+	 * WARNING: This method is not synchronized
+	 * @param query the key of the query to remove
+	 * @param isKeepStale true if the query was invalidated and its stale results can be used while it is re-loaded
+	 * @return the number of messages that was removed from the message pool
+	 */
+	private int removeQuery( final ForumQueryKey query, final boolean isKeepStale ) {
+		final ForumQueryResultCache cachedQueryWrap = queryToResult.remove( query );
+		int removedMsgCount = 0;
+		if( cachedQueryWrap != null ) {
+			if( isKeepStale ) {
+				keepStaleQueryResult( cachedQueryWrap );
+			}
+			getSegments( cachedQueryWrap.getQueryType() ).remove( query );
+			for( Integer messageID : cachedQueryWrap.getMessageIds() ) {
+				removeFromIndex( messageIdToQueries, messageID, query );
+			}
+			for( Integer fileID : cachedQueryWrap.getFileIds() ) {
+				removeFromIndex( fileIdToQueries, fileID, query );
+			}
+			removeFromIndex( baseMessageIdToQueries, cachedQueryWrap.getBaseMessageID(), query );
+			newsQueries.remove( query );
+			customQueries.remove( query );
+			oneMessageQueries.remove( query );
+			
+			removedMsgCount = removeMessagesFromTheMappings( cachedQueryWrap.getMessageWraps() );
+		}
+		return removedMsgCount;
+	}
+	
+	/**
+	 * Allows to remove all the given cached queries, they are invalidated, so their stale results are kept
+	 * WARNING: This method is not synchronized
+	 * @param queries the keys of the queries to remove, may be null, is not modified
+	 */
+	private void removeQueries( final Set<ForumQueryKey> queries ) {
+		invalidationsCount++;
+		if( queries != null ) {
+			//Copy the set because it can be one of the indexes that are modified while removing
+			for( ForumQueryKey query : new ArrayList<ForumQueryKey>( queries ) ) {
+				removeQuery( query, true );
+			}
+		}
+	}
+	
 	/**
 	 * Allows to approve/disapprove the messages in the cache
 	 * NOTE: This method is not synchronized
@@ -274,34 +854,25 @@ public class ForumQueriesCache {
 	 * @param messageIds the list of message ids to consider
 	 */
 	private void removeNewsQueriesWithTheMessages( final Set<Integer> messageIds ) {
-		final Iterator<ForumQueryResultCache> iter = queryToResult.values().iterator();
-		while( iter.hasNext() ) {
-			ForumQueryResultCache cachedQueryWrap = iter.next();
-			for( Integer messageID : messageIds) {
-				if( cachedQueryWrap.isNewsPageBrowsing() && cachedQueryWrap.containsMessage( messageID ) ) {
-					//Remove all of the queries related to the news browsing
-					removeMessagesFromTheMappings( cachedQueryWrap.getMessages( idToMessageWrap ) );
-					iter.remove();
-					//Go to the next query
-					break;
+		final Set<ForumQueryKey> queries = new HashSet<ForumQueryKey>();
+		for( Integer messageID : messageIds) {
+			final Set<ForumQueryKey> messageQueries = messageIdToQueries.get( messageID );
+			if( messageQueries != null ) {
+				for( ForumQueryKey query : messageQueries ) {
+					if( newsQueries.contains( query ) ) {
+						queries.add( query );
+					}
 				}
 			}
 		}
+		removeQueries( queries );
 	}
 	
 	/**
 	 * Allows to remove all news queries
 	 */
 	private void removeAllNewsQueries() {
-		final Iterator<ForumQueryResultCache> iter = queryToResult.values().iterator();
-		while( iter.hasNext() ) {
-			ForumQueryResultCache cachedQueryWrap = iter.next();
-			if( cachedQueryWrap.isNewsPageBrowsing()) {
-				//Remove all of the queries related to the news browsing
-				removeMessagesFromTheMappings( cachedQueryWrap.getMessages( idToMessageWrap ) );
-				iter.remove();
-			}
-		}
+		removeQueries( newsQueries );
 	}
 	
 	/**
@@ -317,16 +888,13 @@ public class ForumQueriesCache {
 	private void removeCustomAndNavBaseQueries( final List<Integer> ids, final boolean removeOneMsgViews ) {
 		logger.debug( "Removing the CUSTOM SEARCH queries and NAVIGATION queries " +
 					  "with the given base message ids: " + ids + (removeOneMsgViews ?  " and also NEWS queries" : "" ));
-		final Iterator<ForumQueryResultCache> iter = queryToResult.values().iterator();
-		while( iter.hasNext() ) {
-			ForumQueryResultCache cachedQueryWrap = iter.next();
-			if( cachedQueryWrap.isCustomBrowsing() || ids.contains( cachedQueryWrap.getBaseMessageID() ) || 
-				( removeOneMsgViews && cachedQueryWrap.isOneMessageView() ) ) {
-				//Remove all of the queries related to the news browsing
-				removeMessagesFromTheMappings( cachedQueryWrap.getMessages( idToMessageWrap ) );
-				iter.remove();
-			}
-		}		
+		removeQueries( customQueries );
+		for( Integer baseMessageID : ids ) {
+			removeQueries( baseMessageIdToQueries.get( baseMessageID ) );
+		}
+		if( removeOneMsgViews ) {
+			removeQueries( oneMessageQueries );
+		}
 	}
 	
 	/**
@@ -416,104 +984,72 @@ public class ForumQueriesCache {
 	 */
 	public synchronized void removeFormMessageFile( final int fileID ) {
 		logger.debug("A forum file  " + fileID + " was deleted, updating cache" );
-		final Iterator<ForumQueryResultCache> iter = queryToResult.values().iterator();
-		while( iter.hasNext() ) {
-			ForumQueryResultCache cachedQueryWrap = iter.next();
-			if( cachedQueryWrap.containsFile( fileID ) ) {
-				//Remove all of the queries related to the news browsing
-				removeMessagesFromTheMappings( cachedQueryWrap.getMessages( idToMessageWrap ) );
-				iter.remove();
-			}
-		}
+		removeQueries( fileIdToQueries.get( fileID ) );
 	}
 	
 	/**
-	 * Allows to check if there is an empty space for caching
-	 * more queries if not, attempts to do some clean up.
+	 * Allows to check if there is space for caching the query results of the given
+	 * type, if not then evicts the queries of this type until there is enough space.
 	 * 
 	 * WARNING: this method is not synchronized
 	 * 
-	 * @param numberOfMsgs the number of messages for the new query we want to cache
-	 * @return true if we have space for caching more messages
+	 * @param segments the segments of the query type
+	 * @param bytes the number of bytes needed for the new query results
+	 * @return true if there is space for the new query results
 	 */
-	private boolean canCacheMoreQueries(final int numberOfMsgs) {
-		boolean canCache = true;
-		final int newMsgsCount = numberOfMsgs + idToMessageWrap.size();
-		
-		//Check if after adding more messages the cache capacity will be exceeded.
-		if( newMsgsCount > MAX_NUMBER_CACHED_MESSAGES ) {
-			logger.warn( "The new query can not be cached without cache clean-up, the " + 
-					     "cach is full, it contains " + idToMessageWrap.size() + " messages." );
-			//The cache capacity will be exceeded, a clean-up is required
-			if( ( lastCachCleanUp + MIN_CACHE_CLEAN_UP_INTERVAL_MILLISEC ) < System.currentTimeMillis() ) {
-				//The last cache lean up was long ago
-				logger.info( "The last clean-up was done at " + lastCachCleanUp + " milliseconds, initiating new cache clean up" );
-				
-				//Do the clean up here
-				canCache = cacheCleanUp( newMsgsCount - MAX_NUMBER_CACHED_MESSAGES );
-				
-				//Update the last cache clean-up time
-				lastCachCleanUp = System.currentTimeMillis();
-			} else {
-				//The last clean-up was done recently, the message can not be cached
-				logger.warn( "The last clean-up was done recently, at " + lastCachCleanUp + " milliseconds, the new messages can not be cached" );
-				canCache = false;
+	private boolean makeSpace( final QueryTypeSegments segments, final long bytes ) {
+		if( bytes > segments.budgetBytes ) {
+			//The results will never fit
+			return false;
+		}
+		while( ( segments.getUsedBytes() + bytes ) > segments.budgetBytes ) {
+			if( ! evictOneQuery( segments ) ) {
+				return false;
 			}
 		}
-		return canCache;
+		return true;
 	}
 	
 	/**
-	 * Does the cache clean up. In case of "numExtraMsgs <= 0" we only aim at removing
-	 * one query regardless to the number of messages that it stores in the result.
-	 * In case  "numExtraMsgs > 0" we remove as many queries as needed to remove
-	 * at least numExtraMsgs messages from the cache.
+	 * Evicts one query from the segments. The referenced queries at the head of the
+	 * probation segment get a second chance and are promoted to the protected segment.
 	 * 
 	 * WARNING: this method is not synchronized
 	 * 
-	 * @param numExtraMsgs the number of messages we have to remove from the pool to 
-	 *                      have a successful clean-up 
-	 * @return true if the clean-up was successful, i.e. we either removed one cached
-	 *              query (in case of numExtraMsgs <= 0) or we removed at least 
-	 *              numExtraMsgs messages (in case of numExtraMsgs > 0)
-	 */
-	private boolean cacheCleanUp( final int numExtraMsgs ) {
-		boolean isSuccessful = false;
-		
-		//Construct the iterator object
-		Iterator<ForumQueryResultCache> iter = queryToResult.values().iterator();
-		if( numExtraMsgs <= 0 ) {
-			//If we just need to remove some old query
-			logger.debug("Cleaning up the cache, we only need to remove some cached query");
-			while( iter.hasNext() ) {
-				ForumQueryResultCache cachedQueryWrap = iter.next();
-				if( cachedQueryWrap.isLowPriorityQuery() ) {
-					logger.debug("One unimportant query was successfully removed from the cache");
-					removeMessagesFromTheMappings( cachedQueryWrap.getMessages( idToMessageWrap ) );
-					iter.remove();
-					isSuccessful = true;
-					break;
-				}
+	 * @param segments the segments of the query type
+	 * @return true if a query was evicted, false if there are no queries of this type
+	 */
+	private boolean evictOneQuery( final QueryTypeSegments segments ) {
+		//Every query can only be promoted once before it is demoted again without the reference flag,
+		//so this many steps are enough for the non-referenced query to appear at the probation head
+		final int maxNumberOfSteps = 2 * ( segments.probation.size() + segments.protectedSegment.size() ) + 1;
+		for( int step = 0; step < maxNumberOfSteps; step++ ) {
+			final ForumQueryKey query;
+			if( ! segments.probation.isEmpty() ) {
+				query = segments.probation.keySet().iterator().next();
+			} else if( ! segments.protectedSegment.isEmpty() ) {
+				segments.renewProtectedHead( queryToResult );
+				query = segments.protectedSegment.keySet().iterator().next();
+			} else {
+				return false;
 			}
-		} else {
-			//We need to remove a certain amount of messages
-			logger.debug("Cleaning up the cache, we need to remove " + numExtraMsgs + " messages");
-			int msgsRemoved = 0;
-			while( iter.hasNext() ) {
-				ForumQueryResultCache cachedQueryWrap = iter.next();
-				if( cachedQueryWrap.isLowPriorityQuery() ) {
-					final int numberRemovedMsgs = removeMessagesFromTheMappings( cachedQueryWrap.getMessages( idToMessageWrap ) ); 
-					logger.debug("An unimportant query and " + numberRemovedMsgs + " of its messages was successfully removed from the cache");
-					msgsRemoved += numberRemovedMsgs;
-					iter.remove();
-					if( msgsRemoved >= numExtraMsgs ) {
-						isSuccessful = true;
-						break;
-					}
-				}
+			
+			final ForumQueryResultCache cachedQueryWrap = queryToResult.get( query );
+			if( cachedQueryWrap == null ) {
+				logger.error( "The query " + query + " is in the " + segments.name + " queries segments but is not cached" );
+				segments.remove( query );
+			} else if( segments.probation.containsKey( query ) && cachedQueryWrap.clearReferenced() ) {
+				//The query was used since it got into the probation segment, give it a second chance
+				segments.promote( query, queryToResult );
+			} else {
+				final int numberRemovedMsgs = removeQuery( query, false );
+				evictionsCount.incrementAndGet();
+				logger.debug( "The " + segments.name + " query " + query + " used " + cachedQueryWrap.getUseCount() +
+							  " times is evicted from the cache with " + numberRemovedMsgs + " of its messages" );
+				return true;
 			}
 		}
-		return isSuccessful;
+		return false;
 	}
 	
 	/**
@@ -522,27 +1058,24 @@ public class ForumQueriesCache {
 	 * 
 	 * WARNING: this method is not synchronized
 	 * 
-	 * @param messages the list of messages for the messages that
-	 *                   we want to remove, NOT NULL
+	 * @param messageWraps the list of message wrappers for the messages
+	 *                     that we want to remove, NOT NULL
 	 * @return the number of messages that was removed from the message pool
 	 */
-	private int removeMessagesFromTheMappings( final List<ForumMessageData> messages ) {
+	private int removeMessagesFromTheMappings( final List<ForumMessageCacheWrapper> messageWraps ) {
 		int removedMsgCount = 0;
 		
-		for(ForumMessageData message : messages ) {
-			final int messageID = message.messageID;
-			final ForumMessageCacheWrapper msgWrap = idToMessageWrap.get( messageID );
-			if( msgWrap != null ) {
+		for( ForumMessageCacheWrapper msgWrap : messageWraps ) {
+			final int messageID = msgWrap.getMessageID();
+			if( idToMessageWrap.get( messageID ) == msgWrap ) {
 				//First decrement the reference counter
 				msgWrap.decrementRefCounter();
 				//Check if the message is still in use
 				if( msgWrap.isNotReferenced() ) {
 					//The message is not referenced by any one else, remove it
-					ForumMessageCacheWrapper wrapper = idToMessageWrap.remove( messageID );
-					if( wrapper != null ) {
-						//Notify the message that it is removed from the cache
-						wrapper.onMessageCacheRemove();
-					}
+					idToMessageWrap.remove( messageID );
+					//Notify the message that it is removed from the cache
+					msgWrap.onMessageCacheRemove();
 					//Remove the voters mapping
 					idToVoterIds.remove( messageID);
 					//Increment the counter for the number of removed messages
@@ -0,0 +1,109 @@
+/**
+ * X-Cure-Chat
+ * Copyright (C) 2013  Dr. Ivan S. Zapreev
+ * www: https://nl.linkedin.com/in/zapreevis
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.#
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * The server-side cache package.
+ * (C) Ivan S. Zapreev, 2010
+ */
+package com.xcurechat.server.cache;
+
+import com.xcurechat.client.data.search.ForumSearchData;
+
+/**
+ * @author zapreevis
+ * This class is the immutable key of the cached forum query. It copies all of the search
+ * parameters of the ForumSearchData object, including the ones that are not serialized,
+ * and precomputes the hash code, so that the cache lookups are cheap.
+ */
+public final class ForumQueryKey {
+	//The copied search parameters, see ForumSearchData
+	private final String searchString;
+	private final String byUserLoginName;
+	private final int byUserID;
+	private final int pageIndex;
+	private final int baseMessageID;
+	private final boolean isOnlyTopics;
+	private final boolean isOnlyInCurrentTopic;
+	private final boolean isOnlyMessage;
+	private final boolean isApproved;
+	
+	//The precomputed hash code
+	private final int hashCode;
+	
+	/**
+	 * The basic constructor
+	 * @param searchData the search data to create the key for
+	 */
+	public ForumQueryKey( final ForumSearchData searchData ) {
+		this.searchString = ( searchData.searchString == null ) ? "" : searchData.searchString;
+		this.byUserLoginName = ( searchData.byUserLoginName == null ) ? "" : searchData.byUserLoginName;
+		this.byUserID = searchData.byUserID;
+		this.pageIndex = searchData.pageIndex;
+		this.baseMessageID = searchData.baseMessageID;
+		this.isOnlyTopics = searchData.isOnlyTopics;
+		this.isOnlyInCurrentTopic = searchData.isOnlyInCurrentTopic;
+		this.isOnlyMessage = searchData.isOnlyMessage;
+		this.isApproved = searchData.isApproved;
+		
+		int hash = searchString.hashCode();
+		hash = 31 * hash + byUserLoginName.hashCode();
+		hash = 31 * hash + byUserID;
+		hash = 31 * hash + pageIndex;
+		hash = 31 * hash + baseMessageID;
+		hash = 31 * hash + ( isOnlyTopics ? 1 : 0 );
+		hash = 31 * hash + ( isOnlyInCurrentTopic ? 1 : 0 );
+		hash = 31 * hash + ( isOnlyMessage ? 1 : 0 );
+		hash = 31 * hash + ( isApproved ? 1 : 0 );
+		this.hashCode = hash;
+	}
+	
+	/**
+	 * @return the base message id of the query
+	 */
+	public int getBaseMessageID() {
+		return baseMessageID;
+	}
+	
+	@Override
+	public int hashCode() {
+		return hashCode;
+	}
+	
+	@Override
+	public boolean equals( final Object object ) {
+		if( this == object ) {
+			return true;
+		}
+		if( ! ( object instanceof ForumQueryKey ) ) {
+			return false;
+		}
+		final ForumQueryKey other = (ForumQueryKey) object;
+		return ( hashCode == other.hashCode ) && ( byUserID == other.byUserID ) &&
+			   ( pageIndex == other.pageIndex ) && ( baseMessageID == other.baseMessageID ) &&
+			   ( isOnlyTopics == other.isOnlyTopics ) && ( isOnlyInCurrentTopic == other.isOnlyInCurrentTopic ) &&
+			   ( isOnlyMessage == other.isOnlyMessage ) && ( isApproved == other.isApproved ) &&
+			   searchString.equals( other.searchString ) && byUserLoginName.equals( other.byUserLoginName );
+	}
+	
+	@Override
+	public String toString() {
+		return "[searchString='" + searchString + "', byUserLoginName='" + byUserLoginName + "', byUserID=" + byUserID +
+			   ", pageIndex=" + pageIndex + ", baseMessageID=" + baseMessageID + ", isOnlyTopics=" + isOnlyTopics +
+			   ", isOnlyInCurrentTopic=" + isOnlyInCurrentTopic + ", isOnlyMessage=" + isOnlyMessage +
+			   ", isApproved=" + isApproved + "]";
+	}
+}
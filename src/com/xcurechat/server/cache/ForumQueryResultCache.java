@@ -22,10 +22,12 @@
 package com.xcurechat.server.cache;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 
@@ -33,23 +35,20 @@ import com.xcurechat.client.data.ForumMessageData;
 import com.xcurechat.client.data.ShortFileDescriptor;
 import com.xcurechat.client.data.ShortUserData;
 import com.xcurechat.client.data.search.ForumSearchData;
-import com.xcurechat.server.utils.ServerEncoder;
 
 /**
  * @author zapreevis
- * This class is used to wrap the search query results 
+ * This class is used to wrap the search query results. The object is
+ * read concurrently without locking, so the results are never modified.
  */
 public class ForumQueryResultCache {
-	//The encoder that has to be used in the server side
-	private static final ServerEncoder encoder = new ServerEncoder(); 
-	
 	//Get the Log4j logger object
 	private static final Logger logger = Logger.getLogger( ForumQueryResultCache.class ); 
 	
-	//The time out after the last use of the query when it can be considered old and unimportant
-	private static final int QUERY_TIME_OUT_MILLISEC = 30*60*1000; //30 minutes
-	//The minimum allowed message usage frequency per hour.
-	private static final double MINIMUM_QUERY_USAGE_FREQUENCY_PER_HOUR = 0.5; //14 usages per 24 hours
+	//The estimated number of bytes retained by a cached message, not counting its strings
+	private static final int MESSAGE_OVERHEAD_BYTES = 400;
+	//The estimated number of bytes retained by the descriptor of an attached file
+	private static final int ATTACHED_FILE_BYTES = 100;
 	
 	//Possible types of the forum queries
 	public static final int NEWS_PAGE_FORUM_QUERY_TYPE = 1;
@@ -57,17 +56,17 @@ public class ForumQueryResultCache {
 	public static final int FORUM_ONE_MESSAGE_QUERY_TYPE = FORUM_NAVIGATION_QUERY_TYPE + 1;
 	public static final int FORUM_CUSTOM_QUERY_TYPE = FORUM_ONE_MESSAGE_QUERY_TYPE + 1;
 	
-	//The serialized search query corresponding to the search data, is used for logging
-	private final String query;
+	//The key of the search query corresponding to the search data
+	private final ForumQueryKey query;
 	
-	//The time the query was cached.
-	private final long queryCacheTime;
+	//The number of times the query was used
+	private final AtomicLong useCount = new AtomicLong( 0 );
 	
-	//The last time the query was used in millisec
-	private long lastResultAccess;
+	//True if the query was used since the flag was last cleared, is used by the cache eviction
+	private volatile boolean isReferenced = false;
 	
-	//The number of times the query was used
-	private long useCount = 0;
+	//The estimated number of bytes retained by the messages of this query
+	private final long retainedBytes;
 	
 	//The total number of objects in the database. This data field
 	//is not necessarily set up on the server, thus one has to be careful!
@@ -77,18 +76,15 @@ public class ForumQueryResultCache {
 	//data starting from the entry "offset + 1"
 	private final int offset;
 	
-	//Stores the list of message ids
-	private final List<Integer> messageIds = new ArrayList<Integer>();
+	//Stores the list of cached message wrappers, the messages are ordered as in the query result
+	private final List<ForumMessageCacheWrapper> messageWraps;
+	
+	//Stores the set of message ids
+	private final Set<Integer> messageIds = new HashSet<Integer>();
 	
 	//Stores the set of file ids of the files attached to the messages of this request
 	private final Set<Integer> fileIds = new HashSet<Integer>();
 	
-	//Stores the search data
-	private final ForumSearchData searchData;
-	
-	//Stores the serialized query string
-	private final String queryStr;
-	
 	//Stores the search query type
 	private final int queryType;
 	
@@ -98,25 +94,26 @@ public class ForumQueryResultCache {
 	 * @param total_size the total number of results for this query
 	 * @param offset the offset for the page of the results we are viewing
 	 * @param searchData the query data object
-	 * @param query the query corresponding to the search data
-	 * @param message the list of messages that are results for the
-	 *                given search query MUST BE NOT NULL
+	 * @param query the key of the query corresponding to the search data
+	 * @param messageWraps the list of the cached message wrappers that are
+	 *                results for the given search query MUST BE NOT NULL
 	 */
 	public ForumQueryResultCache( final int total_size, final int offset,
 								  final ForumSearchData searchData,
-								  final String query,
-								  final List<ForumMessageData> messages ) {
+								  final ForumQueryKey query,
+								  final List<ForumMessageCacheWrapper> messageWraps ) {
 		//Store the data
 		this.total_size = total_size;
 		this.offset = offset;
-		this.searchData = searchData;
 		this.query = query;
-		this.queryStr = searchData.serialize(encoder);
-		this.queryType = getForumQueryType( searchData, queryStr );
-		this.queryCacheTime = System.currentTimeMillis();
+		this.queryType = getForumQueryType( searchData, query );
+		this.messageWraps = Collections.unmodifiableList( new ArrayList<ForumMessageCacheWrapper>( messageWraps ) );
 		
 		//Fill out the set with the message ids
-		for( ForumMessageData message : messages ) {
+		long bytes = 0;
+		for( ForumMessageCacheWrapper messageWrap : messageWraps ) {
+			final ForumMessageData message = messageWrap.getMessageData();
+			bytes += estimateRetainedBytes( message );
 			messageIds.add( message.messageID );
 			//Store all the file ids for the files attached to these message
 			if( message.attachedFileIds != null ) {
@@ -125,9 +122,49 @@ public class ForumQueryResultCache {
 				}
 			}
 		}
+		this.retainedBytes = bytes;
 		
-		//This counts as a first access
-		markQueryAccess();
+		//This counts as a first access, but the query is not yet referenced
+		useCount.incrementAndGet();
+	}
+	
+	/**
+	 * Allows to estimate the number of bytes retained by the cached message
+	 * @param message the forum message
+	 * @return the estimated number of bytes
+	 */
+	public static long estimateRetainedBytes( final ForumMessageData message ) {
+		//The strings take two bytes per character
+		long bytes = MESSAGE_OVERHEAD_BYTES;
+		bytes += 2 * ( ( message.messageTitle != null ? message.messageTitle.length() : 0 ) +
+					   ( message.messageBody != null ? message.messageBody.length() : 0 ) +
+					   ( message.messagePathID != null ? message.messagePathID.length() : 0 ) );
+		if( message.attachedFileIds != null ) {
+			bytes += ATTACHED_FILE_BYTES * message.attachedFileIds.size();
+		}
+		return bytes;
+	}
+	
+	/**
+	 * Allows to estimate the number of bytes retained by the cached messages
+	 * @param messages the forum messages, can be null
+	 * @return the estimated number of bytes
+	 */
+	public static long estimateRetainedBytes( final List<ForumMessageData> messages ) {
+		long bytes = 0;
+		if( messages != null ) {
+			for( ForumMessageData message : messages ) {
+				bytes += estimateRetainedBytes( message );
+			}
+		}
+		return bytes;
+	}
+	
+	/**
+	 * @return the estimated number of bytes retained by the messages of this query
+	 */
+	public long getRetainedBytes() {
+		return retainedBytes;
 	}
 	
 	/**
@@ -149,40 +186,52 @@ public class ForumQueryResultCache {
 		return fileIds.contains( fileID );
 	}
 	
+	/**
+	 * @return the ids of the messages in the results of this query, must not be modified
+	 */
+	public Set<Integer> getMessageIds() {
+		return messageIds;
+	}
+	
+	/**
+	 * @return the ids of the files attached to the messages in the results of this query, must not be modified
+	 */
+	public Set<Integer> getFileIds() {
+		return fileIds;
+	}
+	
+	/**
+	 * @return the key of this query
+	 */
+	public ForumQueryKey getQueryKey() {
+		return query;
+	}
+	
 	/**
 	 * Must be called every time the object is accessed, i.e. we need the results of this query
 	 */
 	private void markQueryAccess() {
-		lastResultAccess = System.currentTimeMillis();
-		useCount += 1;
+		useCount.incrementAndGet();
+		if( ! isReferenced ) {
+			isReferenced = true;
+		}
 	}
 	
 	/**
-	 * Decides whether this query is important based on the time of the last query access and other metrics
-	 * @return true if the query is considered to be unimportant and can be removed from the cache
+	 * Allows to clear the flag indicating that the query was used, is called by the cache eviction
+	 * @return true if the query was used since the flag was last cleared
 	 */
-	public boolean isLowPriorityQuery() {
-		//Get the current time, milliseconds
-		final long currentTime = System.currentTimeMillis();
-		
-		//Check if the last access of this query was sufficiently long ago
-		if( ( lastResultAccess + QUERY_TIME_OUT_MILLISEC ) < currentTime ) {
-			logger.debug( "The query: '" + query + "' was last used more than " + QUERY_TIME_OUT_MILLISEC +
-						  " milliseconds ago, let us check if it is still relevant" );
-			
-			//Get the time since the query was cached, milliseconds
-			final long queryUsageTimeInterval  = currentTime - queryCacheTime;
-			//Compute the number of times, per hour
-			final double queryUseFrequency = useCount / ( queryUsageTimeInterval / 60*60*1000 );
-			logger.debug( "The query: '" + query + "' has been used " + useCount + " times during the period of " +
-						  queryUsageTimeInterval + " milliseconds, the usage frequency is " + queryUseFrequency +
-						  " times hour" );
-			
-			return queryUseFrequency < MINIMUM_QUERY_USAGE_FREQUENCY_PER_HOUR;
-		} else {
-			logger.debug("The query: '" + query + "' was last used " + (currentTime - lastResultAccess) + " milliseconds ago, it is still fresh" );
-			return false;
-		}
+	public boolean clearReferenced() {
+		final boolean wasReferenced = isReferenced;
+		isReferenced = false;
+		return wasReferenced;
+	}
+	
+	/**
+	 * @return the number of times the query was used
+	 */
+	public long getUseCount() {
+		return useCount.get();
 	}
 	
 	/**
@@ -205,10 +254,10 @@ public class ForumQueryResultCache {
 	/**
 	 * Allows to determine the forum query type
 	 * @param searchData the forum query object
-	 * @param query, the serialization string of the searchData, is used for logging
-	 * @return one of: NEWS_PAGE_FORUM_QUERY_TYPE, FORUM_NAVIGATION_QUERY_TYPE, FORUM_CUSTOM_QUERY_TYPE
+	 * @param query, the key of the searchData, is used for logging
+	 * @return one of: NEWS_PAGE_FORUM_QUERY_TYPE, FORUM_NAVIGATION_QUERY_TYPE, FORUM_ONE_MESSAGE_QUERY_TYPE, FORUM_CUSTOM_QUERY_TYPE
 	 */
-	private static int getForumQueryType( final ForumSearchData searchData, final String query ) {
+	public static int getForumQueryType( final ForumSearchData searchData, final ForumQueryKey query ) {
 		if( searchData.isNewsPageBrowsing() ) {
 			logger.debug("The query " + query + " is for browsing the news from the forum, i.e. approved messages");
 			return ForumQueryResultCache.NEWS_PAGE_FORUM_QUERY_TYPE;
@@ -228,12 +277,19 @@ public class ForumQueryResultCache {
 		}
 	}
 
+	/**
+	 * @return the query type, see getForumQueryType
+	 */
+	public int getQueryType() {
+		return queryType;
+	}
+	
 	/**
 	 * @return true if this is the query for browsing the news
 	 */
 	public boolean isNewsPageBrowsing() {
 		boolean result = ( queryType == NEWS_PAGE_FORUM_QUERY_TYPE );
-		logger.debug("Checking the query " + queryStr + " for being the NEWS_PAGE_FORUM_QUERY_TYPE, the outcome is " + result );
+		logger.debug("Checking the query " + query + " for being the NEWS_PAGE_FORUM_QUERY_TYPE, the outcome is " + result );
 		return result;
 	}
 	
@@ -242,7 +298,7 @@ public class ForumQueryResultCache {
 	 */
 	public boolean isForumNavigation() {
 		boolean result = ( queryType == FORUM_NAVIGATION_QUERY_TYPE );
-		logger.debug("Checking the query " + queryStr + " for being the FORUM_NAVIGATION_QUERY_TYPE, the outcome is " + result );
+		logger.debug("Checking the query " + query + " for being the FORUM_NAVIGATION_QUERY_TYPE, the outcome is " + result );
 		return result;
 	}
 	
@@ -251,7 +307,7 @@ public class ForumQueryResultCache {
 	 */
 	public boolean isOneMessageView() {
 		boolean result = ( queryType == FORUM_ONE_MESSAGE_QUERY_TYPE );
-		logger.debug("Checking the query " + queryStr + " for being the FORUM_ONE_MESSAGE_QUERY_TYPE, the outcome is " + result );
+		logger.debug("Checking the query " + query + " for being the FORUM_ONE_MESSAGE_QUERY_TYPE, the outcome is " + result );
 		return result;
 	}
 	
@@ -260,68 +316,60 @@ public class ForumQueryResultCache {
 	 */
 	public boolean isCustomBrowsing() {
 		boolean result = ( queryType == FORUM_CUSTOM_QUERY_TYPE );
-		logger.debug("Checking the query " + queryStr + " for being the FORUM_CUSTOM_QUERY_TYPE, the outcome is " + result );
+		logger.debug("Checking the query " + query + " for being the FORUM_CUSTOM_QUERY_TYPE, the outcome is " + result );
 		return result;
 	}
 	
 	/**
 	 * Allows to get the messages for the given user, with the indication of whether
-	 * the user has voted for the messages yet. If retrieved with idToVoterIds == null
-	 * or userID == ShortUserData.UNKNOWN_UID,  ShortUserData.DEFAULT_UID then the
-	 * messages provided by this method should not be shown to the user that is logged in!
-	 * @param idToMessageWrap the map of message ids to message wrappers
+	 * the user has voted for the messages yet. The cached messages are shared between
+	 * the users and are not modified, so if the user has voted for the message then
+	 * its copy is returned. If retrieved with idToVoterIds == null or userID equal
+	 * to ShortUserData.UNKNOWN_UID, ShortUserData.DEFAULT_UID then all the messages
+	 * are the cached ones and are marked as not voted for.
 	 * @param idToVoterIds the mapping from the message ID to the set of users who voted for this message
 	 * @param userID the id of the user we retrieve the messages for 
 	 * @return gets the messages the list of messages
 	 */
-	public List<ForumMessageData> getMessages(  final Map<Integer, ForumMessageCacheWrapper> idToMessageWrap,
-												final Map<Integer, Set<Integer>> idToVoterIds, final int userID ) {
-		List<ForumMessageData> messages = new ArrayList<ForumMessageData>();
+	public List<ForumMessageData> getMessages( final Map<Integer, Set<Integer>> idToVoterIds, final int userID ) {
+		List<ForumMessageData> messages = new ArrayList<ForumMessageData>( messageWraps.size() );
 		
-		for( Integer messageID : messageIds ) {
-			ForumMessageCacheWrapper messageWrap = idToMessageWrap.get( messageID );
-			if( messageWrap != null ) {
-				ForumMessageData message = messageWrap.getMessageData();
-				if( ( idToVoterIds != null ) && ( userID != ShortUserData.UNKNOWN_UID ) && ( userID != ShortUserData.DEFAULT_UID ) ) {
-					Set<Integer> voters = idToVoterIds.get( messageID );
-					if( voters != null ) {
-						//Check if the user is known to have been voted for this message
-						message.hasVoted = voters.contains( userID );
-					} else {
-						//Let the user to attempt voting, we do not know if he voted yet
-						message.hasVoted = false;
-					}
+		final boolean isKnownUser = ( idToVoterIds != null ) && ( userID != ShortUserData.UNKNOWN_UID ) && ( userID != ShortUserData.DEFAULT_UID );
+		for( ForumMessageCacheWrapper messageWrap : messageWraps ) {
+			ForumMessageData message = messageWrap.getMessageData();
+			if( isKnownUser ) {
+				//Check if the user is known to have been voted for this message
+				Set<Integer> voters = idToVoterIds.get( message.messageID );
+				if( ( voters != null ) && voters.contains( userID ) ) {
+					message = message.cloneForumMessage();
+					message.hasVoted = true;
 				}
-				messages.add( message );
-			} else {
-				logger.error("Trying to retrieve the message " + messageID + " from the cache but it does not have id to msg wrap mapping!");
 			}
+			messages.add( message );
 		}
 		return messages;
 	}
 	
 	/**
-	 * Allows to get messages without the proper handling of the votes.
-	 * Messages retrieved with this method are for internal use only!
-	 * @param idToMessageWrap the map of message ids to message wrappers
-	 * @return gets the messages
+	 * Allows to get the cached message wrappers of this query, for internal use only!
+	 * @return the list of message wrappers, must not be modified
 	 */
-	public List<ForumMessageData> getMessages(final Map<Integer, ForumMessageCacheWrapper> idToMessageWrap) {
-		return getMessages( idToMessageWrap, null, ShortUserData.UNKNOWN_UID );
+	public List<ForumMessageCacheWrapper> getMessageWraps() {
+		return messageWraps;
 	}
 
 	/**
 	 * @return the number of messages for this query
 	 */
 	public int getNumberOfMsgs() {
-		return messageIds.size();
+		return messageWraps.size();
 	}
 
 	/**
 	 * @return the base message id, i.e. the message we are browsing replies for 
 	 */
 	public int getBaseMessageID() {
-		return searchData.baseMessageID;
+		return query.getBaseMessageID();
 	}
 	
 }
@@ -0,0 +1,679 @@
+/**
+ * X-Cure-Chat
+ * Copyright (C) 2013  Dr. Ivan S. Zapreev
+ * www: https://nl.linkedin.com/in/zapreevis
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.#
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * The server-side cache package.
+ * (C) Ivan S. Zapreev, 2010
+ */
+package com.xcurechat.server.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+import org.apache.log4j.Logger;
+
+import com.xcurechat.client.data.ShortForumMessageData;
+import com.xcurechat.client.data.ShortUserData;
+import com.xcurechat.client.data.search.ForumSearchData;
+import com.xcurechat.client.rpc.exceptions.SiteException;
+
+import com.xcurechat.server.jdbc.ConnectionWrapper;
+import com.xcurechat.server.jdbc.forum.SelectForumMessagesTextExecutor;
+
+/**
+ * @author zapreevis
+ * This class is the in-memory inverted index of the forum message titles and bodies, it is
+ * used for the custom forum searches instead of the LIKE "%...%" scans of the forum messages
+ * table. The texts are split into the Russian and English words, which are lower cased,
+ * have the Cyrillic "yo" replaced with "ye" and have the most common endings cut off. The
+ * query words are matched as prefixes of the indexed words, all the query words have to be
+ * found in the message. The found messages are ranked by the number of the query words in
+ * their titles and bodies, weighted by how rare the words are, the newer messages go first
+ * among the equally ranked ones. Besides the words the index keeps the message senders,
+ * parents, path ids and approval flags, so that the other search conditions can be checked
+ * in memory, and the DB is only used to retrieve the messages of the requested page.
+ * The index is built from the DB at start up, in the background, and is then updated on
+ * every forum modification. Until the index is built the searches go to the DB.
+ */
+public class ForumSearchIndex {
+	//Get the Log4j logger object
+	private static final Logger logger = Logger.getLogger( ForumSearchIndex.class );
+	
+	//The number of messages loaded from the DB in one batch, when building the index
+	private static final int BUILD_BATCH_SIZE = 500;
+	//The maximum number of attempts to build the index while the forum is modified
+	private static final int MAX_NUMBER_OF_BUILD_ATTEMPTS = 3;
+	
+	//The minimum and maximum length of the indexed words, the other words are ignored
+	private static final int MIN_TERM_LENGTH = 2;
+	private static final int MAX_TERM_LENGTH = 40;
+	//The minimum length of the word remaining after cutting its ending off
+	private static final int MIN_STEM_LENGTH = 3;
+	//The common Russian and English word endings, which are cut off, longer endings go first
+	//иями ями ами ого его ому ему ыми ими иях ией ах ях ов ев ей ой ий ый ая яя ое ее ые ие ую юю ом ем ам ям ию ия а я о е ы и у ю ь й
+	private static final String[] TERM_ENDINGS = { "\u0438\u044f\u043c\u0438", "\u044f\u043c\u0438", "\u0430\u043c\u0438", "\u043e\u0433\u043e", "\u0435\u0433\u043e", "\u043e\u043c\u0443", "\u0435\u043c\u0443", "\u044b\u043c\u0438", "\u0438\u043c\u0438", "\u0438\u044f\u0445", "\u0438\u0435\u0439",
+												   "\u0430\u0445", "\u044f\u0445", "\u043e\u0432", "\u0435\u0432", "\u0435\u0439", "\u043e\u0439", "\u0438\u0439", "\u044b\u0439", "\u0430\u044f", "\u044f\u044f", "\u043e\u0435", "\u0435\u0435", "\u044b\u0435",
+												   "\u0438\u0435", "\u0443\u044e", "\u044e\u044e", "\u043e\u043c", "\u0435\u043c", "\u0430\u043c", "\u044f\u043c", "\u0438\u044e", "\u0438\u044f", "\u0430", "\u044f", "\u043e", "\u0435", "\u044b",
+												   "\u0438", "\u0443", "\u044e", "\u044c", "\u0439", "ing", "ed", "es", "s" };
+	//The weight of one word occurrence in the message title and body
+	private static final int TITLE_TERM_WEIGHT = 3;
+	private static final int BODY_TERM_WEIGHT = 1;
+	
+	//The pattern of the topic message path id
+	private static final Pattern TOPIC_PATH_ID_PATTERN = Pattern.compile( ShortForumMessageData.TOPIC_MESSAGE_PATH_ID_REGEXP );
+	
+	/**
+	 * @author zapreevis
+	 * The indexed forum message data, besides its words
+	 */
+	private static final class IndexedMessage {
+		//The message id
+		public final int messageID;
+		//The message parent id, the path id, the sender id and the approval flag
+		public int parentMessageID;
+		public String messagePathID;
+		public int senderID;
+		public boolean isApproved;
+		//The distinct words of the message, needed to remove the message from the index
+		public String[] terms;
+		
+		public IndexedMessage( final ShortForumMessageData message ) {
+			this.messageID = message.messageID;
+			this.parentMessageID = message.parentMessageID;
+			this.messagePathID = ( message.messagePathID == null ? "" : message.messagePathID );
+			this.senderID = message.senderID;
+			this.isApproved = message.isApproved;
+		}
+	}
+	
+	/**
+	 * @author zapreevis
+	 * The index data, it is built separately and then replaces the current one
+	 */
+	private static final class IndexData {
+		//Maps the message ids to the indexed messages
+		public final Map<Integer, IndexedMessage> messages = new HashMap<Integer, IndexedMessage>();
+		//Maps the words to the ids of the messages containing them, mapped to the word weights
+		public final TreeMap<String, Map<Integer, Integer>> postings = new TreeMap<String, Map<Integer, Integer>>();
+	}
+	
+	/**
+	 * @author zapreevis
+	 * The found message with its rank
+	 */
+	private static final class ScoredMessage implements Comparable<ScoredMessage> {
+		public final int messageID;
+		public final double score;
+		
+		public ScoredMessage( final int messageID, final double score ) {
+			this.messageID = messageID;
+			this.score = score;
+		}
+		
+		@Override
+		public int compareTo( final ScoredMessage other ) {
+			if( score != other.score ) {
+				return ( score > other.score ? -1 : 1 );
+			} else {
+				return ( messageID > other.messageID ? -1 : ( messageID == other.messageID ? 0 : 1 ) );
+			}
+		}
+	}
+	
+	/**
+	 * @author zapreevis
+	 * The result of the index search, one page of the ranked message ids and the total number of found messages
+	 */
+	public static final class SearchResult {
+		//The total number of the found messages
+		public final int totalSize;
+		//The ranked ids of the found messages on the requested page
+		public final List<Integer> messageIDs;
+		
+		public SearchResult( final int totalSize, final List<Integer> messageIDs ) {
+			this.totalSize = totalSize;
+			this.messageIDs = messageIDs;
+		}
+	}
+	
+	//The only instance of the index
+	private static final ForumSearchIndex instance = new ForumSearchIndex();
+	
+	//The lock of the index data, the searches are done under the read lock
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	//The index data, guarded by the lock
+	private IndexData data = new IndexData();
+	//True if the index is built and can be used, guarded by the lock
+	private boolean isBuilt = false;
+	//The number of forum modifications, guarded by the lock, allows the
+	//index builder to detect that the forum was changed during the build
+	private long modificationsCount = 0;
+	//True while the index is being built
+	private final AtomicBoolean isBuilding = new AtomicBoolean( false );
+	
+	/**
+	 * The private constructor, for the singleton
+	 */
+	private ForumSearchIndex() {
+	}
+	
+	/**
+	 * @return the only instance of the forum search index
+	 */
+	public static ForumSearchIndex getInstance() {
+		return instance;
+	}
+	
+	/**
+	 * Allows to start building the index in the background thread, unless it is being built already
+	 */
+	public void buildInBackground() {
+		if( isBuilding.compareAndSet( false, true ) ) {
+			Thread builder = new Thread( "ForumSearchIndexBuilder" ) {
+				public void run() {
+					try {
+						build();
+					} finally {
+						isBuilding.set( false );
+					}
+				}
+			};
+			builder.setDaemon( true );
+			builder.start();
+		}
+	}
+	
+	/**
+	 * Allows to drop the index and to re-build it from the DB, the searches go to the DB meanwhile.
+	 * Is used if the forum was modified in a way the index can not follow.
+	 */
+	public void rebuild() {
+		lock.writeLock().lock();
+		try {
+			isBuilt = false;
+			data = new IndexData();
+			modificationsCount++;
+		} finally {
+			lock.writeLock().unlock();
+		}
+		buildInBackground();
+	}
+	
+	/**
+	 * Builds the index from the DB, if the forum is modified during the build then the built index is
+	 * dropped and the build is repeated. The index is loaded without holding the lock.
+	 */
+	private void build() {
+		for( int attempt = 1; attempt <= MAX_NUMBER_OF_BUILD_ATTEMPTS; attempt++ ) {
+			final long startModificationsCount;
+			lock.readLock().lock();
+			try {
+				startModificationsCount = modificationsCount;
+			} finally {
+				lock.readLock().unlock();
+			}
+			
+			final long startTime = System.currentTimeMillis();
+			final IndexData newData;
+			try {
+				newData = loadIndexData();
+			} catch( Throwable e ) {
+				logger.error( "Unable to build the forum search index, the forum searches will use the DB", e );
+				return;
+			}
+			
+			lock.writeLock().lock();
+			try {
+				if( startModificationsCount == modificationsCount ) {
+					data = newData;
+					isBuilt = true;
+					logger.info( "The forum search index with " + newData.messages.size() + " messages and " + newData.postings.size() +
+								 " words was built in " + ( System.currentTimeMillis() - startTime ) + " ms" );
+					return;
+				}
+			} finally {
+				lock.writeLock().unlock();
+			}
+			logger.warn( "The forum was modified while building the forum search index, attempt " + attempt );
+		}
+		logger.error( "Unable to build the forum search index in " + MAX_NUMBER_OF_BUILD_ATTEMPTS +
+					  " attempts, the forum searches will use the DB" );
+	}
+	
+	/**
+	 * Loads all the forum messages from the DB, batch by batch, and indexes them
+	 * @return the new index data
+	 * @throws SiteException if the messages could not be loaded
+	 */
+	private IndexData loadIndexData() throws SiteException {
+		final IndexData newData = new IndexData();
+		int lastMessageID = ShortForumMessageData.UNKNOWN_MESSAGE_ID;
+		List<ShortForumMessageData> batch;
+		do {
+			batch = new ArrayList<ShortForumMessageData>();
+			SelectForumMessagesTextExecutor selectMsgsExec = new SelectForumMessagesTextExecutor( lastMessageID, BUILD_BATCH_SIZE );
+			ConnectionWrapper<List<ShortForumMessageData>> selectMsgsConnWrap = ConnectionWrapper.createConnectionWrapper( selectMsgsExec );
+			selectMsgsConnWrap.executeQuery( batch, ConnectionWrapper.XCURE_CHAT_DB );
+			for( ShortForumMessageData message : batch ) {
+				addToIndexData( newData, new IndexedMessage( message ), message.messageTitle, message.messageBody );
+				lastMessageID = message.messageID;
+			}
+		} while( batch.size() == BUILD_BATCH_SIZE );
+		return newData;
+	}
+	
+	/**
+	 * Allows to search for the forum messages, only the custom searches with a search string are
+	 * done using the index, also the index must be built. The other searches should go to the DB.
+	 * @param searchParams the search parameters
+	 * @param offset the index of the first found message to return
+	 * @param count the maximum number of found messages to return
+	 * @return the search result or null if the search can not be done using the index
+	 */
+	public SearchResult search( final ForumSearchData searchParams, final int offset, final int count ) {
+		if( searchParams.isOnlyMessage || ( searchParams.searchString == null ) ) {
+			return null;
+		}
+		final List<String> queryTerms = getTerms( searchParams.searchString, false );
+		if( queryTerms.isEmpty() ) {
+			return null;
+		}
+		
+		lock.readLock().lock();
+		try {
+			if( ! isBuilt ) {
+				logger.debug( "The forum search index is not built, searching for '" + searchParams.searchString + "' in the DB" );
+				return null;
+			}
+			
+			//Find the messages containing all of the query words
+			Map<Integer, Double> scores = null;
+			for( String queryTerm : queryTerms ) {
+				final Map<Integer, Double> termScores = getTermScores( queryTerm );
+				if( scores == null ) {
+					scores = termScores;
+				} else {
+					final Map<Integer, Double> joinedScores = new HashMap<Integer, Double>();
+					for( Map.Entry<Integer, Double> entry : scores.entrySet() ) {
+						final Double termScore = termScores.get( entry.getKey() );
+						if( termScore != null ) {
+							joinedScores.put( entry.getKey(), entry.getValue() + termScore );
+						}
+					}
+					scores = joinedScores;
+				}
+				if( scores.isEmpty() ) {
+					break;
+				}
+			}
+			
+			//Check the other search conditions and rank the found messages
+			final List<ScoredMessage> foundMessages = new ArrayList<ScoredMessage>();
+			for( Map.Entry<Integer, Double> entry : scores.entrySet() ) {
+				if( isMatching( data.messages.get( entry.getKey() ), searchParams ) ) {
+					foundMessages.add( new ScoredMessage( entry.getKey(), entry.getValue() ) );
+				}
+			}
+			Collections.sort( foundMessages );
+			
+			final List<Integer> messageIDs = new ArrayList<Integer>();
+			for( int index = offset; ( index < foundMessages.size() ) && ( index < offset + count ); index++ ) {
+				messageIDs.add( foundMessages.get( index ).messageID );
+			}
+			logger.debug( "The forum search index found " + foundMessages.size() + " messages for '" + searchParams.searchString + "'" );
+			return new SearchResult( foundMessages.size(), messageIDs );
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Allows to get the scores of the messages containing words starting with the given query word.
+	 * Must be called under the lock.
+	 * @param queryTerm the normalized query word
+	 * @return the mapping from the message ids to their scores for this query word
+	 */
+	private Map<Integer, Double> getTermScores( final String queryTerm ) {
+		final Map<Integer, Integer> weights = new HashMap<Integer, Integer>();
+		for( Map<Integer, Integer> posting : data.postings.subMap( queryTerm, true, queryTerm + Character.MAX_VALUE, false ).values() ) {
+			for( Map.Entry<Integer, Integer> entry : posting.entrySet() ) {
+				final Integer weight = weights.get( entry.getKey() );
+				weights.put( entry.getKey(), ( weight == null ? entry.getValue() : weight + entry.getValue() ) );
+			}
+		}
+		
+		//The rarer the word is the more it counts
+		final Map<Integer, Double> scores = new HashMap<Integer, Double>();
+		if( ! weights.isEmpty() ) {
+			final double inverseFrequency = Math.log( 1.0 + ( (double) data.messages.size() ) / weights.size() );
+			for( Map.Entry<Integer, Integer> entry : weights.entrySet() ) {
+				scores.put( entry.getKey(), entry.getValue() * inverseFrequency );
+			}
+		}
+		return scores;
+	}
+	
+	/**
+	 * Allows to check if the indexed message satisfies the search conditions other than the search
+	 * string, the conditions are the same as the ones used by the SearchMessagesExecutor.
+	 * @param message the indexed message, can be null
+	 * @param searchParams the search parameters
+	 * @return true if the message satisfies the search conditions
+	 */
+	private static boolean isMatching( final IndexedMessage message, final ForumSearchData searchParams ) {
+		if( ( message == null ) || ( message.messageID == ShortForumMessageData.ROOT_FORUM_MESSAGE_ID ) ) {
+			return false;
+		}
+		if( ( searchParams.byUserID != ShortUserData.UNKNOWN_UID ) && ( message.senderID != searchParams.byUserID ) ) {
+			return false;
+		}
+		if( searchParams.isOnlyTopics ) {
+			if( ! TOPIC_PATH_ID_PATTERN.matcher( message.messagePathID ).matches() ) {
+				return false;
+			}
+		} else {
+			if( searchParams.baseMessageID != ShortForumMessageData.UNKNOWN_MESSAGE_ID ) {
+				if( searchParams.isOnlyInCurrentTopic ) {
+					//The message has to be the base message or to have it among its non-section parents
+					final String rootPathID = ShortForumMessageData.ROOT_FORUM_MESSAGE_ID + ShortForumMessageData.MESSAGE_PATH_ID_DELIMITER;
+					final String basePathID = ShortForumMessageData.MESSAGE_PATH_ID_DELIMITER + searchParams.baseMessageID +
+											  ShortForumMessageData.MESSAGE_PATH_ID_DELIMITER;
+					if( ( message.messageID != searchParams.baseMessageID ) &&
+						! ( message.messagePathID.startsWith( rootPathID ) &&
+							( message.messagePathID.indexOf( basePathID, rootPathID.length() ) != -1 ) ) ) {
+						return false;
+					}
+				} else {
+					if( message.parentMessageID != searchParams.baseMessageID ) {
+						return false;
+					}
+				}
+			}
+		}
+		if( ! searchParams.isBrowsingSectionsSearch() && ( message.parentMessageID == ShortForumMessageData.ROOT_FORUM_MESSAGE_ID ) ) {
+			return false;
+		}
+		if( searchParams.isApproved && ! message.isApproved ) {
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Allows to add the new forum message to the index, the message path id is computed from its parent
+	 * @param message the new message with its id, parent id, sender id, title and body set
+	 */
+	public void addMessage( final ShortForumMessageData message ) {
+		boolean isRebuildNeeded = false;
+		lock.writeLock().lock();
+		try {
+			modificationsCount++;
+			if( isBuilt ) {
+				final IndexedMessage parentMessage = data.messages.get( message.parentMessageID );
+				if( parentMessage != null ) {
+					final IndexedMessage indexedMessage = new IndexedMessage( message );
+					indexedMessage.messagePathID = parentMessage.messagePathID + parentMessage.messageID + ShortForumMessageData.MESSAGE_PATH_ID_DELIMITER;
+					removeFromIndexData( data, message.messageID );
+					addToIndexData( data, indexedMessage, message.messageTitle, message.messageBody );
+				} else {
+					logger.error( "The parent " + message.parentMessageID + " of the new forum message " + message.messageID +
+								  " is not in the forum search index, the index will be re-built" );
+					isRebuildNeeded = true;
+				}
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+		if( isRebuildNeeded ) {
+			rebuild();
+		}
+	}
+	
+	/**
+	 * Allows to update the title and the body of the forum message in the index
+	 * @param message the updated message with its id, title and body set
+	 * @param isDisapproved true if the message was disapproved by the update
+	 */
+	public void updateMessage( final ShortForumMessageData message, final boolean isDisapproved ) {
+		lock.writeLock().lock();
+		try {
+			modificationsCount++;
+			if( isBuilt ) {
+				final IndexedMessage indexedMessage = removeFromIndexData( data, message.messageID );
+				if( indexedMessage != null ) {
+					if( isDisapproved ) {
+						indexedMessage.isApproved = false;
+					}
+					addToIndexData( data, indexedMessage, message.messageTitle, message.messageBody );
+				} else {
+					logger.warn( "The updated forum message " + message.messageID + " is not in the forum search index" );
+				}
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Allows to remove the deleted forum message with all of its replies from the index, in the
+	 * DB the replies are deleted by the cascade on the parent message id foreign key.
+	 * @param messageID the id of the deleted message
+	 */
+	public void removeMessage( final int messageID ) {
+		lock.writeLock().lock();
+		try {
+			modificationsCount++;
+			if( isBuilt ) {
+				final IndexedMessage message = removeFromIndexData( data, messageID );
+				if( message != null ) {
+					//Remove all the message replies
+					final String repliesPathID = message.messagePathID + messageID + ShortForumMessageData.MESSAGE_PATH_ID_DELIMITER;
+					final List<Integer> replyIDs = new ArrayList<Integer>();
+					for( IndexedMessage reply : data.messages.values() ) {
+						if( reply.messagePathID.startsWith( repliesPathID ) ) {
+							replyIDs.add( reply.messageID );
+						}
+					}
+					for( Integer replyID : replyIDs ) {
+						removeFromIndexData( data, replyID );
+					}
+				}
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Allows to move the forum message, with all its replies, to the new parent message
+	 * @param messageID the id of the moved message
+	 * @param newParentMessageID the id of the new parent message
+	 */
+	public void moveMessage( final int messageID, final int newParentMessageID ) {
+		boolean isRebuildNeeded = false;
+		lock.writeLock().lock();
+		try {
+			modificationsCount++;
+			if( isBuilt ) {
+				final IndexedMessage message = data.messages.get( messageID );
+				final IndexedMessage newParentMessage = data.messages.get( newParentMessageID );
+				if( ( message != null ) && ( newParentMessage != null ) ) {
+					final String newPathID = newParentMessage.messagePathID + newParentMessage.messageID + ShortForumMessageData.MESSAGE_PATH_ID_DELIMITER;
+					final String oldRepliesPathID = message.messagePathID + messageID + ShortForumMessageData.MESSAGE_PATH_ID_DELIMITER;
+					final String newRepliesPathID = newPathID + messageID + ShortForumMessageData.MESSAGE_PATH_ID_DELIMITER;
+					//Update the path ids of all the message replies
+					for( IndexedMessage reply : data.messages.values() ) {
+						if( reply.messagePathID.startsWith( oldRepliesPathID ) ) {
+							reply.messagePathID = newRepliesPathID + reply.messagePathID.substring( oldRepliesPathID.length() );
+						}
+					}
+					message.parentMessageID = newParentMessageID;
+					message.messagePathID = newPathID;
+				} else {
+					logger.error( "The moved forum message " + messageID + " or its new parent " + newParentMessageID +
+								  " is not in the forum search index, the index will be re-built" );
+					isRebuildNeeded = true;
+				}
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+		if( isRebuildNeeded ) {
+			rebuild();
+		}
+	}
+	
+	/**
+	 * Allows to approve or disapprove the forum message in the index
+	 * @param messageID the id of the message
+	 * @param approve true if the message is approved, otherwise false
+	 */
+	public void approveMessage( final int messageID, final boolean approve ) {
+		lock.writeLock().lock();
+		try {
+			modificationsCount++;
+			if( isBuilt ) {
+				final IndexedMessage message = data.messages.get( messageID );
+				if( message != null ) {
+					message.isApproved = approve;
+				}
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Allows to add the message to the index data, with its words from the given title and body
+	 * @param indexData the index data to add to
+	 * @param message the message to add
+	 * @param title the message title, can be null
+	 * @param body the message body, can be null
+	 */
+	private static void addToIndexData( final IndexData indexData, final IndexedMessage message, final String title, final String body ) {
+		final Map<String, Integer> termWeights = new LinkedHashMap<String, Integer>();
+		addTermWeights( termWeights, title, TITLE_TERM_WEIGHT );
+		addTermWeights( termWeights, body, BODY_TERM_WEIGHT );
+		
+		message.terms = termWeights.keySet().toArray( new String[ termWeights.size() ] );
+		for( Map.Entry<String, Integer> entry : termWeights.entrySet() ) {
+			Map<Integer, Integer> posting = indexData.postings.get( entry.getKey() );
+			if( posting == null ) {
+				posting = new HashMap<Integer, Integer>();
+				indexData.postings.put( entry.getKey(), posting );
+			}
+			posting.put( message.messageID, entry.getValue() );
+		}
+		indexData.messages.put( message.messageID, message );
+	}
+	
+	/**
+	 * Allows to remove the message and its words from the index data
+	 * @param indexData the index data to remove from
+	 * @param messageID the id of the message to remove
+	 * @return the removed message or null if it was not indexed
+	 */
+	private static IndexedMessage removeFromIndexData( final IndexData indexData, final int messageID ) {
+		final IndexedMessage message = indexData.messages.remove( messageID );
+		if( message != null ) {
+			for( String term : message.terms ) {
+				final Map<Integer, Integer> posting = indexData.postings.get( term );
+				if( posting != null ) {
+					posting.remove( messageID );
+					if( posting.isEmpty() ) {
+						indexData.postings.remove( term );
+					}
+				}
+			}
+			message.terms = null;
+		}
+		return message;
+	}
+	
+	/**
+	 * Allows to add the weights of the words of the given text to the map
+	 * @param termWeights the map from the words to their weights
+	 * @param text the text, can be null
+	 * @param weight the weight of one word occurrence
+	 */
+	private static void addTermWeights( final Map<String, Integer> termWeights, final String text, final int weight ) {
+		for( String term : getTerms( text, true ) ) {
+			final Integer currentWeight = termWeights.get( term );
+			termWeights.put( term, ( currentWeight == null ? weight : currentWeight + weight ) );
+		}
+	}
+	
+	/**
+	 * Allows to split the text into the normalized words, see the class description
+	 * @param text the text to split, can be null
+	 * @param isAllowRepeated if false then the repeated words are only returned once
+	 * @return the list of the normalized words in the order of their appearance
+	 */
+	private static List<String> getTerms( final String text, final boolean isAllowRepeated ) {
+		final List<String> terms = new ArrayList<String>();
+		if( text != null ) {
+			final StringBuilder term = new StringBuilder();
+			for( int index = 0; index <= text.length(); index++ ) {
+				final char symbol = ( index < text.length() ? text.charAt( index ) : ' ' );
+				if( Character.isLetterOrDigit( symbol ) ) {
+					term.append( normalize( symbol ) );
+				} else if( term.length() > 0 ) {
+					if( ( term.length() >= MIN_TERM_LENGTH ) && ( term.length() <= MAX_TERM_LENGTH ) ) {
+						final String stem = getStem( term.toString() );
+						if( isAllowRepeated || ! terms.contains( stem ) ) {
+							terms.add( stem );
+						}
+					}
+					term.setLength( 0 );
+				}
+			}
+		}
+		return terms;
+	}
+	
+	/**
+	 * @param symbol the letter or digit
+	 * @return the lower case symbol with the Cyrillic "yo" replaced by "ye"
+	 */
+	private static char normalize( final char symbol ) {
+		final char lowerSymbol = Character.toLowerCase( symbol );
+		/* ё -> е */
+		return ( lowerSymbol == '\u0451' ? '\u0435' : lowerSymbol );
+	}
+	
+	/**
+	 * Allows to cut off the common word ending, if the remaining stem is not too short
+	 * @param term the lower case word
+	 * @return the word stem
+	 */
+	private static String getStem( final String term ) {
+		for( String ending : TERM_ENDINGS ) {
+			if( term.endsWith( ending ) && ( term.length() - ending.length() >= MIN_STEM_LENGTH ) ) {
+				return term.substring( 0, term.length() - ending.length() );
+			}
+		}
+		return term;
+	}
+}
@@ -0,0 +1,838 @@
+/**
+ * X-Cure-Chat
+ * Copyright (C) 2013  Dr. Ivan S. Zapreev
+ * www: https://nl.linkedin.com/in/zapreevis
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.#
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * The server-side cache package.
+ * (C) Ivan S. Zapreev, 2010
+ */
+package com.xcurechat.server.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.log4j.Logger;
+
+import com.xcurechat.client.data.ForumMessageData;
+import com.xcurechat.client.data.ShortFileDescriptor;
+import com.xcurechat.client.data.ShortForumMessageData;
+import com.xcurechat.client.data.ShortUserData;
+import com.xcurechat.client.data.search.ForumSearchData;
+import com.xcurechat.client.data.search.OnePageViewData;
+import com.xcurechat.client.rpc.exceptions.SiteException;
+
+import com.xcurechat.server.jdbc.ConnectionWrapper;
+import com.xcurechat.server.jdbc.QueryExecutor;
+import com.xcurechat.server.jdbc.forum.SelectLastForumMessageIDExecutor;
+import com.xcurechat.server.jdbc.forum.SelectMessagesByIdRangeExecutor;
+import com.xcurechat.server.jdbc.forum.files.SelectMessageFilesExecutor;
+
+/**
+ * @author zapreevis
+ * This class is the in-memory copy of the forum tree, it stores all the forum messages, with their
+ * attached files, linked to their parents and to their replies. The replies of every message are
+ * kept ordered as the forum navigation shows them, so that the navigation pages and the messages
+ * are served without going to the DB. The reply counters and the last reply data of the messages
+ * are maintained here on every forum modification, and the corresponding updates of the parent
+ * messages in the DB are done in the background, by the write-behind thread. The forum modifications
+ * that re-compute the parent messages data in the DB, i.e. moving and deleting the messages, have
+ * to call flushWrites() first. The tree is built from the DB at start up, in the background, until
+ * it is built the navigation queries go to the DB.
+ * NOTE: The message senders and last reply senders are stored in the forum short user data cache.
+ */
+public class ForumTree {
+	//Get the Log4j logger object
+	private static final Logger logger = Logger.getLogger( ForumTree.class );
+	
+	//The number of message ids in one batch of messages loaded from the DB when building the tree
+	private static final int BUILD_BATCH_SIZE = 500;
+	//The maximum number of attempts to build the tree while the forum is modified
+	private static final int MAX_NUMBER_OF_BUILD_ATTEMPTS = 3;
+	//The maximum time in millisec we wait for the write-behind thread to finish on shut down
+	private static final int SHUT_DOWN_WAIT_TIME_MILLISEC = 10000;
+	
+	//The short user data cache
+	private static final ShortUserDataCache userDataCache = ShortUserDataCache.getInstance( ShortUserDataCache.CacheIds.FORUM_CACHE_ID );
+	
+	/**
+	 * @author zapreevis
+	 * The forum tree node, the node data is guarded by the tree lock
+	 */
+	private static final class ForumNode {
+		//The forum message
+		public final ForumMessageData message;
+		//The parent node, is null for the root node
+		public ForumNode parent = null;
+		//The replies of the message, in the forum navigation order
+		public final List<ForumNode> children = new ArrayList<ForumNode>();
+		
+		public ForumNode( final ForumMessageData message ) {
+			this.message = message;
+		}
+	}
+	
+	/**
+	 * @author zapreevis
+	 * The tree data, it is built separately and then replaces the current one
+	 */
+	private static final class TreeData {
+		//The root node of the tree, it is not visible on the forum
+		public final ForumNode root;
+		//Maps the message ids to the nodes, the root node is not here
+		public final Map<Integer, ForumNode> nodes = new HashMap<Integer, ForumNode>();
+		//Maps the attached file ids to the nodes of their messages
+		public final Map<Integer, ForumNode> fileIdToNode = new HashMap<Integer, ForumNode>();
+		
+		public TreeData() {
+			ForumMessageData rootMessage = new ForumMessageData();
+			rootMessage.messageID = ShortForumMessageData.ROOT_FORUM_MESSAGE_ID;
+			rootMessage.parentMessageID = ShortForumMessageData.ROOT_FORUM_MESSAGE_ID;
+			rootMessage.messagePathID = "";
+			root = new ForumNode( rootMessage );
+		}
+	}
+	
+	/**
+	 * @param date the date or null
+	 * @return the date time or zero if the date is null
+	 */
+	private static long getTime( final Date date ) {
+		return ( date == null ? 0 : date.getTime() );
+	}
+	
+	/**
+	 * Compares the longs for the descending order
+	 */
+	private static int compareDescending( final long first, final long second ) {
+		return ( first > second ? -1 : ( first == second ? 0 : 1 ) );
+	}
+	
+	//The order of the forum sections, by the number of replies, the same as in the SelectMessagesExecutorBase
+	private static final Comparator<ForumNode> SECTIONS_ORDER = new Comparator<ForumNode>() {
+		@Override
+		public int compare( final ForumNode first, final ForumNode second ) {
+			int result = compareDescending( first.message.numberOfReplies, second.message.numberOfReplies );
+			if( result == 0 ) {
+				result = compareDescending( first.message.messageID, second.message.messageID );
+			}
+			return result;
+		}
+	};
+	
+	//The order of the other forum messages, by the last reply and then the update dates, the same as in the SelectMessagesExecutorBase
+	private static final Comparator<ForumNode> MESSAGES_ORDER = new Comparator<ForumNode>() {
+		@Override
+		public int compare( final ForumNode first, final ForumNode second ) {
+			int result = compareDescending( getTime( first.message.lastReplyDate ), getTime( second.message.lastReplyDate ) );
+			if( result == 0 ) {
+				result = compareDescending( getTime( first.message.updateDate ), getTime( second.message.updateDate ) );
+				if( result == 0 ) {
+					result = compareDescending( first.message.messageID, second.message.messageID );
+				}
+			}
+			return result;
+		}
+	};
+	
+	//The only instance of the tree
+	private static final ForumTree instance = new ForumTree();
+	
+	//The lock of the tree data, the readers use the read lock
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	//The tree data, guarded by the lock
+	private TreeData data = new TreeData();
+	//True if the tree is built and can be used, guarded by the lock
+	private boolean isBuilt = false;
+	//The number of forum modifications, guarded by the lock, allows the
+	//tree builder to detect that the forum was changed during the build
+	private long modificationsCount = 0;
+	//True while the tree is being built
+	private final AtomicBoolean isBuilding = new AtomicBoolean( false );
+	
+	//The write-behind thread executing the DB updates in the order they were scheduled
+	private final ExecutorService writeBehindExecutor = Executors.newSingleThreadExecutor( new ThreadFactory() {
+		@Override
+		public Thread newThread( final Runnable runnable ) {
+			Thread thread = new Thread( runnable, "ForumTreeWriteBehindThread" );
+			thread.setDaemon( true );
+			return thread;
+		}
+	});
+	
+	/**
+	 * The private constructor, for the singleton
+	 */
+	private ForumTree() {
+	}
+	
+	/**
+	 * @return the only instance of the forum tree
+	 */
+	public static ForumTree getInstance() {
+		return instance;
+	}
+	
+	/**
+	 * Allows to schedule the DB update that is done in the background, the updates are
+	 * executed one by one in the order they were scheduled.
+	 * @param executor the update executor
+	 */
+	public void writeBehind( final QueryExecutor<Void> executor ) {
+		try {
+			writeBehindExecutor.execute( new Runnable() {
+				@Override
+				public void run() {
+					try {
+						ConnectionWrapper<Void> connWrap = ConnectionWrapper.createConnectionWrapper( executor );
+						connWrap.executeQuery( ConnectionWrapper.XCURE_CHAT_DB );
+					} catch( Throwable e ) {
+						logger.error( "Unable to execute the write-behind forum update", e );
+					}
+				}
+			});
+		} catch( Throwable e ) {
+			//The executor was shut down, do the update in the calling thread
+			logger.warn( "The forum write-behind thread is shut down, updating the DB in place" );
+			try {
+				ConnectionWrapper<Void> connWrap = ConnectionWrapper.createConnectionWrapper( executor );
+				connWrap.executeQuery( ConnectionWrapper.XCURE_CHAT_DB );
+			} catch( SiteException ex ) {
+				logger.error( "Unable to execute the forum update", ex );
+			}
+		}
+	}
+	
+	/**
+	 * Waits until all the scheduled DB updates are done
+	 */
+	public void flushWrites() {
+		try {
+			writeBehindExecutor.submit( new Runnable() {
+				@Override
+				public void run() {
+					//Nothing to do, the previously scheduled updates are done
+				}
+			}).get();
+		} catch( Throwable e ) {
+			logger.warn( "Unable to wait for the forum write-behind updates", e );
+		}
+	}
+	
+	/**
+	 * Stops the write-behind thread, waiting for the scheduled DB updates to be done
+	 */
+	public void shutDown() {
+		writeBehindExecutor.shutdown();
+		try {
+			if( ! writeBehindExecutor.awaitTermination( SHUT_DOWN_WAIT_TIME_MILLISEC, TimeUnit.MILLISECONDS ) ) {
+				logger.error( "The forum write-behind thread did not finish in " + SHUT_DOWN_WAIT_TIME_MILLISEC + " ms" );
+			}
+		} catch( InterruptedException e ) {
+			logger.warn( "Interrupted while waiting for the forum write-behind thread", e );
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	/**
+	 * Allows to start building the tree in the background thread, unless it is being built already
+	 */
+	public void buildInBackground() {
+		if( isBuilding.compareAndSet( false, true ) ) {
+			Thread builder = new Thread( "ForumTreeBuilder" ) {
+				public void run() {
+					try {
+						build();
+					} finally {
+						isBuilding.set( false );
+					}
+				}
+			};
+			builder.setDaemon( true );
+			builder.start();
+		}
+	}
+	
+	/**
+	 * Allows to drop the tree and to re-build it from the DB, the navigation queries go to the DB meanwhile.
+	 * Is used if the forum was modified in a way the tree can not follow.
+	 */
+	public void rebuild() {
+		lock.writeLock().lock();
+		try {
+			if( isBuilt ) {
+				releaseUserData( data );
+			}
+			isBuilt = false;
+			data = new TreeData();
+			modificationsCount++;
+		} finally {
+			lock.writeLock().unlock();
+		}
+		buildInBackground();
+	}
+	
+	/**
+	 * Builds the tree from the DB, if the forum is modified during the build then the built tree is
+	 * dropped and the build is repeated. The tree is loaded without holding the lock.
+	 */
+	private void build() {
+		for( int attempt = 1; attempt <= MAX_NUMBER_OF_BUILD_ATTEMPTS; attempt++ ) {
+			final long startModificationsCount;
+			lock.readLock().lock();
+			try {
+				startModificationsCount = modificationsCount;
+			} finally {
+				lock.readLock().unlock();
+			}
+			//The DB has to be up to date before we read it
+			flushWrites();
+			
+			final long startTime = System.currentTimeMillis();
+			final TreeData newData;
+			try {
+				newData = loadTreeData();
+			} catch( Throwable e ) {
+				logger.error( "Unable to build the forum tree, the forum navigation will use the DB", e );
+				return;
+			}
+			
+			lock.writeLock().lock();
+			try {
+				if( startModificationsCount == modificationsCount ) {
+					cacheUserData( newData );
+					data = newData;
+					isBuilt = true;
+					logger.info( "The forum tree with " + newData.nodes.size() + " messages was built in " +
+								 ( System.currentTimeMillis() - startTime ) + " ms" );
+					return;
+				}
+			} finally {
+				lock.writeLock().unlock();
+			}
+			logger.warn( "The forum was modified while building the forum tree, attempt " + attempt );
+		}
+		logger.error( "Unable to build the forum tree in " + MAX_NUMBER_OF_BUILD_ATTEMPTS +
+					  " attempts, the forum navigation will use the DB" );
+	}
+	
+	/**
+	 * Loads all the forum messages with their files from the DB, batch by batch, and links them into the tree
+	 * @return the new tree data
+	 * @throws SiteException if the messages could not be loaded
+	 */
+	private TreeData loadTreeData() throws SiteException {
+		final TreeData newData = new TreeData();
+		
+		//Get the id of the last message
+		ShortForumMessageData lastMessage = new ShortForumMessageData();
+		ConnectionWrapper<ShortForumMessageData> lastMsgIDConnWrap = ConnectionWrapper.createConnectionWrapper( new SelectLastForumMessageIDExecutor() );
+		lastMsgIDConnWrap.executeQuery( lastMessage, ConnectionWrapper.XCURE_CHAT_DB );
+		
+		//Load the messages with their files
+		for( int afterMessageID = ShortForumMessageData.UNKNOWN_MESSAGE_ID; afterMessageID < lastMessage.messageID; afterMessageID += BUILD_BATCH_SIZE ) {
+			LinkedHashMap<Integer,ForumMessageData> batch = new LinkedHashMap<Integer,ForumMessageData>();
+			SelectMessagesByIdRangeExecutor selectMsgsExec = new SelectMessagesByIdRangeExecutor( afterMessageID, afterMessageID + BUILD_BATCH_SIZE );
+			ConnectionWrapper<LinkedHashMap<Integer,ForumMessageData>> selectMsgsConnWrap = ConnectionWrapper.createConnectionWrapper( selectMsgsExec );
+			selectMsgsConnWrap.executeQuery( batch, ConnectionWrapper.XCURE_CHAT_DB );
+			if( ! batch.isEmpty() ) {
+				SelectMessageFilesExecutor selectMsgFilesExec = new SelectMessageFilesExecutor( batch );
+				ConnectionWrapper<Void> selectMsgFilesConnWrap = ConnectionWrapper.createConnectionWrapper( selectMsgFilesExec );
+				selectMsgFilesConnWrap.executeQuery( ConnectionWrapper.XCURE_CHAT_DB );
+				for( ForumMessageData message : batch.values() ) {
+					final ForumNode node = new ForumNode( message );
+					newData.nodes.put( message.messageID, node );
+					for( ShortFileDescriptor fileDesc : message.attachedFileIds ) {
+						newData.fileIdToNode.put( fileDesc.fileID, node );
+					}
+				}
+			}
+		}
+		
+		//Link the messages to their parents, the messages with deleted parents stay unlinked
+		for( ForumNode node : newData.nodes.values() ) {
+			final ForumNode parent = getNode( newData, node.message.parentMessageID );
+			if( parent != null ) {
+				node.parent = parent;
+				parent.children.add( node );
+			} else {
+				logger.debug( "The parent " + node.message.parentMessageID + " of the forum message " + node.message.messageID + " is not found" );
+			}
+		}
+		Collections.sort( newData.root.children, SECTIONS_ORDER );
+		for( ForumNode node : newData.nodes.values() ) {
+			Collections.sort( node.children, MESSAGES_ORDER );
+		}
+		return newData;
+	}
+	
+	/**
+	 * Allows to get the node by the message id, including the root node
+	 * @param treeData the tree data
+	 * @param messageID the message id
+	 * @return the node or null if there is none
+	 */
+	private static ForumNode getNode( final TreeData treeData, final int messageID ) {
+		if( messageID == ShortForumMessageData.ROOT_FORUM_MESSAGE_ID ) {
+			return treeData.root;
+		} else {
+			return treeData.nodes.get( messageID );
+		}
+	}
+	
+	/**
+	 * Puts the message senders and last reply senders of the tree into the user data cache
+	 * @param treeData the tree data
+	 */
+	private static void cacheUserData( final TreeData treeData ) {
+		for( ForumNode node : treeData.nodes.values() ) {
+			node.message.senderData = userDataCache.getCachedUserData( node.message.senderData );
+			if( node.message.lastReplyUser != null ) {
+				node.message.lastReplyUser = userDataCache.getCachedUserData( node.message.lastReplyUser );
+			}
+		}
+	}
+	
+	/**
+	 * Releases the message senders and last reply senders of the tree from the user data cache
+	 * @param treeData the tree data
+	 */
+	private static void releaseUserData( final TreeData treeData ) {
+		for( ForumNode node : treeData.nodes.values() ) {
+			releaseUserData( node );
+		}
+	}
+	
+	/**
+	 * Releases the message sender and last reply sender of the node from the user data cache
+	 * @param node the node
+	 */
+	private static void releaseUserData( final ForumNode node ) {
+		userDataCache.releaseCachedUserData( node.message.senderData );
+		if( node.message.lastReplyUser != null ) {
+			userDataCache.releaseCachedUserData( node.message.lastReplyUser );
+		}
+	}
+	
+	/**
+	 * Allows to set the last reply data of the message, the last reply sender is cached
+	 * @param message the message
+	 * @param lastReplyDate the last reply date
+	 * @param lastReplyUser the last reply sender or null if there are no replies
+	 */
+	private static void setLastReply( final ForumMessageData message, final Date lastReplyDate, final ShortUserData lastReplyUser ) {
+		if( message.lastReplyUser != null ) {
+			userDataCache.releaseCachedUserData( message.lastReplyUser );
+		}
+		message.lastReplyUser = ( lastReplyUser != null ? userDataCache.getCachedUserData( lastReplyUser ) : null );
+		message.lastReplyDate = lastReplyDate;
+	}
+	
+	/**
+	 * Inserts the node into the replies of the parent, according to the navigation order
+	 * @param treeData the tree data
+	 * @param parent the parent node
+	 * @param node the node to insert
+	 */
+	private static void insertChild( final TreeData treeData, final ForumNode parent, final ForumNode node ) {
+		final Comparator<ForumNode> order = ( parent == treeData.root ? SECTIONS_ORDER : MESSAGES_ORDER );
+		int index = Collections.binarySearch( parent.children, node, order );
+		if( index < 0 ) {
+			index = - index - 1;
+		}
+		parent.children.add( index, node );
+		node.parent = parent;
+	}
+	
+	/**
+	 * Re-positions the node among its siblings, after its navigation order data is changed
+	 * @param treeData the tree data
+	 * @param node the node
+	 */
+	private static void reposition( final TreeData treeData, final ForumNode node ) {
+		final ForumNode parent = node.parent;
+		if( ( parent != null ) && parent.children.remove( node ) ) {
+			insertChild( treeData, parent, node );
+		}
+	}
+	
+	/**
+	 * Re-computes the last reply data of the message from its direct replies, the
+	 * same as done in DeleteForumMessageExecutor.updateParentReplyData for the DB
+	 * @param node the node to re-compute the last reply data for
+	 */
+	private static void recomputeLastReply( final ForumNode node ) {
+		Date lastReplyDate = null;
+		ShortUserData lastReplyUser = null;
+		for( ForumNode child : node.children ) {
+			final ForumMessageData reply = child.message;
+			if( getTime( reply.updateDate ) > getTime( lastReplyDate ) ) {
+				lastReplyDate = reply.updateDate;
+				lastReplyUser = reply.senderData;
+			}
+			if( ( reply.numberOfReplies > 0 ) && ( reply.lastReplyUser != null ) && ( getTime( reply.lastReplyDate ) > getTime( lastReplyDate ) ) ) {
+				lastReplyDate = reply.lastReplyDate;
+				lastReplyUser = reply.lastReplyUser;
+			}
+		}
+		if( lastReplyDate != null ) {
+			setLastReply( node.message, lastReplyDate, lastReplyUser );
+		} else {
+			//If the message does not have replies then the last reply date is the message's update date
+			setLastReply( node.message, node.message.updateDate, null );
+		}
+	}
+	
+	/**
+	 * Updates the reply counters and the last reply data of the node's parents, after
+	 * some replies were added to or removed from the node's sub-tree
+	 * @param treeData the tree data
+	 * @param node the node whose parents are updated
+	 * @param repliesDelta the change of the number of replies
+	 * @param isRecompute if true then the last reply data is re-computed from the replies, otherwise
+	 *                    the node's message is the last reply, the same as in MsgParentsNotifyExecutor
+	 */
+	private static void updateParents( final TreeData treeData, final ForumNode node, final int repliesDelta, final boolean isRecompute ) {
+		for( ForumNode ancestor = node.parent; ancestor != null; ancestor = ancestor.parent ) {
+			ancestor.message.numberOfReplies += repliesDelta;
+			if( isRecompute ) {
+				recomputeLastReply( ancestor );
+			} else {
+				setLastReply( ancestor.message, node.message.updateDate, node.message.senderData );
+			}
+			reposition( treeData, ancestor );
+		}
+	}
+	
+	/**
+	 * Allows to get the forum page for the navigation or the one message view, see
+	 * ForumSearchData.isForumNavigation() and ForumSearchData.isForumMessageView()
+	 * @param searchParams the search parameters
+	 * @return the page with the copies of the messages, or null if the search is not
+	 *         for the navigation or the message view, or if the tree is not built
+	 */
+	public OnePageViewData<ForumMessageData> getPage( final ForumSearchData searchParams ) {
+		final boolean isNavigation = searchParams.isForumNavigation();
+		if( ! isNavigation && ! searchParams.isForumMessageView() ) {
+			return null;
+		}
+		
+		lock.readLock().lock();
+		try {
+			if( ! isBuilt ) {
+				return null;
+			}
+			
+			OnePageViewData<ForumMessageData> result = new OnePageViewData<ForumMessageData>();
+			result.offset = ( searchParams.pageIndex - 1 ) * ForumSearchData.MAX_NUMBER_OF_MESSAGES_PER_PAGE;
+			result.entries = new ArrayList<ForumMessageData>();
+			if( isNavigation ) {
+				//The direct replies of the base message
+				final ForumNode baseNode = getNode( data, searchParams.baseMessageID );
+				if( baseNode != null ) {
+					final List<ForumNode> children = baseNode.children;
+					result.total_size = children.size();
+					for( int index = Math.max( result.offset, 0 ); ( index < children.size() ) &&
+						 ( index < result.offset + ForumSearchData.MAX_NUMBER_OF_MESSAGES_PER_PAGE ); index++ ) {
+						result.entries.add( children.get( index ).message.cloneForumMessage() );
+					}
+				}
+			} else {
+				//The base message itself
+				final ForumNode node = data.nodes.get( searchParams.baseMessageID );
+				if( node != null ) {
+					result.total_size = 1;
+					if( result.offset == 0 ) {
+						result.entries.add( node.message.cloneForumMessage() );
+					}
+				}
+			}
+			return result;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Allows to get the forum message
+	 * @param messageID the id of the message
+	 * @return the copy of the message, or null if it is not found or the tree is not built
+	 */
+	public ForumMessageData getMessage( final int messageID ) {
+		lock.readLock().lock();
+		try {
+			final ForumNode node = ( isBuilt ? data.nodes.get( messageID ) : null );
+			return ( node != null ? node.message.cloneForumMessage() : null );
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Allows to add the new forum message to the tree
+	 * @param message the complete new message, as retrieved from the DB, is not copied
+	 */
+	public void addMessage( final ForumMessageData message ) {
+		boolean isRebuildNeeded = false;
+		lock.writeLock().lock();
+		try {
+			modificationsCount++;
+			if( isBuilt ) {
+				final ForumNode parent = getNode( data, message.parentMessageID );
+				if( parent != null ) {
+					message.senderData = userDataCache.getCachedUserData( message.senderData );
+					message.lastReplyUser = null;
+					final ForumNode node = new ForumNode( message );
+					data.nodes.put( message.messageID, node );
+					for( ShortFileDescriptor fileDesc : message.attachedFileIds ) {
+						data.fileIdToNode.put( fileDesc.fileID, node );
+					}
+					insertChild( data, parent, node );
+					updateParents( data, node, 1, false );
+				} else {
+					logger.error( "The parent " + message.parentMessageID + " of the new forum message " + message.messageID +
+								  " is not in the forum tree, the tree will be re-built" );
+					isRebuildNeeded = true;
+				}
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+		if( isRebuildNeeded ) {
+			rebuild();
+		}
+	}
+	
+	/**
+	 * Allows to update the forum message in the tree
+	 * @param message the updated message with its id, title, body and update date set
+	 * @param isDisapproved true if the message was disapproved by the update
+	 */
+	public void updateMessage( final ShortForumMessageData message, final boolean isDisapproved ) {
+		lock.writeLock().lock();
+		try {
+			modificationsCount++;
+			if( isBuilt ) {
+				final ForumNode node = data.nodes.get( message.messageID );
+				if( node != null ) {
+					node.message.messageTitle = message.messageTitle;
+					node.message.messageBody = message.messageBody;
+					node.message.updateDate = message.updateDate;
+					if( isDisapproved ) {
+						node.message.isApproved = false;
+					}
+					reposition( data, node );
+					updateParents( data, node, 0, false );
+				} else {
+					logger.warn( "The updated forum message " + message.messageID + " is not in the forum tree" );
+				}
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Allows to set the attached files of the forum message
+	 * @param messageID the id of the message
+	 * @param files the attached files, as retrieved from the DB
+	 */
+	public void setMessageFiles( final int messageID, final List<ShortFileDescriptor> files ) {
+		lock.writeLock().lock();
+		try {
+			modificationsCount++;
+			if( isBuilt ) {
+				final ForumNode node = data.nodes.get( messageID );
+				if( node != null ) {
+					for( ShortFileDescriptor fileDesc : node.message.attachedFileIds ) {
+						data.fileIdToNode.remove( fileDesc.fileID );
+					}
+					node.message.attachedFileIds = new ArrayList<ShortFileDescriptor>( files );
+					for( ShortFileDescriptor fileDesc : files ) {
+						data.fileIdToNode.put( fileDesc.fileID, node );
+					}
+				}
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Allows to remove the deleted files from their forum messages
+	 * @param fileIDs the ids of the deleted files
+	 */
+	public void removeMessageFiles( final List<Integer> fileIDs ) {
+		lock.writeLock().lock();
+		try {
+			modificationsCount++;
+			if( isBuilt && ( fileIDs != null ) ) {
+				for( Integer fileID : fileIDs ) {
+					final ForumNode node = data.fileIdToNode.remove( fileID );
+					if( node != null ) {
+						final List<ShortFileDescriptor> files = new ArrayList<ShortFileDescriptor>();
+						for( ShortFileDescriptor fileDesc : node.message.attachedFileIds ) {
+							if( fileDesc.fileID != fileID ) {
+								files.add( fileDesc );
+							}
+						}
+						node.message.attachedFileIds = files;
+					}
+				}
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Allows to remove the deleted forum message with all of its replies from the tree, in the DB
+	 * the replies are deleted by the cascade on the parent message id foreign key.
+	 * @param messageID the id of the deleted message
+	 */
+	public void removeMessage( final int messageID ) {
+		lock.writeLock().lock();
+		try {
+			modificationsCount++;
+			if( isBuilt ) {
+				final ForumNode node = data.nodes.get( messageID );
+				if( node != null ) {
+					if( ( node.parent != null ) && node.parent.children.remove( node ) ) {
+						updateParents( data, node, - ( node.message.numberOfReplies + 1 ), true );
+					}
+					
+					//Remove the message and all of its replies, with their files
+					final List<ForumNode> removedNodes = new ArrayList<ForumNode>();
+					removedNodes.add( node );
+					for( int index = 0; index < removedNodes.size(); index++ ) {
+						final ForumNode removedNode = removedNodes.get( index );
+						data.nodes.remove( removedNode.message.messageID );
+						for( ShortFileDescriptor fileDesc : removedNode.message.attachedFileIds ) {
+							data.fileIdToNode.remove( fileDesc.fileID );
+						}
+						releaseUserData( removedNode );
+						removedNodes.addAll( removedNode.children );
+					}
+				}
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Allows to move the forum message, with all its replies, to the new parent message
+	 * @param messageID the id of the moved message
+	 * @param newParentMessageID the id of the new parent message
+	 */
+	public void moveMessage( final int messageID, final int newParentMessageID ) {
+		boolean isRebuildNeeded = false;
+		lock.writeLock().lock();
+		try {
+			modificationsCount++;
+			if( isBuilt ) {
+				final ForumNode node = data.nodes.get( messageID );
+				final ForumNode newParent = getNode( data, newParentMessageID );
+				if( ( node != null ) && ( newParent != null ) && ( node.parent != null ) ) {
+					final int numberOfMovedMessages = node.message.numberOfReplies + 1;
+					
+					//Detach the message from the old parent
+					node.parent.children.remove( node );
+					updateParents( data, node, - numberOfMovedMessages, true );
+					
+					//Attach the message to the new parent
+					node.message.parentMessageID = newParentMessageID;
+					insertChild( data, newParent, node );
+					updateParents( data, node, numberOfMovedMessages, true );
+					
+					//Update the path ids of the message and all of its replies
+					final List<ForumNode> movedNodes = new ArrayList<ForumNode>();
+					movedNodes.add( node );
+					for( int index = 0; index < movedNodes.size(); index++ ) {
+						final ForumNode movedNode = movedNodes.get( index );
+						final ForumMessageData parentMessage = movedNode.parent.message;
+						movedNode.message.messagePathID = parentMessage.messagePathID + parentMessage.messageID +
+														  ShortForumMessageData.MESSAGE_PATH_ID_DELIMITER;
+						movedNodes.addAll( movedNode.children );
+					}
+				} else {
+					logger.error( "The moved forum message " + messageID + " or its new parent " + newParentMessageID +
+								  " is not in the forum tree, the tree will be re-built" );
+					isRebuildNeeded = true;
+				}
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+		if( isRebuildNeeded ) {
+			rebuild();
+		}
+	}
+	
+	/**
+	 * Allows to approve or disapprove the forum message in the tree
+	 * @param messageID the id of the message
+	 * @param approve true if the message is approved, otherwise false
+	 */
+	public void approveMessage( final int messageID, final boolean approve ) {
+		lock.writeLock().lock();
+		try {
+			modificationsCount++;
+			if( isBuilt ) {
+				final ForumNode node = data.nodes.get( messageID );
+				if( node != null ) {
+					node.message.isApproved = approve;
+				}
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Allows to count the vote for the forum message in the tree
+	 * @param messageID the id of the message
+	 * @param voteFor true if the vote is for the message, otherwise false
+	 */
+	public void voteForMessage( final int messageID, final boolean voteFor ) {
+		lock.writeLock().lock();
+		try {
+			modificationsCount++;
+			if( isBuilt ) {
+				final ForumNode node = data.nodes.get( messageID );
+				if( node != null ) {
+					node.message.numVotes++;
+					if( voteFor ) {
+						node.message.voteValue++;
+					}
+				}
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+}
@@ -21,45 +21,255 @@
  */
 package com.xcurechat.server.cache;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 
 import com.xcurechat.client.data.FileData;
 import com.xcurechat.client.data.ShortFileDescriptor;
 
+import com.xcurechat.server.files.FileServletHelper;
+
 /**
  * @author zapreevis
  * This class is used for caching files that the user might want to
  * view in the chat, forum and other site sections.
- * THis class is synchronized.
+ * The file descriptors are kept on heap, but the thumbnails and the file data are copied into
+ * direct (off-heap) byte buffers. The thumbnails and the file data have separate capacities,
+ * so that the large files do not push out the small and often requested thumbnails. When
+ * the capacity is exceeded the data is evicted with the CLOCK algorithm, an approximation
+ * of the LRU, so reading from the cache does not need to lock and does not reorder anything.
+ * The data that is in the files storage, i.e. the one that was not loaded into the file data
+ * object, is streamed from there and is not copied into the cache, only its descriptor is cached.
+ * The cache retrievals are not synchronized, the cache modifications are.
  */
 public class ServerDataFileCache {
 	//The number of bytes in on megabyte
 	public static final int BYTES_IN_ONE_MEGABYTE = 1048576;
+	//The default capacity for the cached thumbnails in Mb, the thumbnails are small so this is a lot of them
+	public static final int DEFAULT_THUMBNAILS_CAPACITY_MB = 5;
 	
 	/**
 	 * @author zapreevis
-	 * This class is used to wrap around the cached file data
+	 * The cached file, returned by the cache retrieval
 	 */
-	private class CacheDataWrapper {
+	public static final class CachedFile {
+		//The files descriptor, without the file data. NOTE: It is shared, must not be modified!
+		public final FileData descriptor;
+		//The read-only view of the requested data or null if it is in the files storage or there is no data
+		public final ByteBuffer data;
+		//The MD5 sum of the requested data or null if there is no data
+		public final String dataMD5;
+		
+		private CachedFile( final FileData descriptor, final ByteBuffer data, final String dataMD5 ) {
+			this.descriptor = descriptor;
+			this.data = data;
+			this.dataMD5 = dataMD5;
+		}
+	}
+	
+	/**
+	 * @author zapreevis
+	 * This class is used to wrap around the cached file descriptor
+	 */
+	private static final class CacheEntry {
+		//The files descriptor without the file data
+		final FileData descriptor;
+		//The cached thumbnail and file data, null if they were evicted from the cache
+		volatile DataSlot thumbnailSlot = null;
+		volatile DataSlot fileSlot = null;
 		//Stores the last time in milliseconds when this file was retrieved from the cache
-		long lastUsedTimeMillisec = System.currentTimeMillis();
-		//Stores the approximate amound of data stored in the file descriptor in bytes
-		double fileDataSizeInBytes = 0;
-		//The files descriptor storing the file data
-		FileData fileData = null;
+		volatile long lastUsedTimeMillisec = System.currentTimeMillis();
+		
+		CacheEntry( final FileData descriptor ) {
+			this.descriptor = descriptor;
+		}
+	}
+	
+	/**
+	 * @author zapreevis
+	 * This class stores the cached thumbnail or file data of one file
+	 */
+	private static final class DataSlot {
+		//The entry this data belongs to, null if there is no data or it is in the files storage
+		final CacheEntry entry;
+		//The read-only view of the direct buffer with the data, null if there is no data or it is in the files storage
+		final ByteBuffer data;
+		//The MD5 sum of the data, is null if there is no data
+		final String dataMD5;
+		//The CLOCK reference bit, is set when the data is read
+		volatile boolean isReferenced = false;
+		//The index of this slot in the clock of the data region
+		int clockIndex = -1;
+		
+		DataSlot( final CacheEntry entry, final ByteBuffer data, final String dataMD5 ) {
+			this.entry = entry;
+			this.data = data;
+			this.dataMD5 = dataMD5;
+		}
+		
+		/**
+		 * @return the size of the cached data in bytes
+		 */
+		int getSizeInBytes() {
+			return ( data != null ) ? data.capacity() : 0;
+		}
+	}
+	
+	/**
+	 * @author zapreevis
+	 * This class manages the cached thumbnails or the cached file data, i.e. it has its
+	 * own capacity, clock of the cached data and statistics. Must be modified only while
+	 * holding the lock on the cache.
+	 */
+	private final class DataRegion {
+		//The name of the region, is used for logging
+		private final String regionName;
+		//True if this region stores thumbnails, otherwise it stores the file data
+		private final boolean isThumbnails;
+		//The maximum amount of data in bytes that this region is supposed to store
+		private final long maxCapacityInBytes;
+		//The current memory in bytes used by the region data
+		private volatile long usedCapacityInBytes = 0;
+		//The cached data in the clock order and the clock hand
+		private final List<DataSlot> clock = new ArrayList<DataSlot>();
+		private int clockHand = 0;
+		
+		//The statistics of the region
+		private final AtomicLong hitsCount = new AtomicLong( 0 );
+		private final AtomicLong missesCount = new AtomicLong( 0 );
+		private volatile long evictionsCount = 0;
+		private volatile long rejectionsCount = 0;
+		
+		DataRegion( final String regionName, final boolean isThumbnails, final long maxCapacityInBytes ) {
+			this.regionName = regionName;
+			this.isThumbnails = isThumbnails;
+			this.maxCapacityInBytes = maxCapacityInBytes;
+		}
+		
+		/**
+		 * Allows to create the data slot for the given data of the file, if the data is
+		 * loaded into memory then it is copied into a direct buffer, evicting some
+		 * of the cached data if needed.
+		 * @param entry the entry to which the data belongs
+		 * @param data the data to be cached, if null then the data is in the files storage or there is no data
+		 * @param dataMD5 the MD5 sum of the data, or null if it is not known
+		 * @return the data slot or null if the data can not be cached
+		 */
+		DataSlot allocate( final CacheEntry entry, final byte[] data, final String dataMD5 ) {
+			if( data == null ) {
+				//The data is in the files storage or there is no data, there is nothing to copy
+				return new DataSlot( null, null, dataMD5 );
+			}
+			if( data.length > maxCapacityInBytes ) {
+				rejectionsCount++;
+				info( "The " + regionName + " of file " + entry.descriptor.fileID + " has size " + toMb( data.length ) +
+					  "Mb, which is more than the " + regionName + " capacity, it will not be cached" );
+				return null;
+			}
+			//Free the space for the data
+			while( usedCapacityInBytes + data.length > maxCapacityInBytes ) {
+				evict();
+			}
+			//Copy the data out of the heap
+			final ByteBuffer buffer;
+			try {
+				buffer = ByteBuffer.allocateDirect( data.length );
+			} catch( OutOfMemoryError e ) {
+				rejectionsCount++;
+				error( "Unable to allocate " + toMb( data.length ) + "Mb of direct memory for the " + regionName +
+					   " of file " + entry.descriptor.fileID + ", it will not be cached" );
+				return null;
+			}
+			buffer.put( data );
+			buffer.flip();
+			final DataSlot slot = new DataSlot( entry, buffer.asReadOnlyBuffer(),
+												( dataMD5 != null ) ? dataMD5 : FileServletHelper.getDataMD5( data ) );
+			slot.clockIndex = clock.size();
+			clock.add( slot );
+			usedCapacityInBytes += data.length;
+			debug( "Added the " + regionName + " of file " + entry.descriptor.fileID + " of size " + toMb( data.length ) +
+				   "Mb, the " + regionName + " memory used is about " + toMb( usedCapacityInBytes ) + "Mb" );
+			return slot;
+		}
+		
+		/**
+		 * Evicts one of the cached data, the CLOCK hand goes over the data and clears the
+		 * reference bits until it finds the data that was not read since the last pass.
+		 */
+		private void evict() {
+			while( true ) {
+				if( clockHand >= clock.size() ) {
+					clockHand = 0;
+				}
+				final DataSlot slot = clock.get( clockHand );
+				if( slot.isReferenced ) {
+					//Give the data the second chance
+					slot.isReferenced = false;
+					clockHand++;
+				} else {
+					debug( "Evicting the " + regionName + " of file " + slot.entry.descriptor.fileID );
+					release( slot );
+					evictionsCount++;
+					return;
+				}
+			}
+		}
+		
+		/**
+		 * Allows to remove the data slot from the region and from its cache entry
+		 * @param slot the slot to be removed, might be null
+		 */
+		void release( final DataSlot slot ) {
+			if( ( slot != null ) && ( slot.clockIndex != -1 ) ) {
+				//Remove the slot from the clock, by putting the last slot in its place
+				final DataSlot lastSlot = clock.remove( clock.size() - 1 );
+				if( lastSlot != slot ) {
+					clock.set( slot.clockIndex, lastSlot );
+					lastSlot.clockIndex = slot.clockIndex;
+				}
+				slot.clockIndex = -1;
+				usedCapacityInBytes -= slot.getSizeInBytes();
+				//Detach the data from its entry, the readers that already have the data can still use it
+				if( isThumbnails ) {
+					if( slot.entry.thumbnailSlot == slot ) {
+						slot.entry.thumbnailSlot = null;
+					}
+				} else {
+					if( slot.entry.fileSlot == slot ) {
+						slot.entry.fileSlot = null;
+					}
+				}
+			}
+		}
+		
+		/**
+		 * @return the statistics of the region
+		 */
+		String getStatistics() {
+			final long hits = hitsCount.get();
+			final long requests = hits + missesCount.get();
+			return regionName + ": hits = " + hits + ", misses = " + ( requests - hits ) + ", hit ratio = " +
+				   ( requests > 0 ? ( 100 * hits / requests ) : 0 ) + "%, used = " + toMb( usedCapacityInBytes ) +
+				   "Mb of " + toMb( maxCapacityInBytes ) + "Mb, cached = " + clock.size() + ", evictions = " +
+				   evictionsCount + ", rejections = " + rejectionsCount;
+		}
 	}
 	
 	//Get the Log4j logger object
 	private static final Logger logger = Logger.getLogger( ServerDataFileCache.class );
 	
+	//All of the created caches, for the clean-up and the statistics
+	private static final List<ServerDataFileCache> caches = new CopyOnWriteArrayList<ServerDataFileCache>();
+	
 	//The name of the cache instance, is used for logging
 	private final String cacheName;
-	//The maximum amount of data in bytes that this cache is supposed to store
-	private final int maxCacheCapacityInBytes;
 	//The maximum time interval for which this cache is supposed
 	//to store the files after it's last download by the client, in milliseconds
 	private final long maxStoreTimeIntervalMillisec;
@@ -68,78 +278,59 @@ public class ServerDataFileCache {
 	
 	//The last time the files were cleaned-up in milliseconds
 	private long lastCleanUpTimeMillisec = System.currentTimeMillis();
-	//The current memory in bytes used by the cache data
-	private double usedCacheMemoryInBytes = 0;
-	//The map from the file id to the file cache wrapper, we use the ordered map for the cache clean-up purposes
-	private final Map<Integer, CacheDataWrapper> filesCacheMap = new LinkedHashMap<Integer, CacheDataWrapper>();
+	//The map from the file id to the file cache entry
+	private final ConcurrentHashMap<Integer, CacheEntry> filesCacheMap = new ConcurrentHashMap<Integer, CacheEntry>();
+	//The cached thumbnails and file data
+	private final DataRegion thumbnails;
+	private final DataRegion files;
 	
 	/**
 	 * The basic constructor
-	 * @param maxCapacityMb the maximum amount of data in Mb that this cache is supposed to store
+	 * @param maxThumbnailsCapacityMb the maximum amount of thumbnails data in Mb that this cache is supposed to store
+	 * @param maxFilesCapacityMb the maximum amount of file data in Mb that this cache is supposed to store
 	 * @param maxStoreTimeIntervalMinutes the maximum time interval for which this cache is supposed
 	 * to store the files after it's last use by the client, in minutes
 	 * @param cleanUpTimeIntervalMinutes the time interval in minutes between the cache clean-ups
 	 * @param cacheName the name of the cache instance, used for logging.
 	 */
-	public ServerDataFileCache( final int maxCapacityMb, final long maxStoreTimeIntervalMinutes,
-								final long cleanUpTimeIntervalMinutes, final String cacheName) {
-		this.maxCacheCapacityInBytes = BYTES_IN_ONE_MEGABYTE * maxCapacityMb; //1024 * 1024 * maxCapacityMb
+	public ServerDataFileCache( final int maxThumbnailsCapacityMb, final int maxFilesCapacityMb,
+								final long maxStoreTimeIntervalMinutes, final long cleanUpTimeIntervalMinutes,
+								final String cacheName) {
+		this.thumbnails = new DataRegion( "thumbnail", true, ( (long) BYTES_IN_ONE_MEGABYTE ) * maxThumbnailsCapacityMb );
+		this.files = new DataRegion( "file data", false, ( (long) BYTES_IN_ONE_MEGABYTE ) * maxFilesCapacityMb );
 		this.maxStoreTimeIntervalMillisec = 60000 * maxStoreTimeIntervalMinutes;
 		this.cleanUpTimeIntervalMillisec = 60000 * cleanUpTimeIntervalMinutes;
 		this.cacheName = cacheName + " cache: ";
+		caches.add( this );
 	}
 	
 	/**
-	 * Allows to remove the file from the cache
-	 * @param iter the iterator pointing at the current file wrapper that has to be removed
-	 * @param fileDataWrapper the file wrapper for the file that has to be removed
+	 * Allows to remove the entry from the cache, together with its data
+	 * @param entry the entry to be removed
 	 */
-	private void removeFile(final Iterator<CacheDataWrapper> iter, final CacheDataWrapper fileDataWrapper) {
-		debug( "The file " + fileDataWrapper.fileData.fileID + " is not needed any more,  removing it from " +
-			   "the cache, size: " + fileDataWrapper.fileDataSizeInBytes / BYTES_IN_ONE_MEGABYTE + "Mb" );
-		//Remove the file data from the map
-		iter.remove();
-		//Decrement the memory usage
-		usedCacheMemoryInBytes -= fileDataWrapper.fileDataSizeInBytes;
+	private void removeEntry( final CacheEntry entry ) {
+		thumbnails.release( entry.thumbnailSlot );
+		files.release( entry.fileSlot );
 	}
 	
 	/**
-	 * Should be periodically called to initiate the cache clean-up
-	 * @param forceCleanUp if true then we do the clean-up even if it is not yet time for it
-	 * @param requiredFreeSpaceInBytes if forceCleanUp == true then this defines the amount of memory we need to be freed
+	 * Should be periodically called to initiate the cache clean-up, removes the
+	 * files that were not used for longer than the maximum store time interval.
 	 */
-	private synchronized void clean( final boolean forceCleanUp, final double requiredFreeSpaceInBytes ) {
-		if( forceCleanUp || ( System.currentTimeMillis() > lastCleanUpTimeMillisec + cleanUpTimeIntervalMillisec ) ) {
+	public synchronized void clean() {
+		if( System.currentTimeMillis() > lastCleanUpTimeMillisec + cleanUpTimeIntervalMillisec ) {
 			info( "Initiating the cache clean-up");
-			final double currentUsedCacheMemory = usedCacheMemoryInBytes;
+			final long currentUsedCacheMemory = thumbnails.usedCapacityInBytes + files.usedCapacityInBytes;
 			
-			//Go through the files and do the clean-up of the non-used ones
-			final Iterator<CacheDataWrapper> iter = filesCacheMap.values().iterator();
-			if( forceCleanUp && requiredFreeSpaceInBytes > 0.0 ) {
-				debug("Performing a forced clean-up");
-				//If this is a forced clean-up then we remove the files that were added
-				//earlier this is simple because we use an ordered map, but we only free
-				//as much space as it is required by the second method's argument
-				while( iter.hasNext() ) {
-					CacheDataWrapper fileDataWrapper = iter.next();
-					//Remove the first file in the list
-					removeFile( iter, fileDataWrapper );
-					//Check if the freed memory is large enough
-					if( maxCacheCapacityInBytes - usedCacheMemoryInBytes > requiredFreeSpaceInBytes ) {
-						//if we acquired enough free memory then we just stop cleaning
-						break;
-					}
-				}
-			} else {
-				debug("Performing a scheduled clean-up");
-				//If this is not a forced clean up, then we just remove the old files
-				final long currentTimeMillisec = System.currentTimeMillis();
-				while( iter.hasNext() ) {
-					CacheDataWrapper fileDataWrapper = iter.next();
-					if( currentTimeMillisec - fileDataWrapper.lastUsedTimeMillisec > maxStoreTimeIntervalMillisec ) {
-						//The file was not used for too long, remove it
-						removeFile( iter, fileDataWrapper );
-					}
+			//Remove the files that were not used for too long
+			final long currentTimeMillisec = System.currentTimeMillis();
+			final Iterator<CacheEntry> iter = filesCacheMap.values().iterator();
+			while( iter.hasNext() ) {
+				CacheEntry entry = iter.next();
+				if( currentTimeMillisec - entry.lastUsedTimeMillisec > maxStoreTimeIntervalMillisec ) {
+					debug( "The file " + entry.descriptor.fileID + " is not needed any more, removing it from the cache" );
+					iter.remove();
+					removeEntry( entry );
 				}
 			}
 			
@@ -147,7 +338,7 @@ public class ServerDataFileCache {
 			lastCleanUpTimeMillisec = System.currentTimeMillis();
 			
 			info( "The cache clean up is done, freed space is: " +
-			 	  ( currentUsedCacheMemory - usedCacheMemoryInBytes ) / BYTES_IN_ONE_MEGABYTE + "Mb" );
+				  toMb( currentUsedCacheMemory - thumbnails.usedCapacityInBytes - files.usedCapacityInBytes ) + "Mb" );
 		} else {
 			debug( "The cache clean up was skipped as the current time is " + System.currentTimeMillis() +
 				   " the last clean up time was " + lastCleanUpTimeMillisec +
@@ -156,28 +347,26 @@ public class ServerDataFileCache {
 	}
 	
 	/**
-	 * Should be periodically called to initiate the cache clean-up
-	 */
-	private synchronized void clean() {
-		clean( false, 0.0 );
-	}
-	
-	/**
-	 * Allows to retrieve the file from the cache by its ID
+	 * Allows to retrieve the file from the cache by its ID, this method does not lock.
 	 * @param fileID the id of the file to be retrieved
-	 * @return the fine data or null if the file is not in the cache
+	 * @param isThumbnail true if the thumbnail is needed, otherwise the file data
+	 * @return the cached file or null if the file or its requested data is not in the cache
 	 */
-	public synchronized FileData get( final int fileID ) {
-		debug( "Retrieving file " + fileID );
+	public CachedFile get( final int fileID, final boolean isThumbnail ) {
+		final DataRegion region = isThumbnail ? thumbnails : files;
 		//Get the file data from the map
-		CacheDataWrapper fileDataWrapper = filesCacheMap.get( fileID );
+		final CacheEntry entry = filesCacheMap.get( fileID );
+		final DataSlot slot = ( entry != null ) ? ( isThumbnail ? entry.thumbnailSlot : entry.fileSlot ) : null;
 		//Mark the file as being used now and return it
-		if( fileDataWrapper != null ) {
-			debug( "The file " + fileID + " is in cache" );
-			fileDataWrapper.lastUsedTimeMillisec = System.currentTimeMillis();
-			return fileDataWrapper.fileData;
+		if( slot != null ) {
+			debug( "The " + region.regionName + " of file " + fileID + " is in cache" );
+			region.hitsCount.incrementAndGet();
+			slot.isReferenced = true;
+			entry.lastUsedTimeMillisec = System.currentTimeMillis();
+			return new CachedFile( entry.descriptor, ( slot.data != null ) ? slot.data.duplicate() : null, slot.dataMD5 );
 		} else {
-			info( "The file " + fileID + " is not in cache" );
+			debug( "The " + region.regionName + " of file " + fileID + " is not in cache" );
+			region.missesCount.incrementAndGet();
 			return null;
 		}
 	}
@@ -185,73 +374,100 @@ public class ServerDataFileCache {
 	/**
 	 * Allows to remove the file from the cache by its ID
 	 * @param fileID the id of the file to be removed
-	 * @return the removed file data stored in the cache or null if the file was not found
+	 * @return true if the file was removed, false if it was not found
 	 */
-	public synchronized FileData remove( final int fileID ) {
+	public synchronized boolean remove( final int fileID ) {
 		debug( "We are asked to remove the file " + fileID + " from the cache" );
 		//Remove the file data from the map
-		CacheDataWrapper fileDataWrapper = filesCacheMap.remove( fileID );
+		CacheEntry entry = filesCacheMap.remove( fileID );
 		//Check if the file was removed, i.e. if it was even present
-		if( fileDataWrapper != null ) {
+		if( entry != null ) {
+			removeEntry( entry );
 			debug( "The file " + fileID + " is removed from the cache" );
-			//Decrement the memory usage
-			usedCacheMemoryInBytes -= fileDataWrapper.fileDataSizeInBytes;
-			debug( "The removed file " + fileID + " was using " + ( fileDataWrapper.fileDataSizeInBytes / BYTES_IN_ONE_MEGABYTE ) + "Mb of cache" );
-			//return the removed file data
-			return fileDataWrapper.fileData;
+			return true;
 		} else {
 			info( "Could not remove the file " + fileID + " from the cache as it is not there" );
-			//The file is not in the cache, we just return null
-			return null;
+			//The file is not in the cache
+			return false;
 		}
 	}
 	
 	/**
-	 * Allows to put file to cache, NOTE: the file ID must be set!
+	 * Allows to put file to cache, NOTE: the file ID must be set! If the file is already
+	 * in the cache then only its evicted data is put back. The file data is copied, so
+	 * the provided object is not modified and can still be used by the caller.
 	 * @param fileData the file data to be put to cache
 	 */
-	public synchronized void put( FileData fileData ) {
-		//First do the periodic cache cleaning
-		clean();
-		
+	public synchronized void put( final FileData fileData ) {
 		//Check if the provided file is well defined
 		if( fileData != null && fileData.fileID != ShortFileDescriptor.UNKNOWN_FILE_ID ) {
-			info( "Trying to put the file " + fileData.fileID + " into " );
-			if( ! filesCacheMap.containsKey( fileData.fileID ) ) {
-				//If the cached file is not in cache:
-				
-				//1. Create and initialize the cache wrapper
-				CacheDataWrapper fileDataWrapper = new CacheDataWrapper();
-				fileDataWrapper.fileData = fileData;
-				fileDataWrapper.fileDataSizeInBytes = ( fileData.thumbnailData == null ? 0.0 : fileData.thumbnailData.length ) +
-													  ( fileData.fileData == null ? 0.0 : fileData.fileData.length );
-				debug( "The file " + fileData.fileID + " has size " + fileDataWrapper.fileDataSizeInBytes / BYTES_IN_ONE_MEGABYTE + "Mb");
-				
-				//2. Check if we are over the maximum memory for the cached files
-				if( usedCacheMemoryInBytes + fileDataWrapper.fileDataSizeInBytes > maxCacheCapacityInBytes ) {
-					info( "If the file " + fileData.fileID + " is added, then we are over the maximum memory. Try doing the clean-up first " );
-					//Try to do the cache clean-up
-					clean( true, fileDataWrapper.fileDataSizeInBytes );
-					//Check one more time
-					if( usedCacheMemoryInBytes + fileDataWrapper.fileDataSizeInBytes > maxCacheCapacityInBytes ) {
-						error( "After the forced cache clean-up, we are still over the required maximum " +
-							  "cache size, the file " + fileData.fileID + " will not be cached" );
-						return;
-					}
-				}
-				
-				//3. Add the file to the cache, updating the used cache memory data
-				usedCacheMemoryInBytes += fileDataWrapper.fileDataSizeInBytes;
-				info("Adding file " + fileData.fileID + " to cache, the new used cache memory is about " + usedCacheMemoryInBytes / BYTES_IN_ONE_MEGABYTE + "Mb" );
-				filesCacheMap.put( fileData.fileID, fileDataWrapper );
-			} else {
-				info( "The file " + fileData.fileID + " is already inside" );
+			debug( "Trying to put the file " + fileData.fileID + " into the cache" );
+			CacheEntry entry = filesCacheMap.get( fileData.fileID );
+			if( entry == null ) {
+				entry = new CacheEntry( fileData.cloneFileDescriptor() );
+				filesCacheMap.put( fileData.fileID, entry );
+			}
+			if( entry.thumbnailSlot == null ) {
+				entry.thumbnailSlot = thumbnails.allocate( entry, fileData.thumbnailData, fileData.thumbnailDataMD5 );
+			}
+			if( entry.fileSlot == null ) {
+				entry.fileSlot = files.allocate( entry, fileData.fileData, fileData.fileDataMD5 );
 			}
 		} else {
 			warn( "Trying to put a NULL file or a file with unknown id" );
 		}
 	}
 	
+	/**
+	 * @param isThumbnail true for the thumbnails, false for the file data
+	 * @return the amount of the thumbnails or the file data memory used by this cache, in bytes
+	 */
+	public long getUsedCapacityInBytes( final boolean isThumbnail ) {
+		return ( isThumbnail ? thumbnails : files ).usedCapacityInBytes;
+	}
+	
+	/**
+	 * @param isThumbnail true for the thumbnails, false for the file data
+	 * @return the hit ratio, from 0.0 to 1.0, of the thumbnail or the file data retrievals
+	 */
+	public double getHitRatio( final boolean isThumbnail ) {
+		final DataRegion region = isThumbnail ? thumbnails : files;
+		final long hits = region.hitsCount.get();
+		final long requests = hits + region.missesCount.get();
+		return ( requests > 0 ) ? ( (double) hits ) / requests : 0.0;
+	}
+	
+	/**
+	 * @return the statistics of the cache
+	 */
+	public synchronized String getStatistics() {
+		return cacheName + "files = " + filesCacheMap.size() + "; " + thumbnails.getStatistics() + "; " + files.getStatistics();
+	}
+	
+	/**
+	 * Does the periodic clean-up of all of the created caches
+	 */
+	public static void cleanAll() {
+		for( ServerDataFileCache cache : caches ) {
+			cache.clean();
+		}
+	}
+	
+	/**
+	 * @return the statistics of all of the created caches, one line per cache
+	 */
+	public static List<String> getAllStatistics() {
+		List<String> statistics = new ArrayList<String>();
+		for( ServerDataFileCache cache : caches ) {
+			statistics.add( cache.getStatistics() );
+		}
+		return statistics;
+	}
+	
+	private static double toMb( final long bytes ) {
+		return ( (double) bytes ) / BYTES_IN_ONE_MEGABYTE;
+	}
+	
 	private void debug( final String text ) {
 		logger.debug( cacheName + text );
 	}
@@ -43,7 +43,7 @@ public class Top10UserDataCache {
 	public static final int MAXIMUM_CACHED_PAGE_INDEX = 100;
 	
 	//The interval of time after which the cache will be flushed
-	private static final long CACHE_CLEAN_UP_INTERVAL_MILLISEC = 60 * 60 * 1000; 
+	public static final long CACHE_CLEAN_UP_INTERVAL_MILLISEC = 60 * 60 * 1000; 
 
 	//Get the Log4j logger object
 	private static final Logger logger = Logger.getLogger( Top10UserDataCache.class );
@@ -81,8 +81,7 @@ public class Top10UserDataCache {
 		final String infoStr = " for TOP10 search: search type " + searchParams.search_type + " page index " + searchParams.pageIndex;
 		logger.info("Retrieving user data" + infoStr );
 		
-		//Flush the cache data if needed
-		flushCachedData( false );
+		//NOTE: The cache data is flushed periodically by the MaintenanceScheduler
 		
 		//Get the search type specific cached data
 		final Map<Integer,OnePageViewData<?>> specificCache;
@@ -185,9 +184,10 @@ public class Top10UserDataCache {
 		logger.info( "Checking the TOP10 user data cache for the need of being cleaned up, is forced = " + isForce );
 		synchronized( this ) {
 			final long currentTimeMillised = System.currentTimeMillis();
-			if( isForce || ( nextCacheCleanUpMillisec > currentTimeMillised ) ) {
+			if( isForce || ( nextCacheCleanUpMillisec <= currentTimeMillised ) ) {
 				//If it is time to clean-up the cache
 				logger.debug("Starting the TOP10 user data cache clean up" );
+				nextCacheCleanUpMillisec = currentTimeMillised + CACHE_CLEAN_UP_INTERVAL_MILLISEC;
 				synchronized( dataHolder ) {
 					//Unregister all the instances of the ShortUserData class in the internal cache
 					Set<Top10SearchData.SearchTypes> vacheTypes = dataHolder.keySet();
@@ -22,6 +22,7 @@
 package com.xcurechat.server.core;
 
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.ArrayList;
@@ -29,6 +30,7 @@ import java.util.Map;
 import java.util.Set;
 import java.util.Iterator;
 import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 
@@ -37,16 +39,15 @@ import com.xcurechat.client.data.ChatRoomDataUpdate;
 import com.xcurechat.client.data.ChatMessage;
 import com.xcurechat.client.data.RoomUserAccessData;
 import com.xcurechat.client.data.ShortUserData;
+import com.xcurechat.client.data.ShortFileDescriptor;
 import com.xcurechat.client.rpc.exceptions.RoomAccessException;
 import com.xcurechat.client.rpc.exceptions.SiteException;
 import com.xcurechat.client.userstatus.UserStatusType;
 
 import com.xcurechat.server.jdbc.ConnectionWrapper;
-import com.xcurechat.server.jdbc.rooms.ResetRoomVisitorsExecutor;
-import com.xcurechat.server.jdbc.rooms.UpdateRoomVisitorsExecutor;
 import com.xcurechat.server.jdbc.rooms.SelectRoomVisirotsExecutor;
 import com.xcurechat.server.jdbc.chat.GetRoomMessagesUpdateExecutor;
-import com.xcurechat.server.jdbc.chat.InsertNewChatMessageExecutor;
+import com.xcurechat.server.jdbc.chat.InsertChatInfoMessagesExecutor;
 
 /**
  * @author zapreevis
@@ -64,6 +65,9 @@ public class ActiveChatRoom {
 	private Map<Integer, Integer> roomAccessIdToUserID = Collections.synchronizedMap( new HashMap<Integer, Integer>() );
 	//The set of visible room users
 	private Map<Integer, ShortUserData> visibleUsers = Collections.synchronizedMap( new HashMap<Integer, ShortUserData>() );
+	//The snapshot of the visible room users and of their recent changes, it is re-created on every
+	//change of visibleUsers and is never modified afterwards, so it is shared by all the room-data updates
+	private volatile VisibleUsersState visibleUsersState = new VisibleUsersState();
 	//The mapping between the user IDs and their access-rights holders
 	private Map<Integer, UserRoomAccessManager> userIDToUserRoomAccessManager = Collections.synchronizedMap( new HashMap<Integer, UserRoomAccessManager>() ); 
 	
@@ -101,6 +105,11 @@ public class ActiveChatRoom {
 	 * @param msg the optional message, can be used to store supplementary data
 	 */
 	protected void addUserRoomInfoMessage( final ShortUserData userData, final ChatMessage.Types messageType, final String msg ) {
+		//This is called while holding the visible users lock, so if there are
+		//too many pending info messages then the message is dropped
+		if( ! ChatRoomsWriteBehindManager.getInstance().canAddInfoMessage( roomID ) ) {
+			return;
+		}
 		try {
 			ChatMessage message = new ChatMessage();
 			//To avoid uncertainty and introducing the system user
@@ -111,8 +120,12 @@ public class ActiveChatRoom {
 			message.infoUserLogin = userData.getUserLoginName();
 			message.messageType = messageType;
 			message.messageBody = msg;
-			ConnectionWrapper<Void> insertChatMessageConnWrap = ConnectionWrapper.createConnectionWrapper( new InsertNewChatMessageExecutor( message ) );
-			insertChatMessageConnWrap.executeQuery( ConnectionWrapper.XCURE_CHAT_DB );
+			message.sentDate = new Date();
+			//The message is inserted into the DB by the write-behind manager
+			synchronized( pendingInfoMessages ) {
+				pendingInfoMessages.add( message );
+			}
+			ChatRoomsWriteBehindManager.getInstance().scheduleInfoMessage( this );
 		} catch (Throwable e){
 			logger.error( "Exception while adding a chat-room info message of type " + messageType +
 						  " for room " + roomID + " and user " + userData.getUID(), e);
@@ -131,13 +144,9 @@ public class ActiveChatRoom {
 			synchronized( visibleUsers ) {
 				if( !visibleUsers.containsKey( userData.getUID() ) ) {
 					visibleUsers.put( userData.getUID(), userData );
+					onVisibleUserChange( userData.getUID() );
 					//Increment the number of room visitors
-					try {
-						ConnectionWrapper<Void> updateVisitorsConnWrap = ConnectionWrapper.createConnectionWrapper( new UpdateRoomVisitorsExecutor( roomID, true ) );
-						updateVisitorsConnWrap.executeQuery( ConnectionWrapper.XCURE_CHAT_DB );
-					} catch (Throwable e){
-						logger.error( "Exception while incrementing the number of visitors in room " + roomID, e);
-					}
+					ChatRoomsWriteBehindManager.getInstance().addRoomVisitorsDelta( roomID, +1 );
 					//Place the chat message about the user entering the room
 					addUserRoomInfoMessage( userData, ChatMessage.Types.USER_ROOM_ENTER_INFO_MESSAGE_TYPE );
 				}
@@ -158,6 +167,8 @@ public class ActiveChatRoom {
 		//If the user is in the list of visible users then do the notification
 		synchronized( visibleUsers ) {
 			if( visibleUsers.containsKey( userData.getUID() ) ) {
+				//The room users have to get the new user data
+				onVisibleUserChange( userData.getUID() );
 				//Place the chat message about the user changing his status
 				addUserRoomInfoMessage( userData, ChatMessage.Types.USER_STATUS_CHAGE_INFO_MESSAGE_TYPE, "" + newUserStatus.getId() );
 			}
@@ -179,13 +190,9 @@ public class ActiveChatRoom {
 		synchronized( visibleUsers ) {
 			if( visibleUsers.containsKey( userID ) ) { 
 				visibleUsers.remove( userID );
+				onVisibleUserChange( userID );
 				//Decrement the number of visible room visitors
-				try {
-					ConnectionWrapper<Void> updateVisitorsConnWrap = ConnectionWrapper.createConnectionWrapper( new UpdateRoomVisitorsExecutor( roomID, false ) );
-					updateVisitorsConnWrap.executeQuery( ConnectionWrapper.XCURE_CHAT_DB );
-				} catch (Throwable e){
-					logger.error( "Exception while decrementing the number of visitors in room " + roomID, e);
-				}
+				ChatRoomsWriteBehindManager.getInstance().addRoomVisitorsDelta( roomID, -1 );
 				final ShortUserData userData = UserSessionManager.getUserDataObject(userID);
 				if( userData != null ) {
 					//Place the chat message about the user leaving the room
@@ -205,6 +212,66 @@ public class ActiveChatRoom {
 	private final int ownerID;
 	private boolean isPublic;
 	
+	//The log of the recent room messages, used to answer the room-data updates without the DB
+	private final ChatRoomMessagesLog messagesLog;
+	//The synchronization object used to serialize the message insertions into the
+	//DB, this makes the messages be appended to the log in the order of their IDs
+	private final Object messageInsertSynchObj = new Object();
+	//The info messages waiting to be inserted into the DB by the write-behind manager
+	private final List<ChatMessage> pendingInfoMessages = new ArrayList<ChatMessage>();
+	
+	//The version of the room's data, it is incremented every time the room update is published
+	private long updateVersion = 0;
+	//The objects of the threads waiting for the room's update, the set is also used for synchronization
+	private final Set<Object> updateWaiters = new HashSet<Object>();
+	
+	/**
+	 * @return the current version of the room's data, changes every time the room update is published
+	 */
+	public long getUpdateVersion() {
+		synchronized( updateWaiters ) {
+			return updateVersion;
+		}
+	}
+	
+	/**
+	 * Allows to register the waiter object that will be notified, by calling notifyAll() on
+	 * it, every time there is a room's update published. The waiter has to be removed after use.
+	 * @param waiter the object the waiting thread is waiting on
+	 */
+	public void addUpdateWaiter( final Object waiter ) {
+		synchronized( updateWaiters ) {
+			updateWaiters.add( waiter );
+		}
+	}
+	
+	/**
+	 * Allows to remove the previously registered update waiter
+	 * @param waiter the object the waiting thread was waiting on
+	 */
+	public void removeUpdateWaiter( final Object waiter ) {
+		synchronized( updateWaiters ) {
+			updateWaiters.remove( waiter );
+		}
+	}
+	
+	/**
+	 * Increments the version of the room's data and wakes up all the threads waiting for the room's update.
+	 * Should be called every time a new message is placed into the room, the visible users change or the room is closed.
+	 */
+	private void publishRoomUpdate() {
+		final Object[] waiters;
+		synchronized( updateWaiters ) {
+			updateVersion++;
+			waiters = updateWaiters.toArray();
+		}
+		for( Object waiter : waiters ) {
+			synchronized( waiter ) {
+				waiter.notifyAll();
+			}
+		}
+	}
+	
 	/**
 	 * Simple constructor
 	 * @param roomData this data is not stored, but we use the OwnerID, the roomID and the isPublic status 
@@ -214,6 +281,8 @@ public class ActiveChatRoom {
 		ownerID = roomData.getOwnerID();
 		roomID = roomData.getRoomID();
 		isPublic = roomData.isPublic();
+		//Create the log of the room messages
+		messagesLog = new ChatRoomMessagesLog( roomID );
 		//Make sure that the owner-to room mapping is set
 		Set<Integer> activeOwnerRoomIds = null;
 		synchronized( ownerIdToRoomId ) {
@@ -228,6 +297,13 @@ public class ActiveChatRoom {
 		activeOwnerRoomIds.add( roomData.getRoomID() );
 	}
 	
+	/**
+	 * @return Returns the ID of the room
+	 */
+	public int getRoomID(){
+		return roomID;
+	}
+	
 	/**
 	 * @return Returns the ID of the room owner
 	 */
@@ -382,19 +458,161 @@ public class ActiveChatRoom {
 		}
 	}
 	
+	//The maximum number of the visible users' changes stored for sending them to the room users
+	private static final int MAX_NUMBER_OF_LOGGED_VISIBLE_USERS_CHANGES = 64;
+	//The time interval in millisec after which the room users get the complete set of visible users
+	//again, this way the user data that changes without notifying the room, e.g. the number of sent
+	//messages or the avatar spoiler, does not stay outdated on the client for too long
+	private static final long VISIBLE_USERS_FULL_UPDATE_INTERVAL_MILLISEC = 60000;
+	//The counter used for generating the visible users versions, the versions are unique for all
+	//the rooms, so the version obtained from the closed room is never valid in the re-opened one
+	private static final AtomicInteger visibleUsersVersionsCounter = new AtomicInteger( 0 );
+	
+	/**
+	 * @author zapreevis
+	 * The immutable snapshot of the visible room users and of the log of their recent changes.
+	 * Every change of the visible users gets a new version, the change is logged as the ID of
+	 * the user that became visible, invisible or changed his data. Whether the user has left
+	 * or entered the room is determined by the presence of the user in the visible users.
+	 */
+	private static final class VisibleUsersState {
+		//The visible room users
+		public final Map<Integer, ShortUserData> users;
+		//The current version of the visible users
+		public final int version;
+		//All the changes made after this version are present in the log
+		public final int changesStartVersion;
+		//The IDs of the changed users, ordered by the versions of the changes
+		public final int[] changedUserIDs;
+		//The versions of the changes
+		public final int[] changeVersions;
+		//The time in millisec when the log was started
+		public final long changesStartTime;
+		
+		/**
+		 * Creates the state with no visible users and an empty changes log
+		 */
+		public VisibleUsersState() {
+			this( new HashMap<Integer, ShortUserData>(), visibleUsersVersionsCounter.incrementAndGet() );
+		}
+		
+		/**
+		 * Creates the state with the given visible users, a new version and an empty changes log
+		 * @param users the visible users, the map is not copied
+		 * @param version the new version
+		 */
+		public VisibleUsersState( final Map<Integer, ShortUserData> users, final int version ) {
+			this.users = users;
+			this.version = version;
+			this.changesStartVersion = version;
+			this.changedUserIDs = new int[0];
+			this.changeVersions = new int[0];
+			this.changesStartTime = System.currentTimeMillis();
+		}
+		
+		/**
+		 * Creates the state following the given one, with the given user change logged
+		 * @param previous the previous state
+		 * @param users the new visible users, the map is not copied
+		 * @param userID the id of the changed user
+		 */
+		public VisibleUsersState( final VisibleUsersState previous, final Map<Integer, ShortUserData> users, final int userID ) {
+			this.users = users;
+			this.version = visibleUsersVersionsCounter.incrementAndGet();
+			this.changesStartTime = previous.changesStartTime;
+			//Evict the oldest change if the log is full, then the log starts after its version
+			final int first = ( previous.changedUserIDs.length == MAX_NUMBER_OF_LOGGED_VISIBLE_USERS_CHANGES ) ? 1 : 0;
+			this.changesStartVersion = ( first == 0 ) ? previous.changesStartVersion : previous.changeVersions[0];
+			final int length = previous.changedUserIDs.length - first;
+			this.changedUserIDs = new int[ length + 1 ];
+			this.changeVersions = new int[ length + 1 ];
+			System.arraycopy( previous.changedUserIDs, first, changedUserIDs, 0, length );
+			System.arraycopy( previous.changeVersions, first, changeVersions, 0, length );
+			changedUserIDs[ length ] = userID;
+			changeVersions[ length ] = version;
+		}
+	}
+	
+	/**
+	 * Must be called on every change of the visible users, re-creates the visible users' state
+	 * and wakes up the waiting room-data update requests, so they do not have to rely on the
+	 * deferred info messages which may be dropped.
+	 * WARNING: Must be called while holding the visibleUsers lock!
+	 * @param userID the id of the user that became visible, invisible or changed his data
+	 */
+	private void onVisibleUserChange( final int userID ) {
+		visibleUsersState = new VisibleUsersState( visibleUsersState, new HashMap<Integer, ShortUserData>( visibleUsers ), userID );
+		publishRoomUpdate();
+	}
+	
+	/**
+	 * Allows to get the current state of the visible users, if the changes log was started more than
+	 * VISIBLE_USERS_FULL_UPDATE_INTERVAL_MILLISEC ago then the log is restarted with the new version.
+	 * WARNING: The returned state is shared between all the room-data updates and must not be modified!
+	 * @return the state of the visible users residing in the room
+	 */
+	private VisibleUsersState getVisibleUsersState() {
+		VisibleUsersState state = visibleUsersState;
+		if( System.currentTimeMillis() > state.changesStartTime + VISIBLE_USERS_FULL_UPDATE_INTERVAL_MILLISEC ) {
+			synchronized( visibleUsers ) {
+				state = visibleUsersState;
+				if( System.currentTimeMillis() > state.changesStartTime + VISIBLE_USERS_FULL_UPDATE_INTERVAL_MILLISEC ) {
+					state = new VisibleUsersState( state.users, visibleUsersVersionsCounter.incrementAndGet() );
+					visibleUsersState = state;
+				}
+			}
+		}
+		return state;
+	}
+	
 	/**
-	 * @return the set of short user data objects for the visible users residing in the room
+	 * Allows to put the visible users update into the room-data update. If the visible users version known
+	 * to the client is the current one then nothing is sent. If all the changes made after the client's
+	 * version are logged then only the entered, left and changed users are sent. Otherwise the complete
+	 * set of the visible users is sent. The current version is stored in data.visibleUsersVersions.
+	 * @param data the object to fill the visible users update into
 	 */
-	private Map<Integer, ShortUserData> getVisibleRoomUsers() {
-		Map<Integer, ShortUserData> result = new HashMap<Integer, ShortUserData>();
-		synchronized( visibleUsers ){
-			result.putAll( visibleUsers );
+	private void putVisibleUsersUpdate( final ChatRoomDataUpdate data ) {
+		final VisibleUsersState state = getVisibleUsersState();
+		final Integer knownVersion = data.visibleUsersVersions.get( roomID );
+		if( ( knownVersion == null ) || ( knownVersion < state.changesStartVersion ) || ( knownVersion > state.version ) ) {
+			//The client's version is unknown or is not from the log, send all the visible users
+			data.roomIDToVisibleUsers.put( roomID, state.users );
+		} else if( knownVersion < state.version ) {
+			//Send the users changed after the client's version, the changes are ordered by their versions
+			Map<Integer, ShortUserData> updatedUsers = new HashMap<Integer, ShortUserData>();
+			List<Integer> leftUserIDs = new ArrayList<Integer>();
+			Set<Integer> changedUserIDs = new HashSet<Integer>();
+			for( int i = state.changeVersions.length - 1; ( i >= 0 ) && ( state.changeVersions[i] > knownVersion ); i-- ) {
+				final int userID = state.changedUserIDs[i];
+				if( changedUserIDs.add( userID ) ) {
+					final ShortUserData userData = state.users.get( userID );
+					if( userData != null ) {
+						updatedUsers.put( userID, userData );
+					} else {
+						leftUserIDs.add( userID );
+					}
+				}
+			}
+			if( ! updatedUsers.isEmpty() ) {
+				data.roomIDToUpdatedVisibleUsers.put( roomID, updatedUsers );
+			}
+			if( ! leftUserIDs.isEmpty() ) {
+				data.roomIDToLeftVisibleUsers.put( roomID, leftUserIDs );
+			}
 		}
-		return result;
+		data.visibleUsersVersions.put( roomID, state.version );
+	}
+	
+	/**
+	 * @return true if there are visible users inside the room
+	 */
+	public boolean hasVisibleUsers() {
+		return ! visibleUsersState.users.isEmpty();
 	}
 	
 	//The time in millisec when we checked for idle users
-	private long lastIdleUsersCheck = System.currentTimeMillis();
+	private volatile long lastIdleUsersCheck = System.currentTimeMillis();
 	
 	/**
 	 * Allows to detect and remove idle users from the chat room.
@@ -403,6 +621,10 @@ public class ActiveChatRoom {
 	public void cleanUpIdleUsers(final boolean forceClean) {
 		//This set will be filled with the users scheduled for removal
 		Set<Integer> usersToRemove = null;
+		//Do not lock on every room-data update if it is not yet time to check
+		if( ! forceClean && System.currentTimeMillis() <= ( lastIdleUsersCheck + UserRoomAccessManager.USER_IDLE_TIME_OUT_MILLISEC ) ) {
+			return;
+		}
 		synchronized( userIDToUserRoomAccessManager ) {
 			if( forceClean || System.currentTimeMillis() > ( lastIdleUsersCheck + UserRoomAccessManager.USER_IDLE_TIME_OUT_MILLISEC ) ) {
 				logger.debug("Cleaning up IDLE users in room " + roomID );
@@ -432,6 +654,109 @@ public class ActiveChatRoom {
 			
 	}
 	
+	/**
+	 * Allows to insert the pending info messages into the DB and to append them to the room's
+	 * messages log. This method is called by the write-behind manager, but can be called by
+	 * any thread that wants the pending info messages to be visible to the room users.
+	 */
+	public void flushPendingInfoMessages() {
+		final boolean isInserted;
+		synchronized( messageInsertSynchObj ) {
+			isInserted = insertPendingInfoMessages();
+		}
+		if( isInserted ) {
+			publishRoomUpdate();
+		}
+	}
+	
+	/**
+	 * Inserts the pending info messages with one multi-row insert and appends them to the messages log.
+	 * WARNING: Must be called while holding the messageInsertSynchObj lock!
+	 * @return true if there were pending info messages
+	 */
+	private boolean insertPendingInfoMessages() {
+		final List<ChatMessage> messages;
+		synchronized( pendingInfoMessages ) {
+			if( pendingInfoMessages.isEmpty() ) {
+				return false;
+			}
+			messages = new ArrayList<ChatMessage>( pendingInfoMessages );
+			pendingInfoMessages.clear();
+		}
+		ChatRoomsWriteBehindManager.getInstance().onInfoMessagesTaken( messages.size() );
+		
+		try {
+			ConnectionWrapper<Void> insertInfoMessagesConnWrap = ConnectionWrapper.createConnectionWrapper( new InsertChatInfoMessagesExecutor( messages ) );
+			insertInfoMessagesConnWrap.executeQuery( ConnectionWrapper.XCURE_CHAT_DB );
+			for( ChatMessage message : messages ) {
+				messagesLog.appendMessage( message );
+			}
+		} catch ( Throwable e ) {
+			logger.error( "Exception while inserting " + messages.size() + " info messages into room " + roomID, e );
+			//If some of the messages got their IDs then they might be missing in the log
+			final ChatMessage lastMessage = messages.get( messages.size() - 1 );
+			if( lastMessage.messageID != ChatMessage.UNKNOWN_MESSAGE_ID ) {
+				messagesLog.markGap( lastMessage.messageID );
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Allows to insert the chat message into the DB and then to append it to the room's messages
+	 * log. The insertions are serialized so that the messages are logged in the order of their IDs.
+	 * If the message has an attached file then the message is re-read from the DB, because we need
+	 * the complete file descriptor, if this fails then we mark a gap in the messages log.
+	 * @param message the chat message to insert
+	 * @throws SiteException if smth goes wrong while inserting the message
+	 */
+	private void insertChatMessage( final ChatMessage message ) throws SiteException {
+		synchronized( messageInsertSynchObj ) {
+			//The pending info messages were placed before this message so they go first
+			insertPendingInfoMessages();
+			try {
+				ChatMessagesGroupCommitter.getInstance().insertChatMessage( message );
+			} catch ( SiteException e ) {
+				//If the message itself was inserted then it is missing in the log
+				if( message.messageID != ChatMessage.UNKNOWN_MESSAGE_ID ) {
+					messagesLog.markGap( message.messageID );
+				}
+				throw e;
+			}
+			
+			if( ( message.fileDesc != null ) && ( message.fileDesc.fileID != ShortFileDescriptor.UNKNOWN_FILE_ID ) ) {
+				//Get the message with the attached file descriptor from the DB, this
+				//is the only message with the ID larger than ( message.messageID - 1 )
+				ChatMessage loggedMessage = null;
+				try {
+					List<ChatMessage> messages = new ArrayList<ChatMessage>();
+					ConnectionWrapper<List<ChatMessage>> getNewChatMsgsConnWrap = ConnectionWrapper.createConnectionWrapper( new GetRoomMessagesUpdateExecutor( roomID, message.messageID - 1 ) );
+					getNewChatMsgsConnWrap.executeQuery( messages, ConnectionWrapper.XCURE_CHAT_DB );
+					for( ChatMessage newMessage : messages ) {
+						if( newMessage.messageID == message.messageID ) {
+							loggedMessage = newMessage;
+						}
+					}
+				} catch ( SiteException e ) {
+					logger.error( "Exception while retrieving the inserted chat message " + message.messageID + " of room " + roomID, e );
+				}
+				if( loggedMessage != null ) {
+					messagesLog.appendMessage( loggedMessage );
+				} else {
+					messagesLog.markGap( message.messageID );
+				}
+			} else {
+				//Log a copy, just in case the original object is modified later on
+				ChatMessage loggedMessage = message.clone();
+				loggedMessage.fileDesc = null;
+				messagesLog.appendMessage( loggedMessage );
+			}
+		}
+		//Notify the users waiting for the room's update, note that all the user enter/leave and
+		//status change events are accompanied with the info messages, so they are covered here.
+		publishRoomUpdate();
+	}
+	
 	/**
 	 * Allows to send a chat message to the chat room
 	 * @param message the complete chat room message
@@ -441,8 +766,7 @@ public class ActiveChatRoom {
 		UserRoomAccessManager userAccessManager = userIDToUserRoomAccessManager.get( message.senderID );
 		if( userAccessManager != null ) {
 			if( userAccessManager.hasWriteAcces() ) {
-				ConnectionWrapper<Void> insertChatMessageConnWrap = ConnectionWrapper.createConnectionWrapper( new InsertNewChatMessageExecutor( message ) );
-				insertChatMessageConnWrap.executeQuery( ConnectionWrapper.XCURE_CHAT_DB );				
+				insertChatMessage( message );
 			} else {
 				logger.info("User " + message.senderID + " tries to send a message but he does not have right to write to room " + roomID );
 				throw new RoomAccessException( RoomAccessException.THE_USER_IS_NOT_ALLOWED_TO_WRITE_INTO_THE_ROOM_ERROR, ""+roomID );
@@ -457,18 +781,18 @@ public class ActiveChatRoom {
 	 * Allows to get the actual room data, such as the list of visible users and the new messages.
 	 * NOTE: data.nextUpdateOldestMsgIDs should store the mapping from the roomID to the id of
 	 * the last retrieved message, this value is used here and then updated with the new one.
+	 * The same holds for data.visibleUsersVersions and the version of the visible users.
 	 * @param userID the user unique ID
 	 * @param data the object to fill the actual data into
 	 */
 	public void getActualRoomData( final int userID, final ChatRoomDataUpdate data ) {
-		//Clean up Idle users
-		cleanUpIdleUsers( false );
+		//NOTE: The idle users are cleaned up by the MaintenanceScheduler
 		
 		//Retrieve the data
 		UserRoomAccessManager userAccessManager = userIDToUserRoomAccessManager.get( userID );
 		if( userAccessManager != null ) {
 			if( userAccessManager.hasAccessToTheRoom() ) {
-				data.roomIDToVisibleUsers.put( roomID, getVisibleRoomUsers() );
+				putVisibleUsersUpdate( data );
 				
 				//Retrieve the new room messages within the interval
 				//from lastUpdateNewestMsgIDs.get( roomID ) on and then
@@ -478,28 +802,41 @@ public class ActiveChatRoom {
 				Integer lastMessageID = data.nextUpdateOldestMsgIDs.get( roomID );
 				if( lastMessageID == null ) { lastMessageID = ChatMessage.UNKNOWN_MESSAGE_ID; }
 				
-				//Get the new messages from the DB
-				GetRoomMessagesUpdateExecutor executor;
-				if( userAccessManager.hasReadAllAccess() ) {
-					//if the user does have a read all access
-					executor = new GetRoomMessagesUpdateExecutor( roomID, lastMessageID );
-				} else {
-					//If the user does not have a read all access then he must have a regular
-					//read access because userAccessManager.hasAccessToTheRoom() returned true
-					executor = new GetRoomMessagesUpdateExecutor( roomID, userID, lastMessageID);
-				}
+				final boolean isReadAll = userAccessManager.hasReadAllAccess();
 				//Execute the messages retrieval
 				try {
 					List<ChatMessage> messages = new ArrayList<ChatMessage>();
-					ConnectionWrapper<List<ChatMessage>> getNewChatMsgsConnWrap = ConnectionWrapper.createConnectionWrapper( executor );
-					getNewChatMsgsConnWrap.executeQuery( messages, ConnectionWrapper.XCURE_CHAT_DB );
+					//Get the log coverage before querying the DB, all the messages up to it are in the DB already
+					final int coveredAfterMsgID = messagesLog.getCoveredAfterMsgID();
+					//First try to get the new messages from the room's messages log
+					if( ! messagesLog.getMessagesAfter( userID, isReadAll, lastMessageID, messages ) ) {
+						//Get the new messages from the DB
+						GetRoomMessagesUpdateExecutor executor;
+						if( isReadAll ) {
+							//if the user does have a read all access
+							executor = new GetRoomMessagesUpdateExecutor( roomID, lastMessageID );
+						} else {
+							//If the user does not have a read all access then he must have a regular
+							//read access because userAccessManager.hasAccessToTheRoom() returned true
+							executor = new GetRoomMessagesUpdateExecutor( roomID, userID, lastMessageID);
+						}
+						ConnectionWrapper<List<ChatMessage>> getNewChatMsgsConnWrap = ConnectionWrapper.createConnectionWrapper( executor );
+						getNewChatMsgsConnWrap.executeQuery( messages, ConnectionWrapper.XCURE_CHAT_DB );
+					}
 					//Store the retrieved messages in the result
 					data.roomIDToChatMessages.put( roomID, messages);
 					//Update the value of the last retrieved message ID in the result
+					int nextMessageID = lastMessageID;
 					if( messages.size() > 0 ) {
-						//Get the last message and store its id 
+						//Get the last message and take its id 
 						ChatMessage newestMsg = messages.get( messages.size() - 1 );
-						data.nextUpdateOldestMsgIDs.put( roomID, newestMsg.messageID );
+						nextMessageID = newestMsg.messageID;
+					}
+					//Even if there are no new messages, the user has got all of them up to the log's
+					//coverage, so advance to it or the next poll of a quiet room goes to the DB again
+					nextMessageID = Math.max( nextMessageID, coveredAfterMsgID );
+					if( nextMessageID != ChatMessage.UNKNOWN_MESSAGE_ID ) {
+						data.nextUpdateOldestMsgIDs.put( roomID, nextMessageID );
 					}
 				} catch ( SiteException e) {
 					//Place the exception into the error messages
@@ -524,14 +861,13 @@ public class ActiveChatRoom {
 	 * @param resetVisitors if true then we reset the active room's visitors in the DB (to zero)
 	 */
 	public void closeRoom( final boolean resetVisitors ) {
+		//Place the pending info messages into the DB before the room is gone
+		flushPendingInfoMessages();
+		//Wake up the users waiting for the room's update, they will find out that the room is closed
+		publishRoomUpdate();
 		if( resetVisitors ) {
-			//Reset the number of room visitors to zero
-			try {
-				ConnectionWrapper<Void> resetVisitorsConnWrap = ConnectionWrapper.createConnectionWrapper( new ResetRoomVisitorsExecutor( roomID ) );
-				resetVisitorsConnWrap.executeQuery( ConnectionWrapper.XCURE_CHAT_DB );
-			} catch (Throwable e){
-				logger.error( "Exception while resetting room " + roomID + " visitors to zero (on room close)", e);
-			}
+			//Reset the number of room visitors to zero, discarding the pending changes
+			ChatRoomsWriteBehindManager.getInstance().resetRoomVisitors( roomID );
 		}
 	}
 	
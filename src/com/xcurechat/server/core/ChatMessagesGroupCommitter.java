@@ -0,0 +1,160 @@
+/**
+ * X-Cure-Chat
+ * Copyright (C) 2013  Dr. Ivan S. Zapreev
+ * www: https://nl.linkedin.com/in/zapreevis
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.#
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * The server core package.
+ * (C) Ivan S. Zapreev, 2009
+ */
+package com.xcurechat.server.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import com.xcurechat.client.data.ChatMessage;
+import com.xcurechat.client.rpc.exceptions.SiteException;
+
+import com.xcurechat.server.jdbc.ConnectionWrapper;
+import com.xcurechat.server.jdbc.chat.InsertNewChatMessageExecutor;
+
+/**
+ * @author zapreevis
+ * This class implements the optional group commit of the chat messages. The sending threads
+ * queue their messages and then compete for the commit lock, the thread that gets it inserts
+ * all the queued messages, from all the rooms, in one transaction. The other threads find out
+ * that their messages are already inserted and just return. So while one group is being
+ * committed the next group is formed by the concurrent senders. If the group commit is disabled
+ * then every message is inserted on its own.
+ * NOTE: The messages of one room are still inserted one by one, because the ActiveChatRoom
+ * serializes the insertions, thus the IDs of one room's messages are assigned in order.
+ */
+public class ChatMessagesGroupCommitter {
+	//Get the Log4j logger object
+	private static final Logger logger = Logger.getLogger( ChatMessagesGroupCommitter.class );
+	
+	//The maximum number of messages inserted in one group
+	public static final int MAX_NUMBER_OF_MESSAGES_IN_GROUP = 50;
+	
+	/**
+	 * @author zapreevis
+	 * The message waiting to be inserted
+	 */
+	private static class PendingMessage {
+		//The message to insert
+		public final ChatMessage message;
+		//True if the message was processed, successfully or not
+		public boolean isDone = false;
+		//The exception if the insertion failed
+		public SiteException exception = null;
+		
+		public PendingMessage( final ChatMessage message ) {
+			this.message = message;
+		}
+	}
+	
+	//The queue of the messages waiting to be inserted, is also used for synchronization
+	private final List<PendingMessage> pendingMessages = new ArrayList<PendingMessage>();
+	//The synchronization object held by the thread that commits a group
+	private final Object commitSynchObj = new Object();
+	//True if the group commit is enabled
+	private volatile boolean isEnabled = false;
+	
+	private ChatMessagesGroupCommitter() {}
+	
+	//The only instance of the committer
+	private static final ChatMessagesGroupCommitter instance = new ChatMessagesGroupCommitter();
+	
+	/**
+	 * @return the only instance of the group committer
+	 */
+	public static ChatMessagesGroupCommitter getInstance() {
+		return instance;
+	}
+	
+	/**
+	 * Allows to enable or disable the group commit
+	 * @param isEnabled true to enable the group commit
+	 */
+	public void setEnabled( final boolean isEnabled ) {
+		logger.info( "The group commit of the chat messages is " + ( isEnabled ? "enabled" : "disabled" ) );
+		this.isEnabled = isEnabled;
+	}
+	
+	/**
+	 * Inserts the chat message into the DB, possibly together with the messages of the other
+	 * threads. When this method returns the message is committed and has its ID and sent date set.
+	 * @param message the message to insert
+	 * @throws SiteException if the insertion failed
+	 */
+	public void insertChatMessage( final ChatMessage message ) throws SiteException {
+		if( ! isEnabled ) {
+			ConnectionWrapper<Void> insertChatMessageConnWrap = ConnectionWrapper.createConnectionWrapper( new InsertNewChatMessageExecutor( message ) );
+			insertChatMessageConnWrap.executeQuery( ConnectionWrapper.XCURE_CHAT_DB );
+			return;
+		}
+		
+		final PendingMessage pendingMessage = new PendingMessage( message );
+		synchronized( pendingMessages ) {
+			pendingMessages.add( pendingMessage );
+		}
+		
+		synchronized( commitSynchObj ) {
+			//Commit groups until our message is done, one group is normally enough
+			while( ! pendingMessage.isDone ) {
+				commitGroup();
+			}
+		}
+		
+		if( pendingMessage.exception != null ) {
+			throw pendingMessage.exception;
+		}
+	}
+	
+	/**
+	 * Takes the next group of the pending messages and inserts it.
+	 * WARNING: Must be called while holding the commitSynchObj lock!
+	 */
+	private void commitGroup() {
+		final List<PendingMessage> group = new ArrayList<PendingMessage>();
+		synchronized( pendingMessages ) {
+			while( ! pendingMessages.isEmpty() && ( group.size() < MAX_NUMBER_OF_MESSAGES_IN_GROUP ) ) {
+				group.add( pendingMessages.remove( 0 ) );
+			}
+		}
+		
+		final List<ChatMessage> messages = new ArrayList<ChatMessage>();
+		for( PendingMessage pendingMessage : group ) {
+			messages.add( pendingMessage.message );
+		}
+		
+		SiteException exception = null;
+		try {
+			logger.debug( "Committing a group of " + messages.size() + " chat messages" );
+			ConnectionWrapper<Void> insertChatMessagesConnWrap = ConnectionWrapper.createConnectionWrapper( new InsertNewChatMessageExecutor( messages ) );
+			insertChatMessagesConnWrap.executeQuery( ConnectionWrapper.XCURE_CHAT_DB );
+		} catch ( SiteException e ) {
+			logger.error( "Exception while committing a group of " + messages.size() + " chat messages", e );
+			exception = e;
+		}
+		
+		for( PendingMessage pendingMessage : group ) {
+			pendingMessage.exception = exception;
+			pendingMessage.isDone = true;
+		}
+	}
+}
@@ -0,0 +1,205 @@
+/**
+ * X-Cure-Chat
+ * Copyright (C) 2013  Dr. Ivan S. Zapreev
+ * www: https://nl.linkedin.com/in/zapreevis
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.#
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * The server core package.
+ * (C) Ivan S. Zapreev, 2009
+ */
+package com.xcurechat.server.core;
+
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import com.xcurechat.client.data.ChatMessage;
+
+import com.xcurechat.server.jdbc.ConnectionWrapper;
+import com.xcurechat.server.jdbc.chat.SelectLastChatMessageIDExecutor;
+
+/**
+ * @author zapreevis
+ * This class stores a bounded, append-only log of the most recent chat messages of one
+ * chat room. The log knows the message ID after which it contains all of the room's
+ * messages, so the room-data update for the user that knows the last message ID he has
+ * retrieved can be answered from here without going to the DB. If the log can not answer,
+ * e.g. the user's last message ID is unknown or too old, then the DB has to be used.
+ * The logged messages are stored in an immutable snapshot which is re-created on every
+ * change, so all the users polling the room share it and read it without locking.
+ * WARNING: The messages have to be appended in the order of increasing IDs, this is
+ * ensured by the ActiveChatRoom which serializes the message insertions into the DB.
+ */
+public class ChatRoomMessagesLog {
+	//Get the Log4j logger object
+	private static final Logger logger = Logger.getLogger( ChatRoomMessagesLog.class );
+
+	//The maximum number of messages stored in the log of one room
+	public static final int MAX_NUMBER_OF_LOGGED_MESSAGES = 200;
+	
+	/**
+	 * @author zapreevis
+	 * The immutable snapshot of the logged messages
+	 */
+	private static final class Snapshot {
+		//The logged messages ordered by their IDs
+		public final ChatMessage[] messages;
+		//All of the room's messages with IDs greater than this one are present in the log
+		public final int coveredAfterMsgID;
+		//True if the value of coveredAfterMsgID is known
+		public final boolean isCoverageKnown;
+		
+		public Snapshot( final ChatMessage[] messages, final int coveredAfterMsgID, final boolean isCoverageKnown ) {
+			this.messages = messages;
+			this.coveredAfterMsgID = coveredAfterMsgID;
+			this.isCoverageKnown = isCoverageKnown;
+		}
+	}
+	
+	//The current snapshot of the logged messages
+	private volatile Snapshot snapshot = new Snapshot( new ChatMessage[0], ChatMessage.UNKNOWN_MESSAGE_ID, false );
+
+	//The id of the room this log belongs to
+	private final int roomID;
+
+	/**
+	 * The basic constructor, retrieves the last chat message ID from the DB in order to know
+	 * that all the room messages that are inserted from now on will be in this log. If the
+	 * retrieval fails then the coverage of the log is established by the first appended message.
+	 * @param roomID the id of the room this log belongs to
+	 */
+	public ChatRoomMessagesLog( final int roomID ) {
+		this.roomID = roomID;
+		try {
+			ChatMessage lastMessage = new ChatMessage();
+			ConnectionWrapper<ChatMessage> selectLastMsgIDConnWrap = ConnectionWrapper.createConnectionWrapper( new SelectLastChatMessageIDExecutor() );
+			selectLastMsgIDConnWrap.executeQuery( lastMessage, ConnectionWrapper.XCURE_CHAT_DB );
+			snapshot = new Snapshot( new ChatMessage[0], lastMessage.messageID, true );
+		} catch ( Throwable e ) {
+			logger.error( "Exception while retrieving the last chat message ID for the messages log of room " + roomID, e );
+		}
+	}
+
+	/**
+	 * Allows to append a newly inserted chat message to the log, if the log is full then
+	 * the oldest message is evicted from it. The message should have its ID set.
+	 * @param message the message to append, is not copied so it should not be modified later
+	 */
+	public synchronized void appendMessage( final ChatMessage message ) {
+		final Snapshot current = snapshot;
+		if( current.isCoverageKnown && ( message.messageID <= current.coveredAfterMsgID ) ) {
+			//This should not be happening, but if it does then the log is inconsistent
+			logger.error( "Appending message " + message.messageID + " to the messages log of room " + roomID +
+						  " that already covers messages after " + current.coveredAfterMsgID + ", resetting the log" );
+			markGap( message.messageID );
+		} else {
+			//If the coverage is not known then every message that is not in the log has a smaller ID than this one
+			int coveredAfterMsgID = current.isCoverageKnown ? current.coveredAfterMsgID : message.messageID - 1;
+			final ChatMessage[] messages;
+			if( current.messages.length == MAX_NUMBER_OF_LOGGED_MESSAGES ) {
+				//Evict the oldest message, the log now covers only the messages after it
+				coveredAfterMsgID = current.messages[0].messageID;
+				messages = new ChatMessage[ MAX_NUMBER_OF_LOGGED_MESSAGES ];
+				System.arraycopy( current.messages, 1, messages, 0, MAX_NUMBER_OF_LOGGED_MESSAGES - 1 );
+			} else {
+				messages = new ChatMessage[ current.messages.length + 1 ];
+				System.arraycopy( current.messages, 0, messages, 0, current.messages.length );
+			}
+			messages[ messages.length - 1 ] = message;
+			snapshot = new Snapshot( messages, coveredAfterMsgID, true );
+		}
+	}
+
+	/**
+	 * Allows to mark a gap in the log, e.g. if the message was inserted into the DB but
+	 * could not be appended to the log. Then all the logged messages are dropped and the
+	 * log only covers the messages after the given one.
+	 * @param messageID the id of the last message that is known to be missing from the log
+	 */
+	public synchronized void markGap( final int messageID ) {
+		logger.warn( "Marking a gap in the messages log of room " + roomID + " at message " + messageID );
+		snapshot = new Snapshot( new ChatMessage[0], messageID, true );
+	}
+
+	/**
+	 * Allows to get the message ID after which the log contains all of the room's messages.
+	 * All the room messages with smaller or equal IDs are already in the DB, so if the value
+	 * is retrieved before querying the DB then the DB result covers all of them.
+	 * @return the id of the message after which the log is complete or
+	 *         ChatMessage.UNKNOWN_MESSAGE_ID if the coverage is not known
+	 */
+	public int getCoveredAfterMsgID() {
+		final Snapshot current = snapshot;
+		return current.isCoverageKnown ? current.coveredAfterMsgID : ChatMessage.UNKNOWN_MESSAGE_ID;
+	}
+
+	/**
+	 * Allows to get the messages visible to the given user, that were sent after the given
+	 * message. The private messages are only visible to their senders and recipients, unless
+	 * the user has the read-all access. This is the same filtering as done by the
+	 * GetRoomMessagesUpdateExecutor but in memory. This method does not lock.
+	 * @param userID the id of the user we retrieve messages for
+	 * @param isReadAll true if the user has the read-all access
+	 * @param lastMessageID the last message retrieved by the user
+	 * @param result the list to which the messages are added in the order of increasing IDs
+	 * @return true if the log could answer the request, false if the DB has to be used
+	 */
+	public boolean getMessagesAfter( final int userID, final boolean isReadAll,
+									 final int lastMessageID, final List<ChatMessage> result ) {
+		final Snapshot current = snapshot;
+		if( ( lastMessageID == ChatMessage.UNKNOWN_MESSAGE_ID ) || ! current.isCoverageKnown || ( lastMessageID < current.coveredAfterMsgID ) ) {
+			logger.debug( "The messages log of room " + roomID + " covering messages after " + current.coveredAfterMsgID +
+						  " can not provide messages after " + lastMessageID );
+			return false;
+		}
+		for( int i = getFirstMessageIndexAfter( current.messages, lastMessageID ); i < current.messages.length; i++ ) {
+			final ChatMessage message = current.messages[i];
+			if( isReadAll || isVisibleToUser( message, userID ) ) {
+				result.add( message );
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Does the binary search for the first message with the ID larger than the given one
+	 * @param messages the messages ordered by their IDs
+	 * @param lastMessageID the message ID to search for
+	 * @return the index of the first message with a larger ID or the length of the array if there is none
+	 */
+	private static int getFirstMessageIndexAfter( final ChatMessage[] messages, final int lastMessageID ) {
+		int low = 0, high = messages.length;
+		while( low < high ) {
+			final int middle = ( low + high ) >>> 1;
+			if( messages[ middle ].messageID <= lastMessageID ) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Allows to check if the message is visible for the user that does not have the read-all access
+	 * @param message the message to check
+	 * @param userID the id of the user
+	 * @return true if the message is not private, or the user is its sender or one of the recipients
+	 */
+	private static boolean isVisibleToUser( final ChatMessage message, final int userID ) {
+		return ( message.messageType != ChatMessage.Types.PRIVATE_MESSAGE_TYPE ) || ( message.senderID == userID ) ||
+			   ( ( message.recipientIDs != null ) && message.recipientIDs.contains( userID ) );
+	}
+}
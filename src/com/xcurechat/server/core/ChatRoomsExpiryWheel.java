@@ -0,0 +1,134 @@
+/**
+ * X-Cure-Chat
+ * Copyright (C) 2013  Dr. Ivan S. Zapreev
+ * www: https://nl.linkedin.com/in/zapreevis
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.#
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * The server core package.
+ * (C) Ivan S. Zapreev, 2009
+ */
+package com.xcurechat.server.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author zapreevis
+ * This class is a hashed timer wheel for the expiration of the online chat rooms. The time is
+ * split into ticks of TICK_INTERVAL_MILLISEC, the room expiring in some tick is stored in the
+ * wheel slot of that tick, modulo the number of slots. So scheduling a room is O(1) and every
+ * tick only looks at the rooms of one slot, the rooms that expire one or more wheel turns later
+ * just stay in the slot. Only one expiration time is kept per room, re-scheduling the room with
+ * the same time does nothing, with a different time it leaves the old entry in the wheel, then
+ * the old entry is dropped when its tick comes. The owner of the wheel has to re-check that
+ * the room is really expired, e.g. the room's data could have changed.
+ */
+class ChatRoomsExpiryWheel {
+	//The duration of one tick of the wheel
+	public static final long TICK_INTERVAL_MILLISEC = 5000;
+	//The number of slots in the wheel, one wheel turn is one hour
+	private static final int NUMBER_OF_SLOTS = 720;
+	
+	/**
+	 * @author zapreevis
+	 * The entry of the wheel, one room's expiration
+	 */
+	private static final class Entry {
+		//The id of the room
+		public final int roomID;
+		//The expiration time of the room
+		public final long expirationMillis;
+		
+		public Entry( final int roomID, final long expirationMillis ) {
+			this.roomID = roomID;
+			this.expirationMillis = expirationMillis;
+		}
+	}
+	
+	//The slots of the wheel
+	private final List<List<Entry>> slots = new ArrayList<List<Entry>>( NUMBER_OF_SLOTS );
+	//The mapping from the room IDs to their currently scheduled expiration times
+	private final Map<Integer, Long> roomIDToExpiration = new HashMap<Integer, Long>();
+	//The last tick that was processed, all the ticks up to this one are over
+	private long lastTick;
+	
+	/**
+	 * The basic constructor
+	 */
+	public ChatRoomsExpiryWheel() {
+		for( int i = 0; i < NUMBER_OF_SLOTS; i++ ) {
+			slots.add( new ArrayList<Entry>() );
+		}
+		lastTick = System.currentTimeMillis() / TICK_INTERVAL_MILLISEC - 1;
+	}
+	
+	/**
+	 * Allows to schedule the room's expiration, the rooms that are already expired will be
+	 * returned by the next call to advance(). If the room is already scheduled to expire at
+	 * this time then nothing is done.
+	 * @param roomID the id of the room
+	 * @param expirationMillis the time when the room expires
+	 */
+	public synchronized void schedule( final int roomID, final long expirationMillis ) {
+		final Long scheduledExpiration = roomIDToExpiration.put( roomID, expirationMillis );
+		if( ( scheduledExpiration == null ) || ( scheduledExpiration.longValue() != expirationMillis ) ) {
+			final long tick = Math.max( expirationMillis / TICK_INTERVAL_MILLISEC, lastTick + 1 );
+			slots.get( (int) ( tick % NUMBER_OF_SLOTS ) ).add( new Entry( roomID, expirationMillis ) );
+		}
+	}
+	
+	/**
+	 * Allows to forget the room's expiration, e.g. when the room goes offline
+	 * @param roomID the id of the room
+	 */
+	public synchronized void cancel( final int roomID ) {
+		roomIDToExpiration.remove( roomID );
+	}
+	
+	/**
+	 * Allows to move the wheel up to the current time and to get the rooms that have expired
+	 * @param nowMillis the current time
+	 * @return the IDs of the rooms whose expiration time has come
+	 */
+	public synchronized List<Integer> advance( final long nowMillis ) {
+		List<Integer> expiredRoomIDs = new ArrayList<Integer>();
+		//Only the ticks that are completely over are processed, then all the entries of
+		//the tick that belong to the current wheel turn are already expired
+		final long endTick = nowMillis / TICK_INTERVAL_MILLISEC - 1;
+		//If more than one wheel turn has passed then all the slots are visited once
+		final long firstTick = Math.max( lastTick + 1, endTick - NUMBER_OF_SLOTS + 1 );
+		for( long tick = firstTick; tick <= endTick; tick++ ) {
+			Iterator<Entry> iter = slots.get( (int) ( tick % NUMBER_OF_SLOTS ) ).iterator();
+			while( iter.hasNext() ) {
+				final Entry entry = iter.next();
+				final Long scheduledExpiration = roomIDToExpiration.get( entry.roomID );
+				if( ( scheduledExpiration == null ) || ( scheduledExpiration.longValue() != entry.expirationMillis ) ) {
+					//The room was re-scheduled or cancelled, the entry is outdated
+					iter.remove();
+				} else if( entry.expirationMillis <= nowMillis ) {
+					//The room has expired
+					iter.remove();
+					roomIDToExpiration.remove( entry.roomID );
+					expiredRoomIDs.add( entry.roomID );
+				}
+			}
+		}
+		lastTick = Math.max( lastTick, endTick );
+		return expiredRoomIDs;
+	}
+}
@@ -33,6 +33,7 @@ import java.util.Date;
 
 import org.apache.log4j.Logger;
 
+import com.xcurechat.client.data.ActiveChatRoomsData;
 import com.xcurechat.client.data.ChatRoomData;
 import com.xcurechat.client.data.ChatRoomDataUpdate;
 import com.xcurechat.client.data.MainUserData;
@@ -52,12 +53,14 @@ import com.xcurechat.client.utils.widgets.CommonResourcesContainer;
 
 import com.xcurechat.server.security.ThreadWarningSystem;
 
+import com.xcurechat.server.jdbc.ConnectionSession;
 import com.xcurechat.server.jdbc.ConnectionWrapper;
 import com.xcurechat.server.jdbc.messages.InsertMessageExecutor;
 import com.xcurechat.server.jdbc.rooms.DeleteRoomExecutor;
 import com.xcurechat.server.jdbc.rooms.GetRoomExecutor;
 import com.xcurechat.server.jdbc.rooms.InsertNewRoomExecutor;
 import com.xcurechat.server.jdbc.rooms.SelectAllActualRoomsExecutor;
+import com.xcurechat.server.jdbc.rooms.SelectUserActualRoomsExecutor;
 import com.xcurechat.server.jdbc.rooms.UpdateRoomExecutor;
 import com.xcurechat.server.jdbc.rooms.ResetRoomVisitorsExecutor;
 import com.xcurechat.server.jdbc.rooms.access.DeleteRoomUsersExecutor;
@@ -112,7 +115,7 @@ public class ChatRoomsManager {
 				Iterator<Integer> iter = roomIDS.iterator();
 				while( iter.hasNext() ) {
 					final int roomID = iter.next();
-					onlineChatRooms.remove( roomID );
+					removeOnlineChatRoom( roomID );
 					closeUserRoom( roomID, false );
 				}
 			}
@@ -133,17 +136,31 @@ public class ChatRoomsManager {
 		}
 	}
 	
+	//The index of the active room from which the next idle users clean-up starts,
+	//is only used by the maintenance job so there is no need in synchronization
+	private int nextIdleUsersCleanUpRoomIndex = 0;
+	
 	/**
-	 * Allows to clean-up idle users inside a chat room, this is needed for
-	 * removing the users that left the room by closing the browser window,
-	 * with no other users left inside the room.
-	 * @param roomID the id of the room for which we do the clean up
+	 * Allows to clean-up idle users in all of the active chat rooms, is called
+	 * periodically by the MaintenanceScheduler. If the deadline is reached then the
+	 * clean-up stops, the next clean-up starts from the room that was not checked.
+	 * @param deadlineMillisec the time in millisec by which the clean-up should be done
 	 */
-	private void cleanUpIdleUsers(final int roomID) {
-		ActiveChatRoom activeRoom = roomIdToActiveChatRoom.get( roomID );
-		if( activeRoom != null ) {
-			//Force the room's clean-up
-			activeRoom.cleanUpIdleUsers( true );
+	public void cleanUpIdleUsers( final long deadlineMillisec ) {
+		List<ActiveChatRoom> activeRooms;
+		synchronized( roomIdToActiveChatRoom ) {
+			activeRooms = new ArrayList<ActiveChatRoom>( roomIdToActiveChatRoom.values() );
+		}
+		final int numberOfRooms = activeRooms.size();
+		int count = 0;
+		for( ; ( count < numberOfRooms ) && ( System.currentTimeMillis() < deadlineMillisec ); count++ ) {
+			activeRooms.get( ( nextIdleUsersCleanUpRoomIndex + count ) % numberOfRooms ).cleanUpIdleUsers( true );
+		}
+		if( count < numberOfRooms ) {
+			logger.warn( "The idle users clean-up is out of time, checked " + count + " out of " + numberOfRooms + " rooms" );
+			nextIdleUsersCleanUpRoomIndex = ( nextIdleUsersCleanUpRoomIndex + count ) % numberOfRooms;
+		} else {
+			nextIdleUsersCleanUpRoomIndex = 0;
 		}
 	}
 	
@@ -280,6 +297,7 @@ public class ChatRoomsManager {
 																						ShortPrivateMessageData.ROOM_ACCESS_GRANTED_MESSAGE_TYPE, "", "" );
 					ConnectionWrapper<Void> sendSimpleMessageConnWrap = ConnectionWrapper.createConnectionWrapper( sendSmplMsgExec );
 					sendSimpleMessageConnWrap.executeQuery( ConnectionWrapper.XCURE_CHAT_DB );
+					NewMessagesCountManager.getInstance().onMessageSent( userAccess.getUID() );
 				}
 			}
 			
@@ -302,10 +320,13 @@ public class ChatRoomsManager {
 	 * @param newUserStatus the new status value
 	 */
 	public void notifyUserStatusChange( final ShortUserData userData, final UserStatusType newUserStatus ) {
+		//Do not hold the global lock while notifying the rooms
+		List<ActiveChatRoom> activeRooms;
 		synchronized( roomIdToActiveChatRoom ) {
-			for( ActiveChatRoom activeRoom : roomIdToActiveChatRoom.values() ) {
-				activeRoom.notifyUserStatusChange( userData, newUserStatus );
-			}
+			activeRooms = new ArrayList<ActiveChatRoom>( roomIdToActiveChatRoom.values() );
+		}
+		for( ActiveChatRoom activeRoom : activeRooms ) {
+			activeRoom.notifyUserStatusChange( userData, newUserStatus );
 		}
 	}
 	
@@ -316,10 +337,10 @@ public class ChatRoomsManager {
 	 */
 	public void enterRoom( final int userID, final int roomID ) throws SiteException {
 		ChatRoomData roomData = null;
-		//Just to make sure that the room does not go offline while some one enters it
-		synchronized( onlineChatRooms ) {
+		//The checks are done on the current snapshot of the online rooms, no locking is needed
+		{
 			//0. Check if the room is active
-			roomData = onlineChatRooms.get( roomID );
+			roomData = onlineRoomsSnapshot.rooms.get( roomID );
 			if( roomData == null ) {
 				logger.error("The user " + userID + " tries to enter the room " + roomID + " but this room is offline!");
 				throw new RoomAccessException( RoomAccessException.THE_ROOM_IS_NOT_ONLINE_ERROR, ChatRoomData.getRoomName( getChatRoomData( roomID ) ) );
@@ -434,16 +455,227 @@ public class ChatRoomsManager {
 	/****UPDATE CHAT ROOM, GET CHAT ROOM DATA, GET THE LIST OF CHAT ROOM, DELETE CHAT ROOMS****/
 	/******************************************************************************************/
 
-	//This holds the list of all available and active rooms on the server. Notice that 
-	//we allocate a synchronized HashMap, just for a change, without using the Hash table. 
-	private Map<Integer, ChatRoomData> onlineChatRooms = Collections.synchronizedMap(  new HashMap<Integer, ChatRoomData>() );
+	/**
+	 * @author zapreevis
+	 * The immutable snapshot of all available and active rooms on the server
+	 */
+	private static final class OnlineRoomsSnapshot {
+		//The version of the snapshot, is incremented with every change
+		public final long version;
+		//The rooms, this map is never modified after the snapshot is published
+		public final Map<Integer, ChatRoomData> rooms;
+		
+		public OnlineRoomsSnapshot( final long version, final Map<Integer, ChatRoomData> rooms ) {
+			this.version = version;
+			this.rooms = rooms;
+		}
+	}
+	
+	//This holds the current snapshot of all available and active rooms on the server. Every
+	//change creates a new snapshot, so the readers neither lock nor copy the list of rooms.
+	//The versions start from the server start time, so that after a restart the clients
+	//can not match their old versions against a different list of rooms. This is safe as
+	//long as there is less than one change per millisecond of the server's up time.
+	private volatile OnlineRoomsSnapshot onlineRoomsSnapshot = new OnlineRoomsSnapshot( System.currentTimeMillis(), new HashMap<Integer, ChatRoomData>() );
+	//The synchronization object for creating and publishing the new snapshots of online rooms
+	private final Object onlineChatRoomsSynchObj = new Object();
+	
+	/**
+	 * Publishes the new snapshot of online rooms.
+	 * WARNING: Must be called while holding the onlineChatRoomsSynchObj lock!
+	 * @param rooms the new map of online rooms, must not be modified afterwards
+	 */
+	private void publishOnlineChatRooms( final Map<Integer, ChatRoomData> rooms ) {
+		onlineRoomsSnapshot = new OnlineRoomsSnapshot( onlineRoomsSnapshot.version + 1, rooms );
+	}
+	
+	/**
+	 * Allows to check if the two lists of online rooms are the same
+	 * @param rooms the first list of rooms
+	 * @param otherRooms the second list of rooms
+	 * @return true if the lists have the same rooms with the same data
+	 */
+	private static boolean isSameOnlineChatRooms( final Map<Integer, ChatRoomData> rooms, final Map<Integer, ChatRoomData> otherRooms ) {
+		if( rooms.size() != otherRooms.size() ) {
+			return false;
+		}
+		for( Map.Entry<Integer, ChatRoomData> entry : rooms.entrySet() ) {
+			if( ! isSameChatRoomData( entry.getValue(), otherRooms.get( entry.getKey() ) ) ) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Allows to check if the two room data objects have the same data stored in the DB
+	 * @param roomData the first room data, not null
+	 * @param otherRoomData the second room data, can be null
+	 * @return true if the data is the same
+	 */
+	private static boolean isSameChatRoomData( final ChatRoomData roomData, final ChatRoomData otherRoomData ) {
+		return ( otherRoomData != null ) &&
+			   ( roomData.getRoomID() == otherRoomData.getRoomID() ) &&
+			   ( roomData.getOwnerID() == otherRoomData.getOwnerID() ) &&
+			   ( roomData.getRoomType() == otherRoomData.getRoomType() ) &&
+			   ( roomData.isPermanent() == otherRoomData.isPermanent() ) &&
+			   ( roomData.isMain() == otherRoomData.isMain() ) &&
+			   isSameValue( roomData.getRoomName(), otherRoomData.getRoomName() ) &&
+			   isSameValue( roomData.getRoomDesc(), otherRoomData.getRoomDesc() ) &&
+			   isSameValue( roomData.getOwnerName(), otherRoomData.getOwnerName() ) &&
+			   isSameValue( roomData.getExpirationDate(), otherRoomData.getExpirationDate() );
+	}
+	
+	private static boolean isSameValue( final Object value, final Object otherValue ) {
+		return ( value == null ) ? ( otherValue == null ) : value.equals( otherValue );
+	}
+	
+	/**
+	 * Allows to add or update the room in the list of online rooms
+	 * @param roomID the id of the room
+	 * @param roomData the room's data
+	 */
+	private void putOnlineChatRoom( final int roomID, final ChatRoomData roomData ) {
+		synchronized( onlineChatRoomsSynchObj ) {
+			Map<Integer, ChatRoomData> rooms = new HashMap<Integer, ChatRoomData>( onlineRoomsSnapshot.rooms );
+			rooms.put( roomID, roomData );
+			publishOnlineChatRooms( rooms );
+		}
+		scheduleRoomExpiration( roomData );
+	}
+	
+	/**
+	 * Allows to remove the room from the list of online rooms
+	 * @param roomID the id of the room
+	 */
+	private void removeOnlineChatRoom( final int roomID ) {
+		synchronized( onlineChatRoomsSynchObj ) {
+			if( onlineRoomsSnapshot.rooms.containsKey( roomID ) ) {
+				Map<Integer, ChatRoomData> rooms = new HashMap<Integer, ChatRoomData>( onlineRoomsSnapshot.rooms );
+				rooms.remove( roomID );
+				publishOnlineChatRooms( rooms );
+			}
+		}
+		roomsExpiryWheel.cancel( roomID );
+	}
+	
+	//The timer wheel with the expiration times of the online rooms
+	private final ChatRoomsExpiryWheel roomsExpiryWheel = new ChatRoomsExpiryWheel();
+	//The expired room that still has visible users stays online, its expiration is re-checked after this delay
+	private static final long EXPIRED_ROOM_RECHECK_DELAY_MILLISEC = 60000;
+	//The interval for removing the expired rooms, by the MaintenanceScheduler
+	static final long EXPIRED_ROOMS_REMOVAL_INTERVAL_MILLISEC = ChatRoomsExpiryWheel.TICK_INTERVAL_MILLISEC;
+	
+	/**
+	 * Allows to schedule the removal of the online room when it expires, the main and permanent rooms do not expire
+	 * @param roomData the room's data
+	 */
+	private void scheduleRoomExpiration( final ChatRoomData roomData ) {
+		if( roomData.isPermanent() || roomData.isMain() || ( roomData.getExpirationDate() == null ) ) {
+			roomsExpiryWheel.cancel( roomData.getRoomID() );
+		} else {
+			roomsExpiryWheel.schedule( roomData.getRoomID(), roomData.getExpirationDate().getTime() );
+		}
+	}
+	
+	/**
+	 * Allows to remove the online rooms that have expired, is called periodically by the MaintenanceScheduler.
+	 * The rooms of the owners that are offline are removed as well. The room is not removed while there are
+	 * visible users inside, as it is done by the DB update, see SelectAllActualRoomsExecutor, then the room's
+	 * expiration is re-checked later.
+	 */
+	public void removeExpiredRooms() {
+		final List<Integer> expiredRoomIDs = roomsExpiryWheel.advance( System.currentTimeMillis() );
+		if( ! expiredRoomIDs.isEmpty() ) {
+			synchronized( roomsDBSynchObj ) {
+				for( Integer roomID : expiredRoomIDs ) {
+					final ChatRoomData roomData = onlineRoomsSnapshot.rooms.get( roomID );
+					if( roomData != null ) {
+						final ActiveChatRoom activeRoom = roomIdToActiveChatRoom.get( roomID );
+						if( ! roomData.isExpired() && ! UserSessionManager.isUserOffline( roomData.getOwnerID() ) ) {
+							//The room's data has changed, just in case re-schedule its expiration
+							scheduleRoomExpiration( roomData );
+						} else if( ( activeRoom != null ) && activeRoom.hasVisibleUsers() ) {
+							roomsExpiryWheel.schedule( roomID, System.currentTimeMillis() + EXPIRED_ROOM_RECHECK_DELAY_MILLISEC );
+						} else {
+							logger.debug( "The online room " + roomID + " has expired, closing it" );
+							removeOnlineChatRoom( roomID );
+							closeUserRoom( roomID, true );
+						}
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Allows to bring the rooms of the user, that has just logged in, online. The rooms are loaded
+	 * from the DB and are added to the list of online rooms, the other online rooms stay intact.
+	 * @param userID the id of the user
+	 */
+	public void bringUserRoomsOnline( final int userID ) {
+		try {
+			synchronized( roomsDBSynchObj ) {
+				Map<Integer, ChatRoomData> userRooms = new HashMap<Integer, ChatRoomData>();
+				ConnectionWrapper<Map<Integer, ChatRoomData>> selectRoomsConnWrap = ConnectionWrapper.createConnectionWrapper( new SelectUserActualRoomsExecutor( userID ) );
+				selectRoomsConnWrap.executeQuery( userRooms, ConnectionWrapper.XCURE_CHAT_DB );
+				if( ! userRooms.isEmpty() ) {
+					logger.debug( "Bringing the rooms " + userRooms.keySet() + " of user " + userID + " online" );
+					synchronized( onlineChatRoomsSynchObj ) {
+						Map<Integer, ChatRoomData> rooms = new HashMap<Integer, ChatRoomData>( onlineRoomsSnapshot.rooms );
+						rooms.putAll( userRooms );
+						publishOnlineChatRooms( rooms );
+					}
+					for( ChatRoomData roomData : userRooms.values() ) {
+						scheduleRoomExpiration( roomData );
+					}
+				}
+			}
+		} catch( SiteException e ) {
+			//The rooms will be brought online by the next reconciliation with the DB
+			logger.error( "An unexpected SiteException while bringing the rooms of user " + userID + " online", e );
+		}
+	}
+	
+	/**
+	 * Allows to take the rooms of the user, that has just logged out completely, offline. As it is done by
+	 * the DB update, see SelectAllActualRoomsExecutor, only the rooms that are not permanent go offline and
+	 * not while there are visible users inside, such rooms are re-checked later by the timer wheel.
+	 * @param userID the id of the user
+	 */
+	public void takeUserRoomsOffline( final int userID ) {
+		synchronized( roomsDBSynchObj ) {
+			//The user might have logged in again in the mean time
+			if( UserSessionManager.isUserOffline( userID ) ) {
+				for( ChatRoomData roomData : onlineRoomsSnapshot.rooms.values() ) {
+					if( ( roomData.getOwnerID() == userID ) && ! roomData.isPermanent() && ! roomData.isMain() ) {
+						final int roomID = roomData.getRoomID();
+						final ActiveChatRoom activeRoom = roomIdToActiveChatRoom.get( roomID );
+						if( ( activeRoom != null ) && activeRoom.hasVisibleUsers() ) {
+							roomsExpiryWheel.schedule( roomID, System.currentTimeMillis() + EXPIRED_ROOM_RECHECK_DELAY_MILLISEC );
+						} else {
+							logger.debug( "The owner " + userID + " of the online room " + roomID + " has logged out, closing it" );
+							removeOnlineChatRoom( roomID );
+							closeUserRoom( roomID, true );
+						}
+					}
+				}
+			}
+		}
+	}
 	
-	//The time period for refreshing the active rooms from the DB
-	private static final long ACTIVE_ROOMS_TREE_UPDATE_INTERVAL_MILLISEC = 6 * CommonResourcesContainer.ACTIVE_ROOMS_TREE_UPDATE_INTERVAL_MILLISEC; 
+	//The time period for reconciling the active rooms with the DB, by the MaintenanceScheduler. The active
+	//rooms are changed in place when the rooms are created, updated or deleted, when their owners log in or
+	//out, the expired rooms are removed by the timer wheel, so this is only needed for the changes we are
+	//not notified about, e.g. the visitors count changed in the DB, and for safety.
+	static final long ACTIVE_ROOMS_TREE_UPDATE_INTERVAL_MILLISEC = 30 * CommonResourcesContainer.ACTIVE_ROOMS_TREE_UPDATE_INTERVAL_MILLISEC; 
 	
 	//The next time we will update the active rooms list from the DB
 	//The updates are needed to exclude expired rooms from the list 
 	private static long nextRoomListUpdateTimeMillis = System.currentTimeMillis() - 2 * ACTIVE_ROOMS_TREE_UPDATE_INTERVAL_MILLISEC;
+	
+	//True if the active rooms list was loaded from the DB at least once
+	private volatile boolean areOnlineRoomsLoaded = false;
 
 	/**
 	 * This method allows to return the data object for a room.
@@ -453,8 +685,8 @@ public class ChatRoomsManager {
 	 */
 	public ChatRoomData getChatRoomData( final int roomId ) throws SiteException {
 		//NOTE: I do not see any need to have any synchronizations here,
-		//except for the existing synchronized allActiveChatRooms map
-		ChatRoomData roomData = onlineChatRooms.get( roomId );
+		//the snapshot of the online rooms is immutable
+		ChatRoomData roomData = onlineRoomsSnapshot.rooms.get( roomId );
 		
 		if( roomData == null ) {
 			//If this is not an active room, then check the database
@@ -485,28 +717,36 @@ public class ChatRoomsManager {
 					nextRoomListUpdateTimeMillis = System.currentTimeMillis() + ACTIVE_ROOMS_TREE_UPDATE_INTERVAL_MILLISEC;
 					
 					logger.debug("Updating the room local active rooms cash from the DB.");
-					Map<Integer, ChatRoomData> newOnlineChatRooms = Collections.synchronizedMap(  new HashMap<Integer, ChatRoomData>() );
+					Map<Integer, ChatRoomData> newOnlineChatRooms = new HashMap<Integer, ChatRoomData>();
+					//The rooms are not changed in place while we read and publish them
 					synchronized( roomsDBSynchObj ) {
 						ConnectionWrapper<Map<Integer, ChatRoomData>> selectRoomsConnWrap = ConnectionWrapper.createConnectionWrapper( new SelectAllActualRoomsExecutor() );
 						selectRoomsConnWrap.executeQuery( newOnlineChatRooms, ConnectionWrapper.XCURE_CHAT_DB );
-					}
-					
-					//Clean-up idle users and close the chat rooms that are not online any more
-					synchronized( onlineChatRooms ){
-						Iterator<Integer> iter = onlineChatRooms.keySet().iterator();
-						while( iter.hasNext() ) {
-							final int roomID = iter.next();
-							//First: clean-up the room's ide users
-							cleanUpIdleUsers(roomID);
-							//Second: remove the room from the list of active rooms 
+						
+						//Close the chat rooms that are not online any more, this is done on
+						//the current snapshot, so no lock is needed while iterating.
+						//NOTE: The idle users are cleaned up by the MaintenanceScheduler
+						for( Integer roomID : onlineRoomsSnapshot.rooms.keySet() ) {
 							if( !newOnlineChatRooms.keySet().contains( roomID ) ) {
+								roomsExpiryWheel.cancel( roomID );
 								closeUserRoom( roomID, true );
 							}
 						}
+						
+						//Publish the new active chat rooms mapping, only if it has changed, the
+						//clients then keep the version of the list they know and get no resend
+						synchronized( onlineChatRoomsSynchObj ) {
+							if( ! isSameOnlineChatRooms( onlineRoomsSnapshot.rooms, newOnlineChatRooms ) ) {
+								publishOnlineChatRooms( newOnlineChatRooms );
+							} else {
+								logger.debug( "The list of active rooms has not changed, the version stays " + onlineRoomsSnapshot.version );
+							}
+						}
+						for( ChatRoomData roomData : newOnlineChatRooms.values() ) {
+							scheduleRoomExpiration( roomData );
+						}
 					}
-					
-					//Assign the new active chat rooms mapping  
-					onlineChatRooms = newOnlineChatRooms;
+					areOnlineRoomsLoaded = true;
 					
 					//Clean up the room's synchronization objects
 					roomAccessSynchFactory.cleanUp();
@@ -520,24 +760,38 @@ public class ChatRoomsManager {
 	
 	/**
 	 * This method returns the list of available rooms from the server
-	 * which is cashed here and is updated from the DB only once every
-	 * ACTIVE_ROOMS_TREE_UPDATE_INTERVAL_MILLISEC milliseconds.
-	 * It then also cleans up the room's synchronization objects.
+	 * which is cashed here, is changed in place by the room operations
+	 * and is reconciled with the DB once every
+	 * ACTIVE_ROOMS_TREE_UPDATE_INTERVAL_MILLISEC milliseconds by the
+	 * MaintenanceScheduler, see updateActiveRooms.
 	 * @return the map from room IDs to the roomData objects
 	 * @throws SiteException if smth goes wrong while working with the DB
 	 */
 	public Map<Integer, ChatRoomData> getAllActiveRooms() throws SiteException {
-		//First update the online chat rooms if needed
-		updateActiveRooms( false );
+		return getAllActiveRooms( ActiveChatRoomsData.UNKNOWN_VERSION ).rooms;
+	}
+	
+	/**
+	 * This method returns the list of available rooms from the server, see getAllActiveRooms(),
+	 * if the list has not changed since the given version then the rooms are not returned.
+	 * WARNING: The returned map of rooms is shared between the callers and must not be modified!
+	 * @param knownVersion the version of the rooms list known to the client or ActiveChatRoomsData.UNKNOWN_VERSION
+	 * @return the current version of the rooms list and the rooms, if the version is not the known one
+	 * @throws SiteException if smth goes wrong while working with the DB
+	 */
+	public ActiveChatRoomsData getAllActiveRooms( final long knownVersion ) throws SiteException {
+		//The online chat rooms are updated by the MaintenanceScheduler,
+		//here we only load them if that has not happened yet
+		if( ! areOnlineRoomsLoaded ) {
+			updateActiveRooms( false );
+		}
 		
-		//We synchronize on the hashmap, which is also synchronized
-		//This is done to avoid interruptions with deleting/updating/adding rooms
-			
-		//I am not sure how fast this is, but GWT can not return neither the Hashtable that is
-		//synchronized by default nor the synchronized wrapper of the Map provided by Collections
-		Map<Integer, ChatRoomData> result = new HashMap<Integer, ChatRoomData>();
-		synchronized( onlineChatRooms ) {
-			result.putAll( onlineChatRooms );
+		//The snapshot map is never modified, so it can be returned to GWT as it is
+		final OnlineRoomsSnapshot snapshot = onlineRoomsSnapshot;
+		ActiveChatRoomsData result = new ActiveChatRoomsData();
+		result.version = snapshot.version;
+		if( snapshot.version != knownVersion ) {
+			result.rooms = snapshot.rooms;
 		}
 		return result;
 	}
@@ -561,7 +815,8 @@ public class ChatRoomsManager {
 		ChatRoomsManager.validateUserRoomData(userID, roomData);
 		
 		//Do not allow to insert a new room or to udate it when we can
-		//be reading/writing room's data from/to the DB
+		//be reading/writing room's data from/to the DB, the list of
+		//active rooms is updated in place under the same lock
 		synchronized( roomsDBSynchObj ) {
 			//If it is a new room then insert it into the DB and so obtain the room ID
 			if( insertNew ) {
@@ -573,34 +828,34 @@ public class ChatRoomsManager {
 				ConnectionWrapper<Void> updateRoomConnWrap = ConnectionWrapper.createConnectionWrapper( new UpdateRoomExecutor(roomData) );
 				updateRoomConnWrap.executeQuery( ConnectionWrapper.XCURE_CHAT_DB );
 			}
-		}
-		//At this point the room ID and its expiration date should be set, retrieve the room ID
-		final int roomID = roomData.getRoomID();
-		
-		//If the room is not expired, then we update the list of active rooms, but first 
-		//we have to check that the previously announced room owner and the owner's name
-		//are the same! The latter is not yet known, becase it did not matter.
-		if( !roomData.isExpired() ) {
-			//We want to make this operation atomic
-			synchronized( onlineChatRooms ) {
-				ChatRoomData oldRoomData = getChatRoomData( roomID );
-				if( ( roomData.getOwnerID() != oldRoomData.getOwnerID() ) ||
-						( ! oldRoomData.getOwnerName().equals( roomData.getOwnerName() ) ) ) {
-					//Some one is trying to change the visible name of the room's owner or his ID 
-					throw new InternalSiteException(InternalSiteException.INSUFFICIENT_ACCESS_RIGHTS_ERROR);
-				}
-				//If everything is fine then we update the room in the list of active rooms
-				onlineChatRooms.put( roomID, roomData );
-				//Update the active room status, i.e. may be the room has became private or the other way around
-				ActiveChatRoom activeRoom = roomIdToActiveChatRoom.get( roomID );
-				if( activeRoom != null ) {
-					activeRoom.setPublicStatus( roomData.isPublic() );
+			//At this point the room ID and its expiration date should be set, retrieve the room ID
+			final int roomID = roomData.getRoomID();
+			
+			//If the room is not expired, then we update the list of active rooms, but first 
+			//we have to check that the previously announced room owner and the owner's name
+			//are the same! The latter is not yet known, becase it did not matter.
+			if( !roomData.isExpired() ) {
+				//We want to make this operation atomic
+				synchronized( onlineChatRoomsSynchObj ) {
+					ChatRoomData oldRoomData = getChatRoomData( roomID );
+					if( ( roomData.getOwnerID() != oldRoomData.getOwnerID() ) ||
+							( ! oldRoomData.getOwnerName().equals( roomData.getOwnerName() ) ) ) {
+						//Some one is trying to change the visible name of the room's owner or his ID 
+						throw new InternalSiteException(InternalSiteException.INSUFFICIENT_ACCESS_RIGHTS_ERROR);
+					}
+					//If everything is fine then we update the room in the list of active rooms
+					putOnlineChatRoom( roomID, roomData );
+					//Update the active room status, i.e. may be the room has became private or the other way around
+					ActiveChatRoom activeRoom = roomIdToActiveChatRoom.get( roomID );
+					if( activeRoom != null ) {
+						activeRoom.setPublicStatus( roomData.isPublic() );
+					}
 				}
+			} else {
+				//Just in case the room was online, we have to send it offline
+				removeOnlineChatRoom( roomID );
+				this.closeUserRoom( roomID, true );
 			}
-		} else {
-			//Just in case the room was online, we have to send it offline
-			onlineChatRooms.remove( roomID );
-			this.closeUserRoom( roomID, true );
 		}
 	}
 	
@@ -622,28 +877,28 @@ public class ChatRoomsManager {
 			//ID not to delete some one elses rooms
 			ConnectionWrapper<Void> deleteRoomsConnWrap = ConnectionWrapper.createConnectionWrapper( new DeleteRoomExecutor(userID, roomIDS) );
 			deleteRoomsConnWrap.executeQuery( ConnectionWrapper.XCURE_CHAT_DB );
-		}
-		
-		//Take care of the active rooms list
-		final boolean isNotAnAdmin = ! isAdmin;
-		Iterator<Integer> iter = roomIDS.iterator();
-		while( iter.hasNext() ) {
-			synchronized( onlineChatRooms ) {
-				final int roomID = iter.next();
-				if( isNotAnAdmin ) {
-					//Check that the one who deletes the rooms is their owner
-					//NOTE: Here we only check active rooms because the rooms which are offline 
-					//were either deleted or do not belong to the given user (userID).
-					ChatRoomData roomData = onlineChatRooms.get( roomID );
-					if( ( roomData != null ) && ( roomData.getOwnerID() != userID ) ) {
-						//The user can not delete the room of another user
-						throw new InternalSiteException( InternalSiteException.INSUFFICIENT_ACCESS_RIGHTS_ERROR );
+			
+			//Take care of the active rooms list
+			final boolean isNotAnAdmin = ! isAdmin;
+			Iterator<Integer> iter = roomIDS.iterator();
+			while( iter.hasNext() ) {
+				synchronized( onlineChatRoomsSynchObj ) {
+					final int roomID = iter.next();
+					if( isNotAnAdmin ) {
+						//Check that the one who deletes the rooms is their owner
+						//NOTE: Here we only check active rooms because the rooms which are offline 
+						//were either deleted or do not belong to the given user (userID).
+						ChatRoomData roomData = onlineRoomsSnapshot.rooms.get( roomID );
+						if( ( roomData != null ) && ( roomData.getOwnerID() != userID ) ) {
+							//The user can not delete the room of another user
+							throw new InternalSiteException( InternalSiteException.INSUFFICIENT_ACCESS_RIGHTS_ERROR );
+						}
 					}
+					//Remove the room from the list of active rooms
+					removeOnlineChatRoom( roomID );
+					//Make sure that the users in the room are notified that the room is expired
+					closeUserRoom( roomID, false );
 				}
-				//Remove the room from the list of active rooms
-				onlineChatRooms.remove( roomID );
-				//Make sure that the users in the room are notified that the room is expired
-				closeUserRoom( roomID, false );
 			}
 		}
 	}
@@ -701,46 +956,40 @@ public class ChatRoomsManager {
 	/******************************************************************************************/
 	
 	private Object messageCleanUpSynchObject = new Object();
-	//We clean up the old chat messages and images once in 10 minutes
-	private static final long OLD_MESSAGES_CLEAN_UP_INTERVAL_MILLISEC = 10 * 60 * 1000;
-	//The next time we are going to clean up the chat room messages and images
-	private long nextMessagesCleanUpInMillisec = System.currentTimeMillis() - OLD_MESSAGES_CLEAN_UP_INTERVAL_MILLISEC;
+	//We clean up the old chat messages and images once in 10 minutes, by the MaintenanceScheduler
+	static final long OLD_MESSAGES_CLEAN_UP_INTERVAL_MILLISEC = 10 * 60 * 1000;
 	
 	/**
-	 * This method is periodically cleaning up the old chat room messages and images
+	 * This method cleans up the old chat room messages and images,
+	 * it is called periodically by the MaintenanceScheduler
 	 */
 	public void cleanUpOldChatMessages() {
 		try {
 			synchronized( messageCleanUpSynchObject ) {
-				if( System.currentTimeMillis() >= nextMessagesCleanUpInMillisec ) {
-					nextMessagesCleanUpInMillisec = System.currentTimeMillis() + OLD_MESSAGES_CLEAN_UP_INTERVAL_MILLISEC;
-					logger.info("Cleaning up the old char room messages and images");
+				logger.info("Cleaning up the old char room messages and images");
+				//Do all the clean-up queries on one connection
+				ConnectionSession session = ConnectionSession.open( ConnectionWrapper.XCURE_CHAT_DB );
+				try {
 					//Well, it is not related to active chat rooms
 					//but let us clean the chat room messages here
-					RemoveOldChatMessagesExecutor msgsCleanUpExecutor = new RemoveOldChatMessagesExecutor( RemoveOldChatMessagesExecutor.REMOVE_CHAT_MESSAGES_OLDER_THAN_MINUTES );
-					ConnectionWrapper<Void> removeOldChatMessagesConnWrap = ConnectionWrapper.createConnectionWrapper( msgsCleanUpExecutor );
-					removeOldChatMessagesConnWrap.executeQuery( ConnectionWrapper.XCURE_CHAT_DB );
+					session.execute( new RemoveOldChatMessagesExecutor( RemoveOldChatMessagesExecutor.REMOVE_CHAT_MESSAGES_OLDER_THAN_MINUTES ) );
 					
 					//Remove old chat message recipients
-					RemoveOldChatMessagesRecepientsExecutor recepCleanUpExecutor = new RemoveOldChatMessagesRecepientsExecutor( RemoveOldChatMessagesRecepientsExecutor.REMOVE_CHAT_MESSAGES_RECIPIENTS_OLDER_THAN_MINUTES );
-					ConnectionWrapper<Void> removeOldChatMsgRecepientsConnWrap = ConnectionWrapper.createConnectionWrapper( recepCleanUpExecutor );
-					removeOldChatMsgRecepientsConnWrap.executeQuery( ConnectionWrapper.XCURE_CHAT_DB );
+					session.execute( new RemoveOldChatMessagesRecepientsExecutor( RemoveOldChatMessagesRecepientsExecutor.REMOVE_CHAT_MESSAGES_RECIPIENTS_OLDER_THAN_MINUTES ) );
 					
 					//Get the chat bot manager instance to synchronize on it
 					ChatBotManager chatBotManagerInst = ChatBotManager.getInstance();
 					synchronized( chatBotManagerInst ) {
 						//Well, it is not related to active chat rooms but let us clean the chat room message files here
-						RemoveOldChatFilesExecutor executor = new RemoveOldChatFilesExecutor( RemoveOldChatFilesExecutor.REMOVE_CHAT_MESSAGE_FILES_OLDER_THAN_MINUTES, ! chatBotManagerInst.isCurrentChatBotSet() );
-						ConnectionWrapper<Void> removeOldChatMessageImagesConnWrap = ConnectionWrapper.createConnectionWrapper( executor );
-						removeOldChatMessageImagesConnWrap.executeQuery( ConnectionWrapper.XCURE_CHAT_DB );
+						session.execute( new RemoveOldChatFilesExecutor( RemoveOldChatFilesExecutor.REMOVE_CHAT_MESSAGE_FILES_OLDER_THAN_MINUTES, ! chatBotManagerInst.isCurrentChatBotSet() ) );
 						
 						//Re-assign the other public chat message files for the bot if it is set
 						if( chatBotManagerInst.isCurrentChatBotSet() ) {
-							ReAssignOldPublicFilesToBotExecutor reAssignExecutor = new ReAssignOldPublicFilesToBotExecutor( RemoveOldChatFilesExecutor.REMOVE_CHAT_MESSAGE_FILES_OLDER_THAN_MINUTES, chatBotManagerInst.getCurrentChatBotID() );
-							ConnectionWrapper<Void> reAssignConnWrap = ConnectionWrapper.createConnectionWrapper( reAssignExecutor );
-							reAssignConnWrap.executeQuery( ConnectionWrapper.XCURE_CHAT_DB );
+							session.execute( new ReAssignOldPublicFilesToBotExecutor( RemoveOldChatFilesExecutor.REMOVE_CHAT_MESSAGE_FILES_OLDER_THAN_MINUTES, chatBotManagerInst.getCurrentChatBotID() ) );
 						}
 					}
+				} finally {
+					session.close();
 				}
 			}
 		} catch ( SiteException e) {
@@ -753,9 +1002,6 @@ public class ChatRoomsManager {
 	 * @param message the complete chat room message
 	 */
 	public void sendChatMessage( ChatMessage message ) throws SiteException {
-		//First clean up the chat room messages
-		cleanUpOldChatMessages();
-		
 		logger.info( "The user " + message.senderID + " attempts to send a chat message to room " + message.roomID );
 		ActiveChatRoom activeRoom = roomIdToActiveChatRoom.get( message.roomID );
 		if( activeRoom != null ) {
@@ -911,18 +1157,26 @@ public class ChatRoomsManager {
 	 * @param userID the user unique ID
 	 * @param openedRoomIDS the list of opened room IDs
 	 * @param lastUpdateNewestMsgIDs the room ID is mapped to the ID of the last chat message retrieved from this room
+	 * @param visibleUsersVersions the room ID is mapped to the version of the room's visible users known to the client
 	 * @return the requested data
 	 * @throws SiteException if the user is not logged in or we
 	 *			try to validate the session too often or smth else!
 	 */
 	public ChatRoomDataUpdate getOpenedRoomDataUpdate(final int userID, final List<Integer> openedRoomIDS,
-														final Map<Integer, Integer> lastUpdateNewestMsgIDs) throws SiteException {
+														final Map<Integer, Integer> lastUpdateNewestMsgIDs,
+														final Map<Integer, Integer> visibleUsersVersions) throws SiteException {
 		ChatRoomDataUpdate data = new ChatRoomDataUpdate();
 		data.roomIDToException = new HashMap<Integer, SiteException>();
 		data.roomIDToVisibleUsers = new HashMap<Integer, Map<Integer, ShortUserData>>();
+		data.roomIDToUpdatedVisibleUsers = new HashMap<Integer, Map<Integer, ShortUserData>>();
+		data.roomIDToLeftVisibleUsers = new HashMap<Integer, List<Integer>>();
 		//Copy the last retrieved message IDs the values will be used and then updated
 		//THis will happen inside of the activeRoom.getActualRoomData( ... ) method
 		data.nextUpdateOldestMsgIDs = lastUpdateNewestMsgIDs;
+		//The same is done for the visible users versions, if there are none then all the visible users are sent
+		data.visibleUsersVersions = ( visibleUsersVersions != null ) ? visibleUsersVersions : new HashMap<Integer, Integer>();
+		//The user's own data is sent separately, so it does not depend on the visible users updates
+		data.loggedInUserData = UserSessionManager.getUserDataObject( userID );
 		data.roomIDToChatMessages = new HashMap<Integer, List<ChatMessage>>();
 		
 		Iterator<Integer> iter = openedRoomIDS.iterator();
@@ -962,7 +1216,109 @@ public class ChatRoomsManager {
 		
 		return data;
 	}
-
+	
+	//The maximum time in milliseconds the room-data update request can wait for the room updates
+	public static final long MAX_ROOMS_UPDATE_WAIT_TIME_MILLISEC = 20000;
+	//The maximum number of requests that can wait for the room updates at the same time, each
+	//of them blocks a request thread of the servlet container, so we have to keep it bounded
+	public static final int MAX_NUMBER_OF_WAITING_UPDATE_REQUESTS = 64;
+	//The current number of requests waiting for the room updates
+	private int numberOfWaitingUpdateRequests = 0;
+	//The synchronization object for the number of waiting requests
+	private final Object waitingUpdateRequestsSynchObj = new Object();
+	
+	/**
+	 * Allows to get the current versions of the active rooms' data
+	 * @param openedRoomIDS the list of room IDs we are interested in
+	 * @return the mapping from the IDs of the active rooms to their data versions, the rooms
+	 * 		   that are not active are not present in the mapping
+	 */
+	public Map<Integer, Long> getOpenedRoomsUpdateVersions( final List<Integer> openedRoomIDS ) {
+		Map<Integer, Long> roomIDToVersion = new HashMap<Integer, Long>();
+		for( Integer roomID : openedRoomIDS ) {
+			ActiveChatRoom activeRoom = roomIdToActiveChatRoom.get( roomID );
+			if( activeRoom != null ) {
+				roomIDToVersion.put( roomID, activeRoom.getUpdateVersion() );
+			}
+		}
+		return roomIDToVersion;
+	}
+	
+	/**
+	 * Allows to block the current thread until one of the given rooms publishes an update or the
+	 * user's number of new private messages changes, the updates are detected by comparing the
+	 * room's data version and the version of the number of new messages with the given ones. The thread is
+	 * blocked for at most MAX_ROOMS_UPDATE_WAIT_TIME_MILLISEC milliseconds. If there are already
+	 * MAX_NUMBER_OF_WAITING_UPDATE_REQUESTS waiting threads then we do not block at all.
+	 * WARNING: This method must not be called while holding the user's synchronization object!
+	 * @param userID the id of the user we are waiting for
+	 * @param roomIDToVersion the mapping from the room IDs to the last known room data versions
+	 * @param messagesCountVersion the last known version of the user's number of new private messages
+	 * @return false if the request was not parked because there are too many waiting requests, otherwise true
+	 */
+	public boolean waitForOpenedRoomsUpdate( final int userID, final Map<Integer, Long> roomIDToVersion,
+											 final long messagesCountVersion ) {
+		synchronized( waitingUpdateRequestsSynchObj ) {
+			if( numberOfWaitingUpdateRequests >= MAX_NUMBER_OF_WAITING_UPDATE_REQUESTS ) {
+				logger.debug( "There are already " + numberOfWaitingUpdateRequests + " waiting room-data update requests, " +
+							  "the request of user " + userID + " will not wait" );
+				return false;
+			}
+			numberOfWaitingUpdateRequests++;
+		}
+		
+		final Object waiter = new Object();
+		final List<ActiveChatRoom> activeRooms = new ArrayList<ActiveChatRoom>();
+		final NewMessagesCountManager messagesCountManager = NewMessagesCountManager.getInstance();
+		boolean isUpdated = false;
+		try {
+			synchronized( waiter ) {
+				//Register the waiter for the user's new private messages and in all the rooms
+				messagesCountManager.addUpdateWaiter( userID, waiter );
+				for( Integer roomID : roomIDToVersion.keySet() ) {
+					ActiveChatRoom activeRoom = roomIdToActiveChatRoom.get( roomID );
+					if( activeRoom != null ) {
+						activeRoom.addUpdateWaiter( waiter );
+						activeRooms.add( activeRoom );
+					} else {
+						isUpdated = true;
+					}
+				}
+				
+				//Wait for the updates, the versions are checked while holding the waiter's lock so
+				//we can not miss a notification that comes between the check and the wait call
+				final long waitUntil = System.currentTimeMillis() + MAX_ROOMS_UPDATE_WAIT_TIME_MILLISEC;
+				while( ! isUpdated ) {
+					isUpdated = ( messagesCountManager.getUpdateVersion( userID ) != messagesCountVersion );
+					for( ActiveChatRoom activeRoom : activeRooms ) {
+						final long roomVersion = activeRoom.getUpdateVersion();
+						if( roomVersion != roomIDToVersion.get( activeRoom.getRoomID() ) ) {
+							isUpdated = true;
+							break;
+						}
+					}
+					final long waitTimeMillis = waitUntil - System.currentTimeMillis();
+					if( isUpdated || ( waitTimeMillis <= 0 ) ) {
+						break;
+					}
+					waiter.wait( waitTimeMillis );
+				}
+			}
+		} catch( InterruptedException e ) {
+			logger.warn( "The room-data update request of user " + userID + " was interrupted while waiting for the room updates" );
+			Thread.currentThread().interrupt();
+		} finally {
+			messagesCountManager.removeUpdateWaiter( userID, waiter );
+			for( ActiveChatRoom activeRoom : activeRooms ) {
+				activeRoom.removeUpdateWaiter( waiter );
+			}
+			synchronized( waitingUpdateRequestsSynchObj ) {
+				numberOfWaitingUpdateRequests--;
+			}
+		}
+		logger.debug( "The room-data update request of user " + userID + " stopped waiting, is updated = " + isUpdated );
+		return true;
+	}
 	
 	/******************************************************************************************/
 	/*******************************THE STATIC OPERATIONS**************************************/
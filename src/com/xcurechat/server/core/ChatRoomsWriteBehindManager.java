@@ -0,0 +1,277 @@
+/**
+ * X-Cure-Chat
+ * Copyright (C) 2013  Dr. Ivan S. Zapreev
+ * www: https://nl.linkedin.com/in/zapreevis
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.#
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * The server core package.
+ * (C) Ivan S. Zapreev, 2009
+ */
+package com.xcurechat.server.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.xcurechat.server.jdbc.ConnectionWrapper;
+import com.xcurechat.server.jdbc.rooms.ResetRoomVisitorsExecutor;
+import com.xcurechat.server.jdbc.rooms.UpdateRoomsVisitorsExecutor;
+
+/**
+ * @author zapreevis
+ * This class is the write-behind manager for the chat-room data that does not have to be
+ * in the DB at once: the info messages about users entering/leaving the rooms or changing
+ * their status and the room visitor counters. The info messages are stored in the rooms'
+ * pending lists and are inserted by a background thread with one multi-row insert per room,
+ * the visitor counter changes are coalesced per room and applied with one JDBC batch.
+ * If there are too many pending info messages then the new ones are dropped and counted, the
+ * request threads never do the DB inserts, because they add the info messages while holding
+ * the rooms' locks. The pending data is flushed when the manager is shut down.
+ */
+public class ChatRoomsWriteBehindManager {
+	//Get the Log4j logger object
+	private static final Logger logger = Logger.getLogger( ChatRoomsWriteBehindManager.class );
+	
+	//The interval in millisec between the background flushes
+	public static final int FLUSH_INTERVAL_MILLISEC = 500;
+	//The number of pending info messages after which the background thread is woken up before time
+	public static final int FLUSH_BATCH_SIZE = 100;
+	//The maximum number of pending info messages, when exceeded the new info messages are dropped
+	public static final int MAX_NUMBER_OF_PENDING_INFO_MESSAGES = 1000;
+	//The dropped info messages are reported at most once per this interval in millisec
+	private static final int DROPPED_INFO_MESSAGES_REPORT_INTERVAL_MILLISEC = 60000;
+	//The maximum time in millisec we wait for the background thread to finish on shut down
+	private static final int SHUT_DOWN_WAIT_TIME_MILLISEC = 10000;
+	
+	//The rooms that have pending info messages, the set is also used for synchronization
+	private final Set<ActiveChatRoom> roomsWithPendingMessages = new LinkedHashSet<ActiveChatRoom>();
+	//The number of pending info messages, guarded by roomsWithPendingMessages
+	private int numberOfPendingMessages = 0;
+	
+	//The accumulated changes of the room visitor counters, the map is also used for synchronization
+	private final Map<Integer, Integer> roomIDToVisitorsDelta = new HashMap<Integer, Integer>();
+	//The synchronization object that serializes the visitor counter updates in the DB
+	private final Object visitorsUpdateSynchObj = new Object();
+	
+	//True if the manager is shut down, guarded by roomsWithPendingMessages
+	private boolean isShutDown = false;
+	
+	//The number of info messages dropped because there were too many pending info messages
+	private final AtomicLong numberOfDroppedInfoMessages = new AtomicLong( 0 );
+	//The time in millisec when the dropped info messages were reported the last time
+	private final AtomicLong lastDroppedReportTimeMillis = new AtomicLong( 0 );
+	
+	/**
+	 * @author zapreevis
+	 * The background thread doing the periodic flushes
+	 */
+	private class WriteBehindThread extends Thread {
+		public WriteBehindThread() {
+			super( "ChatRoomsWriteBehindThread" );
+			setDaemon( true );
+		}
+		
+		@Override
+		public void run() {
+			logger.info( "Starting the chat rooms write-behind thread" );
+			boolean isStopped = false;
+			while( ! isStopped ) {
+				synchronized( roomsWithPendingMessages ) {
+					if( ! isShutDown && ( numberOfPendingMessages < FLUSH_BATCH_SIZE ) ) {
+						try {
+							roomsWithPendingMessages.wait( FLUSH_INTERVAL_MILLISEC );
+						} catch ( InterruptedException e ) {
+							logger.warn( "The chat rooms write-behind thread was interrupted" );
+						}
+					}
+					isStopped = isShutDown;
+				}
+				try {
+					flush();
+				} catch ( Throwable e ) {
+					logger.error( "Unexpected exception while flushing the chat rooms data", e );
+				}
+			}
+			logger.info( "The chat rooms write-behind thread is stopped" );
+		}
+	}
+	
+	//The background flushing thread
+	private final WriteBehindThread writeBehindThread = new WriteBehindThread();
+	
+	private ChatRoomsWriteBehindManager() {
+		writeBehindThread.start();
+	}
+	
+	//The only instance of the manager
+	private static final ChatRoomsWriteBehindManager instance = new ChatRoomsWriteBehindManager();
+	
+	/**
+	 * @return the only instance of the write-behind manager
+	 */
+	public static ChatRoomsWriteBehindManager getInstance() {
+		return instance;
+	}
+	
+	/**
+	 * Should be called before the info message is added to the room's pending list. If there are
+	 * too many pending info messages then the background thread is woken up and the new info
+	 * message has to be dropped, the dropped messages are counted and reported with a warning
+	 * at most once per DROPPED_INFO_MESSAGES_REPORT_INTERVAL_MILLISEC. Does not access the DB.
+	 * @param roomID the id of the room the info message is for, is used for logging
+	 * @return true if the info message can be added, false if it has to be dropped
+	 */
+	public boolean canAddInfoMessage( final int roomID ) {
+		synchronized( roomsWithPendingMessages ) {
+			if( numberOfPendingMessages < MAX_NUMBER_OF_PENDING_INFO_MESSAGES ) {
+				return true;
+			}
+			roomsWithPendingMessages.notifyAll();
+		}
+		final long numberOfDropped = numberOfDroppedInfoMessages.incrementAndGet();
+		//Only one of the dropping threads reports, at most once per the report interval
+		final long currentTimeMillis = System.currentTimeMillis();
+		final long lastReportTimeMillis = lastDroppedReportTimeMillis.get();
+		if( ( currentTimeMillis - lastReportTimeMillis >= DROPPED_INFO_MESSAGES_REPORT_INTERVAL_MILLISEC ) &&
+			lastDroppedReportTimeMillis.compareAndSet( lastReportTimeMillis, currentTimeMillis ) ) {
+			logger.warn( "There are too many pending info messages, dropped an info message for room " + roomID +
+						 ", the total number of dropped info messages is " + numberOfDropped );
+		}
+		return false;
+	}
+	
+	/**
+	 * Should be called after the info message is added to the room's pending list, the
+	 * room is flushed by the background thread. Does not access the DB, after the shut
+	 * down the pending info messages are only inserted when the room is flushed otherwise,
+	 * e.g. when it is closed or a chat message is sent to it.
+	 * @param room the room that has a new pending info message
+	 */
+	public void scheduleInfoMessage( final ActiveChatRoom room ) {
+		synchronized( roomsWithPendingMessages ) {
+			numberOfPendingMessages++;
+			roomsWithPendingMessages.add( room );
+			if( numberOfPendingMessages == FLUSH_BATCH_SIZE ) {
+				roomsWithPendingMessages.notifyAll();
+			}
+		}
+	}
+	
+	/**
+	 * @return the number of info messages dropped because there were too many pending info messages
+	 */
+	public long getNumberOfDroppedInfoMessages() {
+		return numberOfDroppedInfoMessages.get();
+	}
+	
+	/**
+	 * Should be called by the room when it takes the pending info messages for insertion
+	 * @param numberOfMessages the number of taken messages
+	 */
+	public void onInfoMessagesTaken( final int numberOfMessages ) {
+		synchronized( roomsWithPendingMessages ) {
+			numberOfPendingMessages -= numberOfMessages;
+		}
+	}
+	
+	/**
+	 * Allows to schedule the change of the number of room visitors
+	 * @param roomID the room ID
+	 * @param delta the number of visitors to add, can be negative
+	 */
+	public void addRoomVisitorsDelta( final int roomID, final int delta ) {
+		synchronized( roomIDToVisitorsDelta ) {
+			final Integer oldDelta = roomIDToVisitorsDelta.get( roomID );
+			roomIDToVisitorsDelta.put( roomID, ( oldDelta == null ? 0 : oldDelta ) + delta );
+		}
+	}
+	
+	/**
+	 * Allows to reset the number of room visitors to zero, the pending changes
+	 * of the room visitor counter are discarded. This is done synchronously.
+	 * @param roomID the room ID
+	 */
+	public void resetRoomVisitors( final int roomID ) {
+		synchronized( visitorsUpdateSynchObj ) {
+			synchronized( roomIDToVisitorsDelta ) {
+				roomIDToVisitorsDelta.remove( roomID );
+			}
+			try {
+				ConnectionWrapper<Void> resetVisitorsConnWrap = ConnectionWrapper.createConnectionWrapper( new ResetRoomVisitorsExecutor( roomID ) );
+				resetVisitorsConnWrap.executeQuery( ConnectionWrapper.XCURE_CHAT_DB );
+			} catch (Throwable e){
+				logger.error( "Exception while resetting room " + roomID + " visitors to zero", e);
+			}
+		}
+	}
+	
+	/**
+	 * Flushes all the pending info messages and visitor counter changes into the DB
+	 */
+	public void flush() {
+		//Flush the pending info messages room by room
+		List<ActiveChatRoom> rooms;
+		synchronized( roomsWithPendingMessages ) {
+			rooms = new ArrayList<ActiveChatRoom>( roomsWithPendingMessages );
+			roomsWithPendingMessages.clear();
+		}
+		for( ActiveChatRoom room : rooms ) {
+			room.flushPendingInfoMessages();
+		}
+		
+		//Flush the visitor counter changes
+		synchronized( visitorsUpdateSynchObj ) {
+			Map<Integer, Integer> visitorsDeltas;
+			synchronized( roomIDToVisitorsDelta ) {
+				visitorsDeltas = new HashMap<Integer, Integer>( roomIDToVisitorsDelta );
+				roomIDToVisitorsDelta.clear();
+			}
+			if( ! visitorsDeltas.isEmpty() ) {
+				try {
+					ConnectionWrapper<Void> updateVisitorsConnWrap = ConnectionWrapper.createConnectionWrapper( new UpdateRoomsVisitorsExecutor( visitorsDeltas ) );
+					updateVisitorsConnWrap.executeQuery( ConnectionWrapper.XCURE_CHAT_DB );
+				} catch (Throwable e){
+					logger.error( "Exception while updating the visitors of rooms " + visitorsDeltas.keySet(), e);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Stops the background thread and flushes the pending data
+	 */
+	public void shutDown() {
+		logger.info( "Shutting down the chat rooms write-behind manager" );
+		synchronized( roomsWithPendingMessages ) {
+			isShutDown = true;
+			roomsWithPendingMessages.notifyAll();
+		}
+		try {
+			writeBehindThread.join( SHUT_DOWN_WAIT_TIME_MILLISEC );
+		} catch ( InterruptedException e ) {
+			logger.warn( "Interrupted while waiting for the chat rooms write-behind thread to stop" );
+			Thread.currentThread().interrupt();
+		}
+		//Flush whatever could have been added in the mean time
+		flush();
+		logger.info( "The number of dropped chat room info messages is " + numberOfDroppedInfoMessages.get() );
+	}
+}
@@ -0,0 +1,318 @@
+/**
+ * X-Cure-Chat
+ * Copyright (C) 2013  Dr. Ivan S. Zapreev
+ * www: https://nl.linkedin.com/in/zapreevis
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.#
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * The server core package.
+ * (C) Ivan S. Zapreev, 2009
+ */
+package com.xcurechat.server.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import com.xcurechat.server.cache.ServerDataFileCache;
+import com.xcurechat.server.cache.Top10UserDataCache;
+import com.xcurechat.server.utils.IPtoLocationLocator;
+
+/**
+ * @author zapreevis
+ * This class is the central scheduler of the periodic maintenance jobs, such as cleaning up the
+ * old chat messages, updating the list of active rooms, removing the idle room users, flushing
+ * the TOP10 cache and loading the geolocation table. The jobs are run by a fixed pool of background
+ * threads, so that the request threads never do the housekeeping. Every job is re-scheduled after it is done with its interval
+ * plus a random jitter, so that the jobs do not run in lock step. Every job has a time budget, the
+ * runs exceeding it are reported, and collects simple metrics about its runs.
+ */
+public class MaintenanceScheduler {
+	//Get the Log4j logger object
+	private static final Logger logger = Logger.getLogger( MaintenanceScheduler.class );
+	
+	//The number of threads running the maintenance jobs
+	private static final int NUMBER_OF_MAINTENANCE_THREADS = 2;
+	//The maximum time in millisec we wait for the running jobs to finish on shut down
+	private static final int SHUT_DOWN_WAIT_TIME_MILLISEC = 10000;
+	//The interval between the files caches clean ups in millisec, the caches have their own clean up intervals
+	private static final long FILES_CACHES_CLEAN_UP_INTERVAL_MILLISEC = 60000;
+	
+	/**
+	 * @author zapreevis
+	 * The periodic maintenance job with its metrics. The job is never run concurrently with
+	 * itself, so the metrics are only updated by one thread at a time.
+	 */
+	public static abstract class MaintenanceJob implements Runnable {
+		//The name of the job
+		private final String name;
+		//The interval between the job runs in millisec
+		private final long intervalMillisec;
+		//The maximum random deviation from the interval in millisec
+		private final long jitterMillisec;
+		//The time budget of one run in millisec
+		private final long budgetMillisec;
+		
+		//The metrics of the job runs
+		private volatile long runsCount = 0;
+		private volatile long failuresCount = 0;
+		private volatile long overrunsCount = 0;
+		private volatile long totalDurationMillisec = 0;
+		private volatile long maxDurationMillisec = 0;
+		private volatile long lastDurationMillisec = 0;
+		
+		//The scheduler this job is registered with
+		private MaintenanceScheduler scheduler = null;
+		
+		/**
+		 * The basic constructor
+		 * @param name the name of the job
+		 * @param intervalMillisec the interval between the job runs in millisec
+		 * @param jitterMillisec the maximum random deviation from the interval in millisec
+		 * @param budgetMillisec the time budget of one run in millisec
+		 */
+		public MaintenanceJob( final String name, final long intervalMillisec,
+							   final long jitterMillisec, final long budgetMillisec ) {
+			this.name = name;
+			this.intervalMillisec = intervalMillisec;
+			this.jitterMillisec = jitterMillisec;
+			this.budgetMillisec = budgetMillisec;
+		}
+		
+		/**
+		 * Does the job, should try to stay within the time budget
+		 * @param deadlineMillisec the time in millisec by which the job should be done
+		 */
+		protected abstract void execute( final long deadlineMillisec );
+		
+		public final void run() {
+			final long startTimeMillisec = System.currentTimeMillis();
+			try {
+				logger.debug( "Starting the maintenance job '" + name + "'" );
+				execute( startTimeMillisec + budgetMillisec );
+			} catch ( Throwable e ) {
+				failuresCount++;
+				logger.error( "Unexpected exception in the maintenance job '" + name + "'", e );
+			} finally {
+				final long durationMillisec = System.currentTimeMillis() - startTimeMillisec;
+				runsCount++;
+				totalDurationMillisec += durationMillisec;
+				lastDurationMillisec = durationMillisec;
+				if( durationMillisec > maxDurationMillisec ) {
+					maxDurationMillisec = durationMillisec;
+				}
+				if( durationMillisec > budgetMillisec ) {
+					overrunsCount++;
+					logger.warn( "The maintenance job '" + name + "' took " + durationMillisec +
+								 " millisec, its time budget is " + budgetMillisec + " millisec" );
+				}
+				logger.debug( getMetrics() );
+				
+				//Schedule the next run
+				scheduler.scheduleNextRun( this );
+			}
+		}
+		
+		/**
+		 * @return the next delay in millisec, the interval with a random jitter
+		 */
+		private long getNextDelayMillisec( final Random random ) {
+			final long jitter = ( jitterMillisec > 0 ) ? ( (long) ( random.nextDouble() * ( 2 * jitterMillisec + 1 ) ) - jitterMillisec ) : 0;
+			return Math.max( 0, intervalMillisec + jitter );
+		}
+		
+		/**
+		 * @return the string with the metrics of the job runs
+		 */
+		public String getMetrics() {
+			final long runs = runsCount;
+			return "The maintenance job '" + name + "': runs = " + runs + ", failures = " + failuresCount +
+				   ", budget overruns = " + overrunsCount + ", last duration = " + lastDurationMillisec +
+				   " millisec, max duration = " + maxDurationMillisec + " millisec, average duration = " +
+				   ( runs > 0 ? totalDurationMillisec / runs : 0 ) + " millisec";
+		}
+	}
+	
+	//The executor running the jobs
+	private final ScheduledThreadPoolExecutor executor;
+	//The registered jobs
+	private final List<MaintenanceJob> jobs = new ArrayList<MaintenanceJob>();
+	//The random generator for the jitter, guarded by jobs
+	private final Random random = new Random();
+	//True if the jobs are started, guarded by jobs
+	private boolean isStarted = false;
+	//True if the scheduler is shut down, guarded by jobs
+	private boolean isShutDown = false;
+	
+	private MaintenanceScheduler() {
+		final AtomicInteger threadsCount = new AtomicInteger( 0 );
+		executor = new ScheduledThreadPoolExecutor( NUMBER_OF_MAINTENANCE_THREADS, new ThreadFactory() {
+			public Thread newThread( final Runnable runnable ) {
+				Thread thread = new Thread( runnable, "MaintenanceThread-" + threadsCount.incrementAndGet() );
+				thread.setDaemon( true );
+				return thread;
+			}
+		});
+		//The scheduled runs are dropped on shut down
+		executor.setExecuteExistingDelayedTasksAfterShutdownPolicy( false );
+	}
+	
+	//The only instance of the scheduler
+	private static final MaintenanceScheduler instance = new MaintenanceScheduler();
+	
+	/**
+	 * @return the only instance of the maintenance scheduler
+	 */
+	public static MaintenanceScheduler getInstance() {
+		return instance;
+	}
+	
+	/**
+	 * Allows to register the job, the first run of the job is scheduled with the given delay
+	 * @param job the job to register
+	 * @param initialDelayMillisec the delay of the first run in millisec
+	 */
+	public void scheduleJob( final MaintenanceJob job, final long initialDelayMillisec ) {
+		synchronized( jobs ) {
+			if( ! isShutDown ) {
+				job.scheduler = this;
+				jobs.add( job );
+				executor.schedule( job, initialDelayMillisec, TimeUnit.MILLISECONDS );
+				logger.info( "The maintenance job '" + job.name + "' is scheduled with the interval of " + job.intervalMillisec + " millisec" );
+			}
+		}
+	}
+	
+	/**
+	 * Schedules the next run of the job, unless the scheduler is shut down
+	 * @param job the job to schedule
+	 */
+	private void scheduleNextRun( final MaintenanceJob job ) {
+		synchronized( jobs ) {
+			if( ! isShutDown ) {
+				executor.schedule( job, job.getNextDelayMillisec( random ), TimeUnit.MILLISECONDS );
+			}
+		}
+	}
+	
+	/**
+	 * Registers and starts the site's maintenance jobs, only the first call has effect.
+	 */
+	public void start() {
+		synchronized( jobs ) {
+			if( isStarted || isShutDown ) {
+				return;
+			}
+			isStarted = true;
+		}
+		logger.info( "Starting the maintenance jobs" );
+		
+		//Clean up the old chat room messages and files
+		scheduleJob( new MaintenanceJob( "Old chat messages clean up", ChatRoomsManager.OLD_MESSAGES_CLEAN_UP_INTERVAL_MILLISEC,
+										 ChatRoomsManager.OLD_MESSAGES_CLEAN_UP_INTERVAL_MILLISEC / 10, 30000 ) {
+			protected void execute( final long deadlineMillisec ) {
+				ChatRoomsManager.getInstance().cleanUpOldChatMessages();
+			}
+		}, 0 );
+		
+		//Reconcile the list of active rooms with the DB
+		scheduleJob( new MaintenanceJob( "Active rooms reconciliation", ChatRoomsManager.ACTIVE_ROOMS_TREE_UPDATE_INTERVAL_MILLISEC,
+										 ChatRoomsManager.ACTIVE_ROOMS_TREE_UPDATE_INTERVAL_MILLISEC / 10, 5000 ) {
+			protected void execute( final long deadlineMillisec ) {
+				ChatRoomsManager.getInstance().updateActiveRooms( true );
+			}
+		}, 0 );
+		
+		//Remove the expired rooms from the list of active rooms
+		scheduleJob( new MaintenanceJob( "Expired rooms removal", ChatRoomsManager.EXPIRED_ROOMS_REMOVAL_INTERVAL_MILLISEC, 0, 1000 ) {
+			protected void execute( final long deadlineMillisec ) {
+				ChatRoomsManager.getInstance().removeExpiredRooms();
+			}
+		}, ChatRoomsManager.EXPIRED_ROOMS_REMOVAL_INTERVAL_MILLISEC );
+		
+		//Remove the idle users from the active rooms
+		scheduleJob( new MaintenanceJob( "Idle room users clean up", UserRoomAccessManager.USER_IDLE_TIME_OUT_MILLISEC / 2,
+										 UserRoomAccessManager.USER_IDLE_TIME_OUT_MILLISEC / 20, 1000 ) {
+			protected void execute( final long deadlineMillisec ) {
+				ChatRoomsManager.getInstance().cleanUpIdleUsers( deadlineMillisec );
+			}
+		}, UserRoomAccessManager.USER_IDLE_TIME_OUT_MILLISEC / 2 );
+		
+		//Flush the TOP10 data cache
+		scheduleJob( new MaintenanceJob( "TOP10 cache flush", Top10UserDataCache.CACHE_CLEAN_UP_INTERVAL_MILLISEC,
+										 Top10UserDataCache.CACHE_CLEAN_UP_INTERVAL_MILLISEC / 10, 5000 ) {
+			protected void execute( final long deadlineMillisec ) {
+				Top10UserDataCache.getInstance().flushCachedData( true );
+			}
+		}, Top10UserDataCache.CACHE_CLEAN_UP_INTERVAL_MILLISEC );
+		
+		//Load the geolocation range table, the hostip database is not used on login after that
+		scheduleJob( new MaintenanceJob( "Geolocation table load", IPtoLocationLocator.GEO_IP_TABLE_RELOAD_INTERVAL_MILLISEC,
+										 IPtoLocationLocator.GEO_IP_TABLE_RELOAD_INTERVAL_MILLISEC / 10, 60000 ) {
+			protected void execute( final long deadlineMillisec ) {
+				IPtoLocationLocator.loadGeoIPTable();
+			}
+		}, 0 );
+		
+		//Clean up the files caches and report their statistics
+		scheduleJob( new MaintenanceJob( "Files caches clean up", FILES_CACHES_CLEAN_UP_INTERVAL_MILLISEC,
+										 FILES_CACHES_CLEAN_UP_INTERVAL_MILLISEC / 10, 1000 ) {
+			protected void execute( final long deadlineMillisec ) {
+				ServerDataFileCache.cleanAll();
+				for( String statistics : ServerDataFileCache.getAllStatistics() ) {
+					logger.info( statistics );
+				}
+			}
+		}, FILES_CACHES_CLEAN_UP_INTERVAL_MILLISEC );
+	}
+	
+	/**
+	 * @return the metrics of all the registered jobs, one line per job
+	 */
+	public List<String> getMetrics() {
+		List<String> metrics = new ArrayList<String>();
+		synchronized( jobs ) {
+			for( MaintenanceJob job : jobs ) {
+				metrics.add( job.getMetrics() );
+			}
+		}
+		return metrics;
+	}
+	
+	/**
+	 * Stops the scheduler, the running jobs are allowed to finish
+	 */
+	public void shutDown() {
+		logger.info( "Shutting down the maintenance scheduler" );
+		synchronized( jobs ) {
+			isShutDown = true;
+		}
+		executor.shutdown();
+		try {
+			executor.awaitTermination( SHUT_DOWN_WAIT_TIME_MILLISEC, TimeUnit.MILLISECONDS );
+		} catch ( InterruptedException e ) {
+			logger.warn( "Interrupted while waiting for the maintenance jobs to finish" );
+			Thread.currentThread().interrupt();
+		}
+		for( String metrics : getMetrics() ) {
+			logger.info( metrics );
+		}
+	}
+}
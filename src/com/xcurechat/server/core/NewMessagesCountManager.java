@@ -0,0 +1,297 @@
+/**
+ * X-Cure-Chat
+ * Copyright (C) 2013  Dr. Ivan S. Zapreev
+ * www: https://nl.linkedin.com/in/zapreevis
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.#
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * The server core package.
+ * (C) Ivan S. Zapreev, 2009
+ */
+package com.xcurechat.server.core;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+
+import com.xcurechat.client.data.ShortPrivateMessageData;
+import com.xcurechat.client.data.search.OnePageViewData;
+import com.xcurechat.client.rpc.exceptions.SiteException;
+
+import com.xcurechat.server.jdbc.ConnectionWrapper;
+import com.xcurechat.server.jdbc.messages.CountNewUserMessagesExecutor;
+
+/**
+ * @author zapreevis
+ * This class keeps the numbers of the new (unread and not hidden) private messages of the
+ * online users in memory, so that the new messages checks do not have to count them in the DB.
+ * The number is loaded from the DB when the user logs in, then it is incremented when a message
+ * is sent to the user and decremented when the user reads a message. When the user hides the
+ * messages we do not know how many of them were unread, so the number is loaded from the DB again.
+ * For safety, e.g. if the messages are changed in some other way, the numbers are re-loaded every
+ * NEW_MESSAGES_COUNT_RELOAD_INTERVAL_MILLISEC milliseconds. Every change of the number wakes up
+ * the user's room-data update request waiting on the server, so that the user gets it at once.
+ */
+public class NewMessagesCountManager {
+	//Get the Log4j logger object
+	private static final Logger logger = Logger.getLogger( NewMessagesCountManager.class );
+	
+	//The interval in millisec after which the number of new messages is re-loaded from the DB
+	private static final long NEW_MESSAGES_COUNT_RELOAD_INTERVAL_MILLISEC = 10 * 60000;
+	
+	/**
+	 * @author zapreevis
+	 * The number of new messages of one user, the object is also used for synchronization
+	 */
+	private static final class NewMessagesCount {
+		//The number of new messages
+		public int count = 0;
+		//True if the number of new messages is known
+		public boolean isKnown = false;
+		//The time in millisec when the number was loaded from the DB
+		public long loadTime = 0;
+		//The number of changes of the counter, is used to detect the changes made while loading the number
+		public int modifications = 0;
+		//The version of the number, changes every time the number is changed by a sent, read or hidden message
+		public long updateVersion = 0;
+	}
+	
+	//The mapping from the IDs of the online users to the numbers of their new messages
+	private final Map<Integer, NewMessagesCount> userIDToCount = new HashMap<Integer, NewMessagesCount>();
+	
+	//The mapping from the IDs of the users to the objects of the threads waiting for the changes of
+	//the users' numbers of new messages, the mapping is also used for synchronization
+	private final Map<Integer, Set<Object>> userIDToUpdateWaiters = new HashMap<Integer, Set<Object>>();
+	
+	private NewMessagesCountManager() {
+	}
+	
+	//The only instance of the manager
+	private static final NewMessagesCountManager instance = new NewMessagesCountManager();
+	
+	/**
+	 * @return the only instance of the new messages count manager
+	 */
+	public static NewMessagesCountManager getInstance() {
+		return instance;
+	}
+	
+	/**
+	 * Allows to get the counter of the user, the counter is created if it does not exist
+	 * @param userID the id of the user
+	 * @return the counter of the user
+	 */
+	private NewMessagesCount getCounter( final int userID ) {
+		synchronized( userIDToCount ) {
+			NewMessagesCount counter = userIDToCount.get( userID );
+			if( counter == null ) {
+				counter = new NewMessagesCount();
+				userIDToCount.put( userID, counter );
+			}
+			return counter;
+		}
+	}
+	
+	/**
+	 * Allows to get the number of new private messages of the user, if it is not known then it is loaded from the DB.
+	 * @param userID the id of the user
+	 * @return the number of new private messages of the user
+	 * @throws SiteException if the number could not be loaded from the DB
+	 */
+	public int getNewMessagesCount( final int userID ) throws SiteException {
+		final NewMessagesCount counter = getCounter( userID );
+		final int modifications;
+		synchronized( counter ) {
+			if( counter.isKnown && ( System.currentTimeMillis() < counter.loadTime + NEW_MESSAGES_COUNT_RELOAD_INTERVAL_MILLISEC ) ) {
+				return counter.count;
+			}
+			modifications = counter.modifications;
+		}
+		
+		//Load the number from the DB, this is done without holding the lock
+		final long loadTime = System.currentTimeMillis();
+		OnePageViewData<ShortPrivateMessageData> messages = new OnePageViewData<ShortPrivateMessageData>();
+		ConnectionWrapper<OnePageViewData<ShortPrivateMessageData>> countNewMsgsConnWrap = ConnectionWrapper.createConnectionWrapper( new CountNewUserMessagesExecutor( userID ) );
+		countNewMsgsConnWrap.executeQuery( messages, ConnectionWrapper.XCURE_CHAT_DB );
+		
+		synchronized( counter ) {
+			//If the counter was changed while loading then the loaded number might be outdated, then
+			//we return it but do not store it, the number will be loaded again on the next request
+			if( counter.modifications == modifications ) {
+				counter.count = messages.total_size;
+				counter.isKnown = true;
+				counter.loadTime = loadTime;
+				counter.modifications++;
+			}
+		}
+		return messages.total_size;
+	}
+	
+	/**
+	 * Allows to load the number of new private messages of the user, should be called when the user logs in
+	 * @param userID the id of the user
+	 */
+	public void loadNewMessagesCount( final int userID ) {
+		try {
+			getNewMessagesCount( userID );
+		} catch ( SiteException e ) {
+			logger.error( "Unable to load the number of new private messages for user " + userID, e );
+		}
+	}
+	
+	/**
+	 * Allows to get the version of the user's number of new messages, the version changes every
+	 * time the number is changed by a sent, read or hidden message
+	 * @param userID the id of the user
+	 * @return the current version of the number, zero if the number is not kept for the user
+	 */
+	public long getUpdateVersion( final int userID ) {
+		final NewMessagesCount counter;
+		synchronized( userIDToCount ) {
+			counter = userIDToCount.get( userID );
+		}
+		if( counter != null ) {
+			synchronized( counter ) {
+				return counter.updateVersion;
+			}
+		}
+		return 0;
+	}
+	
+	/**
+	 * Allows to register the waiter object that will be notified, by calling notifyAll() on it, every
+	 * time the user's number of new messages changes. The waiter has to be removed after use.
+	 * @param userID the id of the user
+	 * @param waiter the object the waiting thread is waiting on
+	 */
+	public void addUpdateWaiter( final int userID, final Object waiter ) {
+		synchronized( userIDToUpdateWaiters ) {
+			Set<Object> waiters = userIDToUpdateWaiters.get( userID );
+			if( waiters == null ) {
+				waiters = new HashSet<Object>();
+				userIDToUpdateWaiters.put( userID, waiters );
+			}
+			waiters.add( waiter );
+		}
+	}
+	
+	/**
+	 * Allows to remove the previously registered update waiter
+	 * @param userID the id of the user
+	 * @param waiter the object the waiting thread was waiting on
+	 */
+	public void removeUpdateWaiter( final int userID, final Object waiter ) {
+		synchronized( userIDToUpdateWaiters ) {
+			final Set<Object> waiters = userIDToUpdateWaiters.get( userID );
+			if( waiters != null ) {
+				waiters.remove( waiter );
+				if( waiters.isEmpty() ) {
+					userIDToUpdateWaiters.remove( userID );
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Wakes up all the threads waiting for the change of the user's number of new messages,
+	 * should be called after the version of the number is incremented
+	 * @param userID the id of the user
+	 */
+	private void notifyUpdateWaiters( final int userID ) {
+		final Object[] waiters;
+		synchronized( userIDToUpdateWaiters ) {
+			final Set<Object> userWaiters = userIDToUpdateWaiters.get( userID );
+			if( userWaiters == null ) {
+				return;
+			}
+			waiters = userWaiters.toArray();
+		}
+		for( Object waiter : waiters ) {
+			synchronized( waiter ) {
+				waiter.notifyAll();
+			}
+		}
+	}
+	
+	/**
+	 * Allows to change the number of new messages of the user, if the user is online
+	 * @param userID the id of the user
+	 * @param delta the change of the number of new messages
+	 */
+	private void changeNewMessagesCount( final int userID, final int delta ) {
+		final NewMessagesCount counter;
+		synchronized( userIDToCount ) {
+			counter = userIDToCount.get( userID );
+		}
+		if( counter != null ) {
+			synchronized( counter ) {
+				counter.modifications++;
+				counter.updateVersion++;
+				if( counter.isKnown ) {
+					counter.count = Math.max( 0, counter.count + delta );
+				}
+			}
+			notifyUpdateWaiters( userID );
+		}
+	}
+	
+	/**
+	 * Must be called when a private message was sent to the user
+	 * @param toUserID the id of the user the message was sent to
+	 */
+	public void onMessageSent( final int toUserID ) {
+		changeNewMessagesCount( toUserID, +1 );
+	}
+	
+	/**
+	 * Must be called when the new private message of the user was marked as read
+	 * @param userID the id of the user who read the message
+	 */
+	public void onMessageRead( final int userID ) {
+		changeNewMessagesCount( userID, -1 );
+	}
+	
+	/**
+	 * Must be called when some of the private messages of the user were hidden, then
+	 * we do not know how many new messages were hidden and thus the number is re-loaded
+	 * @param userID the id of the user whose messages were hidden
+	 */
+	public void onMessagesHidden( final int userID ) {
+		final NewMessagesCount counter;
+		synchronized( userIDToCount ) {
+			counter = userIDToCount.get( userID );
+		}
+		if( counter != null ) {
+			synchronized( counter ) {
+				counter.modifications++;
+				counter.updateVersion++;
+				counter.isKnown = false;
+			}
+			notifyUpdateWaiters( userID );
+		}
+	}
+	
+	/**
+	 * Must be called when the user is completely logged out, then the number is not kept any more
+	 * @param userID the id of the user
+	 */
+	public void removeNewMessagesCount( final int userID ) {
+		synchronized( userIDToCount ) {
+			userIDToCount.remove( userID );
+		}
+	}
+}
@@ -45,16 +45,13 @@ import com.xcurechat.server.jdbc.profile.GetUserIDByLoginExecutor;
 import com.xcurechat.server.jdbc.profile.IncrementUserGoldExecutor;
 import com.xcurechat.server.jdbc.profile.InsertNewUserExecutor;
 import com.xcurechat.server.jdbc.profile.LoginUserExecutor;
-import com.xcurechat.server.jdbc.profile.SetUserOnlineStatusExecutor;
 import com.xcurechat.server.jdbc.profile.MarkAllUserOfflineExecutor;
 import com.xcurechat.server.jdbc.profile.UpdateUserAttributesExecutor;
-import com.xcurechat.server.jdbc.statistics.InsertUserStatisticsExecutor;
 
 import com.xcurechat.server.security.statistics.MessageSendAbuseFilter;
 import com.xcurechat.server.security.statistics.StatisticsSecurityManager;
 
 import com.xcurechat.server.utils.AddUnifiedLoginThread;
-import com.xcurechat.server.utils.IPtoLocationLocator;
 
 /**
  * @author zapreevis
@@ -126,19 +123,14 @@ public class ServerSideUserManager {
 				
 				//NOTE: Here we do not need to retrieve the user profile image descriptors, because the profile was just created
 				
-				//Update the last logged on time and other statistics
-				InsertUserStatisticsExecutor statsExecutor = new InsertUserStatisticsExecutor( userID, true, false, remoteAddr, IPtoLocationLocator.getLocationbyIP(remoteAddr) );
-				ConnectionWrapper<Void> userStatsConnWrap = ConnectionWrapper.createConnectionWrapper( statsExecutor );
-				userStatsConnWrap.executeQuery(ConnectionWrapper.XCURE_CHAT_DB);
+				//Update the last logged on time and other statistics, this is done in the background
+				UserStatisticsWriteBehindManager.getInstance().addUserStatistics( userID, true, false, remoteAddr );
 				
-				//Set the user online status to online
-				ConnectionWrapper<Void> onlieStatsConnWrap = ConnectionWrapper.createConnectionWrapper( new SetUserOnlineStatusExecutor( userID, true ) );
-				onlieStatsConnWrap.executeQuery(ConnectionWrapper.XCURE_CHAT_DB);
+				//Set the user online status to online, the user visits cache is flushed when it is set
+				UserStatisticsWriteBehindManager.getInstance().setUserOnlineStatus( userID, true );
 				
 				//Flush the top10 cache for user registrations to make the new registration appear
 				Top10UserDataCache.getInstance().flushUserRegistrationsCachedData();
-				//Flush the user visits cache to mark the user as online
-				Top10UserDataCache.getInstance().flushUserVisitsCachedData();
 				
 				return userData;
 			}
@@ -231,22 +223,19 @@ public class ServerSideUserManager {
 				//Register user session
 				UserSessionManager.registerUserSession( httpSession, userData, remoteAddr, true );
 				
-				//Update the last logged on time and other statistics
-				InsertUserStatisticsExecutor statsExecutor = new InsertUserStatisticsExecutor( userID, true, false, remoteAddr, IPtoLocationLocator.getLocationbyIP(remoteAddr) );
-				ConnectionWrapper<Void> userStatsConnWrap = ConnectionWrapper.createConnectionWrapper( statsExecutor );
-				userStatsConnWrap.executeQuery(ConnectionWrapper.XCURE_CHAT_DB);
+				//Load the number of the new private messages of the user
+				NewMessagesCountManager.getInstance().loadNewMessagesCount( userID );
 				
-				//Set the user online status to true
+				//Update the last logged on time and other statistics, this is done in the background
+				UserStatisticsWriteBehindManager.getInstance().addUserStatistics( userID, true, false, remoteAddr );
+				
+				//Set the user online status to true, the user visits cache is flushed when it is set
 				if( UserSessionManager.getUserLoginCounter( userID ) == 1 ) {
-					ConnectionWrapper<Void> onlineStatsConnWrap = ConnectionWrapper.createConnectionWrapper( new SetUserOnlineStatusExecutor( userID, true ) );
-					onlineStatsConnWrap.executeQuery(ConnectionWrapper.XCURE_CHAT_DB);
-					
-					//Flush the user visits cache to set the user as online
-					Top10UserDataCache.getInstance().flushUserVisitsCachedData();
+					UserStatisticsWriteBehindManager.getInstance().setUserOnlineStatus( userID, true );
 				}
 				
-				//Update the list of active chat rooms, to bring the user's room's online
-				ChatRoomsManager.getInstance().updateActiveRooms( true );
+				//Bring the user's room's online, the other active chat rooms are not re-loaded
+				ChatRoomsManager.getInstance().bringUserRoomsOnline( userID );
 				
 				//Return the user data
 				return userData;
@@ -282,27 +271,17 @@ public class ServerSideUserManager {
 			//Unregister user session
 			UserSessionManager.unregisterUserSession( sessionListener, userID, sessionId );
 			
-			//Update the last online on time and other statistics
-			try {
-				InsertUserStatisticsExecutor executor = new InsertUserStatisticsExecutor( userID, false, true, remoteAddr, IPtoLocationLocator.getLocationbyIP(remoteAddr) );
-				ConnectionWrapper<Void> userStatsConnWrap = ConnectionWrapper.createConnectionWrapper( executor );
-				userStatsConnWrap.executeQuery(ConnectionWrapper.XCURE_CHAT_DB);
-			} catch ( Exception e ) {
-				logger.error("An exception while user log-out", e);
-			}
+			//Update the last online on time and other statistics, this is done in the background
+			UserStatisticsWriteBehindManager.getInstance().addUserStatistics( userID, false, true, remoteAddr );
 			
 			//If the user is completely logged out
 			if( UserSessionManager.isUserOffline(userID) ) {
-				try {
-					//Set the user online status to false
-					ConnectionWrapper<Void> onlieStatsConnWrap = ConnectionWrapper.createConnectionWrapper( new SetUserOnlineStatusExecutor( userID, false ) );
-					onlieStatsConnWrap.executeQuery(ConnectionWrapper.XCURE_CHAT_DB);
-				} catch ( Exception e ) {
-					logger.error("An exception while user log-out", e);
-				}
+				//Set the user online status to false, this is done in the background
+				UserStatisticsWriteBehindManager.getInstance().setUserOnlineStatus( userID, false );
 				
 				try {
-					//Update the user's gold and other attributes in the DB
+					//Update the user's gold and other attributes in the DB, this is done right away
+					//because the user's data is re-loaded from the DB on the next login
 					ConnectionWrapper<Void>  attributesUpdater =  ConnectionWrapper.createConnectionWrapper( new UpdateUserAttributesExecutor( userData, true ) );
 					attributesUpdater.executeQuery(ConnectionWrapper.XCURE_CHAT_DB);
 				} catch ( Exception e ) {
@@ -314,6 +293,12 @@ public class ServerSideUserManager {
 				//bind the message filter from the session, it will happen by itself
 				MessageSendAbuseFilter.removeMessageFilter( httpSession, userID );
 				
+				//The number of the new private messages is not kept for the offline users
+				NewMessagesCountManager.getInstance().removeNewMessagesCount( userID );
+				
+				//The rooms of the offline users go offline, unless they are permanent or have visitors
+				ChatRoomsManager.getInstance().takeUserRoomsOffline( userID );
+				
 				//Flush the top10 cache in order to update the user data
 				Top10UserDataCache.getInstance().flushCachedData( true );
 			}
@@ -24,34 +24,70 @@ package com.xcurechat.server.core;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.Date;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.log4j.Logger;
 
-import com.xcurechat.server.security.statistics.SessionAccessStatistics;
-
 /**
  * @author zapreevis
  * This class issues synchronization objects for user data.
- * The methods of this class are synchronized!
+ * The methods of this class do not lock, the synchronization objects are stored
+ * in a concurrent map and each of them has an atomic reference counter.
  */
 public final class SynchFactory {
 	
 	//Get the Log4j logger object
-	private static final Logger logger = Logger.getLogger( SessionAccessStatistics.class );
+	private static final Logger logger = Logger.getLogger( SynchFactory.class );
 	
 	//The number of milliseconds between clean ups of the StatisticsSecurityManager
 	public static final long MIN_CLEAN_UP_INTERVAL_MILLISEC = 1800000; //30*60*1000
 	
-	//The map that will store the mapping from data ID to synchronization objects
-	private final Map<Integer, Object> dataIDToSynchObjMap = new HashMap<Integer, Object>();  
+	//The value of the reference counter of the synchronization
+	//object that was removed from the mapping by the clean up
+	private static final int REMOVED_SYNCH_OBJECT_COUNT = -1;
+	
+	/**
+	 * @author zapreevis
+	 * The synchronization object, it stores the number of methods that are still using it,
+	 * i.e. took the object but did not put it back. Once the counter is set to
+	 * REMOVED_SYNCH_OBJECT_COUNT the object is not issued any more.
+	 */
+	private static final class SynchObject {
+		public final AtomicInteger inUseCount = new AtomicInteger( 0 );
+		
+		/**
+		 * Tries to increment the in use counter
+		 * @return the new counter value or REMOVED_SYNCH_OBJECT_COUNT if the object was removed
+		 */
+		public int acquire() {
+			while( true ) {
+				final int count = inUseCount.get();
+				if( count == REMOVED_SYNCH_OBJECT_COUNT ) {
+					return REMOVED_SYNCH_OBJECT_COUNT;
+				}
+				if( inUseCount.compareAndSet( count, count + 1 ) ) {
+					return count + 1;
+				}
+			}
+		}
+		
+		/**
+		 * Tries to mark the object as removed, succeeds only if the object is not in use
+		 * @return true if the object was marked as removed
+		 */
+		public boolean retire() {
+			return inUseCount.compareAndSet( 0, REMOVED_SYNCH_OBJECT_COUNT );
+		}
+	}
 	
-	//The map that stores the mapping from data ID to the number of methods that are still 
-	//using this synchronization object, i.e. took the object but did not put it back
-	private final Map<Integer, Integer> dataIDToInUseMap = new HashMap<Integer, Integer>();
+	//The map that will store the mapping from data ID to synchronization objects
+	private final ConcurrentMap<Integer, SynchObject> dataIDToSynchObjMap = new ConcurrentHashMap<Integer, SynchObject>();  
 	
 	//Stores the time of the last clean up
-	private Date lastCleanUpTime = new Date();
+	private final AtomicLong lastCleanUpTime = new AtomicLong( System.currentTimeMillis() );
 	
 	//The name of this factory object instance, e.g. "users" for the factory that issues the 
 	private final String factoryName;
@@ -72,41 +108,44 @@ public final class SynchFactory {
 	 * @param dataID the unique ID of some data object
 	 * @return the data synchronization object, never null!
 	 */
-	public synchronized Object getSynchObject( final int dataID ){
-		//Get the synchronization object from the existing mappings
-		Object synchObject = dataIDToSynchObjMap.get( dataID );
-		Integer inUseCunt = dataIDToInUseMap.get( dataID );
-		if( synchObject == null ){
-			//If there is no synchronization object yet then create them
-			synchObject = new Object();
-			inUseCunt = 0;
-			//Put the mappings for them
-			dataIDToSynchObjMap.put( dataID , synchObject );
-		}
-		//Increase the in use counter
-		dataIDToInUseMap.put( dataID , inUseCunt + 1 );
-		
-		if( logger.isDebugEnabled() ) {
-			logger.debug( "Getting synchronization object for " + factoryName + ": " + dataID +
-							", the new reference count: " + dataIDToInUseMap.get( dataID ) );
+	public Object getSynchObject( final int dataID ){
+		while( true ) {
+			//Get the synchronization object from the existing mappings
+			SynchObject synchObject = dataIDToSynchObjMap.get( dataID );
+			if( synchObject == null ){
+				//If there is no synchronization object yet then try to create it
+				final SynchObject newSynchObject = new SynchObject();
+				synchObject = dataIDToSynchObjMap.putIfAbsent( dataID, newSynchObject );
+				if( synchObject == null ) {
+					synchObject = newSynchObject;
+				}
+			}
+			//Increase the in use counter, if the object was just removed by the clean up then try again
+			final int inUseCount = synchObject.acquire();
+			if( inUseCount != REMOVED_SYNCH_OBJECT_COUNT ) {
+				if( logger.isDebugEnabled() ) {
+					logger.debug( "Getting synchronization object for " + factoryName + ": " + dataID +
+									", the new reference count: " + inUseCount );
+				}
+				//Return the synchronization object
+				return synchObject;
+			}
 		}
-		
-		//Return the synchronization object
-		return synchObject;
 	}
 	
 	/**
 	 * Removes the synchronization for the given data ID from the mapping
 	 * @param dataID the unique data ID
 	 */
-	public synchronized void releaseSynchObject( final int dataID  ){
-		if( dataIDToSynchObjMap.keySet().contains( dataID ) ) {
-			//Decrease the counter
-			dataIDToInUseMap.put( dataID , dataIDToInUseMap.get( dataID ) - 1 );
-
+	public void releaseSynchObject( final int dataID  ){
+		final SynchObject synchObject = dataIDToSynchObjMap.get( dataID );
+		if( synchObject != null ) {
+			//Decrease the counter, the object can not be removed while it is in use
+			final int inUseCount = synchObject.inUseCount.decrementAndGet();
+			
 			if( logger.isDebugEnabled() ) {
 				logger.debug( "Releasing synchronization object for " + factoryName + ": " + dataID +
-								", new reference count: " + dataIDToInUseMap.get( dataID ) );
+								", new reference count: " + inUseCount );
 			}
 		} else {
 			logger.error("Trying to release synchronization object for " + factoryName + ": " +
@@ -115,22 +154,24 @@ public final class SynchFactory {
 	}
 	
 	/**
-	 * This metho removes all the synchronization object
-	 * mappings with the "in use" counters equal to zero.
+	 * This metho removes all the synchronization object mappings with the "in use"
+	 * counters equal to zero. The objects are removed one by one, the other threads
+	 * can get and release the synchronization objects while the clean up is running.
+	 * If several threads call this method at once then only one of them does the clean up.
 	 */
-	public synchronized void cleanUp() {
-		logger.info( "Starting clean up of the synchronization mappings");
-		if( ( System.currentTimeMillis() - MIN_CLEAN_UP_INTERVAL_MILLISEC ) > lastCleanUpTime.getTime() ) {
-			Iterator<Integer> dataIDsIter = dataIDToSynchObjMap.keySet().iterator();
-			while( dataIDsIter.hasNext() ){
-				int dataID = dataIDsIter.next();
-				if( dataIDToInUseMap.get( dataID ) == 0 ) {
-					logger.debug( "Removing synchronization object mappings for " + factoryName + ": " + dataID );
-					dataIDsIter.remove();
-					dataIDToInUseMap.remove( dataID );
+	public void cleanUp() {
+		final long lastCleanUp = lastCleanUpTime.get();
+		if( ( System.currentTimeMillis() - MIN_CLEAN_UP_INTERVAL_MILLISEC ) > lastCleanUp &&
+			lastCleanUpTime.compareAndSet( lastCleanUp, System.currentTimeMillis() ) ) {
+			logger.info( "Starting clean up of the synchronization mappings for " + factoryName );
+			Iterator<Map.Entry<Integer, SynchObject>> entriesIter = dataIDToSynchObjMap.entrySet().iterator();
+			while( entriesIter.hasNext() ){
+				final Map.Entry<Integer, SynchObject> entry = entriesIter.next();
+				if( entry.getValue().retire() ) {
+					logger.debug( "Removing synchronization object mappings for " + factoryName + ": " + entry.getKey() );
+					dataIDToSynchObjMap.remove( entry.getKey(), entry.getValue() );
 				}
 			}
-			lastCleanUpTime = new Date();
 		}
 	}
 	
@@ -25,21 +25,38 @@ import com.xcurechat.client.data.MainUserData;
 
 /**
  * @author zapreevis
- * The object that manages user session
+ * The object that manages user session, there is one such object per logged in user.
+ * It stores the user's session id, data object and the number of times the user is
+ * logged in. The fields are modified by the UserSessionManager under its lock, but
+ * can be read without locking.
  */
 public class UserSession{
 
+	//The user session id, does not change while the user is logged in
+	private final String sessionId;
 	//The user Data object
-	private MainUserData userData;
+	private volatile MainUserData userData;
+	//The number of times the user is logged in, e.g. from different browsers
+	private volatile int loginCounter = 0;
 	
 	/**
 	 * Creates the user session support object
+	 * @param sessionId the user session id
 	 * @param userData the user data object
 	 */
-	public UserSession( MainUserData userData ){
+	public UserSession( final String sessionId, MainUserData userData ){
+		this.sessionId = sessionId;
 		this.userData = userData;
 	}
 	
+	/**
+	 * Get the user session id
+	 * @return the user session id
+	 */
+	public String getSessionId( ){
+		return sessionId;
+	}
+	
 	/**
 	 * Updates the user data
 	 * @param userData the new user data
@@ -55,4 +72,20 @@ public class UserSession{
 	public MainUserData getUserData( ){
 		return userData;
 	}
+	
+	/**
+	 * Get the number of times the user is logged in
+	 * @return the login counter
+	 */
+	public int getLoginCounter( ){
+		return loginCounter;
+	}
+	
+	/**
+	 * Set the number of times the user is logged in
+	 * @param loginCounter the new login counter
+	 */
+	public void setLoginCounter( final int loginCounter ){
+		this.loginCounter = loginCounter;
+	}
 }
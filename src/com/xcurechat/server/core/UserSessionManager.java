@@ -21,7 +21,9 @@
  */
 package com.xcurechat.server.core;
 
-import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.http.HttpSession;
 
@@ -40,22 +42,24 @@ import com.xcurechat.server.security.statistics.StatisticsSecurityManager;
 
 /**
  * @author zapreevis
- * This class provides synchronized methods for managing user session, namely
+ * This class provides methods for managing user session, namely
  * It allows to verify that the user session is valid, to register new user session,
  * to unregister user session, to provide a list of logged-on users and etc.
+ * There is one UserSession object per logged in user, it is stored in concurrent maps
+ * so the read methods do not lock. The methods modifying the sessions are synchronized.
  */
 public final class UserSessionManager {
 	//Get the Log4j logger object
 	private static final Logger logger = Logger.getLogger( UserSessionManager.class );
 	
-	//Mapping from the user sessionId to the user session object
-	private static HashMap<String, UserSession> sessionIdToUserSession = new HashMap<String, UserSession>();
-	//Mapping from the user ID to the user sessionId
-	private static HashMap<Integer, String> loginToSessionId = new HashMap<Integer, String>();
-	//Mapping from the user login to the counter for the number of times the user has logged in
-	private static HashMap<Integer, Integer> loginToLoginCounter = new HashMap<Integer, Integer>();
+	//Mapping from the user ID to the user session object
+	private static final ConcurrentMap<Integer, UserSession> userIDToUserSession = new ConcurrentHashMap<Integer, UserSession>();
+	//Mapping from the user sessionId to the same user session object
+	private static final ConcurrentMap<String, UserSession> sessionIdToUserSession = new ConcurrentHashMap<String, UserSession>();
+	//The total number of user logins, i.e. the sum of the login counters of all user sessions
+	private static final AtomicInteger onlineUsersCount = new AtomicInteger( 0 );
 	
-	//The object to synchronize the methods of this class
+	//The object to synchronize the modifications of the user sessions
 	private static final Object synchObj = new Object();
 	
 	/**
@@ -64,9 +68,7 @@ public final class UserSessionManager {
 	 * @return true if user is online, otherwise false
 	 */
 	public static boolean isUserOnline( final Integer userID ) {
-		synchronized( synchObj ) {
-			return ( loginToSessionId.get( userID ) != null);
-		}
+		return userIDToUserSession.containsKey( userID );
 	}
 	
 	/**
@@ -75,13 +77,7 @@ public final class UserSessionManager {
 	 * @return the number of currently logged-in users
 	 */
 	public static int getOnlineUsersCount() {
-		synchronized( synchObj ) {
-			Integer total = 0;
-			for( Integer count : loginToLoginCounter.values() ) {
-				total += count;
-			}
-			return total;
-		}
+		return onlineUsersCount.get();
 	}
 	
 	/**
@@ -118,11 +114,9 @@ public final class UserSessionManager {
 	 * @return the user data for the logged on user
 	 */
 	public static MainUserData getUserDataObject( final int userID ) {
-		synchronized( synchObj ) {
-			final String sessionId = loginToSessionId.get( userID );
-			//Retrieve the user data object from memory
-			return ( sessionId != null ? sessionIdToUserSession.get( sessionId ).getUserData() : null );
-		}
+		//Retrieve the user data object from memory
+		final UserSession userSessionObject = userIDToUserSession.get( userID );
+		return ( userSessionObject != null ? userSessionObject.getUserData() : null );
 	}
 
 	/**
@@ -201,35 +195,32 @@ public final class UserSessionManager {
 				logger.fatal("Somehow the HttpUserSessionListener is missing the session registration of user '"+userID+"'!" );
 			}
 			
-			//This variable will store the user session ID, a new or an old one
-			String userSessionId = null;
-			Integer loginCounter = null;
+			//This variable will store the user session, a new or an old one
+			UserSession userSessionObject = userIDToUserSession.get( userID );
 			//If the user is already logged on
-			if( loginToSessionId.keySet().contains( userID ) ){
+			if( userSessionObject != null ){
 				logger.debug("The user session for '"+userID+"' already exists");
-				//Retrieve the session id
-				userSessionId = loginToSessionId.get( userID );
-				//Get the current number of user logins
-				loginCounter = loginToLoginCounter.get( userID );
 			} else {
 				logger.debug("Allocating a new user session for user '"+userID+"'");
 				//Generate new session id
-				userSessionId = BCrypt.hashpw( BCrypt.gensalt() + userData.getUserLoginName() + System.currentTimeMillis() , BCrypt.gensalt() );
+				final String newUserSessionId = BCrypt.hashpw( BCrypt.gensalt() + userData.getUserLoginName() + System.currentTimeMillis() , BCrypt.gensalt() );
 				//Store new session mappings, we do not fill the user session with the profile data yet
 				//we do this for security reasons, so that the profile type is set to default user type
-				sessionIdToUserSession.put( userSessionId, new UserSession( null ) );
-				loginToSessionId.put( userID, userSessionId );
-				//Initialize the login counter
-				loginCounter = new Integer(0);
+				//The new session is visible by the user ID only after it is filled in, see below
+				userSessionObject = new UserSession( newUserSessionId, null );
+				sessionIdToUserSession.put( newUserSessionId, userSessionObject );
 			}
+			final String userSessionId = userSessionObject.getSessionId();
 			//Update the user session with the user profile data, preserving the
 			//old profile type, in case it is not registration on login, because
 			//then the user profile comes straight from the database
 			setUserDataObject( userSessionId, userData, !isOnLogin );
 			
 			//Increase the counter for the number of user logins
-			loginCounter = loginCounter + 1;
-			loginToLoginCounter.put( userID, loginCounter );
+			final int loginCounter = userSessionObject.getLoginCounter() + 1;
+			userSessionObject.setLoginCounter( loginCounter );
+			onlineUsersCount.incrementAndGet();
+			userIDToUserSession.put( userID, userSessionObject );
 			
 			//Update the user object with the session Id!
 			userData.setUserSessionId( userSessionId );
@@ -259,22 +250,21 @@ public final class UserSessionManager {
 												throws UserStateException, AccessBlockedException {
 		logger.debug( "Trying to validate user login - session pare for user '" + userID + "' from host " + remoteAddr );
 		
-		synchronized( synchObj ) {
-			if( ( userID != UserData.UNKNOWN_UID ) && ( userID != UserData.DEFAULT_UID ) && loginToSessionId.keySet().contains( userID ) ) {
-				if ( ! userSessionId.equals( loginToSessionId.get( userID ) ) ) {
-					logger.error("The login for user '" + userID + "' does not match the provided user session id.");
-					//Report that the validation has failed
-					StatisticsSecurityManager.reportFailedLogin(remoteAddr, userID);
-					//If the user session does not match the user login we report an exception
-					throw new UserStateException( UserStateException.USER_IS_NOT_LOGGED_IN_ERR );
-				}
-			} else {
-				logger.error( "The user-session validation has failed for user " + userID + ", is UNKNOWN_ID: " +
-							  ( userID == UserData.UNKNOWN_UID ) + ", is DEFAULT_ID: " +
-							  ( userID == UserData.DEFAULT_UID ) + ", is logged in: " +
-							  loginToSessionId.keySet().contains( userID ) );
+		final UserSession userSessionObject = userIDToUserSession.get( userID );
+		if( ( userID != UserData.UNKNOWN_UID ) && ( userID != UserData.DEFAULT_UID ) && ( userSessionObject != null ) ) {
+			if ( ! userSessionObject.getSessionId().equals( userSessionId ) ) {
+				logger.error("The login for user '" + userID + "' does not match the provided user session id.");
+				//Report that the validation has failed
+				StatisticsSecurityManager.reportFailedLogin(remoteAddr, userID);
+				//If the user session does not match the user login we report an exception
 				throw new UserStateException( UserStateException.USER_IS_NOT_LOGGED_IN_ERR );
 			}
+		} else {
+			logger.error( "The user-session validation has failed for user " + userID + ", is UNKNOWN_ID: " +
+						  ( userID == UserData.UNKNOWN_UID ) + ", is DEFAULT_ID: " +
+						  ( userID == UserData.DEFAULT_UID ) + ", is logged in: " +
+						  ( userSessionObject != null ) );
+			throw new UserStateException( UserStateException.USER_IS_NOT_LOGGED_IN_ERR );
 		}
 	}
 	
@@ -296,19 +286,19 @@ public final class UserSessionManager {
 			}
 			
 			//Logout the user completely if he is not longer logged
-			if( loginToLoginCounter.containsKey( userID ) ) {
-				Integer loginCounter = loginToLoginCounter.get( userID ) - 1;
+			final UserSession userSessionObject = userIDToUserSession.get( userID );
+			if( userSessionObject != null ) {
+				final int loginCounter = userSessionObject.getLoginCounter() - 1;
+				onlineUsersCount.decrementAndGet();
 				
 				if( loginCounter == 0 ) {
 					//Remove user session mappings if the user is
 					//no longer logged infrom other places
-					loginToSessionId.remove( userID );
-					loginToLoginCounter.remove( userID );
-					sessionIdToUserSession.remove( sessionId );
-				} else {
-					//Put the decremented counter back
-					loginToLoginCounter.put( userID, loginCounter );
+					userIDToUserSession.remove( userID );
+					sessionIdToUserSession.remove( userSessionObject.getSessionId() );
 				}
+				//Store the decremented counter
+				userSessionObject.setLoginCounter( loginCounter );
 				
 				logger.debug("The user '" + userID + "' is now logged in " + loginCounter + " time(s)");
 			} else {
@@ -323,13 +313,11 @@ public final class UserSessionManager {
 	 * @return the number of times the user is logged in
 	 */
 	public static int getUserLoginCounter( final int userID ) {
-		synchronized( synchObj ) {
-			Integer loginCounter = loginToLoginCounter.get( userID );
-			if( loginCounter == null ) {
-				return 0;
-			} else {
-				return loginCounter;
-			}
+		final UserSession userSessionObject = userIDToUserSession.get( userID );
+		if( userSessionObject == null ) {
+			return 0;
+		} else {
+			return userSessionObject.getLoginCounter();
 		}
 	}
 	
@@ -369,9 +357,12 @@ public final class UserSessionManager {
 			}
 			
 			//Remove all user session mappings
-			loginToSessionId.remove( userID );
-			loginToLoginCounter.remove( userID );
-			sessionIdToUserSession.remove( sessionId );
+			final UserSession userSessionObject = userIDToUserSession.remove( userID );
+			if( userSessionObject != null ) {
+				sessionIdToUserSession.remove( userSessionObject.getSessionId() );
+				onlineUsersCount.addAndGet( - userSessionObject.getLoginCounter() );
+				userSessionObject.setLoginCounter( 0 );
+			}
 			
 			logger.debug("The user '" + userID + "' is now logged in 0 time(s)");
 		}
@@ -0,0 +1,288 @@
+/**
+ * X-Cure-Chat
+ * Copyright (C) 2013  Dr. Ivan S. Zapreev
+ * www: https://nl.linkedin.com/in/zapreevis
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.#
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * The server core package.
+ * (C) Ivan S. Zapreev, 2009
+ */
+package com.xcurechat.server.core;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import com.xcurechat.server.cache.Top10UserDataCache;
+import com.xcurechat.server.jdbc.ConnectionWrapper;
+import com.xcurechat.server.jdbc.profile.SetUsersOnlineStatusExecutor;
+import com.xcurechat.server.jdbc.statistics.InsertUsersStatisticsExecutor;
+import com.xcurechat.server.jdbc.statistics.UserStatisticsEntry;
+
+import com.xcurechat.server.utils.IPtoLocationLocator;
+
+/**
+ * @author zapreevis
+ * This class is the write-behind manager for the user login/logout statistics and the user
+ * online statuses, so that the logins and logouts, including the automatic logouts done by
+ * the servlet container on the session expiration, do not wait for these DB writes. The
+ * statistics entries are queued and inserted by a background thread with multi-row inserts,
+ * the online status changes are coalesced per user and applied with one JDBC batch. The
+ * calling threads never access the DB: if the queue is full then the background thread is
+ * woken up and the new entries are dropped and counted. The pending data is flushed when the
+ * manager is shut down, the data added after that is dropped, the users are marked offline
+ * on the next server start anyway. The queue depth, lag and drops are reported by getMetrics.
+ */
+public class UserStatisticsWriteBehindManager {
+	//Get the Log4j logger object
+	private static final Logger logger = Logger.getLogger( UserStatisticsWriteBehindManager.class );
+	
+	//The interval in millisec between the background flushes
+	public static final int FLUSH_INTERVAL_MILLISEC = 1000;
+	//The maximum number of statistics entries inserted with one query, also the number of pending
+	//entries after which the background thread is woken up before time
+	public static final int FLUSH_BATCH_SIZE = 100;
+	//The maximum number of pending statistics entries, when exceeded the new entries are dropped
+	public static final int MAX_NUMBER_OF_PENDING_ENTRIES = 5000;
+	//One in this number of dropped statistics entries is reported in the log
+	private static final int DROPPED_ENTRIES_REPORT_PERIOD = 100;
+	//The maximum time in millisec we wait for the background thread to finish on shut down
+	private static final int SHUT_DOWN_WAIT_TIME_MILLISEC = 10000;
+	
+	//The pending statistics entries, the list is also used for synchronization
+	private final List<UserStatisticsEntry> pendingEntries = new ArrayList<UserStatisticsEntry>();
+	//The latest online statuses of the users to be set in the DB, guarded by pendingEntries
+	private Map<Integer, Boolean> userIDToOnlineStatus = new LinkedHashMap<Integer, Boolean>();
+	//The time in millisec when the oldest pending online status was set, guarded by pendingEntries
+	private long oldestOnlineStatusTimeMillisec = 0;
+	//The synchronization object that serializes the flushes, so the online statuses are set in order
+	private final Object flushSynchObj = new Object();
+	
+	//True if the manager is shut down, guarded by pendingEntries
+	private boolean isShutDown = false;
+	
+	//The metrics of the manager
+	private volatile long numberOfInsertedEntries = 0;
+	private volatile long numberOfFailedEntries = 0;
+	private volatile long numberOfSetOnlineStatuses = 0;
+	private final AtomicLong numberOfDroppedEntries = new AtomicLong( 0 );
+	private volatile long lastLagMillisec = 0;
+	private volatile long maxLagMillisec = 0;
+	
+	/**
+	 * @author zapreevis
+	 * The background thread doing the periodic flushes
+	 */
+	private class WriteBehindThread extends Thread {
+		public WriteBehindThread() {
+			super( "UserStatisticsWriteBehindThread" );
+			setDaemon( true );
+		}
+		
+		@Override
+		public void run() {
+			logger.info( "Starting the user statistics write-behind thread" );
+			boolean isStopped = false;
+			while( ! isStopped ) {
+				synchronized( pendingEntries ) {
+					if( ! isShutDown && ( pendingEntries.size() < FLUSH_BATCH_SIZE ) ) {
+						try {
+							pendingEntries.wait( FLUSH_INTERVAL_MILLISEC );
+						} catch ( InterruptedException e ) {
+							logger.warn( "The user statistics write-behind thread was interrupted" );
+						}
+					}
+					isStopped = isShutDown;
+				}
+				try {
+					flush();
+				} catch ( Throwable e ) {
+					logger.error( "Unexpected exception while flushing the user statistics", e );
+				}
+			}
+			logger.info( "The user statistics write-behind thread is stopped" );
+		}
+	}
+	
+	//The background flushing thread
+	private final WriteBehindThread writeBehindThread = new WriteBehindThread();
+	
+	private UserStatisticsWriteBehindManager() {
+		writeBehindThread.start();
+	}
+	
+	//The only instance of the manager
+	private static final UserStatisticsWriteBehindManager instance = new UserStatisticsWriteBehindManager();
+	
+	/**
+	 * @return the only instance of the write-behind manager
+	 */
+	public static UserStatisticsWriteBehindManager getInstance() {
+		return instance;
+	}
+	
+	/**
+	 * Allows to schedule the insertion of the user login/logout statistics entry, the
+	 * location of the user's IP address is found when the entry is inserted.
+	 * @param userID the id of the user that logged in or out
+	 * @param isLogin true for the login, false for the logout
+	 * @param isAuto true if the user was logged out automatically
+	 * @param remoteAddr the user's IP address
+	 */
+	public void addUserStatistics( final int userID, final boolean isLogin, final boolean isAuto, final String remoteAddr ) {
+		synchronized( pendingEntries ) {
+			if( ! isShutDown && ( pendingEntries.size() < MAX_NUMBER_OF_PENDING_ENTRIES ) ) {
+				pendingEntries.add( new UserStatisticsEntry( userID, isLogin, isAuto, new Date(), remoteAddr ) );
+				if( pendingEntries.size() == FLUSH_BATCH_SIZE ) {
+					pendingEntries.notifyAll();
+				}
+				return;
+			}
+			pendingEntries.notifyAll();
+		}
+		final long numberOfDropped = numberOfDroppedEntries.incrementAndGet();
+		if( numberOfDropped % DROPPED_ENTRIES_REPORT_PERIOD == 1 ) {
+			logger.warn( "The user statistics queue is full or shut down, dropped the entry of user " + userID +
+						 ", the total number of dropped entries is " + numberOfDropped );
+		}
+	}
+	
+	/**
+	 * Allows to schedule setting the user's online status, only the latest status of the user is set
+	 * if it is changed several times before the flush, so there is at most one pending status per user.
+	 * After the shut down the status is not set, all users are marked offline on the next server start.
+	 * @param userID the id of the user
+	 * @param isOnline true if the user is online, otherwise false
+	 */
+	public void setUserOnlineStatus( final int userID, final boolean isOnline ) {
+		synchronized( pendingEntries ) {
+			if( isShutDown ) {
+				logger.debug( "The user statistics write-behind is shut down, the online status of user " + userID + " is not set" );
+				return;
+			}
+			if( userIDToOnlineStatus.isEmpty() ) {
+				oldestOnlineStatusTimeMillisec = System.currentTimeMillis();
+			}
+			userIDToOnlineStatus.put( userID, isOnline );
+		}
+	}
+	
+	/**
+	 * Flushes all the pending statistics entries and online statuses into the DB
+	 */
+	public void flush() {
+		synchronized( flushSynchObj ) {
+			List<UserStatisticsEntry> entries;
+			Map<Integer, Boolean> onlineStatuses;
+			long oldestTimeMillisec = Long.MAX_VALUE;
+			synchronized( pendingEntries ) {
+				entries = new ArrayList<UserStatisticsEntry>( pendingEntries );
+				pendingEntries.clear();
+				onlineStatuses = userIDToOnlineStatus;
+				userIDToOnlineStatus = new LinkedHashMap<Integer, Boolean>();
+				if( ! onlineStatuses.isEmpty() ) {
+					oldestTimeMillisec = oldestOnlineStatusTimeMillisec;
+				}
+			}
+			if( ! entries.isEmpty() ) {
+				oldestTimeMillisec = Math.min( oldestTimeMillisec, entries.get( 0 ).date.getTime() );
+			}
+			if( oldestTimeMillisec == Long.MAX_VALUE ) {
+				//There is nothing to flush
+				return;
+			}
+			
+			//Set the online statuses first, they are visible to the other users
+			if( ! onlineStatuses.isEmpty() ) {
+				try {
+					ConnectionWrapper<Void> onlineStatusConnWrap = ConnectionWrapper.createConnectionWrapper( new SetUsersOnlineStatusExecutor( onlineStatuses ) );
+					onlineStatusConnWrap.executeQuery( ConnectionWrapper.XCURE_CHAT_DB );
+					numberOfSetOnlineStatuses += onlineStatuses.size();
+				} catch (Throwable e){
+					logger.error( "Exception while setting the online status of users " + onlineStatuses.keySet(), e);
+				}
+				//Flush the user visits cache to update the users' online statuses
+				Top10UserDataCache.getInstance().flushUserVisitsCachedData();
+			}
+			
+			//Insert the statistics entries in batches
+			for( int start = 0; start < entries.size(); start += FLUSH_BATCH_SIZE ) {
+				final List<UserStatisticsEntry> batch = entries.subList( start, Math.min( start + FLUSH_BATCH_SIZE, entries.size() ) );
+				for( UserStatisticsEntry entry : batch ) {
+					entry.location = IPtoLocationLocator.getLocationbyIP( entry.host );
+				}
+				try {
+					ConnectionWrapper<Void> userStatsConnWrap = ConnectionWrapper.createConnectionWrapper( new InsertUsersStatisticsExecutor( batch ) );
+					userStatsConnWrap.executeQuery( ConnectionWrapper.XCURE_CHAT_DB );
+					numberOfInsertedEntries += batch.size();
+				} catch (Throwable e){
+					numberOfFailedEntries += batch.size();
+					logger.error( "Exception while inserting " + batch.size() + " user statistics entries", e);
+				}
+			}
+			
+			//Update the lag metrics
+			final long lagMillisec = System.currentTimeMillis() - oldestTimeMillisec;
+			lastLagMillisec = lagMillisec;
+			if( lagMillisec > maxLagMillisec ) {
+				maxLagMillisec = lagMillisec;
+			}
+			logger.debug( getMetrics() );
+		}
+	}
+	
+	/**
+	 * @return the string with the queue depth, lag and other metrics of the manager
+	 */
+	public String getMetrics() {
+		int numberOfPendingEntries, numberOfPendingStatuses;
+		synchronized( pendingEntries ) {
+			numberOfPendingEntries = pendingEntries.size();
+			numberOfPendingStatuses = userIDToOnlineStatus.size();
+		}
+		return "The user statistics write-behind: pending entries = " + numberOfPendingEntries +
+			   ", pending online statuses = " + numberOfPendingStatuses + ", inserted entries = " +
+			   numberOfInsertedEntries + ", failed entries = " + numberOfFailedEntries +
+			   ", set online statuses = " + numberOfSetOnlineStatuses + ", dropped entries = " +
+			   numberOfDroppedEntries.get() + ", last lag = " + lastLagMillisec + " millisec, max lag = " +
+			   maxLagMillisec + " millisec";
+	}
+	
+	/**
+	 * Stops the background thread and flushes the pending data. After the
+	 * shut down the new statistics entries and online statuses are dropped.
+	 */
+	public void shutDown() {
+		logger.info( "Shutting down the user statistics write-behind manager" );
+		synchronized( pendingEntries ) {
+			isShutDown = true;
+			pendingEntries.notifyAll();
+		}
+		try {
+			writeBehindThread.join( SHUT_DOWN_WAIT_TIME_MILLISEC );
+		} catch ( InterruptedException e ) {
+			logger.warn( "Interrupted while waiting for the user statistics write-behind thread to stop" );
+			Thread.currentThread().interrupt();
+		}
+		//Flush whatever could have been added in the mean time
+		flush();
+		logger.info( getMetrics() );
+	}
+}
@@ -0,0 +1,120 @@
+/**
+ * X-Cure-Chat
+ * Copyright (C) 2013  Dr. Ivan S. Zapreev
+ * www: https://nl.linkedin.com/in/zapreevis
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.#
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * The file processing package.
+ * (C) Ivan S. Zapreev, 2008
+ */
+package com.xcurechat.server.files;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+
+/**
+ * @author zapreevis
+ * This interface defines the storage for the binary data of the uploaded files,
+ * i.e. the file data and the thumbnails, that are not kept in the database.
+ * The storage is content addressed, every stored blob is identified by the MD5
+ * sum of its data, as computed by MD5.getMD5, so equal files are stored once.
+ * The database only keeps the file meta data and the keys of the stored blobs.
+ * NOTE: Since the blobs are shared the storage does not know if a blob is still
+ * referenced, the unreferenced blobs are removed by the BlobStoreMigrator tool.
+ */
+public interface BlobStore {
+	
+	/**
+	 * Allows to store the given data, if the blob with the same data is already
+	 * stored then the data is not written again.
+	 * @param data the data to store, not null
+	 * @return the key of the stored blob, i.e. the MD5 sum of the data
+	 * @throws IOException if the data could not be stored
+	 */
+	public String put( final byte[] data ) throws IOException;
+	
+	/**
+	 * Allows to store the data read from the given stream, the data is
+	 * not buffered in memory so this method can store large blobs.
+	 * The stream is read until its end but is not closed.
+	 * @param inputStream the stream to read the data from
+	 * @return the key of the stored blob, i.e. the MD5 sum of the data
+	 * @throws IOException if the data could not be read or stored
+	 */
+	public String put( final InputStream inputStream ) throws IOException;
+	
+	/**
+	 * Allows to retrieve the blob data
+	 * @param key the key of the blob
+	 * @return the blob data or null if there is no blob with this key
+	 * @throws IOException if the blob could not be read
+	 */
+	public byte[] get( final String key ) throws IOException;
+	
+	/**
+	 * Allows to open the stream for reading the blob data, the stream must be closed
+	 * @param key the key of the blob
+	 * @return the stream with the blob data or null if there is no blob with this key
+	 * @throws IOException if the blob could not be opened
+	 */
+	public InputStream open( final String key ) throws IOException;
+	
+	/**
+	 * Allows to write the part of the blob data into the given channel, the implementations
+	 * should avoid copying the data through the heap, e.g. use FileChannel.transferTo
+	 * @param key the key of the blob
+	 * @param position the position of the first byte to write, starting from 0
+	 * @param count the number of bytes to write
+	 * @param target the channel to write into, is not closed
+	 * @return false if there is no blob with this key, otherwise true
+	 * @throws IOException if the blob could not be read or written
+	 */
+	public boolean transferTo( final String key, final long position, final long count,
+							   final WritableByteChannel target ) throws IOException;
+	
+	/**
+	 * Allows to get the size of the stored blob
+	 * @param key the key of the blob
+	 * @return the size of the blob in bytes or -1 if there is no blob with this key
+	 */
+	public long getSize( final String key );
+	
+	/**
+	 * Allows to remove the blob from the storage
+	 * @param key the key of the blob
+	 * @return true if the blob was removed, false if there was no such blob or it could not be removed
+	 */
+	public boolean remove( final String key );
+	
+	/**
+	 * Allows to remove the blob from the storage, only if it was stored before the given time,
+	 * the blob stored again recently can belong to the file which is being uploaded right now
+	 * @param key the key of the blob
+	 * @param storedBeforeMillis the time, in milliseconds, before which the blob has to be stored
+	 * @return true if the blob was removed, false if there was no such blob, it was stored recently or it could not be removed
+	 */
+	public boolean removeIfStoredBefore( final String key, final long storedBeforeMillis );
+	
+	/**
+	 * Allows to get the keys of the blobs stored before the given time, the recently
+	 * stored blobs can belong to the files which are being uploaded right now
+	 * @param storedBeforeMillis the time, in milliseconds, before which the blobs were stored
+	 * @return the list of keys of the stored blobs
+	 * @throws IOException if the keys could not be listed
+	 */
+	public List<String> getKeys( final long storedBeforeMillis ) throws IOException;
+}
@@ -0,0 +1,138 @@
+/**
+ * X-Cure-Chat
+ * Copyright (C) 2013  Dr. Ivan S. Zapreev
+ * www: https://nl.linkedin.com/in/zapreevis
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.#
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * The file processing package.
+ * (C) Ivan S. Zapreev, 2008
+ */
+package com.xcurechat.server.files;
+
+import java.io.IOException;
+
+import javax.servlet.ServletContext;
+
+import org.apache.log4j.Logger;
+
+import com.xcurechat.client.rpc.exceptions.InternalSiteException;
+
+import com.xcurechat.server.utils.Configurator;
+
+/**
+ * @author zapreevis
+ * This class provides the blob storage used for the uploaded files data. The storage
+ * is configured from the site properties, if the storage location is not set then
+ * there is no storage and the files data is kept in the DB, as it used to be. The
+ * file executors write the data into the storage if it is present. The DB rows that
+ * have the blob key set are served from the storage, otherwise from the DB row data,
+ * so the files that are not migrated yet remain available.
+ */
+public final class BlobStoreManager {
+	//Get the Log4j logger object
+	private static final Logger logger = Logger.getLogger( BlobStoreManager.class );
+	
+	//The synchronization object for the storage configuration
+	private static final Object synchObj = new Object();
+	
+	//True if the storage was configured, i.e. the configuration should not be done again
+	private static boolean isConfigured = false;
+	
+	//The blob storage or null if the files data is stored in the DB
+	private static volatile BlobStore blobStore = null;
+	
+	private BlobStoreManager() {}
+	
+	/**
+	 * Allows to configure the blob storage from the site properties, only the first call does
+	 * the configuration, so it can be called from the initialization of every servlet using it.
+	 * @param context the servlet context
+	 */
+	public static void configure( final ServletContext context ) {
+		synchronized( synchObj ) {
+			if( ! isConfigured ) {
+				isConfigured = true;
+				final String location = Configurator.getProperty( context, Configurator.FILES_STORE_LOCATION_PROP_NAME );
+				if( ( location != null ) && ! location.trim().isEmpty() ) {
+					final String className = Configurator.getProperty( context, Configurator.FILES_STORE_CLASS_PROP_NAME );
+					try {
+						blobStore = createBlobStore( className, location.trim() );
+					} catch( Exception e ) {
+						logger.error( "Unable to create the files storage '" + className + "' in '" + location +
+									  "', the uploaded files will be stored in the DB", e );
+					}
+				} else {
+					logger.info( "The files storage location is not set, the uploaded files will be stored in the DB" );
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Allows to create the blob storage of the given class, the class should implement the
+	 * BlobStore interface and have a public constructor taking the storage location string.
+	 * @param className the name of the class or null for the default, local disk, storage
+	 * @param location the storage location
+	 * @return the created storage
+	 * @throws Exception if the storage could not be created
+	 */
+	public static BlobStore createBlobStore( final String className, final String location ) throws Exception {
+		if( ( className == null ) || className.trim().isEmpty() ) {
+			return new LocalDiskBlobStore( location );
+		} else {
+			final Class<? extends BlobStore> storeClass = Class.forName( className.trim() ).asSubclass( BlobStore.class );
+			return storeClass.getConstructor( String.class ).newInstance( location );
+		}
+	}
+	
+	/**
+	 * Allows to set the blob storage directly, is meant for the stand alone tools
+	 * @param store the blob storage to use, or null to store the files data in the DB
+	 */
+	public static void setBlobStore( final BlobStore store ) {
+		synchronized( synchObj ) {
+			isConfigured = true;
+			blobStore = store;
+		}
+	}
+	
+	/**
+	 * @return the blob storage or null if the files data is to be stored in the DB
+	 */
+	public static BlobStore getBlobStore() {
+		return blobStore;
+	}
+	
+	/**
+	 * Allows to store the given data in the blob storage, if there is one
+	 * @param data the data to store, can be null
+	 * @return the key of the stored blob or null if the data is null or there is no storage,
+	 *         i.e. the data is to be stored in the DB
+	 * @throws InternalSiteException if the data could not be stored
+	 */
+	public static String storeBlob( final byte[] data ) throws InternalSiteException {
+		final BlobStore store = blobStore;
+		String key = null;
+		if( ( store != null ) && ( data != null ) ) {
+			try {
+				key = store.put( data );
+			} catch( IOException e ) {
+				logger.error( "Unable to store a blob of " + data.length + " bytes", e );
+				throw new InternalSiteException( InternalSiteException.UNKNOWN_INTERNAL_SITE_EXCEPTION_ERR );
+			}
+		}
+		return key;
+	}
+}
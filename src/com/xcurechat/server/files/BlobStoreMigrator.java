@@ -0,0 +1,221 @@
+/**
+ * X-Cure-Chat
+ * Copyright (C) 2013  Dr. Ivan S. Zapreev
+ * www: https://nl.linkedin.com/in/zapreevis
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.#
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * The file processing package.
+ * (C) Ivan S. Zapreev, 2008
+ */
+package com.xcurechat.server.files;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Logger;
+
+import com.xcurechat.client.rpc.exceptions.SiteException;
+
+import com.xcurechat.server.jdbc.ConnectionWrapper;
+import com.xcurechat.server.jdbc.ExecutorBase;
+import com.xcurechat.server.jdbc.files.MigrateFileBlobExecutor;
+import com.xcurechat.server.jdbc.files.SelectFileBlobKeysExecutor;
+import com.xcurechat.server.jdbc.files.SelectFileBlobRowIDsExecutor;
+import com.xcurechat.server.utils.Configurator;
+
+/**
+ * @author zapreevis
+ * This is a stand alone tool that moves the uploaded files data and thumbnails,
+ * stored as BLOBs in the DB, into the files storage. The blobs are streamed out
+ * row by row, so the tool can be run on the live DB, it is also safe to stop and
+ * rerun it, the moved blobs are not moved again. The tool can also remove the
+ * blobs from the storage that are not referenced from the DB any more, e.g.
+ * because the files were deleted. The usage is:
+ * 
+ * java com.xcurechat.server.files.BlobStoreMigrator <jdbc-url> <db-login> <db-password> <files-store-location> [--remove-unreferenced]
+ * 
+ * The storage class can be set by the -Dfiles.store.class=... system property,
+ * by default it is the local disk storage, as in the site properties.
+ */
+public class BlobStoreMigrator {
+	//Get the Log4j logger object
+	private static final Logger logger = Logger.getLogger( BlobStoreMigrator.class );
+	
+	//The option requesting the removal of the unreferenced blobs
+	private static final String REMOVE_UNREFERENCED_OPTION = "--remove-unreferenced";
+	
+	//The number of rows whose IDs are retrieved at once
+	private static final int ROWS_BATCH_SIZE = 100;
+	
+	//The minimum age of the unreferenced blob to be removed, the younger ones may belong to files being uploaded
+	private static final long MIN_UNREFERENCED_BLOB_AGE_MILLISEC = 60 * 60 * 1000;
+	
+	/**
+	 * @author zapreevis
+	 * Describes the blob column of one of the files tables
+	 */
+	private static final class BlobColumn {
+		public final String tableName;
+		public final String idColumnName;
+		public final String blobColumnName;
+		public final String keyColumnName;
+		
+		public BlobColumn( final String tableName, final String idColumnName,
+						   final String blobColumnName, final String keyColumnName ) {
+			this.tableName = tableName;
+			this.idColumnName = idColumnName;
+			this.blobColumnName = blobColumnName;
+			this.keyColumnName = keyColumnName;
+		}
+		
+		public String toString() {
+			return tableName + "." + blobColumnName;
+		}
+	}
+	
+	//All the blob columns of the files tables
+	private static final List<BlobColumn> blobColumns = new ArrayList<BlobColumn>();
+	static {
+		blobColumns.add( new BlobColumn( ExecutorBase.PROFILE_FILES_TABLE, ExecutorBase.FILE_ID_FIELD_PROFILE_FILES_TABLE,
+										 ExecutorBase.THUMBNAIL_FIELD_PROFILE_FILES_TABLE, ExecutorBase.THUMBNAIL_MD5_PROFILE_FILES_TABLE ) );
+		blobColumns.add( new BlobColumn( ExecutorBase.PROFILE_FILES_TABLE, ExecutorBase.FILE_ID_FIELD_PROFILE_FILES_TABLE,
+										 ExecutorBase.DATA_FIELD_PROFILE_FILES_TABLE, ExecutorBase.DATA_MD5_PROFILE_FILES_TABLE ) );
+		blobColumns.add( new BlobColumn( ExecutorBase.AVATAR_IMAGES_TABLE, ExecutorBase.USER_ID_AVATAR_IMAGES_TABLE,
+										 ExecutorBase.IMAGE_FIELD_AVATAR_IMAGES_TABLE, ExecutorBase.IMAGE_MD5_AVATAR_IMAGES_TABLE ) );
+		blobColumns.add( new BlobColumn( ExecutorBase.CHAT_FILES_TABLE, ExecutorBase.FILE_ID_FIELD_NAME_CHAT_FILES_TABLE,
+										 ExecutorBase.THUMBNAIL_FIELD_NAME_CHAT_FILES_TABLE, ExecutorBase.THUMBNAIL_MD5_CHAT_FILES_TABLE ) );
+		blobColumns.add( new BlobColumn( ExecutorBase.CHAT_FILES_TABLE, ExecutorBase.FILE_ID_FIELD_NAME_CHAT_FILES_TABLE,
+										 ExecutorBase.DATA_FIELD_NAME_CHAT_FILES_TABLE, ExecutorBase.DATA_MD5_CHAT_FILES_TABLE ) );
+		blobColumns.add( new BlobColumn( ExecutorBase.FORUM_FILES_TABLE, ExecutorBase.FILE_ID_FIELD_NAME_FORUM_FILES_TABLE,
+										 ExecutorBase.FILE_THUMBNAIL_FIELD_NAME_FORUM_FILES_TABLE, ExecutorBase.THUMBNAIL_MD5_FIELD_NAME_FORUM_FILES_TABLE ) );
+		blobColumns.add( new BlobColumn( ExecutorBase.FORUM_FILES_TABLE, ExecutorBase.FILE_ID_FIELD_NAME_FORUM_FILES_TABLE,
+										 ExecutorBase.DATA_FIELD_NAME_FORUM_FILES_TABLE, ExecutorBase.DATA_MD5_FIELD_NAME_FORUM_FILES_TABLE ) );
+	}
+	
+	/**
+	 * Moves all the blobs of the given column into the storage
+	 * @param blobColumn the blob column
+	 * @param blobStore the storage
+	 * @return the number of rows that could not be migrated
+	 * @throws SiteException if the rows could not be retrieved
+	 */
+	private static int migrateBlobColumn( final BlobColumn blobColumn, final BlobStore blobStore ) throws SiteException {
+		logger.info( "Moving the blobs of " + blobColumn + " into the files storage" );
+		int numberOfRows = 0, numberOfFailedRows = 0;
+		long numberOfBytes = 0;
+		int afterRowID = 0;
+		while( true ) {
+			final List<Integer> rowIDs = new ArrayList<Integer>();
+			ConnectionWrapper<List<Integer>> selectRowIDsConnWrap = ConnectionWrapper.createConnectionWrapper(
+					new SelectFileBlobRowIDsExecutor( blobColumn.tableName, blobColumn.idColumnName,
+													  blobColumn.blobColumnName, afterRowID, ROWS_BATCH_SIZE ) );
+			selectRowIDsConnWrap.executeQuery( rowIDs, ConnectionWrapper.XCURE_CHAT_DB );
+			if( rowIDs.isEmpty() ) {
+				break;
+			}
+			for( Integer rowID : rowIDs ) {
+				MigrateFileBlobExecutor migrateBlobExec = new MigrateFileBlobExecutor( blobColumn.tableName, blobColumn.idColumnName,
+																					   blobColumn.blobColumnName, blobColumn.keyColumnName,
+																					   rowID, blobStore );
+				try {
+					ConnectionWrapper<Void> migrateBlobConnWrap = ConnectionWrapper.createConnectionWrapper( migrateBlobExec );
+					migrateBlobConnWrap.executeQuery( ConnectionWrapper.XCURE_CHAT_DB );
+					if( migrateBlobExec.getMigratedBytes() >= 0 ) {
+						numberOfRows++;
+						numberOfBytes += migrateBlobExec.getMigratedBytes();
+					}
+				} catch( SiteException e ) {
+					//Skip the row, it is tried again when the tool is rerun
+					logger.error( "Unable to move the blob of row " + rowID + " of " + blobColumn, e );
+					numberOfFailedRows++;
+				}
+				afterRowID = rowID;
+			}
+			logger.info( "Moved " + numberOfRows + " blobs, " + numberOfBytes + " bytes, of " + blobColumn + " up to row " + afterRowID );
+		}
+		logger.info( "Finished moving the blobs of " + blobColumn + ": " + numberOfRows + " blobs, " +
+					 numberOfBytes + " bytes, " + numberOfFailedRows + " failed" );
+		return numberOfFailedRows;
+	}
+	
+	/**
+	 * Removes the blobs from the storage that are not referenced from the files tables
+	 * and are stored long enough ago not to belong to the files being uploaded.
+	 * @param blobStore the storage
+	 * @throws Exception if the referenced blobs or the stored blobs could not be retrieved
+	 */
+	private static void removeUnreferencedBlobs( final BlobStore blobStore ) throws Exception {
+		//First list the stored blobs, so that the blobs stored and referenced later are not considered
+		final long storedBeforeMillis = System.currentTimeMillis() - MIN_UNREFERENCED_BLOB_AGE_MILLISEC;
+		final List<String> storedKeys = blobStore.getKeys( storedBeforeMillis );
+		final Set<String> referencedKeys = new HashSet<String>();
+		for( BlobColumn blobColumn : blobColumns ) {
+			ConnectionWrapper<Set<String>> selectKeysConnWrap = ConnectionWrapper.createConnectionWrapper(
+					new SelectFileBlobKeysExecutor( blobColumn.tableName, blobColumn.keyColumnName ) );
+			selectKeysConnWrap.executeQuery( referencedKeys, ConnectionWrapper.XCURE_CHAT_DB );
+		}
+		//The blob that was stored again after it was listed, e.g. the same file was uploaded again,
+		//can be referenced by a row inserted after the referenced keys were selected, so it is kept
+		int numberOfRemovedBlobs = 0;
+		for( String key : storedKeys ) {
+			if( ! referencedKeys.contains( key ) ) {
+				if( blobStore.removeIfStoredBefore( key, storedBeforeMillis ) ) {
+					numberOfRemovedBlobs++;
+				} else {
+					logger.warn( "Unable to remove the unreferenced blob " + key + ", or it was stored again" );
+				}
+			}
+		}
+		logger.info( "Removed " + numberOfRemovedBlobs + " unreferenced blobs out of " + storedKeys.size() +
+					 " stored, " + referencedKeys.size() + " blobs are referenced" );
+	}
+	
+	/**
+	 * The tool entry point
+	 * @param args the command line arguments, see the class description
+	 */
+	public static void main( String[] args ) {
+		BasicConfigurator.configure();
+		if( ( args.length < 4 ) || ( args.length > 5 ) || ( ( args.length == 5 ) && ! args[4].equals( REMOVE_UNREFERENCED_OPTION ) ) ) {
+			System.err.println( "Usage: java " + BlobStoreMigrator.class.getName() +
+								" <jdbc-url> <db-login> <db-password> <files-store-location> [" + REMOVE_UNREFERENCED_OPTION + "]" );
+			System.exit( 1 );
+		}
+		int numberOfFailedRows = 0;
+		try {
+			ConnectionWrapper.initializeDataSource( args[0], args[1], args[2], ConnectionWrapper.XCURE_CHAT_DB );
+			final BlobStore blobStore = BlobStoreManager.createBlobStore( System.getProperty( Configurator.FILES_STORE_CLASS_PROP_NAME ), args[3] );
+			BlobStoreManager.setBlobStore( blobStore );
+			
+			for( BlobColumn blobColumn : blobColumns ) {
+				numberOfFailedRows += migrateBlobColumn( blobColumn, blobStore );
+			}
+			
+			if( args.length == 5 ) {
+				removeUnreferencedBlobs( blobStore );
+			}
+		} catch( Exception e ) {
+			logger.error( "The files blobs migration has failed", e );
+			System.exit( 2 );
+		}
+		if( numberOfFailedRows > 0 ) {
+			logger.error( "The blobs of " + numberOfFailedRows + " rows could not be moved, please rerun the migration" );
+			System.exit( 3 );
+		}
+	}
+}
@@ -28,9 +28,14 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 
-import javax.servlet.ServletException;
 import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import org.apache.commons.fileupload.FileItem;
@@ -48,6 +53,8 @@ import com.xcurechat.client.rpc.exceptions.InternalSiteException;
 import com.xcurechat.client.rpc.exceptions.UserFileUploadException;
 import com.xcurechat.client.utils.SupportedFileMimeTypes;
 
+import com.xcurechat.server.utils.MD5;
+
 /**
  * @author zapreevis
  * This class contains helper methods for the file upload/load servlets
@@ -60,6 +67,23 @@ public class FileServletHelper {
 	//Get the Log4j logger object
 	private static final Logger logger = Logger.getLogger( FileServletHelper.class );
 	
+	//The HTTP headers used for the conditional and the range requests
+	private static final String ETAG_HEADER = "ETag";
+	private static final String IF_NONE_MATCH_HEADER = "If-None-Match";
+	private static final String RANGE_HEADER = "Range";
+	private static final String IF_RANGE_HEADER = "If-Range";
+	private static final String ACCEPT_RANGES_HEADER = "Accept-Ranges";
+	private static final String CONTENT_RANGE_HEADER = "Content-Range";
+	//The only supported range unit
+	private static final String BYTES_RANGE_UNIT = "bytes";
+	
+	//The Cache-Control header values: for the content that is cached for a week, but has to be
+	//revalidated after that, for the content that is cached for a day, i.e. the URL contains the
+	//content version that is not the content hash, and for the content that must not be cached
+	public static final String CACHE_FOR_A_WEEK_CONTROL = "max-age=604800, must-revalidate";
+	public static final String CACHE_FOR_A_DAY_CONTROL = "public, max-age=86400, must-revalidate";
+	public static final String NO_CACHE_CONTROL = "no-store";
+	
 	/**
 	 * This method allows to load a file provided by its absolute file
 	 * name and then returned its byte data. 
@@ -139,53 +163,279 @@ public class FileServletHelper {
 	}
 
 	/**
-	 * This method, for the provided file data, tries to write it into the servlet response
+	 * Allows to compute the MD5 sum of the file data, e.g. to be used as the file's ETag
+	 * @param data the file data, can be null
+	 * @return the MD5 sum of the data or null if the data is null or the sum can not be computed
+	 */
+	public static String getDataMD5( final byte[] data ) {
+		String result = null;
+		if( data != null ) {
+			try {
+				result = MD5.getMD5( data );
+			} catch( InternalSiteException e ) {
+				logger.error( "Unable to compute the MD5 sum of " + data.length + " bytes of the file data", e );
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Allows to check if the If-None-Match request header matches the given entity tag
+	 * @param ifNoneMatch the If-None-Match header value
+	 * @param eTag the entity tag, quoted
+	 * @return true if the header contains the entity tag or is "*"
+	 */
+	private static boolean isETagMatching( final String ifNoneMatch, final String eTag ) {
+		for( String value : ifNoneMatch.split( "," ) ) {
+			value = value.trim();
+			if( value.equals( "*" ) || value.equals( eTag ) ) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Allows to parse the Range request header, only one byte range is supported,
+	 * if there are several ranges requested then the entire file is returned.
+	 * @param range the Range header value
+	 * @param length the length of the file
+	 * @return the pair of the first and the last byte positions of the range, or null if the range
+	 *         is not valid or not supported, the array is empty if the range can not be satisfied
+	 */
+	private static long[] parseRange( final String range, final long length ) {
+		if( ! range.startsWith( BYTES_RANGE_UNIT + "=" ) || ( range.indexOf( ',' ) != -1 ) ) {
+			return null;
+		}
+		final String spec = range.substring( BYTES_RANGE_UNIT.length() + 1 ).trim();
+		final int dashIndex = spec.indexOf( '-' );
+		if( dashIndex == -1 ) {
+			return null;
+		}
+		try {
+			final String firstStr = spec.substring( 0, dashIndex ).trim();
+			final String lastStr = spec.substring( dashIndex + 1 ).trim();
+			long first, last;
+			if( firstStr.isEmpty() ) {
+				//The suffix range, i.e. the given number of the last bytes
+				final long suffixLength = Long.parseLong( lastStr );
+				if( suffixLength <= 0 ) {
+					return new long[0];
+				}
+				first = Math.max( 0, length - suffixLength );
+				last = length - 1;
+			} else {
+				first = Long.parseLong( firstStr );
+				last = lastStr.isEmpty() ? length - 1 : Math.min( Long.parseLong( lastStr ), length - 1 );
+				if( last < first ) {
+					return first < length ? null : new long[0];
+				}
+			}
+			if( first >= length ) {
+				return new long[0];
+			}
+			return new long[]{ first, last };
+		} catch( NumberFormatException e ) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Allows to wrap the file data into a byte buffer, to be written by the writeOutputFile method
+	 * @param data the file data, can be null
+	 * @return the byte buffer wrapping the data or null if the data is null
+	 */
+	public static ByteBuffer wrapFileData( final byte[] data ) {
+		return ( data != null ) ? ByteBuffer.wrap( data ) : null;
+	}
+	
+	/**
+	 * Allows to compute the MD5 sum of the file data, e.g. to be used as the file's ETag
+	 * @param data the file data, can be null, its position is not changed
+	 * @return the MD5 sum of the data or null if the data is null or the sum can not be computed
+	 */
+	private static String getDataMD5( final ByteBuffer data ) {
+		String result = null;
+		if( data != null ) {
+			try {
+				MessageDigest digest = MD5.getMD5Digest();
+				digest.update( data.duplicate() );
+				result = MD5.toMD5String( digest );
+			} catch( InternalSiteException e ) {
+				logger.error( "Unable to compute the MD5 sum of " + data.remaining() + " bytes of the file data", e );
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * This method, for the provided file data, tries to write it into the servlet response.
+	 * See the writeOutputFile method that takes the file data as a byte buffer for details.
+	 * @param logger the logging object
+	 * @param request the servlet request
+	 * @param response the servlet response 
+	 * @param fileData the file data in memory, or null if it is to be taken from the files storage
+	 * @param fileDataMD5 the MD5 sum of the file data, i.e. its key in the files storage, or null if not known
+	 * @param fileKindDesc the kind of the file that could not be handled, just some textual description needed for logging
+	 * @param mimeType the mime type of the file
+	 * @param fileName the file name
+	 * @param doCatch if true then we mark the content as if we want to cache it.
+	 * @param isDownload true if one wants to download this file as an attachment
+	 * @return false if there is no file data to write, otherwise true
+	 * @throws IOException is smth bad happens
+	 */
+	public static boolean writeOutputFile(Logger logger, HttpServletRequest request, HttpServletResponse response,
+										  final byte[] fileData, final String fileDataMD5, final String fileKindDesc,
+										  final String mimeType, final String fileName,
+										  final boolean doCache, final boolean isDownload) throws IOException {
+		return writeOutputFile( logger, request, response, wrapFileData( fileData ), fileDataMD5,
+								fileKindDesc, mimeType, fileName, doCache, isDownload );
+	}
+	
+	/**
+	 * This method, for the provided file data, tries to write it into the servlet response.
+	 * See the writeOutputFile method that takes the Cache-Control header value for details.
 	 * @param logger the logging object
+	 * @param request the servlet request
 	 * @param response the servlet response 
-	 * @param fileData the file data
+	 * @param fileData the file data in memory, or null if it is to be taken from the files storage
+	 * @param fileDataMD5 the MD5 sum of the file data, i.e. its key in the files storage, or null if not known
 	 * @param fileKindDesc the kind of the file that could not be handled, just some textual description needed for logging
 	 * @param mimeType the mime type of the file
 	 * @param fileName the file name
 	 * @param doCatch if true then we mark the content as if we want to cache it.
 	 * @param isDownload true if one wants to download this file as an attachment
-	 * @throws ServletException is smth bad happens
+	 * @return false if there is no file data to write, otherwise true
 	 * @throws IOException is smth bad happens
 	 */
-	public static void writeOutputFile(Logger logger, HttpServletResponse response,
-										final byte[] fileData, final String fileKindDesc,
-										final String mimeType, final String fileName,
-										final boolean doCache, final boolean isDownload) throws ServletException, IOException {
+	public static boolean writeOutputFile(Logger logger, HttpServletRequest request, HttpServletResponse response,
+										  final ByteBuffer fileData, final String fileDataMD5, final String fileKindDesc,
+										  final String mimeType, final String fileName,
+										  final boolean doCache, final boolean isDownload) throws IOException {
+		return writeOutputFile( logger, request, response, fileData, fileDataMD5, fileKindDesc, mimeType, fileName,
+								doCache ? CACHE_FOR_A_WEEK_CONTROL : NO_CACHE_CONTROL, isDownload );
+	}
+	
+	/**
+	 * This method, for the provided file data, tries to write it into the servlet response. The file data
+	 * is either provided in memory or is taken from the files storage, in the latter case it is streamed
+	 * from the storage without being loaded into memory. The MD5 sum of the data is used as the strong
+	 * ETag of the response, so the conditional requests with If-None-Match are answered with 304 (Not
+	 * Modified). The requests for one byte range are answered with 206 (Partial Content).
+	 * @param logger the logging object
+	 * @param request the servlet request
+	 * @param response the servlet response 
+	 * @param fileData the file data in memory, from its position to its limit, e.g. the off-heap
+	 *                 cached data, or null if it is to be taken from the files storage
+	 * @param fileDataMD5 the MD5 sum of the file data, i.e. its key in the files storage, or null if not known
+	 * @param fileKindDesc the kind of the file that could not be handled, just some textual description needed for logging
+	 * @param mimeType the mime type of the file
+	 * @param fileName the file name
+	 * @param cacheControl the Cache-Control header value, one of the CACHE_FOR_A_WEEK_CONTROL,
+	 *                     CACHE_FOR_A_DAY_CONTROL, NO_CACHE_CONTROL constants
+	 * @param isDownload true if one wants to download this file as an attachment
+	 * @return false if there is no file data to write, i.e. it is neither in memory nor in the files storage, then
+	 *         nothing is written into the response, so the caller can write some default data, otherwise true
+	 * @throws IOException is smth bad happens
+	 */
+	public static boolean writeOutputFile(Logger logger, HttpServletRequest request, HttpServletResponse response,
+										  final ByteBuffer fileData, final String fileDataMD5, final String fileKindDesc,
+										  final String mimeType, final String fileName,
+										  final String cacheControl, final boolean isDownload) throws IOException {
+		//Find out where the data is and its length
+		final BlobStore blobStore = BlobStoreManager.getBlobStore();
+		final long length;
+		final String dataMD5;
 		if( fileData != null ) {
-			//Either do no caching or cache the file for a week
-			response.setHeader( "Cache-Control", doCache ? "max-age=604800, must-revalidate" : "no-store" );
-			if( ! doCache ) { 
-				//Set no caching
-				response.setHeader( "Pragma", "no-cache" );
-				//Expires in one second
-				response.setDateHeader( "Expires", 1000 );
+			length = fileData.remaining();
+			dataMD5 = ( fileDataMD5 != null ) ? fileDataMD5 : getDataMD5( fileData );
+		} else {
+			length = ( ( fileDataMD5 != null ) && ( blobStore != null ) ) ? blobStore.getSize( fileDataMD5 ) : -1;
+			dataMD5 = fileDataMD5;
+		}
+		if( length < 0 ) {
+			logger.warn( "The servlet could not retrieve " + fileKindDesc + " file with mime type \"" + mimeType + "\" and MD5 " + fileDataMD5 );
+			return false;
+		}
+		
+		//Set the required caching
+		response.setHeader( "Cache-Control", cacheControl );
+		if( NO_CACHE_CONTROL.equals( cacheControl ) ) { 
+			//Set no caching
+			response.setHeader( "Pragma", "no-cache" );
+			//Expires in one second
+			response.setDateHeader( "Expires", 1000 );
+		}
+		
+		//The strong entity tag is the MD5 sum of the data
+		final String eTag = ( dataMD5 != null ) ? "\"" + dataMD5 + "\"" : null;
+		if( eTag != null ) {
+			response.setHeader( ETAG_HEADER, eTag );
+			final String ifNoneMatch = request.getHeader( IF_NONE_MATCH_HEADER );
+			if( ( ifNoneMatch != null ) && isETagMatching( ifNoneMatch, eTag ) ) {
+				//The client has the same data
+				response.setStatus( HttpServletResponse.SC_NOT_MODIFIED );
+				return true;
+			}
+		}
+		response.setHeader( ACCEPT_RANGES_HEADER, BYTES_RANGE_UNIT );
+		response.setContentType( mimeType );
+		
+		//If one wants to download this file as an attachment, then we indicate this in the header
+		if( isDownload ) {
+			//Get the final file name
+			final String finalFileName;
+			if( fileName == null ) {
+				finalFileName = ShortFileDescriptor.UNKNOWN_FILE_NAME;
+			} else {
+				finalFileName = URLEncoder.encode( fileName, ENCODING_TYPE );
 			}
-			response.setContentType( mimeType );
-			
-			//If one wants to download this file as an attachment, then we indicate this in the header
-			if( isDownload ) {
-				//Get the final file name
-				final String finalFileName;
-				if( fileName == null ) {
-					finalFileName = ShortFileDescriptor.UNKNOWN_FILE_NAME;
-				} else {
-					finalFileName = URLEncoder.encode( fileName, ENCODING_TYPE );
+			response.setHeader( "Content-disposition", "attachment; filename=" + finalFileName );
+		}
+		
+		//Check if only a part of the data is requested, the If-Range makes the range conditional on the entity tag
+		long first = 0, last = length - 1;
+		final String range = request.getHeader( RANGE_HEADER );
+		final String ifRange = request.getHeader( IF_RANGE_HEADER );
+		if( ( range != null ) && ( length > 0 ) && ( ( ifRange == null ) || ifRange.equals( eTag ) ) ) {
+			final long[] positions = parseRange( range, length );
+			if( positions != null ) {
+				if( positions.length == 0 ) {
+					response.setHeader( CONTENT_RANGE_HEADER, BYTES_RANGE_UNIT + " */" + length );
+					response.sendError( HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE );
+					return true;
 				}
-				response.setHeader( "Content-disposition", "attachment; filename=" + finalFileName );
+				first = positions[0];
+				last = positions[1];
+				response.setStatus( HttpServletResponse.SC_PARTIAL_CONTENT );
+				response.setHeader( CONTENT_RANGE_HEADER, BYTES_RANGE_UNIT + " " + first + "-" + last + "/" + length );
+			}
+		}
+		final long count = last - first + 1;
+		response.setContentLength( (int) count );
+		
+		ServletOutputStream responseOutputStream = response.getOutputStream();
+		//The servlet API does not give access to the socket channel, so the channel
+		//wrapping the output stream is used, it copies the data by small chunks
+		final WritableByteChannel responseChannel = Channels.newChannel( responseOutputStream );
+		if( fileData != null ) {
+			final ByteBuffer dataRange = fileData.duplicate();
+			dataRange.position( dataRange.position() + (int) first );
+			dataRange.limit( dataRange.position() + (int) count );
+			while( dataRange.hasRemaining() ) {
+				responseChannel.write( dataRange );
 			}
-			
-			ServletOutputStream responseOutputStream = response.getOutputStream();
-			responseOutputStream.write( fileData );
-			responseOutputStream.flush();
-			responseOutputStream.close();
 		} else {
-			logger.error( "The servlet could not retrieve/generate "+fileKindDesc+" file with mime type \""+mimeType+"\"!" );
-			throw new ServletException( "The servlet could not retrieve/generate "+fileKindDesc+" file with mime type \""+mimeType+"\"!" );
+			if( ! blobStore.transferTo( dataMD5, first, count, responseChannel ) ) {
+				//The blob was removed after we got its size, the headers are set but
+				//the data is not written yet so the container can report the error
+				logger.error( "The servlet could not stream " + fileKindDesc + " file with MD5 " + dataMD5 );
+				throw new IOException( "The " + fileKindDesc + " file with MD5 " + dataMD5 + " disappeared from the files storage" );
+			}
 		}
+		responseOutputStream.flush();
+		responseOutputStream.close();
+		return true;
 	}
 
 	/**
@@ -202,12 +452,14 @@ public class FileServletHelper {
 	 * @param target the string used for logging and should specify to where the file is being uploaded, e.g.: chat, forum
 	 * @return the resulting complete file data
 	 * @throws UserFileUploadException in case something goes wrong, either the upload or the image resizing or smth.  
+	 * @throws InternalSiteException if the server is too busy to process the image or the MD5 sum can not be computed
 	 * @throws IOException in case something goes wrong, either the upload or the image resizing or smth.
 	 */
 	public static UserFileData prepareUploadedFileData( final int ownerID, FileItem file,
 													 final int maxImgHeight, final int maxImgWidth,
 													 final int thumbHeight, final int thumbWidth,
-													 final Color bgColor, final String target ) throws UserFileUploadException, IOException {
+													 final Color bgColor, final String target ) throws UserFileUploadException,
+																									   InternalSiteException, IOException {
 		return prepareUploadedFileData( ownerID, file, maxImgHeight, maxImgWidth,
 				 						thumbHeight, thumbWidth, bgColor, target, true, true );
 	}
@@ -225,6 +477,7 @@ public class FileServletHelper {
 	 * @param makeThumbnail if true then we make a thumbnail for the file, otherwise not
 	 * @return the resulting complete file data
 	 * @throws UserFileUploadException in case something goes wrong, either the upload or the image resizing or smth.  
+	 * @throws InternalSiteException if the server is too busy to process the image or the MD5 sum can not be computed
 	 * @throws IOException in case something goes wrong, either the upload or the image resizing or smth.
 	 */
 	public static UserFileData prepareUploadedFileData( final int ownerID, FileItem file,
@@ -232,7 +485,8 @@ public class FileServletHelper {
 													 final int thumbHeight, final int thumbWidth,
 													 final Color bgColor, final String target,
 													 final boolean makeThumbnail,
-													 final boolean keepProportions ) throws UserFileUploadException, IOException {
+													 final boolean keepProportions ) throws UserFileUploadException,
+																							InternalSiteException, IOException {
 		final UserFileData fileDescriptor = new UserFileData();
 		//NOTE: The file.getContentType() method is unreliable because on different browsers and OS it gives different mime-types!
 		if( file.getName() != null ) {
@@ -251,25 +505,15 @@ public class FileServletHelper {
 						  " of type " + fileDescriptor.mimeType + " to the "+target+" by user " + fileDescriptor.ownerID );
 			try{
 				final InputStream inputStream = file.getInputStream();
-				//Resize the image
-				final ByteArrayOutputStream outputStream = ImageProcessor.resizeImage( inputStream, maxImgHeight, maxImgWidth, bgColor,
-																					   SupportedFileMimeTypes.getMTSuffix( fileDescriptor.mimeType ),
-																					   false, keepProportions, fileDescriptor );
-				fileDescriptor.fileData = outputStream.toByteArray();
-				//Close the input stream
-				inputStream.close();
-				if( makeThumbnail ) {
-					//Resize to the thumbnail
-					final ByteArrayOutputStream outputStreamThumb = ImageProcessor.resizeImage( outputStream, thumbHeight, thumbWidth, bgColor,
-																								SupportedFileMimeTypes.getMTSuffix( fileDescriptor.mimeType ),
-																								false );
-					fileDescriptor.thumbnailData = outputStreamThumb.toByteArray();
-					//Close the output streams
-					outputStreamThumb.close();
-				} else {
-					fileDescriptor.thumbnailData = null;
+				try {
+					//Resize the image and create its thumbnail, in one go
+					ImageProcessor.processImage( inputStream, maxImgHeight, maxImgWidth, thumbHeight, thumbWidth, bgColor,
+												 SupportedFileMimeTypes.getMTSuffix( fileDescriptor.mimeType ),
+												 makeThumbnail, keepProportions, fileDescriptor );
+				} finally {
+					//Close the input stream
+					inputStream.close();
 				}
-				outputStream.close();
 			} catch (IOException ex){
 				logger.error("Unable to resize user profile image and/or to create a thumbnail", ex);
 				throw new UserFileUploadException( UserFileUploadException.UNSUPPORTED_UPLOAD_FILE_FORMAT_ERR );
@@ -283,20 +527,24 @@ public class FileServletHelper {
 							  " of type " + fileDescriptor.mimeType + " to the "+target+" by user " + fileDescriptor.ownerID );
 				final InputStream inputStream = file.getInputStream();
 				final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-				byte[] bytes = new byte[512];
+				//The MD5 sum of the file is computed while the file is read
+				final MessageDigest digest = MD5.getMD5Digest();
+				final DigestOutputStream digestOutputStream = new DigestOutputStream( outputStream, digest );
+				byte[] bytes = new byte[8192];
 				
 				//Read bytes from the input stream in bytes.length-sized chunks and write them into the output stream
 				int readBytes;
 				while ((readBytes = inputStream.read(bytes)) > 0) {
-					outputStream.write(bytes, 0, readBytes);
+					digestOutputStream.write(bytes, 0, readBytes);
 				}
 				 
 				//Convert the contents of the output stream into a byte array
 				fileDescriptor.fileData = outputStream.toByteArray();
+				fileDescriptor.fileDataMD5 = MD5.toMD5String( digest );
 				 
 				//Close the streams
 				inputStream.close();
-				outputStream.close();
+				digestOutputStream.close();
 			} else {
 				logger.error( "The user " + fileDescriptor.ownerID + " tried to upload a file " + fileDescriptor.fileName +
 							  " of type " + fileDescriptor.mimeType + " to the "+target+", but the file type is unrecognized" );
@@ -25,12 +25,36 @@ import java.io.ByteArrayOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.io.IOException;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
 
 import org.apache.log4j.Logger;
 
+import com.xcurechat.client.data.FileData;
 import com.xcurechat.client.data.ShortFileDescriptor;
+import com.xcurechat.client.rpc.exceptions.InternalSiteException;
+import com.xcurechat.client.rpc.exceptions.UserFileUploadException;
+
+import com.xcurechat.server.utils.MD5;
 
 import java.awt.Graphics2D;
 import java.awt.RenderingHints;
@@ -39,7 +63,12 @@ import java.awt.Color;
 
 /**
  * @author zapreevis
- * This class is supposed to supply methods required for creating thumbnails and resizing images
+ * This class is supposed to supply methods required for creating thumbnails and resizing images.
+ * The uploaded images are processed by a bounded pool of threads. Before an image is given to
+ * the pool, its dimensions are read from the image header and the image is charged with the
+ * number of pixels it will be decoded into, the total is bounded, so the concurrent uploads of
+ * large images wait for each other instead of exhausting the heap. The large images are decoded
+ * with the source subsampling, i.e. only the pixels needed for the resized image are decoded.
  */
 public final class ImageProcessor {
 	//Get the Log4j logger object
@@ -67,6 +96,40 @@ public final class ImageProcessor {
 	//The width and height for the avatar images
 	public static final int AVATAR_WIDTH = 60;
 	public static final int AVATAR_HEIGHT = 60;
+	
+	//The number of threads processing the uploaded images
+	private static final int NUMBER_OF_IMAGE_PROCESSING_THREADS = Math.max( 1, Runtime.getRuntime().availableProcessors() );
+	//The maximum number of the images waiting for the image processing thread
+	private static final int MAX_NUMBER_OF_WAITING_IMAGES = 4 * NUMBER_OF_IMAGE_PROCESSING_THREADS;
+	//The maximum number of pixels of all the images being decoded and processed at the
+	//same time, every decoded pixel takes up to 4 bytes, i.e. this is about 128 Mb
+	private static final int MAX_NUMBER_OF_PROCESSED_PIXELS = 32 * 1024 * 1024;
+	//The maximum time in millisec the upload waits for its image to be accepted for processing
+	private static final long MAX_IMAGE_PROCESSING_WAIT_MILLISEC = 20000;
+	//The source image is decoded with at least this many pixels per pixel of the resized image,
+	//in both directions, so that the subsampling does not degrade the resized image quality
+	private static final int MIN_DECODED_PIXELS_PER_RESIZED_PIXEL = 2;
+	
+	//The number of pixels that can still be taken by the images being processed
+	private static final Semaphore processedPixels = new Semaphore( MAX_NUMBER_OF_PROCESSED_PIXELS, true );
+	
+	//The pool of the threads processing the images
+	private static final ThreadPoolExecutor imageProcessingExecutor;
+	static {
+		final AtomicInteger threadsCount = new AtomicInteger( 0 );
+		imageProcessingExecutor = new ThreadPoolExecutor( NUMBER_OF_IMAGE_PROCESSING_THREADS, NUMBER_OF_IMAGE_PROCESSING_THREADS,
+														  60, TimeUnit.SECONDS,
+														  new ArrayBlockingQueue<Runnable>( MAX_NUMBER_OF_WAITING_IMAGES ),
+														  new ThreadFactory() {
+			public Thread newThread( final Runnable runnable ) {
+				Thread thread = new Thread( runnable, "ImageProcessingThread-" + threadsCount.incrementAndGet() );
+				thread.setDaemon( true );
+				return thread;
+			}
+		});
+		//The threads are not kept when there are no uploads
+		imageProcessingExecutor.allowCoreThreadTimeOut( true );
+	}
 
 	/**
 	 * Allows to center the image whose size is within the given maximum bounds and then write it to a new image with a black background.
@@ -128,23 +191,20 @@ public final class ImageProcessor {
 	 * Allows to check if the image is of a proper size then if keepOriginal == true
 	 * it is kept intact, otherwise it is resizes and fit it into the prescribed
 	 * frame with a given background.
-	 * @param data the input image data
+	 * @param image the input image
 	 * @param max_height the maximum allowed height of the image
 	 * @param max_width the maximum allowed width of the image
 	 * @param bgcolor the background color to put the picture on
-	 * @param imageMimeType the mime type format in which the picture will be saved
 	 * @param isHighQuality if true then we use the high quality when resizing the image
 	 * @param keepProportions if true then whether we resize the image or not, we do not place it on the background
 	 * just reduce the image dimensions proportionally to make it fit into the maximum dimensions
 	 * @param fileDesc the descriptor used for storing the resulting image width and height, can be null
-	 * @return the scaled image in the specified mime-type format
+	 * @return the scaled image
 	 * @throws IOException
-	 * @throws IllegalArgumentException
 	 */
-	private static ByteArrayOutputStream resizeImage( BufferedImage image, final int max_height,
-													  final int max_width, final Color bgcolor,
-													  final String imageMimeType, final boolean isHighQuality,
-													  final boolean keepProportions, final ShortFileDescriptor fileDesc ) throws IOException {
+	private static BufferedImage scaleImage( BufferedImage image, final int max_height,
+											 final int max_width, final Color bgcolor, final boolean isHighQuality,
+											 final boolean keepProportions, final ShortFileDescriptor fileDesc ) throws IOException {
 		BufferedImage newImage = image;
 		//Check if the image needs to be resized if yes, resize
 		int curr_width = image.getWidth(), curr_height = image.getHeight();
@@ -188,13 +248,59 @@ public final class ImageProcessor {
 			}
 		}
 		
-		//Encode image into jpeg
+		return newImage;
+	}
+	
+	/**
+	 * Allows to encode the image in the given format, the image is encoded in memory,
+	 * without using the temporary files
+	 * @param image the image to encode
+	 * @param imageMimeType the mime type format in which the picture will be saved
+	 * @param digest the digest to be updated with the encoded image data, can be null
+	 * @return the encoded image
+	 * @throws IOException if the image can not be encoded
+	 */
+	private static ByteArrayOutputStream encodeImage( final BufferedImage image, final String imageMimeType,
+													  final MessageDigest digest ) throws IOException {
 		ByteArrayOutputStream byteOutput = new ByteArrayOutputStream();
-		ImageIO.write( newImage, imageMimeType, byteOutput );
+		ImageOutputStream imageOutput = new MemoryCacheImageOutputStream( ( digest != null ) ? new DigestOutputStream( byteOutput, digest ) : byteOutput );
+		try {
+			ImageIO.write( image, imageMimeType, imageOutput );
+		} finally {
+			//Flushes the encoded image into the byte output
+			imageOutput.close();
+		}
 		logger.debug( "Has written the image as a " + imageMimeType + " file, the output is of length " + byteOutput.size() );
-		
 		return byteOutput;
-	} 
+	}
+	
+	/**
+	 * Allows to check if the image is of a proper size then if keepOriginal == true
+	 * it is kept intact, otherwise it is resizes and fit it into the prescribed
+	 * frame with a given background.
+	 * @param image the input image
+	 * @param max_height the maximum allowed height of the image
+	 * @param max_width the maximum allowed width of the image
+	 * @param bgcolor the background color to put the picture on
+	 * @param imageMimeType the mime type format in which the picture will be saved
+	 * @param isHighQuality if true then we use the high quality when resizing the image
+	 * @param keepProportions if true then whether we resize the image or not, we do not place it on the background
+	 * just reduce the image dimensions proportionally to make it fit into the maximum dimensions
+	 * @param fileDesc the descriptor used for storing the resulting image width and height, can be null
+	 * @return the scaled image in the specified mime-type format
+	 * @throws IOException
+	 * @throws IllegalArgumentException
+	 */
+	private static ByteArrayOutputStream resizeImage( BufferedImage image, final int max_height,
+													  final int max_width, final Color bgcolor,
+													  final String imageMimeType, final boolean isHighQuality,
+													  final boolean keepProportions, final ShortFileDescriptor fileDesc ) throws IOException {
+		if( image == null ) {
+			throw new IOException( "The image format is not supported" );
+		}
+		return encodeImage( scaleImage( image, max_height, max_width, bgcolor, isHighQuality, keepProportions, fileDesc ),
+							imageMimeType, null );
+	}
 	
 	/**
 	 * Allows to check if the image is of a proper size then if keepOriginal == true
@@ -283,4 +389,148 @@ public final class ImageProcessor {
 													throws IOException, IllegalArgumentException {
 		return resizeImage( data, max_height, max_width, bgcolor, imageMimeType, isHighQuality, false, null );
 	}
+	
+	/**
+	 * Allows to compute the source subsampling for decoding the image, the image is decoded
+	 * with at least MIN_DECODED_PIXELS_PER_RESIZED_PIXEL pixels per pixel of the resized image
+	 * @param width the source image width
+	 * @param height the source image height
+	 * @param max_width the maximum allowed width of the resized image
+	 * @param max_height the maximum allowed height of the resized image
+	 * @return the subsampling, the same in both directions, 1 if there is no subsampling
+	 */
+	private static int getSourceSubsampling( final int width, final int height, final int max_width, final int max_height ) {
+		return Math.max( 1, Math.min( width / ( MIN_DECODED_PIXELS_PER_RESIZED_PIXEL * max_width ),
+									  height / ( MIN_DECODED_PIXELS_PER_RESIZED_PIXEL * max_height ) ) );
+	}
+	
+	/**
+	 * Allows to process the uploaded image: to resize it, to create its thumbnail and to compute the
+	 * MD5 sums of the results, all from one decoding of the image. The image is read in the calling
+	 * thread only up to its dimensions, the rest is done by the image processing threads. If too many
+	 * images are being processed then this method waits, for at most MAX_IMAGE_PROCESSING_WAIT_MILLISEC.
+	 * The results are stored in the file descriptor: the image data, the thumbnail data, their MD5
+	 * sums and the image width and height.
+	 * @param data the input image data, is not closed by this method
+	 * @param max_height the maximum allowed height of the image
+	 * @param max_width the maximum allowed width of the image
+	 * @param thumb_height the maximum height of the thumbnail image
+	 * @param thumb_width the maximum width of the thumbnail image
+	 * @param bgcolor the background color to put the picture on
+	 * @param imageMimeType the mime type format in which the picture and the thumbnail will be saved
+	 * @param makeThumbnail if true then we make a thumbnail for the image, otherwise not
+	 * @param keepProportions if true then whether we resize the image or not, we do not place it on the background
+	 * just reduce the image dimensions proportionally to make it fit into the maximum dimensions
+	 * @param fileDesc the descriptor used for storing the results
+	 * @throws IOException if the image can not be read or processed
+	 * @throws UserFileUploadException if the image is too large to be processed
+	 * @throws InternalSiteException if the image can not be processed because the server is too busy
+	 */
+	public static void processImage( final InputStream data, final int max_height, final int max_width,
+									 final int thumb_height, final int thumb_width, final Color bgcolor,
+									 final String imageMimeType, final boolean makeThumbnail,
+									 final boolean keepProportions, final FileData fileDesc )
+									 throws IOException, UserFileUploadException, InternalSiteException {
+		//Read the image dimensions, the stream does not keep the data that was already read
+		final ImageInputStream imageInput = new MemoryCacheImageInputStream( data );
+		final Iterator<ImageReader> readers = ImageIO.getImageReaders( imageInput );
+		if( ! readers.hasNext() ) {
+			imageInput.close();
+			throw new IOException( "The image format is not supported" );
+		}
+		final ImageReader reader = readers.next();
+		boolean isSubmitted = false;
+		try {
+			reader.setInput( imageInput, true, true );
+			final int width = reader.getWidth( 0 );
+			final int height = reader.getHeight( 0 );
+			final int subsampling = getSourceSubsampling( width, height, max_width, max_height );
+			final long numberOfPixels = ( (long) ( ( width + subsampling - 1 ) / subsampling ) ) * ( ( height + subsampling - 1 ) / subsampling );
+			logger.debug( "Processing the image of width = " + width + ", height = " + height + ", with the subsampling " +
+						  subsampling + " it is decoded into " + numberOfPixels + " pixels" );
+			if( numberOfPixels > MAX_NUMBER_OF_PROCESSED_PIXELS ) {
+				logger.warn( "The image of width = " + width + ", height = " + height + " is too large to be processed" );
+				throw new UserFileUploadException( UserFileUploadException.FILE_IS_TOO_LARGE_ERR );
+			}
+			
+			//Wait until the pixels of the image can be taken
+			final int permits = (int) numberOfPixels;
+			try {
+				if( ! processedPixels.tryAcquire( permits, MAX_IMAGE_PROCESSING_WAIT_MILLISEC, TimeUnit.MILLISECONDS ) ) {
+					logger.error( "Timed out waiting for the image processing of " + numberOfPixels + " pixels, there are " +
+								  processedPixels.availablePermits() + " pixels available" );
+					throw new InternalSiteException( InternalSiteException.UNKNOWN_INTERNAL_SITE_EXCEPTION_ERR );
+				}
+			} catch( InterruptedException e ) {
+				Thread.currentThread().interrupt();
+				throw new InternalSiteException( InternalSiteException.UNKNOWN_INTERNAL_SITE_EXCEPTION_ERR );
+			}
+			
+			//Process the image, the processing thread releases the pixels and the reader
+			final Future<Void> result;
+			try {
+				result = imageProcessingExecutor.submit( new Callable<Void>() {
+					public Void call() throws Exception {
+						try {
+							//Decode only the pixels that are needed
+							ImageReadParam readParam = reader.getDefaultReadParam();
+							readParam.setSourceSubsampling( subsampling, subsampling, 0, 0 );
+							final BufferedImage image = reader.read( 0, readParam );
+							
+							//Create the image and the thumbnail, the thumbnail is made from the resized image
+							MessageDigest digest = MD5.getMD5Digest();
+							final BufferedImage resizedImage = scaleImage( image, max_height, max_width, bgcolor, false, keepProportions, fileDesc );
+							fileDesc.fileData = encodeImage( resizedImage, imageMimeType, digest ).toByteArray();
+							fileDesc.fileDataMD5 = MD5.toMD5String( digest );
+							if( makeThumbnail ) {
+								final BufferedImage thumbnailImage = scaleImage( resizedImage, thumb_height, thumb_width, bgcolor, false, false, null );
+								fileDesc.thumbnailData = encodeImage( thumbnailImage, imageMimeType, digest ).toByteArray();
+								fileDesc.thumbnailDataMD5 = MD5.toMD5String( digest );
+							} else {
+								fileDesc.thumbnailData = null;
+								fileDesc.thumbnailDataMD5 = null;
+							}
+							return null;
+						} finally {
+							reader.dispose();
+							imageInput.close();
+							processedPixels.release( permits );
+						}
+					}
+				});
+				isSubmitted = true;
+			} catch( RejectedExecutionException e ) {
+				processedPixels.release( permits );
+				logger.error( "The image processing queue is full, there are " + imageProcessingExecutor.getQueue().size() + " images waiting" );
+				throw new InternalSiteException( InternalSiteException.UNKNOWN_INTERNAL_SITE_EXCEPTION_ERR );
+			}
+			
+			//Wait for the processing results
+			try {
+				result.get();
+			} catch( InterruptedException e ) {
+				//NOTE: The processing is not cancelled, the processing thread has to release the pixels and the reader
+				Thread.currentThread().interrupt();
+				throw new InternalSiteException( InternalSiteException.UNKNOWN_INTERNAL_SITE_EXCEPTION_ERR );
+			} catch( ExecutionException e ) {
+				final Throwable cause = e.getCause();
+				if( cause instanceof IOException ) {
+					throw (IOException) cause;
+				} else if( cause instanceof RuntimeException ) {
+					throw (RuntimeException) cause;
+				} else if( cause instanceof InternalSiteException ) {
+					throw (InternalSiteException) cause;
+				} else if( cause instanceof Error ) {
+					throw (Error) cause;
+				} else {
+					throw new IOException( "Unable to process the image: " + cause );
+				}
+			}
+		} finally {
+			if( ! isSubmitted ) {
+				reader.dispose();
+				imageInput.close();
+			}
+		}
+	}
 }
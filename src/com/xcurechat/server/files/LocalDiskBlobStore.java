@@ -0,0 +1,357 @@
+/**
+ * X-Cure-Chat
+ * Copyright (C) 2013  Dr. Ivan S. Zapreev
+ * www: https://nl.linkedin.com/in/zapreevis
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.#
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * The file processing package.
+ * (C) Ivan S. Zapreev, 2008
+ */
+package com.xcurechat.server.files;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import com.xcurechat.client.rpc.exceptions.InternalSiteException;
+
+import com.xcurechat.server.utils.MD5;
+
+/**
+ * @author zapreevis
+ * This class implements the blob storage that keeps blobs as files in the local
+ * file system. The blob with the key ABCDEF... is stored in the file AB/CD/ABCDEF...
+ * under the root directory, so that no directory gets too many files. The blob is
+ * first written into a temporary file which is then renamed, so the readers never
+ * see partially written blobs, and since the blob file name is the MD5 sum of its
+ * data the concurrent writers of the same blob write the same data.
+ */
+public class LocalDiskBlobStore implements BlobStore {
+	//Get the Log4j logger object
+	private static final Logger logger = Logger.getLogger( LocalDiskBlobStore.class );
+	
+	//The name of the directory, inside the root one, for the blobs being written
+	private static final String TEMPORARY_DIRECTORY_NAME = "tmp";
+	
+	//The length of the blob key, i.e. of the MD5 sum string
+	private static final int KEY_LENGTH = 32;
+	
+	//The size of the buffer used for copying the data streams
+	private static final int COPY_BUFFER_SIZE = 64 * 1024;
+	
+	//The root directory of the storage
+	private final File rootDirectory;
+	
+	//The directory for the temporary files
+	private final File temporaryDirectory;
+	
+	/**
+	 * The basic constructor, creates the storage directories if they do not exist
+	 * @param rootDirectoryName the root directory of the storage
+	 * @throws IOException if the storage directories do not exist and can not be created
+	 */
+	public LocalDiskBlobStore( final String rootDirectoryName ) throws IOException {
+		rootDirectory = new File( rootDirectoryName );
+		temporaryDirectory = new File( rootDirectory, TEMPORARY_DIRECTORY_NAME );
+		if( ! temporaryDirectory.isDirectory() && ! temporaryDirectory.mkdirs() ) {
+			throw new IOException( "Unable to create the blob storage directory " + temporaryDirectory.getAbsolutePath() );
+		}
+		logger.info( "The local disk blob storage is located in " + rootDirectory.getAbsolutePath() );
+	}
+	
+	/**
+	 * Allows to check that the key is an MD5 sum string and thus can be used as a file name
+	 * @param key the key to check
+	 * @return true if the key is valid
+	 */
+	private static boolean isValidKey( final String key ) {
+		if( ( key == null ) || ( key.length() != KEY_LENGTH ) ) {
+			return false;
+		}
+		for( int i = 0; i < KEY_LENGTH; i++ ) {
+			final char symbol = key.charAt( i );
+			if( ! ( ( symbol >= '0' && symbol <= '9' ) || ( symbol >= 'A' && symbol <= 'F' ) ) ) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Allows to get the file storing the blob with the given key
+	 * @param key the key of the blob
+	 * @return the blob file, the file might not exist
+	 * @throws IOException if the key is not valid
+	 */
+	private File getBlobFile( final String key ) throws IOException {
+		if( ! isValidKey( key ) ) {
+			throw new IOException( "The blob key '" + key + "' is not valid" );
+		}
+		return new File( new File( new File( rootDirectory, key.substring( 0, 2 ) ), key.substring( 2, 4 ) ), key );
+	}
+	
+	/**
+	 * Moves the written temporary file to the blob file of the given key, if the blob
+	 * file already exists then the temporary file is removed because the data is the same
+	 * @param temporaryFile the written temporary file
+	 * @param key the key of the blob
+	 * @throws IOException if the temporary file could not be moved
+	 */
+	private void commitBlobFile( final File temporaryFile, final String key ) throws IOException {
+		final File blobFile = getBlobFile( key );
+		if( blobFile.exists() ) {
+			logger.debug( "The blob " + key + " is already stored" );
+			touchBlobFile( blobFile );
+			if( ! temporaryFile.delete() ) {
+				logger.warn( "Unable to remove the temporary blob file " + temporaryFile.getAbsolutePath() );
+			}
+		} else {
+			final File blobDirectory = blobFile.getParentFile();
+			if( ! blobDirectory.isDirectory() && ! blobDirectory.mkdirs() && ! blobDirectory.isDirectory() ) {
+				temporaryFile.delete();
+				throw new IOException( "Unable to create the blob directory " + blobDirectory.getAbsolutePath() );
+			}
+			if( ! temporaryFile.renameTo( blobFile ) && ! blobFile.exists() ) {
+				temporaryFile.delete();
+				throw new IOException( "Unable to move the temporary blob file to " + blobFile.getAbsolutePath() );
+			}
+			//If the blob was concurrently stored by someone else then the temporary file remains
+			if( temporaryFile.exists() ) {
+				temporaryFile.delete();
+			}
+			logger.debug( "The blob " + key + " is stored in " + blobFile.getAbsolutePath() );
+		}
+	}
+	
+	/**
+	 * Updates the modification time of the stored blob file, because it is stored again,
+	 * so that the unreferenced blobs clean up does not remove it before it is referenced.
+	 * @param blobFile the blob file
+	 */
+	private static void touchBlobFile( final File blobFile ) {
+		if( ! blobFile.setLastModified( System.currentTimeMillis() ) ) {
+			logger.warn( "Unable to update the modification time of the blob file " + blobFile.getAbsolutePath() );
+		}
+	}
+	
+	/**
+	 * Allows to get the MD5 digest, converts the exception
+	 * @return the new MD5 digest
+	 * @throws IOException if the MD5 algorithm is not available
+	 */
+	private static MessageDigest getDigest() throws IOException {
+		try {
+			return MD5.getMD5Digest();
+		} catch( InternalSiteException e ) {
+			throw new IOException( "The MD5 digest is not available" );
+		}
+	}
+	
+	@Override
+	public String put( final byte[] data ) throws IOException {
+		final MessageDigest digest = getDigest();
+		digest.update( data, 0, data.length );
+		final String key = MD5.toMD5String( digest );
+		//Do not write the data if the blob is already stored
+		final File blobFile = getBlobFile( key );
+		if( blobFile.exists() ) {
+			touchBlobFile( blobFile );
+		} else {
+			final File temporaryFile = File.createTempFile( key, null, temporaryDirectory );
+			final OutputStream outputStream = new FileOutputStream( temporaryFile );
+			try {
+				outputStream.write( data );
+			} catch( IOException e ) {
+				outputStream.close();
+				temporaryFile.delete();
+				throw e;
+			}
+			outputStream.close();
+			commitBlobFile( temporaryFile, key );
+		}
+		return key;
+	}
+	
+	@Override
+	public String put( final InputStream inputStream ) throws IOException {
+		final MessageDigest digest = getDigest();
+		final File temporaryFile = File.createTempFile( "blob", null, temporaryDirectory );
+		final OutputStream outputStream = new FileOutputStream( temporaryFile );
+		try {
+			final byte[] buffer = new byte[ COPY_BUFFER_SIZE ];
+			int readBytes;
+			while( ( readBytes = inputStream.read( buffer ) ) > 0 ) {
+				digest.update( buffer, 0, readBytes );
+				outputStream.write( buffer, 0, readBytes );
+			}
+		} catch( IOException e ) {
+			outputStream.close();
+			temporaryFile.delete();
+			throw e;
+		}
+		outputStream.close();
+		final String key = MD5.toMD5String( digest );
+		commitBlobFile( temporaryFile, key );
+		return key;
+	}
+	
+	@Override
+	public byte[] get( final String key ) throws IOException {
+		final File blobFile = getBlobFile( key );
+		final InputStream inputStream = open( key );
+		byte[] result = null;
+		if( inputStream != null ) {
+			try {
+				result = new byte[ (int) blobFile.length() ];
+				int offset = 0, readBytes = 0;
+				while( ( offset < result.length ) &&
+					   ( readBytes = inputStream.read( result, offset, result.length - offset ) ) >= 0 ) {
+					offset += readBytes;
+				}
+				if( offset < result.length ) {
+					throw new IOException( "Could not completely read the blob " + key );
+				}
+			} finally {
+				inputStream.close();
+			}
+		}
+		return result;
+	}
+	
+	@Override
+	public InputStream open( final String key ) throws IOException {
+		final File blobFile = getBlobFile( key );
+		if( blobFile.isFile() ) {
+			return new FileInputStream( blobFile );
+		} else {
+			logger.warn( "The blob " + key + " is not found in " + blobFile.getAbsolutePath() );
+			return null;
+		}
+	}
+	
+	@Override
+	public boolean transferTo( final String key, final long position, final long count,
+							   final WritableByteChannel target ) throws IOException {
+		final File blobFile = getBlobFile( key );
+		if( blobFile.isFile() ) {
+			final FileInputStream inputStream = new FileInputStream( blobFile );
+			try {
+				final FileChannel channel = inputStream.getChannel();
+				long transferred = 0;
+				while( transferred < count ) {
+					//The transfer can write less bytes than requested, e.g. if the target is non-blocking
+					final long written = channel.transferTo( position + transferred, count - transferred, target );
+					if( written <= 0 ) {
+						throw new IOException( "Could not completely transfer the blob " + key + ", stopped at " + ( position + transferred ) );
+					}
+					transferred += written;
+				}
+			} finally {
+				inputStream.close();
+			}
+			return true;
+		} else {
+			logger.warn( "The blob " + key + " is not found in " + blobFile.getAbsolutePath() );
+			return false;
+		}
+	}
+	
+	@Override
+	public long getSize( final String key ) {
+		long result = -1;
+		if( isValidKey( key ) ) {
+			try {
+				final File blobFile = getBlobFile( key );
+				if( blobFile.isFile() ) {
+					result = blobFile.length();
+				}
+			} catch( IOException e ) {
+				//The key was validated so this should not be happening
+				logger.error( "Unable to get the blob file for key " + key, e );
+			}
+		}
+		return result;
+	}
+	
+	@Override
+	public boolean remove( final String key ) {
+		boolean result = false;
+		if( isValidKey( key ) ) {
+			try {
+				result = getBlobFile( key ).delete();
+			} catch( IOException e ) {
+				//The key was validated so this should not be happening
+				logger.error( "Unable to get the blob file for key " + key, e );
+			}
+		}
+		return result;
+	}
+	
+	@Override
+	public boolean removeIfStoredBefore( final String key, final long storedBeforeMillis ) {
+		boolean result = false;
+		if( isValidKey( key ) ) {
+			try {
+				final File blobFile = getBlobFile( key );
+				if( blobFile.lastModified() < storedBeforeMillis ) {
+					result = blobFile.delete();
+				} else {
+					logger.debug( "The blob " + key + " was stored again recently, it is not removed" );
+				}
+			} catch( IOException e ) {
+				//The key was validated so this should not be happening
+				logger.error( "Unable to get the blob file for key " + key, e );
+			}
+		}
+		return result;
+	}
+	
+	@Override
+	public List<String> getKeys( final long storedBeforeMillis ) throws IOException {
+		final List<String> result = new ArrayList<String>();
+		final File[] firstLevel = rootDirectory.listFiles();
+		if( firstLevel == null ) {
+			throw new IOException( "Unable to list the blob storage directory " + rootDirectory.getAbsolutePath() );
+		}
+		for( File firstLevelDirectory : firstLevel ) {
+			if( firstLevelDirectory.isDirectory() && ! firstLevelDirectory.equals( temporaryDirectory ) ) {
+				final File[] secondLevel = firstLevelDirectory.listFiles();
+				if( secondLevel != null ) {
+					for( File secondLevelDirectory : secondLevel ) {
+						final File[] blobFiles = secondLevelDirectory.listFiles();
+						if( blobFiles != null ) {
+							for( File blobFile : blobFiles ) {
+								if( isValidKey( blobFile.getName() ) && ( blobFile.lastModified() < storedBeforeMillis ) ) {
+									result.add( blobFile.getName() );
+								}
+							}
+						}
+					}
+				}
+			}
+		}
+		return result;
+	}
+}
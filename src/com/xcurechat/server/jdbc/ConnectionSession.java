@@ -0,0 +1,190 @@
+/**
+ * X-Cure-Chat
+ * Copyright (C) 2013  Dr. Ivan S. Zapreev
+ * www: https://nl.linkedin.com/in/zapreevis
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.#
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * The server-side RPC package, managing connections and connection pool.
+ * (C) Ivan S. Zapreev, 2009
+ */
+package com.xcurechat.server.jdbc;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import com.xcurechat.client.rpc.exceptions.SiteException;
+import com.xcurechat.client.rpc.exceptions.InternalSiteException;
+
+/**
+ * @author zapreevis
+ * This class allows to execute several query executors on one connection borrowed
+ * from the connection pool. The prepared statements of the query executors that
+ * declare a statement key are cached within the session and are reused by the
+ * executors with the same key. The session must be closed after use, e.g.:
+ * 
+ * ConnectionSession session = ConnectionSession.open( ConnectionWrapper.XCURE_CHAT_DB );
+ * try {
+ *     session.execute( executorOne, resultOne );
+ *     session.execute( executorTwo );
+ * } finally {
+ *     session.close();
+ * }
+ * 
+ * NOTE: The prepared statements are also cached by the JDBC driver, across the
+ * connection borrowings, see the cachePrepStmts parameter of the DB url in context.xml
+ */
+public class ConnectionSession {
+	
+	//Get the Log4j logger object
+	private static final Logger logger = Logger.getLogger( ConnectionSession.class );
+	
+	//The borrowed connection
+	private Connection connection;
+	//The mapping from the statement keys to the cached prepared statements
+	private final Map<String, PreparedStatement> keyToStatement = new HashMap<String, PreparedStatement>();
+	
+	private ConnectionSession( final Connection connection ) {
+		this.connection = connection;
+	}
+	
+	/**
+	 * Borrows a connection from the connection pool and opens a new session with it
+	 * @param db the database index, for which the queries are targeted
+	 * @return the new session
+	 * @throws SiteException if the connection can not be obtained
+	 */
+	public static ConnectionSession open( final byte db ) throws SiteException {
+		try {
+			return new ConnectionSession( ConnectionWrapper.getConnection( db ) );
+		} catch ( SQLException e ) {
+			logger.error( "An SQL exception while getting a connection from the pool", e);
+			throw new InternalSiteException( InternalSiteException.DATABASE_EXCEPTION_ERR );
+		}
+	}
+	
+	/**
+	 * Executes the executor within the session's connection
+	 * @param executor the executor to execute
+	 * @throws SiteException if the retrieved data showed some logical problem.
+	 */
+	public <ParamReturnObjectType> void execute( final ExecutorBase<ParamReturnObjectType> executor ) throws SiteException {
+		execute( executor, null );
+	}
+	
+	/**
+	 * Executes the executor within the session's connection
+	 * @param executor the executor to execute
+	 * @param result is an object that can be used to return results with
+	 * @throws SiteException if the retrieved data showed some logical problem.
+	 */
+	public <ParamReturnObjectType> void execute( final ExecutorBase<ParamReturnObjectType> executor,
+												 final ParamReturnObjectType result ) throws SiteException {
+		if( connection == null ) {
+			logger.error( "Trying to execute " + executor.getClass().getSimpleName() + " in a closed connection session" );
+			throw new InternalSiteException( InternalSiteException.DATABASE_EXCEPTION_ERR );
+		}
+		PreparedStatement pstmt = null;
+		ResultSet resultSet = null;
+		try{
+			if( executor instanceof QueryExecutor<?> ) {
+				QueryExecutor<ParamReturnObjectType> queryExecutor = (QueryExecutor<ParamReturnObjectType>) executor;
+				//Get the cached prepared statement or prepare a new one
+				final String statementKey = queryExecutor.getStatementKey();
+				if( statementKey != null ) {
+					pstmt = keyToStatement.get( statementKey );
+				}
+				if( pstmt == null ) {
+					pstmt = queryExecutor.prepareStatement( connection );
+					if( statementKey != null ) {
+						keyToStatement.put( statementKey, pstmt );
+					}
+				} else {
+					pstmt.clearParameters();
+				}
+				//Do the query and etc
+				queryExecutor.bindParameters( pstmt );
+				resultSet = queryExecutor.executeQuery( pstmt, result );
+				if( resultSet != null )	{
+					//If it was a select statement or another one which
+					//results in a ResultSet then process it
+					queryExecutor.processResultSet( resultSet, result );
+				}
+				//The cached statements are closed when the session is closed
+				if( statementKey == null ) {
+					closeStatement( pstmt );
+				}
+				pstmt = null;
+			} else {
+				if( executor instanceof QuerySetExecutor<?> ) {
+					QuerySetExecutor<ParamReturnObjectType> querySetExecutor = (QuerySetExecutor<ParamReturnObjectType>) executor;
+					querySetExecutor.executeQuerySet(connection, result);
+				} else {
+					logger.error("Unsupported executor class type "+ executor.getClass().getSimpleName());
+				}
+			}
+		} catch ( SQLException e ) {
+			logger.error( "An SQL exception while working with the database", e);
+			throw new InternalSiteException( InternalSiteException.DATABASE_EXCEPTION_ERR );
+		} finally {
+			if( resultSet != null ){
+				try{
+					resultSet.close();
+				}catch(SQLException e){
+					logger.error( "An SQL exception while closing the result set", e);
+				}
+				resultSet = null;
+			}
+			//If smth went wrong then the statement is not reused
+			if( pstmt != null ){
+				keyToStatement.values().remove( pstmt );
+				closeStatement( pstmt );
+				pstmt = null;
+			}
+		}
+	}
+	
+	/**
+	 * Closes the cached prepared statements and returns the connection to the pool
+	 */
+	public void close() {
+		for( PreparedStatement pstmt : keyToStatement.values() ) {
+			closeStatement( pstmt );
+		}
+		keyToStatement.clear();
+		if( connection != null ) {
+			try{
+				connection.close();
+			}catch(SQLException e){
+				logger.error( "An SQL exception while closing the connection", e);
+			}
+			connection = null;
+		}
+	}
+	
+	private static void closeStatement( final PreparedStatement pstmt ) {
+		try{
+			pstmt.close();
+		}catch(SQLException e){
+			logger.error( "An SQL exception while closing the prepared statement", e);
+		}
+	}
+}
@@ -22,8 +22,6 @@
 package com.xcurechat.server.jdbc;
 
 import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
 import java.sql.SQLException;
 
 import javax.naming.Context;
@@ -35,7 +33,6 @@ import org.apache.log4j.Logger;
 
 import com.mysql.jdbc.jdbc2.optional.MysqlDataSource;
 import com.xcurechat.client.rpc.exceptions.SiteException;
-import com.xcurechat.client.rpc.exceptions.InternalSiteException;
 
 /**
  * @author zapreevis
@@ -136,69 +133,29 @@ public class ConnectionWrapper<ParamReturnObjectType> {
 	 * @throws SiteException if the retrieved data showed some logical problem.
 	 */
 	public void executeQuery( ParamReturnObjectType result, final byte db ) throws SiteException {
-		Connection connection = null;
-		PreparedStatement pstmt = null;
-		ResultSet resultSet = null;
+		ConnectionSession session = ConnectionSession.open( db );
 		try{
-			//Get the query
-			switch(db){
-				case XCURE_CHAT_DB:
-					connection = xcureChatDataSource.getConnection();
-					break;
-				case XCURE_HOSTIP_DB:
-					connection = xcureHostipDataSource.getConnection();
-					break;
-				default:
-					logger.error("Trying to execute query targeted to an unknown database with index: "+db);
-			}
-			
-			if( executor instanceof QueryExecutor<?> ) {
-				QueryExecutor<ParamReturnObjectType> queryExecutor = (QueryExecutor<ParamReturnObjectType>) executor;
-				//Do the query and etc
-				pstmt = queryExecutor.prepareStatement( connection );
-				queryExecutor.bindParameters( pstmt );
-				resultSet = queryExecutor.executeQuery( pstmt, result );
-				if( resultSet != null )	{
-					//If it was a select statement or another one which
-					//results in a ResultSet then process it
-					queryExecutor.processResultSet( resultSet, result );
-				}
-			} else {
-				if( executor instanceof QuerySetExecutor<?> ) {
-					QuerySetExecutor<ParamReturnObjectType> querySetExecutor = (QuerySetExecutor<ParamReturnObjectType>) executor;
-					querySetExecutor.executeQuerySet(connection, result);
-				} else {
-					logger.error("Unsupported executor class type "+ executor.getClass().getSimpleName());
-				}
-			}
-		} catch ( SQLException e ) {
-			logger.error( "An SQL exception while working with the database", e);
-			throw new InternalSiteException( InternalSiteException.DATABASE_EXCEPTION_ERR );
+			session.execute( executor, result );
 		} finally {
-			if( resultSet != null ){
-				try{
-					resultSet.close();
-				}catch(SQLException e){
-					logger.error( "An SQL exception while closing the result set", e);
-				}
-				resultSet = null;
-			}
-			if( pstmt != null ){
-				try{
-					pstmt.close();
-				}catch(SQLException e){
-					logger.error( "An SQL exception while closing the prepared statement", e);
-				}
-				pstmt = null;
-			}
-			if( connection != null ) {
-				try{
-					connection.close();
-				}catch(SQLException e){
-					logger.error( "An SQL exception while closing the connection", e);
-				}
-				connection = null;
-			}
+			session.close();
+		}
+	}
+	
+	/**
+	 * Get the DB connection from the JDBC connection pool
+	 * @param db the database index
+	 * @return the borrowed connection, must be closed after use
+	 * @throws SQLException if the connection can not be obtained or the database is unknown
+	 */
+	static Connection getConnection( final byte db ) throws SQLException {
+		switch(db){
+			case XCURE_CHAT_DB:
+				return xcureChatDataSource.getConnection();
+			case XCURE_HOSTIP_DB:
+				return xcureHostipDataSource.getConnection();
+			default:
+				logger.error("Trying to execute query targeted to an unknown database with index: "+db);
+				throw new SQLException( "Unknown database with index: " + db );
 		}
 	}
 }
@@ -84,12 +84,15 @@ public abstract class ExecutorBase<ParamReturnObjectType> {
 	public static final String IMG_WIDTH_PROFILE_FILES_TABLE  = "widthPixels";
 	public static final String IMG_HEIGHT_PROFILE_FILES_TABLE  = "heightPixels";
 	public static final String UPLOAD_DATE_PROFILE_FILES_TABLE = "uploadDate";
+	public static final String DATA_MD5_PROFILE_FILES_TABLE = "data_md5";
+	public static final String THUMBNAIL_MD5_PROFILE_FILES_TABLE = "thumbnail_md5";
 	
 	//For the table where profile avatar images are stored 
 	public static final String AVATAR_IMAGES_TABLE = "avatar_images"; 
 	public static final String USER_ID_AVATAR_IMAGES_TABLE = "uid";
 	public static final String IMAGE_FIELD_AVATAR_IMAGES_TABLE = "image";
 	public static final String MIME_TYPE_AVATAR_IMAGES_TABLE = "mimeType";
+	public static final String IMAGE_MD5_AVATAR_IMAGES_TABLE = "image_md5";
 
 	//For the table where the user login/logout statistics is stored
 	public static final String LOGIN_STATS_TABLE = "login_out_statistics";
@@ -172,6 +175,8 @@ public abstract class ExecutorBase<ParamReturnObjectType> {
 	public static final String IMG_HEIGHT_CHAT_FILES_TABLE  = "heightPixels";
 	public static final String IS_PUBLIC_MESSAGE_FILE_CHAT_FILES_TABLE  = "is_public";
 	public static final String MD5_SUM_CHAT_FILES_TABLE  = "md5";
+	public static final String DATA_MD5_CHAT_FILES_TABLE  = "data_md5";
+	public static final String THUMBNAIL_MD5_CHAT_FILES_TABLE  = "thumbnail_md5";
 	
 	//For the table that stores private chat message recipients
 	public static final String CHAT_MSG_RECEPIENT_TABLE = "chat_msg_recepient";
@@ -217,6 +222,8 @@ public abstract class ExecutorBase<ParamReturnObjectType> {
 	public static final String IMG_WIDTH_PIXELS_NAME_FORUM_FILES_TABLE = "widthPixels";
 	public static final String IMG_HEIGHT_PIXELS_NAME_FORUM_FILES_TABLE = "heightPixels";
 	public static final String UPLOAD_DATE_FIELD_NAME_FORUM_FILES_TABLE = "uploadDate";
+	public static final String DATA_MD5_FIELD_NAME_FORUM_FILES_TABLE = "data_md5";
+	public static final String THUMBNAIL_MD5_FIELD_NAME_FORUM_FILES_TABLE = "thumbnail_md5";
 	
 	/**
 	 * Hashes the user password using BCrypt
@@ -34,6 +34,16 @@ import com.xcurechat.client.rpc.exceptions.SiteException;
  */
 public abstract class QueryExecutor<ParamReturnObjectType> extends ExecutorBase<ParamReturnObjectType> {
 	
+	/**
+	 * Allows the executor to declare the key of its prepared statement, then the statement
+	 * can be reused by the executors with the same key, see ConnectionSession. The executors
+	 * with the same key must produce the same SQL in their prepareStatement methods.
+	 * @return the statement key or null if the statement is not to be reused, the default
+	 */
+	public String getStatementKey() {
+		return null;
+	}
+	
 	/**
 	 * Based on the connection we make a prepared statement
 	 * @param connection the database connection
@@ -92,6 +92,12 @@ public class GetRoomMessagesUpdateExecutor extends QueryExecutor<List<ChatMessag
 		this( roomID, MainUserData.UNKNOWN_UID, lastMessageID, false);
 	}
 	
+	@Override
+	public String getStatementKey() {
+		//The query only depends on these two flags
+		return GetRoomMessagesUpdateExecutor.class.getName() + ":" + isNotAll + ":" + undefinedLastMsgID;
+	}
+	
 	@Override
 	public PreparedStatement prepareStatement(Connection connection) throws SQLException {
 		//If the value of lastMessageID is not set, i.e. it is 0 then we retrieve
@@ -0,0 +1,130 @@
+/**
+ * X-Cure-Chat
+ * Copyright (C) 2013  Dr. Ivan S. Zapreev
+ * www: https://nl.linkedin.com/in/zapreevis
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.#
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * The server-side RPC package, managing DB queries.
+ * (C) Ivan S. Zapreev, 2009
+ */
+package com.xcurechat.server.jdbc.chat;
+
+import java.util.List;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.sql.SQLException;
+
+import org.apache.log4j.Logger;
+
+import com.xcurechat.client.rpc.exceptions.InternalSiteException;
+import com.xcurechat.client.rpc.exceptions.SiteException;
+
+import com.xcurechat.client.data.ChatMessage;
+import com.xcurechat.client.data.ShortFileDescriptor;
+import com.xcurechat.server.jdbc.QuerySetExecutor;
+
+/**
+ * @author zapreevis
+ * This executor class is responsible for inserting a batch of chat-room info messages
+ * (user enters, leaves the room, changes the status) with one multi-row INSERT.
+ * The messages can not have recipients or files and their sent dates must be set.
+ * After the execution the provided message objects have their message IDs set,
+ * the IDs are assigned in the order in which the messages are stored in the list.
+ */
+public class InsertChatInfoMessagesExecutor extends QuerySetExecutor<Void> {
+	//Get the Log4j logger object
+	private static final Logger logger = Logger.getLogger( InsertChatInfoMessagesExecutor.class );
+	
+	//The number of columns inserted for one message
+	private static final String ONE_MESSAGE_VALUES = "(?,?,?,?,?,?,?,?,?,?,?)";
+	
+	private final List<ChatMessage> messages;
+	
+	public InsertChatInfoMessagesExecutor( final List<ChatMessage> messages ){
+		this.messages = messages;
+	}
+	
+	public void executeQuerySet( Connection connection, Void result ) throws SQLException, SiteException {
+		if( messages.isEmpty() ) {
+			return;
+		}
+		
+		//Build the multi-row insert query
+		StringBuffer insertMsgsQuery = new StringBuffer();
+		insertMsgsQuery.append( "INSERT INTO " + CHAT_MESSAGES_TABLE + " (" +
+								SENT_DATE_FIELD_NAME_CHAT_MESSAGES_TABLE + ", " + 
+								SENDER_ID_FIELD_NAME_CHAT_MESSAGES_TABLE + ", " + 
+								ROOM_ID_FIELD_NAME_CHAT_MESSAGES_TABLE + ", " +
+								FILE_ID_FIELD_NAME_CHAT_MESSAGES_TABLE + ", " +
+								MESSAGE_BODY_FIELD_NAME_CHAT_MESSAGES_TABLE + ", " +
+								MESSAGE_TYPE_FIELD_NAME_CHAT_MESSAGES_TABLE + ", " +
+								INFO_USER_ID_FIELD_NAME_CHAT_MESSAGES_TABLE + ", " +
+								INFO_USER_LOGIN_FIELD_NAME_CHAT_MESSAGES_TABLE + ", " + 
+								FONT_TYPE_FIELD_NAME_CHAT_MESSAGES_TABLE + ", " +
+								FONT_SIZE_FIELD_NAME_CHAT_MESSAGES_TABLE + ", " +
+								FONT_COLOR_FIELD_NAME_CHAT_MESSAGES_TABLE + ") VALUES " );
+		for( int i = 0; i < messages.size(); i++ ) {
+			insertMsgsQuery.append( ( i == 0 ? "" : ", " ) + ONE_MESSAGE_VALUES );
+		}
+		
+		PreparedStatement insertChatMsgsPstmt = null;
+		try {
+			//Create statement
+			insertChatMsgsPstmt = connection.prepareStatement( insertMsgsQuery.toString(), PreparedStatement.RETURN_GENERATED_KEYS );
+			//Bind parameters
+			int counter = 1;
+			for( ChatMessage message : messages ) {
+				insertChatMsgsPstmt.setTimestamp( counter++, new Timestamp( message.sentDate.getTime() ) );
+				insertChatMsgsPstmt.setInt( counter++, message.senderID );
+				insertChatMsgsPstmt.setInt( counter++, message.roomID );
+				insertChatMsgsPstmt.setInt( counter++, ShortFileDescriptor.UNKNOWN_FILE_ID );
+				insertChatMsgsPstmt.setString( counter++, message.messageBody );
+				insertChatMsgsPstmt.setInt( counter++, message.messageType.ordinal() );
+				insertChatMsgsPstmt.setInt( counter++, message.infoUserID );
+				insertChatMsgsPstmt.setString( counter++, message.infoUserLogin );
+				insertChatMsgsPstmt.setInt( counter++, message.fontType );
+				insertChatMsgsPstmt.setInt( counter++, message.fontSize );
+				insertChatMsgsPstmt.setInt( counter++, message.fontColor );
+			}
+			//Execute query
+			insertChatMsgsPstmt.executeUpdate();
+			//Get the message IDs, they come in the order of the inserted rows
+			ResultSet resultSet = insertChatMsgsPstmt.getGeneratedKeys();
+			for( ChatMessage message : messages ) {
+				if( resultSet != null && resultSet.next() ) {
+					message.messageID = resultSet.getInt(1);
+				} else {
+					logger.error( "Unable to get the message ID of the inserted info message for room " + message.roomID );
+				}
+			}
+		} catch ( SQLException e ) {
+			logger.error( "An exception while inserting " + messages.size() + " chat info messages", e);
+			throw new InternalSiteException( InternalSiteException.DATABASE_EXCEPTION_ERR );
+		} finally {
+			if( insertChatMsgsPstmt != null ) {
+				try{
+					insertChatMsgsPstmt.close();
+				} catch ( SQLException e ) {
+					logger.error( "An exception while closing the SQL prepared statement", e);
+				} finally {
+					insertChatMsgsPstmt = null;
+				}
+			}
+		}
+	}
+}
@@ -21,7 +21,9 @@
  */
 package com.xcurechat.server.jdbc.chat;
 
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 
 import java.sql.Connection;
 import java.sql.Statement;
@@ -29,7 +31,6 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.Timestamp;
 import java.sql.SQLException;
-import java.util.Iterator;
 
 import org.apache.log4j.Logger;
 
@@ -42,111 +43,145 @@ import com.xcurechat.server.jdbc.QuerySetExecutor;
 
 /**
  * @author zapreevis
- * This executor class is responsible for inserting a new chat message into the database.
- * Note that the chat message and its recepiens are inserted with the same send time
+ * This executor class is responsible for inserting new chat messages into the database.
+ * Note that the chat messages and their recepiens are inserted with the same send time
  * to make sure that they are all deleted from the DB synchronously.
+ * After the execution the provided message objects have their message IDs and sent dates set.
+ * If the insertion fails then the message IDs are reset to ChatMessage.UNKNOWN_MESSAGE_ID.
  */
 public class InsertNewChatMessageExecutor extends QuerySetExecutor<Void> {
 	//Get the Log4j logger object
 	private static final Logger logger = Logger.getLogger( InsertNewChatMessageExecutor.class );
 	
-	private final ChatMessage message;
-	//Stores true if we need to enter message recipients
-	//This should only be needed for private messages
-	private final boolean needRecepients;
-	//The date when the message was sent
+	//The messages to be inserted
+	private final List<ChatMessage> messages;
+	//Stores true if we need to do the insertion in a transaction, i.e.
+	//if there are several messages or there are recipients to be inserted
+	private final boolean needTransaction;
+	//The date when the messages were sent
 	private final Timestamp msgSendTimestamp = new Timestamp( (new Date()).getTime() );
 	
+	/**
+	 * Allows to insert one chat message with its recipients
+	 * @param message the message to insert
+	 */
 	public InsertNewChatMessageExecutor( final ChatMessage message ){
-		this.message = message;
+		this( createList( message ) );
+	}
+	
+	/**
+	 * Allows to insert several chat messages with their recipients in one transaction,
+	 * the IDs are assigned to the messages in the order in which they are in the list
+	 * @param messages the messages to insert
+	 */
+	public InsertNewChatMessageExecutor( final List<ChatMessage> messages ){
+		this.messages = messages;
 		
-		needRecepients = ( message.recipientIDs != null ) && ( message.recipientIDs.size() > 0 );
+		boolean hasRecepients = false;
+		for( ChatMessage message : messages ) {
+			hasRecepients = hasRecepients || hasRecepients( message );
+		}
+		this.needTransaction = hasRecepients || ( messages.size() > 1 );
+	}
+	
+	private static List<ChatMessage> createList( final ChatMessage message ) {
+		List<ChatMessage> messages = new ArrayList<ChatMessage>();
+		messages.add( message );
+		return messages;
+	}
+	
+	//This should only be needed for private messages
+	private static boolean hasRecepients( final ChatMessage message ) {
+		return ( message.recipientIDs != null ) && ( message.recipientIDs.size() > 0 );
 	}
 	
 	/**
-	 * If the message is private and there are recipients set, then
-	 * make a locked table insert of the message and the recipients
-	 * we can not use transactions here because we use memory tables:
-	 * LOCK TABLES private_chat_msg_recepient LOW_PRIORITY WRITE, chat_messages LOW_PRIORITY WRITE;
+	 * If there are several messages or there are recipients set, then
+	 * make a transactional insert of the messages and the recipients:
+	 * START TRANSACTION;
 	 * INSERT INTO chat_messages SET ...;
-	 * INSERT INTO private_chat_msg_recepient SET ...;
-	 * UNLOCK TABLES;
+	 * INSERT INTO chat_msg_recepient SET ...; (one batch for all the recipients)
+	 * COMMIT;
+	 * The chat_messages and chat_msg_recepient tables are InnoDB tables, so we do
+	 * not lock them and the readers do not see the message before its recipients.
 	 */
 	public void executeQuerySet( Connection connection, Void result ) throws SQLException, SiteException {
-		//Create the statement for executing the DB queries
+		//Create the statement for executing the transaction
 		Statement sqlStatement = null;
+		boolean isCommitted = false;
 		
 		//Execute queries
 		try {
-			if( needRecepients ) {
+			if( needTransaction ) {
 				sqlStatement = connection.createStatement();
-				//Lock the tables to make the insertion of the message and recipients atomic
-				sqlStatement.execute( "LOCK TABLES " + CHAT_MSG_RECEPIENT_TABLE + " LOW_PRIORITY WRITE, " +
-										CHAT_MESSAGES_TABLE + " LOW_PRIORITY WRITE");
+				sqlStatement.execute( "START TRANSACTION" );
 			}
 			
-			int messageID = insertChatMessage( connection );
+			insertChatMessages( connection );
+			insertChatMessageRecipients( connection );
 			
-			//Process (insert) the message recipients
-			if( needRecepients ) {
-				insertChatMessageRecipients( connection, messageID );
+			if( needTransaction ) {
+				sqlStatement.execute( "COMMIT" );
 			}
+			isCommitted = true;
 		} catch ( SQLException e ){
-			logger.error( "An SQL exception while inserting a chat message", e );
+			logger.error( "An SQL exception while inserting " + messages.size() + " chat messages", e );
 			throw new InternalSiteException( InternalSiteException.DATABASE_EXCEPTION_ERR );
 		} finally {
-			//If the table was locked because of the present
-			//message recipients, then unlock it here.
-			if( needRecepients && ( sqlStatement != null ) ) {
-				try {
-					sqlStatement.execute( "UNLOCK TABLES" );
-				} catch ( SQLException e ) {
-					logger.error( "An SQL exception while unlocking tables after inserting new a chat message", e );
-				} finally {
-					//Close the statement
+			if( ! isCommitted ) {
+				//The messages are not in the DB, so they do not have IDs
+				for( ChatMessage message : messages ) {
+					message.messageID = ChatMessage.UNKNOWN_MESSAGE_ID;
+				}
+			}
+			if( sqlStatement != null ) {
+				if( ! isCommitted ) {
 					try {
-						sqlStatement.close();
+						sqlStatement.execute( "ROLLBACK" );
 					} catch ( SQLException e ) {
-						logger.error( "An exception while closing the SQL statement", e);
-					} finally {
-						sqlStatement = null;
+						logger.error( "An SQL exception while rolling back the insertion of new chat messages", e );
 					}
 				}
+				//Close the statement
+				try {
+					sqlStatement.close();
+				} catch ( SQLException e ) {
+					logger.error( "An exception while closing the SQL statement", e);
+				} finally {
+					sqlStatement = null;
+				}
 			}
 		}
 	}
 	
-	//This method allows to insert message recipients
-	private void insertChatMessageRecipients( Connection connection, final int messageID ) throws InternalSiteException {
+	//This method allows to insert the recipients of all the messages with one batch
+	private void insertChatMessageRecipients( Connection connection ) throws SQLException {
 		String insertRecepientQuery = "INSERT INTO " + CHAT_MSG_RECEPIENT_TABLE + " SET " + 
 										SENT_DATE_FIELD_NAME_CHAT_MSG_RECEPIENT_TABLE + "=?, " +
 										MESSAGE_ID_FIELD_NAME_CHAT_MSG_RECEPIENT_TABLE + "=?, " +
 										USR_ID_FIELD_NAME_CHAT_MSG_RECEPIENT_TABLE + "=?";
-		int counter = 1;
 		PreparedStatement insertChatMsgRecepPstmt = null;
 		//Insert the recipients
 		try {
-			//Prepare the insert statement
-			insertChatMsgRecepPstmt = connection.prepareStatement( insertRecepientQuery );
-			//Set the message creation date
-			insertChatMsgRecepPstmt.setTimestamp( counter++, msgSendTimestamp );
-			//Set the message ID
-			insertChatMsgRecepPstmt.setInt( counter++, messageID );
-			//Add the recipients one by one
-			Iterator<Integer> recepients = message.recipientIDs.iterator();
-			while( recepients.hasNext() ) {
-				int recipientID = recepients.next();
-				try {
-					insertChatMsgRecepPstmt.setInt( counter, recipientID );
-					insertChatMsgRecepPstmt.executeUpdate();
-				} catch ( SQLException e ) {
-					logger.error("Unable to insert the recipient user ID " + recipientID +
-								 " for the chat message with ID " + messageID, e );
+			for( ChatMessage message : messages ) {
+				if( hasRecepients( message ) ) {
+					//Prepare the insert statement
+					if( insertChatMsgRecepPstmt == null ) {
+						insertChatMsgRecepPstmt = connection.prepareStatement( insertRecepientQuery );
+					}
+					//Add the recipients to the batch
+					for( Integer recipientID : message.recipientIDs ) {
+						int counter = 1;
+						insertChatMsgRecepPstmt.setTimestamp( counter++, msgSendTimestamp );
+						insertChatMsgRecepPstmt.setInt( counter++, message.messageID );
+						insertChatMsgRecepPstmt.setInt( counter++, recipientID );
+						insertChatMsgRecepPstmt.addBatch();
+					}
 				}
 			}
-		} catch (SQLException e) {
-			logger.error( "An exception while inserting chat message recepients" , e);
-			throw new InternalSiteException( InternalSiteException.DATABASE_EXCEPTION_ERR );			
+			if( insertChatMsgRecepPstmt != null ) {
+				insertChatMsgRecepPstmt.executeBatch();
+			}
 		} finally {
 			//Close the insert message recipient prepared statement
 			if( insertChatMsgRecepPstmt != null ) {
@@ -161,9 +196,9 @@ public class InsertNewChatMessageExecutor extends QuerySetExecutor<Void> {
 		}
 	}
 	
-	//Allows to insert a new chat message into the database,
-	//no recipients. This method returns the inserted message ID.
-	private int insertChatMessage( Connection connection ) throws InternalSiteException {
+	//Allows to insert the new chat messages into the database, no recipients.
+	//This method sets the inserted message IDs and sent dates.
+	private void insertChatMessages( Connection connection ) throws SQLException {
 		//Insert the chat message
 		final String insertMsgQuery =   "INSERT INTO " + CHAT_MESSAGES_TABLE +
 										" SET " + SENT_DATE_FIELD_NAME_CHAT_MESSAGES_TABLE + " = ?, " + 
@@ -178,33 +213,36 @@ public class InsertNewChatMessageExecutor extends QuerySetExecutor<Void> {
 										FONT_SIZE_FIELD_NAME_CHAT_MESSAGES_TABLE + "=?, " +
 										FONT_COLOR_FIELD_NAME_CHAT_MESSAGES_TABLE + "=?";
 		PreparedStatement insertChatMsgPstmt = null;
-		int messageID = ChatMessage.UNKNOWN_MESSAGE_ID;
 		try {
 			//Create statement
 			insertChatMsgPstmt = connection.prepareStatement( insertMsgQuery, PreparedStatement.RETURN_GENERATED_KEYS );
-			//Bind parameters
-			int counter = 1;
-			insertChatMsgPstmt.setTimestamp( counter++, msgSendTimestamp );
-			insertChatMsgPstmt.setInt( counter++, message.senderID );
-			insertChatMsgPstmt.setInt( counter++, message.roomID );
-			insertChatMsgPstmt.setInt( counter++, (message.fileDesc != null) ? message.fileDesc.fileID : ShortFileDescriptor.UNKNOWN_FILE_ID );
-			insertChatMsgPstmt.setString( counter++, message.messageBody );
-			insertChatMsgPstmt.setInt( counter++, message.messageType.ordinal() );
-			insertChatMsgPstmt.setInt( counter++, message.infoUserID );
-			insertChatMsgPstmt.setString( counter++, message.infoUserLogin );
-			insertChatMsgPstmt.setInt( counter++, message.fontType );
-			insertChatMsgPstmt.setInt( counter++, message.fontSize );
-			insertChatMsgPstmt.setInt( counter++, message.fontColor );
-			//Execute query
-			insertChatMsgPstmt.executeUpdate();
-			//Get the message ID
-			ResultSet resultSet = insertChatMsgPstmt.getGeneratedKeys();
-			if ( resultSet != null && resultSet.next() ) { 
-				messageID = resultSet.getInt(1); 
+			for( ChatMessage message : messages ) {
+				//Bind parameters
+				int counter = 1;
+				insertChatMsgPstmt.setTimestamp( counter++, msgSendTimestamp );
+				insertChatMsgPstmt.setInt( counter++, message.senderID );
+				insertChatMsgPstmt.setInt( counter++, message.roomID );
+				insertChatMsgPstmt.setInt( counter++, (message.fileDesc != null) ? message.fileDesc.fileID : ShortFileDescriptor.UNKNOWN_FILE_ID );
+				insertChatMsgPstmt.setString( counter++, message.messageBody );
+				insertChatMsgPstmt.setInt( counter++, message.messageType.ordinal() );
+				insertChatMsgPstmt.setInt( counter++, message.infoUserID );
+				insertChatMsgPstmt.setString( counter++, message.infoUserLogin );
+				insertChatMsgPstmt.setInt( counter++, message.fontType );
+				insertChatMsgPstmt.setInt( counter++, message.fontSize );
+				insertChatMsgPstmt.setInt( counter++, message.fontColor );
+				//Execute query
+				insertChatMsgPstmt.executeUpdate();
+				//Get the message ID
+				ResultSet resultSet = insertChatMsgPstmt.getGeneratedKeys();
+				if ( resultSet != null && resultSet.next() ) { 
+					message.messageID = resultSet.getInt(1); 
+				} else {
+					message.messageID = ChatMessage.UNKNOWN_MESSAGE_ID;
+				}
+				//Store the send date in the message object so that
+				//the caller can use the message without reading it from the DB
+				message.sentDate = new Date( msgSendTimestamp.getTime() );
 			}
-		} catch ( SQLException e ) {
-			logger.error( "An exception while inserting a new chat message", e);
-			throw new InternalSiteException( InternalSiteException.DATABASE_EXCEPTION_ERR );
 		} finally {
 			if( insertChatMsgPstmt != null ) {
 				try{
@@ -216,6 +254,5 @@ public class InsertNewChatMessageExecutor extends QuerySetExecutor<Void> {
 				}
 			}
 		}
-		return messageID;
 	}
 }
@@ -0,0 +1,77 @@
+/**
+ * X-Cure-Chat
+ * Copyright (C) 2013  Dr. Ivan S. Zapreev
+ * www: https://nl.linkedin.com/in/zapreevis
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.#
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * The server-side RPC package, managing DB queries.
+ * (C) Ivan S. Zapreev, 2009
+ */
+package com.xcurechat.server.jdbc.chat;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.apache.log4j.Logger;
+
+import com.xcurechat.client.data.ChatMessage;
+
+import com.xcurechat.client.rpc.exceptions.SiteException;
+
+import com.xcurechat.server.jdbc.QueryExecutor;
+
+/**
+ * @author zapreevis
+ * This executor allows to retrieve the largest chat message ID present in the DB.
+ * Since the message IDs are auto incremented, any chat message inserted after this
+ * query is executed is guaranteed to have a larger ID than the retrieved one.
+ * The retrieved ID is stored as the message ID of the provided chat message object.
+ */
+public class SelectLastChatMessageIDExecutor extends QueryExecutor<ChatMessage> {
+	//Get the Log4j logger object
+	private static final Logger logger = Logger.getLogger( SelectLastChatMessageIDExecutor.class );
+	
+	public SelectLastChatMessageIDExecutor() {
+	}
+	
+	@Override
+	public PreparedStatement prepareStatement(Connection connection) throws SQLException {
+		final String selectQuery = "SELECT MAX(" + MESSAGE_ID_FIELD_NAME_CHAT_MESSAGES_TABLE + ") FROM " + CHAT_MESSAGES_TABLE;
+		return connection.prepareStatement( selectQuery );
+	}
+
+	@Override
+	public void bindParameters(PreparedStatement pstmt) throws SQLException {
+		//There are no parameters that need binding
+	}
+
+	@Override
+	public ResultSet executeQuery(PreparedStatement pstmt, ChatMessage result) throws SQLException, SiteException {
+		return pstmt.executeQuery();
+	}
+
+	@Override
+	public void processResultSet(ResultSet resultSet, ChatMessage message) throws SQLException, SiteException {
+		if( resultSet.first() ) {
+			//If there are no messages then MAX returns NULL and getInt gives zero
+			message.messageID = resultSet.getInt( 1 );
+		} else {
+			message.messageID = ChatMessage.UNKNOWN_MESSAGE_ID;
+		}
+		logger.debug("The last chat message ID in the DB is " + message.messageID );
+	}
+}
@@ -29,13 +29,17 @@ import java.sql.SQLException;
 
 import com.xcurechat.client.data.ShortFileDescriptor;
 import com.xcurechat.client.data.UserFileData;
+import com.xcurechat.client.rpc.exceptions.InternalSiteException;
 import com.xcurechat.client.rpc.exceptions.SiteException;
+import com.xcurechat.server.files.BlobStoreManager;
 import com.xcurechat.server.jdbc.QueryExecutor;
 
 /**
  * @author zapreevis
  * This executor class is responsible for executing an insertion
- * of a new chat message image into the database.
+ * of a new chat message image into the database. If there is the
+ * files storage then the file data and thumbnail are put there and
+ * only their keys are stored in the database.
  */
 public class InsertChatFileExecutor extends QueryExecutor<Void> {
 	
@@ -47,11 +51,27 @@ public class InsertChatFileExecutor extends QueryExecutor<Void> {
 	private final UserFileData fileDesc;
 	//The MD5 sum of the file data
 	private final String md5sum;
+	//The keys of the stored file data and thumbnail, null if they are to be stored in the DB
+	private final String dataKey;
+	private final String thumbnailKey;
 	
-	public InsertChatFileExecutor( final int roomID, final UserFileData fileDesc, final String md5sum ) {
+	/**
+	 * The basic constructor, puts the file data into the files storage, if there is one
+	 * @throws InternalSiteException if the file data could not be stored
+	 */
+	public InsertChatFileExecutor( final int roomID, final UserFileData fileDesc, final String md5sum ) throws InternalSiteException {
 		this.roomID = roomID;
 		this.fileDesc = fileDesc;
 		this.md5sum = md5sum;
+		this.dataKey = BlobStoreManager.storeBlob( fileDesc.fileData );
+		this.thumbnailKey = BlobStoreManager.storeBlob( fileDesc.thumbnailData );
+		//The keys are the MD5 sums of the data
+		if( dataKey != null ) {
+			fileDesc.fileDataMD5 = dataKey;
+		}
+		if( thumbnailKey != null ) {
+			fileDesc.thumbnailDataMD5 = thumbnailKey;
+		}
 	}
 
 	public PreparedStatement prepareStatement( Connection connection ) throws SQLException{
@@ -62,8 +82,9 @@ public class InsertChatFileExecutor extends QueryExecutor<Void> {
 									FILE_NAME_CHAT_FILES_TABLE + "=?, " +
 									IMG_WIDTH_CHAT_FILES_TABLE + "=?, " +
 									IMG_HEIGHT_CHAT_FILES_TABLE + "=?, " +
-									( fileDesc.thumbnailData != null ? THUMBNAIL_FIELD_NAME_CHAT_FILES_TABLE + "=?, " : "" ) + 
-									DATA_FIELD_NAME_CHAT_FILES_TABLE + "=?, " + 
+									( thumbnailKey != null ? THUMBNAIL_MD5_CHAT_FILES_TABLE + "=?, " :
+										( fileDesc.thumbnailData != null ? THUMBNAIL_FIELD_NAME_CHAT_FILES_TABLE + "=?, " : "" ) ) + 
+									( dataKey != null ? DATA_MD5_CHAT_FILES_TABLE : DATA_FIELD_NAME_CHAT_FILES_TABLE ) + "=?, " + 
 									UPLOAD_DATE_FIELD_NAME_CHAT_FILES_TABLE + "=NOW()";
 		return connection.prepareStatement( insertQuery, PreparedStatement.RETURN_GENERATED_KEYS );
 	}
@@ -76,10 +97,16 @@ public class InsertChatFileExecutor extends QueryExecutor<Void> {
 		pstmt.setString( counter++, fileDesc.fileName );
 		pstmt.setInt( counter++, fileDesc.widthPixels );
 		pstmt.setInt( counter++, fileDesc.heightPixels );
-		if( fileDesc.thumbnailData != null ) {
+		if( thumbnailKey != null ) {
+			pstmt.setString( counter++, thumbnailKey );
+		} else if( fileDesc.thumbnailData != null ) {
 			pstmt.setBytes( counter++, fileDesc.thumbnailData );
 		}
-		pstmt.setBytes( counter++, fileDesc.fileData );
+		if( dataKey != null ) {
+			pstmt.setString( counter++, dataKey );
+		} else {
+			pstmt.setBytes( counter++, fileDesc.fileData );
+		}
 	}
 	
 	public ResultSet executeQuery( PreparedStatement pstmt, Void result ) throws SQLException, SiteException {
@@ -74,6 +74,7 @@ public class SecureSelectChatFileExecutor extends QueryExecutor<MessageFileData>
 										MESSAGES_TMP_TABLE_NAME + "." + MESSAGE_TYPE_FIELD_NAME_CHAT_MESSAGES_TABLE +
 										", " + MESSAGES_TMP_TABLE_NAME + "." + SENDER_ID_FIELD_NAME_CHAT_MESSAGES_TABLE +
 										", " + MESSAGE_IMAGES_TMP_TABLE_NAME + "." + ( isThumbnail ? THUMBNAIL_FIELD_NAME_CHAT_FILES_TABLE : DATA_FIELD_NAME_CHAT_FILES_TABLE ) +
+										", " + MESSAGE_IMAGES_TMP_TABLE_NAME + "." + ( isThumbnail ? THUMBNAIL_MD5_CHAT_FILES_TABLE : DATA_MD5_CHAT_FILES_TABLE ) +
 										", " + MESSAGE_IMAGES_TMP_TABLE_NAME + "." + MIME_TYPE_CHAT_FILES_TABLE +
 										", GROUP_CONCAT( " + CHAT_MSG_RECEPIENT_TABLE + "." + USR_ID_FIELD_NAME_CHAT_MSG_RECEPIENT_TABLE +
 											" SEPARATOR '" + MESSAGE_RECEPIENT_IDS_DELIMITER + "' ) " + " AS " + MESSAGE_RECEPIENT_IDS +
@@ -110,9 +111,17 @@ public class SecureSelectChatFileExecutor extends QueryExecutor<MessageFileData>
 	
 	private void extractFileData( ResultSet resultSet, UserFileData fileData ) throws SQLException {
 		if( isThumbnail ) {
-			fileData.thumbnailData = resultSet.getBytes( MESSAGE_IMAGES_TMP_TABLE_NAME + "." + THUMBNAIL_FIELD_NAME_CHAT_FILES_TABLE );
+			//The data is only loaded if it is not in the files storage
+			fileData.thumbnailDataMD5 = resultSet.getString( MESSAGE_IMAGES_TMP_TABLE_NAME + "." + THUMBNAIL_MD5_CHAT_FILES_TABLE );
+			if( fileData.thumbnailDataMD5 == null ) {
+				fileData.thumbnailData = resultSet.getBytes( MESSAGE_IMAGES_TMP_TABLE_NAME + "." + THUMBNAIL_FIELD_NAME_CHAT_FILES_TABLE );
+			}
 		} else {
-			fileData.fileData = resultSet.getBytes( MESSAGE_IMAGES_TMP_TABLE_NAME + "." + DATA_FIELD_NAME_CHAT_FILES_TABLE );
+			//The data is only loaded if it is not in the files storage
+			fileData.fileDataMD5 = resultSet.getString( MESSAGE_IMAGES_TMP_TABLE_NAME + "." + DATA_MD5_CHAT_FILES_TABLE );
+			if( fileData.fileDataMD5 == null ) {
+				fileData.fileData = resultSet.getBytes( MESSAGE_IMAGES_TMP_TABLE_NAME + "." + DATA_FIELD_NAME_CHAT_FILES_TABLE );
+			}
 		}
 	}
 
@@ -120,7 +129,9 @@ public class SecureSelectChatFileExecutor extends QueryExecutor<MessageFileData>
 	public void processResultSet(ResultSet resultSet, MessageFileData fileData) throws SQLException, SiteException {
 		//Just in case we set it to null
 		fileData.thumbnailData = null;
+		fileData.thumbnailDataMD5 = null;
 		fileData.fileData = null;
+		fileData.fileDataMD5 = null;
 		
 		//if there is a result found then we return no image
 		if( resultSet.next() ) {
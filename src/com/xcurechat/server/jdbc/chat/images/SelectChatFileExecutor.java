@@ -84,6 +84,7 @@ public class SelectChatFileExecutor extends QueryExecutor<MessageFileData> {
 
 	public PreparedStatement prepareStatement(Connection connection) throws SQLException {
 		final String selectQuery = "SELECT "+ ( isThumbnail ? THUMBNAIL_FIELD_NAME_CHAT_FILES_TABLE : DATA_FIELD_NAME_CHAT_FILES_TABLE ) +
+									", " + ( isThumbnail ? THUMBNAIL_MD5_CHAT_FILES_TABLE : DATA_MD5_CHAT_FILES_TABLE ) +
 									", " + MIME_TYPE_CHAT_FILES_TABLE + " FROM " + CHAT_FILES_TABLE + " WHERE " +
 									FILE_ID_FIELD_NAME_CHAT_FILES_TABLE + "=?" +
 									(ownerID != ShortUserData.UNKNOWN_UID ? " AND " + OWNER_ID_FIELD_NAME_CHAT_FILES_TABLE + "=?" : "");
@@ -107,14 +108,24 @@ public class SelectChatFileExecutor extends QueryExecutor<MessageFileData> {
 		if( resultSet.first() ){
 			fileData.mimeType = resultSet.getString( MIME_TYPE_CHAT_FILES_TABLE );
 			if( isThumbnail ) {
-				fileData.thumbnailData = resultSet.getBytes( THUMBNAIL_FIELD_NAME_CHAT_FILES_TABLE );
+				//The data is only loaded if it is not in the files storage
+				fileData.thumbnailDataMD5 = resultSet.getString( THUMBNAIL_MD5_CHAT_FILES_TABLE );
+				if( fileData.thumbnailDataMD5 == null ) {
+					fileData.thumbnailData = resultSet.getBytes( THUMBNAIL_FIELD_NAME_CHAT_FILES_TABLE );
+				}
 			} else {
-				fileData.fileData = resultSet.getBytes( DATA_FIELD_NAME_CHAT_FILES_TABLE );
+				//The data is only loaded if it is not in the files storage
+				fileData.fileDataMD5 = resultSet.getString( DATA_MD5_CHAT_FILES_TABLE );
+				if( fileData.fileDataMD5 == null ) {
+					fileData.fileData = resultSet.getBytes( DATA_FIELD_NAME_CHAT_FILES_TABLE );
+				}
 			}
 		} else {
 			//There are no rows in the result set, the required file was not found
 			fileData.thumbnailData = null;
+			fileData.thumbnailDataMD5 = null;
 			fileData.fileData = null;
+			fileData.fileDataMD5 = null;
 		}
 	}
 }
@@ -0,0 +1,283 @@
+/**
+ * X-Cure-Chat
+ * Copyright (C) 2013  Dr. Ivan S. Zapreev
+ * www: https://nl.linkedin.com/in/zapreevis
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.#
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * The server-side RPC package, managing DB queries.
+ * (C) Ivan S. Zapreev, 2009
+ */
+package com.xcurechat.server.jdbc.files;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.apache.log4j.Logger;
+
+import com.xcurechat.client.rpc.exceptions.InternalSiteException;
+import com.xcurechat.client.rpc.exceptions.SiteException;
+
+import com.xcurechat.server.files.BlobStore;
+import com.xcurechat.server.jdbc.QuerySetExecutor;
+
+/**
+ * @author zapreevis
+ * This executor allows to move one blob, i.e. the file data or thumbnail, of one row
+ * of the files tables from the DB into the files storage. The blob is streamed out of
+ * the DB in chunks, so that neither the JDBC driver nor we keep it entirely in memory.
+ * The row is locked for the time of the move, then its blob column is reset and the
+ * blob key column is set to the MD5 sum of the stored blob:
+ * START TRANSACTION;
+ * SELECT LENGTH(blob) FROM table WHERE id=? AND blob IS NOT NULL FOR UPDATE;
+ * SELECT SUBSTRING(blob, ?, ?) FROM table WHERE id=?; (for every chunk)
+ * UPDATE table SET key=?, blob=NULL WHERE id=?;
+ * COMMIT;
+ * NOTE: The files tables have to be InnoDB tables for the row locking to work.
+ */
+public class MigrateFileBlobExecutor extends QuerySetExecutor<Void> {
+	//Get the Log4j logger object
+	private static final Logger logger = Logger.getLogger( MigrateFileBlobExecutor.class );
+	
+	//The size of the blob chunk retrieved from the DB at once
+	private static final int BLOB_CHUNK_SIZE_BYTES = 1024 * 1024;
+	
+	//The table and its id, blob and blob key columns
+	private final String tableName;
+	private final String idColumnName;
+	private final String blobColumnName;
+	private final String keyColumnName;
+	//The ID of the row to migrate
+	private final int rowID;
+	//The storage to put the blob into
+	private final BlobStore blobStore;
+	
+	//The number of bytes of the migrated blob, -1 if the row did not have the blob
+	private long migratedBytes = -1;
+	
+	/**
+	 * @author zapreevis
+	 * The input stream reading the blob from the DB in chunks
+	 */
+	private class BlobChunksInputStream extends InputStream {
+		//The statement retrieving the chunks
+		private final PreparedStatement pstmt;
+		//The total length of the blob
+		private final long length;
+		//The position in the blob, starting from 0, of the first byte of the current chunk
+		private long chunkPosition = 0;
+		//The current chunk and the position in it
+		private byte[] chunk = new byte[0];
+		private int positionInChunk = 0;
+		
+		public BlobChunksInputStream( final Connection connection, final long length ) throws SQLException {
+			this.length = length;
+			this.pstmt = connection.prepareStatement( "SELECT SUBSTRING(" + blobColumnName + ", ?, ?) FROM " + tableName +
+													  " WHERE " + idColumnName + "=?" );
+		}
+		
+		/**
+		 * Retrieves the next chunk of the blob, if there is any
+		 * @return true if there is the next chunk, otherwise false
+		 * @throws IOException if the chunk could not be retrieved
+		 */
+		private boolean nextChunk() throws IOException {
+			chunkPosition += chunk.length;
+			chunk = new byte[0];
+			positionInChunk = 0;
+			if( chunkPosition < length ) {
+				ResultSet resultSet = null;
+				try {
+					int counter = 1;
+					//The positions in SUBSTRING start from 1
+					pstmt.setLong( counter++, chunkPosition + 1 );
+					pstmt.setInt( counter++, BLOB_CHUNK_SIZE_BYTES );
+					pstmt.setInt( counter++, rowID );
+					resultSet = pstmt.executeQuery();
+					if( resultSet.next() ) {
+						chunk = resultSet.getBytes( 1 );
+					}
+				} catch( SQLException e ) {
+					throw new IOException( "Unable to retrieve a chunk at " + chunkPosition + " of row " + rowID + " of " + tableName + ": " + e.getMessage() );
+				} finally {
+					if( resultSet != null ) {
+						try {
+							resultSet.close();
+						} catch( SQLException e ) {
+							logger.error( "An SQL exception while closing the result set", e );
+						}
+					}
+				}
+				if( ( chunk == null ) || ( chunk.length == 0 ) ) {
+					throw new IOException( "The blob of row " + rowID + " of " + tableName + " ended at " + chunkPosition + " instead of " + length );
+				}
+			}
+			return chunk.length > 0;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			if( ( positionInChunk < chunk.length ) || nextChunk() ) {
+				return chunk[ positionInChunk++ ] & 0xFF;
+			} else {
+				return -1;
+			}
+		}
+		
+		@Override
+		public int read( byte[] buffer, int offset, int count ) throws IOException {
+			if( ( positionInChunk < chunk.length ) || nextChunk() ) {
+				final int readBytes = Math.min( count, chunk.length - positionInChunk );
+				System.arraycopy( chunk, positionInChunk, buffer, offset, readBytes );
+				positionInChunk += readBytes;
+				return readBytes;
+			} else {
+				return -1;
+			}
+		}
+		
+		@Override
+		public void close() {
+			try {
+				pstmt.close();
+			} catch( SQLException e ) {
+				logger.error( "An SQL exception while closing the blob chunks statement", e );
+			}
+		}
+	}
+	
+	/**
+	 * The basic constructor
+	 * @param tableName the name of the files table
+	 * @param idColumnName the name of the id column
+	 * @param blobColumnName the name of the blob column
+	 * @param keyColumnName the name of the blob key column
+	 * @param rowID the ID of the row to migrate
+	 * @param blobStore the storage to put the blob into
+	 */
+	public MigrateFileBlobExecutor( final String tableName, final String idColumnName, final String blobColumnName,
+									final String keyColumnName, final int rowID, final BlobStore blobStore ) {
+		this.tableName = tableName;
+		this.idColumnName = idColumnName;
+		this.blobColumnName = blobColumnName;
+		this.keyColumnName = keyColumnName;
+		this.rowID = rowID;
+		this.blobStore = blobStore;
+	}
+	
+	/**
+	 * @return the number of bytes of the migrated blob, -1 if the row did not have the blob
+	 */
+	public long getMigratedBytes() {
+		return migratedBytes;
+	}
+	
+	public void executeQuerySet( Connection connection, Void result ) throws SQLException, SiteException {
+		Statement sqlStatement = null;
+		boolean isCommitted = false;
+		try {
+			sqlStatement = connection.createStatement();
+			sqlStatement.execute( "START TRANSACTION" );
+			
+			//Lock the row and get the blob length
+			final long length = selectBlobLength( connection );
+			if( length >= 0 ) {
+				//Stream the blob into the storage
+				final BlobChunksInputStream inputStream = new BlobChunksInputStream( connection, length );
+				final String key;
+				try {
+					key = blobStore.put( inputStream );
+				} catch( IOException e ) {
+					logger.error( "Unable to store the blob of row " + rowID + " of " + tableName + "." + blobColumnName, e );
+					throw new InternalSiteException( InternalSiteException.UNKNOWN_INTERNAL_SITE_EXCEPTION_ERR );
+				} finally {
+					inputStream.close();
+				}
+				
+				//Replace the blob with its key
+				updateBlobKey( connection, key );
+				migratedBytes = length;
+				logger.debug( "The blob of row " + rowID + " of " + tableName + "." + blobColumnName + " is moved to the storage as " + key );
+			}
+			
+			sqlStatement.execute( "COMMIT" );
+			isCommitted = true;
+		} catch ( SQLException e ){
+			logger.error( "An SQL exception while migrating the blob of row " + rowID + " of " + tableName + "." + blobColumnName, e );
+			throw new InternalSiteException( InternalSiteException.DATABASE_EXCEPTION_ERR );
+		} finally {
+			if( sqlStatement != null ) {
+				if( ! isCommitted ) {
+					migratedBytes = -1;
+					try {
+						sqlStatement.execute( "ROLLBACK" );
+					} catch ( SQLException e ) {
+						logger.error( "An SQL exception while rolling back the blob migration", e );
+					}
+				}
+				//Close the statement
+				try {
+					sqlStatement.close();
+				} catch ( SQLException e ) {
+					logger.error( "An exception while closing the SQL statement", e);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Locks the row and retrieves the length of its blob
+	 * @return the length of the blob or -1 if the row does not exist or has no blob
+	 */
+	private long selectBlobLength( Connection connection ) throws SQLException {
+		final String selectQuery = "SELECT LENGTH(" + blobColumnName + ") FROM " + tableName +
+									" WHERE " + idColumnName + "=? AND " + blobColumnName + " IS NOT NULL FOR UPDATE";
+		PreparedStatement pstmt = connection.prepareStatement( selectQuery );
+		try {
+			pstmt.setInt( 1, rowID );
+			ResultSet resultSet = pstmt.executeQuery();
+			try {
+				return resultSet.next() ? resultSet.getLong( 1 ) : -1;
+			} finally {
+				resultSet.close();
+			}
+		} finally {
+			pstmt.close();
+		}
+	}
+	
+	/**
+	 * Sets the blob key of the row and resets its blob
+	 * @param key the key of the stored blob
+	 */
+	private void updateBlobKey( Connection connection, final String key ) throws SQLException {
+		final String updateQuery = "UPDATE " + tableName + " SET " + keyColumnName + "=?, " + blobColumnName + "=NULL" +
+									" WHERE " + idColumnName + "=?";
+		PreparedStatement pstmt = connection.prepareStatement( updateQuery );
+		try {
+			int counter = 1;
+			pstmt.setString( counter++, key );
+			pstmt.setInt( counter++, rowID );
+			pstmt.executeUpdate();
+		} finally {
+			pstmt.close();
+		}
+	}
+}
@@ -0,0 +1,75 @@
+/**
+ * X-Cure-Chat
+ * Copyright (C) 2013  Dr. Ivan S. Zapreev
+ * www: https://nl.linkedin.com/in/zapreevis
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.#
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * The server-side RPC package, managing DB queries.
+ * (C) Ivan S. Zapreev, 2009
+ */
+package com.xcurechat.server.jdbc.files;
+
+import java.util.Set;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import com.xcurechat.client.rpc.exceptions.SiteException;
+
+import com.xcurechat.server.jdbc.QueryExecutor;
+
+/**
+ * @author zapreevis
+ * This executor allows to retrieve all the blob keys, i.e. the MD5 sums of
+ * the blobs in the files storage, referenced from one of the files tables.
+ */
+public class SelectFileBlobKeysExecutor extends QueryExecutor<Set<String>> {
+	
+	//The table and its blob key column
+	private final String tableName;
+	private final String keyColumnName;
+	
+	/**
+	 * The basic constructor
+	 * @param tableName the name of the files table
+	 * @param keyColumnName the name of the blob key column
+	 */
+	public SelectFileBlobKeysExecutor( final String tableName, final String keyColumnName ) {
+		this.tableName = tableName;
+		this.keyColumnName = keyColumnName;
+	}
+
+	public PreparedStatement prepareStatement(Connection connection) throws SQLException {
+		final String selectQuery = "SELECT DISTINCT " + keyColumnName + " FROM " + tableName +
+									" WHERE " + keyColumnName + " IS NOT NULL";
+		return connection.prepareStatement( selectQuery );
+	}
+
+	public void bindParameters(PreparedStatement pstmt) throws SQLException {
+		//DO NOTHING
+	}
+
+	public ResultSet executeQuery(PreparedStatement pstmt, Set<String> result) throws SQLException, SiteException {
+		return pstmt.executeQuery();
+	}
+
+	public void processResultSet(ResultSet resultSet, Set<String> keys) throws SQLException, SiteException {
+		while( resultSet.next() ) {
+			keys.add( resultSet.getString( keyColumnName ) );
+		}
+	}
+}
@@ -0,0 +1,91 @@
+/**
+ * X-Cure-Chat
+ * Copyright (C) 2013  Dr. Ivan S. Zapreev
+ * www: https://nl.linkedin.com/in/zapreevis
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.#
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * The server-side RPC package, managing DB queries.
+ * (C) Ivan S. Zapreev, 2009
+ */
+package com.xcurechat.server.jdbc.files;
+
+import java.util.List;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import com.xcurechat.client.rpc.exceptions.SiteException;
+
+import com.xcurechat.server.jdbc.QueryExecutor;
+
+/**
+ * @author zapreevis
+ * This executor allows to retrieve the IDs of the rows of one of the files tables,
+ * that still store the blob, i.e. the file data or thumbnail, in the DB. The IDs are
+ * retrieved in batches, in the increasing order, starting after the given ID.
+ */
+public class SelectFileBlobRowIDsExecutor extends QueryExecutor<List<Integer>> {
+	
+	//The table and its id and blob columns
+	private final String tableName;
+	private final String idColumnName;
+	private final String blobColumnName;
+	//The row ID after which we retrieve the IDs
+	private final int afterRowID;
+	//The maximum number of IDs to retrieve
+	private final int maxNumberOfRows;
+	
+	/**
+	 * The basic constructor
+	 * @param tableName the name of the files table
+	 * @param idColumnName the name of the id column
+	 * @param blobColumnName the name of the blob column
+	 * @param afterRowID the row ID after which we retrieve the IDs
+	 * @param maxNumberOfRows the maximum number of IDs to retrieve
+	 */
+	public SelectFileBlobRowIDsExecutor( final String tableName, final String idColumnName, final String blobColumnName,
+										 final int afterRowID, final int maxNumberOfRows ) {
+		this.tableName = tableName;
+		this.idColumnName = idColumnName;
+		this.blobColumnName = blobColumnName;
+		this.afterRowID = afterRowID;
+		this.maxNumberOfRows = maxNumberOfRows;
+	}
+
+	public PreparedStatement prepareStatement(Connection connection) throws SQLException {
+		final String selectQuery = "SELECT " + idColumnName + " FROM " + tableName +
+									" WHERE " + idColumnName + ">? AND " + blobColumnName + " IS NOT NULL" +
+									" ORDER BY " + idColumnName + " LIMIT ?";
+		return connection.prepareStatement( selectQuery );
+	}
+
+	public void bindParameters(PreparedStatement pstmt) throws SQLException {
+		int counter = 1;
+		pstmt.setInt( counter++, afterRowID );
+		pstmt.setInt( counter++, maxNumberOfRows );
+	}
+
+	public ResultSet executeQuery(PreparedStatement pstmt, List<Integer> result) throws SQLException, SiteException {
+		return pstmt.executeQuery();
+	}
+
+	public void processResultSet(ResultSet resultSet, List<Integer> rowIDs) throws SQLException, SiteException {
+		while( resultSet.next() ) {
+			rowIDs.add( resultSet.getInt( idColumnName ) );
+		}
+	}
+}
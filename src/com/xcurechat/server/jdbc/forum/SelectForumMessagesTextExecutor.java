@@ -0,0 +1,107 @@
+/**
+ * X-Cure-Chat
+ * Copyright (C) 2013  Dr. Ivan S. Zapreev
+ * www: https://nl.linkedin.com/in/zapreevis
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.#
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * The server-side RPC package, managing DB queries.
+ * (C) Ivan S. Zapreev, 2008
+ */
+package com.xcurechat.server.jdbc.forum;
+
+import java.util.List;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.apache.log4j.Logger;
+
+import com.xcurechat.client.data.ShortForumMessageData;
+
+import com.xcurechat.client.rpc.exceptions.SiteException;
+
+import com.xcurechat.server.jdbc.QueryExecutor;
+
+/**
+ * @author zapreevis
+ * This executor allows to retrieve one batch of forum messages, ordered by their IDs,
+ * with the data needed for building the forum search index. The message data objects
+ * only have their IDs, parent and sender IDs, path IDs, titles, bodies and the approval
+ * flags set. The forum is read batch by batch, to not hold one huge result set open.
+ */
+public class SelectForumMessagesTextExecutor extends QueryExecutor<List<ShortForumMessageData>> {
+	//Get the Log4j logger object
+	private static final Logger logger = Logger.getLogger( SelectForumMessagesTextExecutor.class );
+	
+	//The id of the message after which the messages are retrieved
+	private final int afterMessageID;
+	//The maximum number of messages to retrieve
+	private final int maxNumberOfMessages;
+	
+	/**
+	 * The basic constructor
+	 * @param afterMessageID the id of the message after which the messages are retrieved
+	 * @param maxNumberOfMessages the maximum number of messages to retrieve
+	 */
+	public SelectForumMessagesTextExecutor( final int afterMessageID, final int maxNumberOfMessages ) {
+		this.afterMessageID = afterMessageID;
+		this.maxNumberOfMessages = maxNumberOfMessages;
+	}
+	
+	@Override
+	public PreparedStatement prepareStatement( Connection connection ) throws SQLException {
+		final String selectQuery = "SELECT " + MESSAGE_ID_FIELD_NAME_FORUM_MESSAGES_TABLE + ", " +
+											   PARENT_MESSAGE_ID_FIELD_NAME_FORUM_MESSAGES_TABLE + ", " +
+											   SENDER_ID_FIELD_NAME_FORUM_MESSAGES_TABLE + ", " +
+											   MESSAGE_PATH_ID_FIELD_NAME_FORUM_MESSAGES_TABLE + ", " +
+											   MESSAGE_TITLE_FIELD_NAME_FORUM_MESSAGES_TABLE + ", " +
+											   MESSAGE_BODY_FIELD_NAME_FORUM_MESSAGES_TABLE + ", " +
+											   IS_APPROVED_FIELD_NAME_FORUM_MESSAGES_TABLE +
+								   " FROM " + FORUM_MESSAGES_TABLE +
+								   " WHERE " + MESSAGE_ID_FIELD_NAME_FORUM_MESSAGES_TABLE + ">?" +
+								   " ORDER BY " + MESSAGE_ID_FIELD_NAME_FORUM_MESSAGES_TABLE + " LIMIT ?";
+		return connection.prepareStatement( selectQuery );
+	}
+	
+	@Override
+	public void bindParameters( PreparedStatement pstmt ) throws SQLException {
+		int counter = 1;
+		pstmt.setInt( counter++, afterMessageID );
+		pstmt.setInt( counter++, maxNumberOfMessages );
+	}
+	
+	@Override
+	public ResultSet executeQuery( PreparedStatement pstmt, List<ShortForumMessageData> result ) throws SQLException, SiteException {
+		return pstmt.executeQuery();
+	}
+	
+	@Override
+	public void processResultSet( ResultSet resultSet, List<ShortForumMessageData> result ) throws SQLException, SiteException {
+		while( resultSet.next() ) {
+			ShortForumMessageData message = new ShortForumMessageData();
+			message.messageID = resultSet.getInt( MESSAGE_ID_FIELD_NAME_FORUM_MESSAGES_TABLE );
+			message.parentMessageID = resultSet.getInt( PARENT_MESSAGE_ID_FIELD_NAME_FORUM_MESSAGES_TABLE );
+			message.senderID = resultSet.getInt( SENDER_ID_FIELD_NAME_FORUM_MESSAGES_TABLE );
+			message.messagePathID = resultSet.getString( MESSAGE_PATH_ID_FIELD_NAME_FORUM_MESSAGES_TABLE );
+			message.messageTitle = resultSet.getString( MESSAGE_TITLE_FIELD_NAME_FORUM_MESSAGES_TABLE );
+			message.messageBody = resultSet.getString( MESSAGE_BODY_FIELD_NAME_FORUM_MESSAGES_TABLE );
+			message.isApproved = resultSet.getBoolean( IS_APPROVED_FIELD_NAME_FORUM_MESSAGES_TABLE );
+			result.add( message );
+		}
+		logger.debug( "Retrieved " + result.size() + " forum messages after message " + afterMessageID + " for the search index" );
+	}
+}
@@ -0,0 +1,75 @@
+/**
+ * X-Cure-Chat
+ * Copyright (C) 2013  Dr. Ivan S. Zapreev
+ * www: https://nl.linkedin.com/in/zapreevis
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.#
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * The server-side RPC package, managing DB queries.
+ * (C) Ivan S. Zapreev, 2008
+ */
+package com.xcurechat.server.jdbc.forum;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.apache.log4j.Logger;
+
+import com.xcurechat.client.data.ShortForumMessageData;
+
+import com.xcurechat.client.rpc.exceptions.SiteException;
+
+import com.xcurechat.server.jdbc.QueryExecutor;
+
+/**
+ * @author zapreevis
+ * This executor allows to retrieve the largest forum message ID present in the DB.
+ * The retrieved ID is stored as the message ID of the provided forum message object.
+ */
+public class SelectLastForumMessageIDExecutor extends QueryExecutor<ShortForumMessageData> {
+	//Get the Log4j logger object
+	private static final Logger logger = Logger.getLogger( SelectLastForumMessageIDExecutor.class );
+	
+	public SelectLastForumMessageIDExecutor() {
+	}
+	
+	@Override
+	public PreparedStatement prepareStatement(Connection connection) throws SQLException {
+		final String selectQuery = "SELECT MAX(" + MESSAGE_ID_FIELD_NAME_FORUM_MESSAGES_TABLE + ") FROM " + FORUM_MESSAGES_TABLE;
+		return connection.prepareStatement( selectQuery );
+	}
+
+	@Override
+	public void bindParameters(PreparedStatement pstmt) throws SQLException {
+		//There are no parameters that need binding
+	}
+
+	@Override
+	public ResultSet executeQuery(PreparedStatement pstmt, ShortForumMessageData result) throws SQLException, SiteException {
+		return pstmt.executeQuery();
+	}
+
+	@Override
+	public void processResultSet(ResultSet resultSet, ShortForumMessageData message) throws SQLException, SiteException {
+		if( resultSet.first() ) {
+			//If there are no messages then MAX returns NULL and getInt gives zero
+			message.messageID = resultSet.getInt( 1 );
+		} else {
+			message.messageID = ShortForumMessageData.UNKNOWN_MESSAGE_ID;
+		}
+		logger.debug("The last forum message ID in the DB is " + message.messageID );
+	}
+}
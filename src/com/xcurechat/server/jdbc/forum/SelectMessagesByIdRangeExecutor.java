@@ -0,0 +1,101 @@
+/**
+ * X-Cure-Chat
+ * Copyright (C) 2013  Dr. Ivan S. Zapreev
+ * www: https://nl.linkedin.com/in/zapreevis
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.#
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * The server-side RPC package, managing DB queries.
+ * (C) Ivan S. Zapreev, 2008
+ */
+package com.xcurechat.server.jdbc.forum;
+
+import java.util.LinkedHashMap;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.apache.log4j.Logger;
+
+import com.xcurechat.client.data.ForumMessageData;
+
+import com.xcurechat.client.rpc.exceptions.SiteException;
+
+/**
+ * @author zapreevis
+ * This executor allows to retrieve all the forum messages with the IDs in the given
+ * range, it is used to load the forum into memory batch by batch. The attached files
+ * are not retrieved, the root forum message is excluded.
+ */
+public class SelectMessagesByIdRangeExecutor extends SelectMessagesExecutorBase<LinkedHashMap<Integer,ForumMessageData>> {
+	//Get the Log4j logger object
+	private static final Logger logger = Logger.getLogger( SelectMessagesByIdRangeExecutor.class );
+	
+	//The id after which the messages are retrieved
+	private final int afterMessageID;
+	//The id of the last message to retrieve
+	private final int lastMessageID;
+	
+	/**
+	 * The basic constructor
+	 * @param afterMessageID the id after which the messages are retrieved
+	 * @param lastMessageID the id of the last message to retrieve
+	 */
+	public SelectMessagesByIdRangeExecutor( final int afterMessageID, final int lastMessageID ) {
+		this.afterMessageID = afterMessageID;
+		this.lastMessageID = lastMessageID;
+	}
+	
+	@Override
+	public void bindParameters( PreparedStatement pstmt ) throws SQLException {
+		int counter = 1;
+		pstmt.setInt( counter++, afterMessageID );
+		pstmt.setInt( counter++, lastMessageID );
+	}
+	
+	@Override
+	public ResultSet executeQuery( PreparedStatement pstmt, LinkedHashMap<Integer,ForumMessageData> result ) throws SQLException, SiteException {
+		return pstmt.executeQuery();
+	}
+	
+	@Override
+	public void processResultSet( ResultSet resultSet, LinkedHashMap<Integer,ForumMessageData> result ) throws SQLException, SiteException {
+		while( resultSet.next() ) {
+			ForumMessageData message = extractMessageData( resultSet );
+			result.put( message.messageID, message );
+		}
+		logger.debug( "Retrieved " + result.size() + " forum messages with ids in (" + afterMessageID + ", " + lastMessageID + "]" );
+	}
+	
+	@Override
+	protected String getMsgWhereQueryPart() {
+		return MESSAGE_ID_FIELD_NAME_FORUM_MESSAGES_TABLE + ">? AND " + MESSAGE_ID_FIELD_NAME_FORUM_MESSAGES_TABLE + "<=? ";
+	}
+	
+	@Override
+	protected boolean isAddLimitOffset() {
+		return false;
+	}
+	
+	@Override
+	protected boolean excludingRootMessage() {
+		return true;
+	}
+	
+	@Override
+	protected boolean isSearchForSections() {
+		return false; //Does not matter, the messages are ordered in memory
+	}
+}
@@ -0,0 +1,112 @@
+/**
+ * X-Cure-Chat
+ * Copyright (C) 2013  Dr. Ivan S. Zapreev
+ * www: https://nl.linkedin.com/in/zapreevis
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.#
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * The server-side RPC package, managing DB queries.
+ * (C) Ivan S. Zapreev, 2008
+ */
+package com.xcurechat.server.jdbc.forum;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.apache.log4j.Logger;
+
+import com.xcurechat.client.data.ForumMessageData;
+
+import com.xcurechat.client.rpc.exceptions.SiteException;
+
+/**
+ * @author zapreevis
+ * This executor allows to retrieve the forum messages with the given IDs, e.g. the ones found
+ * with the forum search index. The messages are put into the resulting map in the order of
+ * the given IDs, the messages that were not found are skipped.
+ */
+public class SelectMessagesByIdsExecutor extends SelectMessagesExecutorBase<LinkedHashMap<Integer,ForumMessageData>> {
+	//Get the Log4j logger object
+	private static final Logger logger = Logger.getLogger( SelectMessagesByIdsExecutor.class );
+	
+	//The ordered list of message ids to retrieve, should not be empty
+	private final List<Integer> messageIDs;
+	
+	/**
+	 * The basic constructor
+	 * @param messageIDs the ordered list of message ids to retrieve, should not be empty
+	 */
+	public SelectMessagesByIdsExecutor( final List<Integer> messageIDs ) {
+		this.messageIDs = messageIDs;
+	}
+	
+	@Override
+	public void bindParameters( PreparedStatement pstmt ) throws SQLException {
+		int counter = 1;
+		for( Integer messageID : messageIDs ) {
+			pstmt.setInt( counter++, messageID );
+		}
+	}
+	
+	@Override
+	public ResultSet executeQuery( PreparedStatement pstmt, LinkedHashMap<Integer,ForumMessageData> result ) throws SQLException, SiteException {
+		return pstmt.executeQuery();
+	}
+	
+	@Override
+	public void processResultSet( ResultSet resultSet, LinkedHashMap<Integer,ForumMessageData> result ) throws SQLException, SiteException {
+		LinkedHashMap<Integer,ForumMessageData> foundMessages = new LinkedHashMap<Integer,ForumMessageData>();
+		while( resultSet.next() ) {
+			ForumMessageData message = extractMessageData( resultSet );
+			foundMessages.put( message.messageID, message );
+		}
+		//Restore the order of the given message ids
+		for( Integer messageID : messageIDs ) {
+			ForumMessageData message = foundMessages.get( messageID );
+			if( message != null ) {
+				result.put( messageID, message );
+			} else {
+				logger.warn( "The forum message " + messageID + " could not be retrieved, it must have been deleted" );
+			}
+		}
+	}
+	
+	@Override
+	protected String getMsgWhereQueryPart() {
+		String selectingQueryPart = MESSAGE_ID_FIELD_NAME_FORUM_MESSAGES_TABLE + " IN (";
+		for( int index = 0; index < messageIDs.size(); index++ ) {
+			selectingQueryPart += ( index == 0 ? "?" : ",?" );
+		}
+		return selectingQueryPart + ") ";
+	}
+	
+	@Override
+	protected boolean isAddLimitOffset() {
+		return false;
+	}
+	
+	@Override
+	protected boolean excludingRootMessage() {
+		return true;
+	}
+	
+	@Override
+	protected boolean isSearchForSections() {
+		return false; //Does not matter, the messages are re-ordered afterwards
+	}
+}
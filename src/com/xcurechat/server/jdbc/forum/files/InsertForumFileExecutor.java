@@ -31,8 +31,10 @@ import com.xcurechat.client.data.FileData;
 import com.xcurechat.client.data.ShortForumMessageData;
 import com.xcurechat.client.data.UserFileData;
 
+import com.xcurechat.client.rpc.exceptions.InternalSiteException;
 import com.xcurechat.client.rpc.exceptions.SiteException;
 
+import com.xcurechat.server.files.BlobStoreManager;
 import com.xcurechat.server.jdbc.QueryExecutor;
 
 /**
@@ -41,13 +43,31 @@ import com.xcurechat.server.jdbc.QueryExecutor;
  * of a new forum-message file into the database.
  * NOTE: The messageID is set to the root forum message and is updated
  * after the message to which the file is added is created/updated
+ * If there is the files storage then the file data and thumbnail are
+ * put there and only their keys are stored in the database.
  */
 public class InsertForumFileExecutor extends QueryExecutor<Void> {
 	
 	private final UserFileData fileDesc;
+	//The keys of the stored file data and thumbnail, null if they are to be stored in the DB
+	private final String dataKey;
+	private final String thumbnailKey;
 	
-	public InsertForumFileExecutor( final UserFileData fileDesc ) {
+	/**
+	 * The basic constructor, puts the file data into the files storage, if there is one
+	 * @throws InternalSiteException if the file data could not be stored
+	 */
+	public InsertForumFileExecutor( final UserFileData fileDesc ) throws InternalSiteException {
 		this.fileDesc = fileDesc;
+		this.dataKey = BlobStoreManager.storeBlob( fileDesc.fileData );
+		this.thumbnailKey = BlobStoreManager.storeBlob( fileDesc.thumbnailData );
+		//The keys are the MD5 sums of the data
+		if( dataKey != null ) {
+			fileDesc.fileDataMD5 = dataKey;
+		}
+		if( thumbnailKey != null ) {
+			fileDesc.thumbnailDataMD5 = thumbnailKey;
+		}
 	}
 	
 	public PreparedStatement prepareStatement( Connection connection ) throws SQLException{
@@ -58,8 +78,9 @@ public class InsertForumFileExecutor extends QueryExecutor<Void> {
 									FILE_NAME_FIELD_NAME_FORUM_FILES_TABLE + "=?, " + 
 									IMG_WIDTH_PIXELS_NAME_FORUM_FILES_TABLE + "=?, " +
 									IMG_HEIGHT_PIXELS_NAME_FORUM_FILES_TABLE + "=?, " +
-									( fileDesc.thumbnailData != null ? FILE_THUMBNAIL_FIELD_NAME_FORUM_FILES_TABLE + "=?, " : "" ) + 
-									DATA_FIELD_NAME_FORUM_FILES_TABLE + "=?, " + 
+									( thumbnailKey != null ? THUMBNAIL_MD5_FIELD_NAME_FORUM_FILES_TABLE + "=?, " :
+										( fileDesc.thumbnailData != null ? FILE_THUMBNAIL_FIELD_NAME_FORUM_FILES_TABLE + "=?, " : "" ) ) + 
+									( dataKey != null ? DATA_MD5_FIELD_NAME_FORUM_FILES_TABLE : DATA_FIELD_NAME_FORUM_FILES_TABLE ) + "=?, " + 
 									UPLOAD_DATE_FIELD_NAME_FORUM_FILES_TABLE + "=NOW()";
 		return connection.prepareStatement( insertQuery, PreparedStatement.RETURN_GENERATED_KEYS );
 	}
@@ -73,10 +94,16 @@ public class InsertForumFileExecutor extends QueryExecutor<Void> {
 		pstmt.setString( counter++, fileDesc.fileName );
 		pstmt.setInt( counter++, fileDesc.widthPixels );
 		pstmt.setInt( counter++, fileDesc.heightPixels );
-		if( fileDesc.thumbnailData != null ) {
+		if( thumbnailKey != null ) {
+			pstmt.setString( counter++, thumbnailKey );
+		} else if( fileDesc.thumbnailData != null ) {
 			pstmt.setBytes( counter++, fileDesc.thumbnailData );
 		}
-		pstmt.setBytes( counter++, fileDesc.fileData );
+		if( dataKey != null ) {
+			pstmt.setString( counter++, dataKey );
+		} else {
+			pstmt.setBytes( counter++, fileDesc.fileData );
+		}
 	}
 	
 	public ResultSet executeQuery( PreparedStatement pstmt, Void result ) throws SQLException, SiteException {
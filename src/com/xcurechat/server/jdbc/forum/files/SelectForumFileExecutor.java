@@ -52,6 +52,8 @@ public class SelectForumFileExecutor extends QueryExecutor<MessageFileData> {
 	public PreparedStatement prepareStatement(Connection connection) throws SQLException {
 		final String selectQuery = "SELECT "+ FILE_THUMBNAIL_FIELD_NAME_FORUM_FILES_TABLE + ", " +
 											  DATA_FIELD_NAME_FORUM_FILES_TABLE + ", " +
+											  THUMBNAIL_MD5_FIELD_NAME_FORUM_FILES_TABLE + ", " +
+											  DATA_MD5_FIELD_NAME_FORUM_FILES_TABLE + ", " +
 											  MIME_TYPE_FIELD_NAME_FORUM_FILES_TABLE + ", " +
 											  FILE_NAME_FIELD_NAME_FORUM_FILES_TABLE +
 									" FROM " + FORUM_FILES_TABLE + " WHERE " +
@@ -74,12 +76,22 @@ public class SelectForumFileExecutor extends QueryExecutor<MessageFileData> {
 			fileData.fileID = fileID;
 			fileData.mimeType = resultSet.getString( MIME_TYPE_FIELD_NAME_FORUM_FILES_TABLE );
 			fileData.fileName = resultSet.getString( FILE_NAME_FIELD_NAME_FORUM_FILES_TABLE );
-			fileData.thumbnailData = resultSet.getBytes( FILE_THUMBNAIL_FIELD_NAME_FORUM_FILES_TABLE );
-			fileData.fileData = resultSet.getBytes( DATA_FIELD_NAME_FORUM_FILES_TABLE );
+			//The data is only loaded if it is not in the files storage
+			fileData.thumbnailDataMD5 = resultSet.getString( THUMBNAIL_MD5_FIELD_NAME_FORUM_FILES_TABLE );
+			if( fileData.thumbnailDataMD5 == null ) {
+				fileData.thumbnailData = resultSet.getBytes( FILE_THUMBNAIL_FIELD_NAME_FORUM_FILES_TABLE );
+			}
+			//The data is only loaded if it is not in the files storage
+			fileData.fileDataMD5 = resultSet.getString( DATA_MD5_FIELD_NAME_FORUM_FILES_TABLE );
+			if( fileData.fileDataMD5 == null ) {
+				fileData.fileData = resultSet.getBytes( DATA_FIELD_NAME_FORUM_FILES_TABLE );
+			}
 		} else {
 			//There are no rows in the result set, the required file was not found
 			fileData.thumbnailData = null;
+			fileData.thumbnailDataMD5 = null;
 			fileData.fileData = null;
+			fileData.fileDataMD5 = null;
 			fileData.fileID = ShortFileDescriptor.UNKNOWN_FILE_ID;
 		}
 	}
@@ -0,0 +1,73 @@
+/**
+ * X-Cure-Chat
+ * Copyright (C) 2013  Dr. Ivan S. Zapreev
+ * www: https://nl.linkedin.com/in/zapreevis
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.#
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * The server-side RPC package, managing DB queries.
+ * (C) Ivan S. Zapreev, 2008
+ */
+package com.xcurechat.server.jdbc.hostip;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import com.xcurechat.client.rpc.exceptions.SiteException;
+
+import com.xcurechat.server.jdbc.QueryExecutor;
+import com.xcurechat.server.utils.GeoIPRangeTable;
+
+/**
+ * @author zapreevis
+ * This executor selects the cities of all the /24 IPV4 address blocks ip40.*.*.*
+ * and adds them to the builder of the geolocation range table. The locations
+ * have to be added to the builder first, see SelectHostIPLocationsExecutor.
+ */
+public class SelectHostIPBlocksExecutor extends QueryExecutor<GeoIPRangeTable.Builder> {
+	
+	private static final String IP0_TBL_PREFIX = "ip4_";
+	
+	private final int ip40;
+	
+	/**
+	 * Constructor by the first element of the IP address: ip40.ip41.ip42.ip43
+	 * @param ip40 the first number of the IP address, from 0 to 255
+	 */
+	public SelectHostIPBlocksExecutor( final int ip40 ) {
+		this.ip40 = ip40;
+	}
+	
+	public PreparedStatement prepareStatement(Connection connection) throws SQLException {
+		final String selectQuery = "SELECT b, c, city, country FROM " + IP0_TBL_PREFIX + ip40 + " ORDER BY b, c";
+		return connection.prepareStatement( selectQuery );
+	}
+	
+	public void bindParameters(PreparedStatement pstmt) throws SQLException {
+		//There is nothing to bind
+	}
+	
+	public ResultSet executeQuery(PreparedStatement pstmt, GeoIPRangeTable.Builder result) throws SQLException, SiteException {
+		return pstmt.executeQuery();
+	}
+	
+	public void processResultSet(ResultSet resultSet, GeoIPRangeTable.Builder result) throws SQLException, SiteException {
+		while( resultSet.next() ) {
+			final int block = GeoIPRangeTable.getBlock( ip40, resultSet.getInt(1), resultSet.getInt(2) );
+			result.addBlock( block, resultSet.getInt(3), resultSet.getInt(4) );
+		}
+	}
+}
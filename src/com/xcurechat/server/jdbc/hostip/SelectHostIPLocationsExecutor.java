@@ -0,0 +1,85 @@
+/**
+ * X-Cure-Chat
+ * Copyright (C) 2013  Dr. Ivan S. Zapreev
+ * www: https://nl.linkedin.com/in/zapreevis
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.#
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * The server-side RPC package, managing DB queries.
+ * (C) Ivan S. Zapreev, 2008
+ */
+package com.xcurechat.server.jdbc.hostip;
+
+import java.net.URLDecoder;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.apache.log4j.Logger;
+
+import com.xcurechat.client.rpc.exceptions.SiteException;
+
+import com.xcurechat.server.jdbc.QueryExecutor;
+import com.xcurechat.server.utils.GeoIPRangeTable;
+import com.xcurechat.server.utils.IPtoLocationLocator;
+
+/**
+ * @author zapreevis
+ * This executor selects all the known hostip cities with their locations
+ * and adds them to the builder of the geolocation range table
+ */
+public class SelectHostIPLocationsExecutor extends QueryExecutor<GeoIPRangeTable.Builder> {
+	
+	//Get the Log4j logger object
+	private static final Logger logger = Logger.getLogger( SelectHostIPLocationsExecutor.class );
+	
+	public PreparedStatement prepareStatement(Connection connection) throws SQLException {
+		final String selectQuery = "SELECT cityByCountry.city, cityByCountry.country, cityByCountry.name, " +
+									"cityByCountry.state, countries.name FROM countries, cityByCountry " +
+									"WHERE cityByCountry.country = countries.id";
+		return connection.prepareStatement( selectQuery );
+	}
+	
+	public void bindParameters(PreparedStatement pstmt) throws SQLException {
+		//There is nothing to bind
+	}
+	
+	public ResultSet executeQuery(PreparedStatement pstmt, GeoIPRangeTable.Builder result) throws SQLException, SiteException {
+		return pstmt.executeQuery();
+	}
+	
+	public void processResultSet(ResultSet resultSet, GeoIPRangeTable.Builder result) throws SQLException, SiteException {
+		while( resultSet.next() ) {
+			final String location = IPtoLocationLocator.formatLocation( decode( resultSet.getString(3) ),
+												decode( resultSet.getString(4) ), decode( resultSet.getString(5) ) );
+			result.addLocation( resultSet.getInt(1), resultSet.getInt(2), location );
+		}
+	}
+	
+	/**
+	 * The not-so-smart people from HOSTIP.INFO did the database entries in a strange locale
+	 * @param value the value to decode
+	 * @return the decoded value or an empty string if it can not be decoded
+	 */
+	private static String decode( final String value ) {
+		try{
+			return URLDecoder.decode( value, "iso-8859-1");
+		} catch(Exception e){
+			logger.error("Unexpected exception while decoding the location data: " + value, e);
+			return "";
+		}
+	}
+}
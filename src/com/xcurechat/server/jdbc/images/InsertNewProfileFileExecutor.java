@@ -29,19 +29,39 @@ import java.sql.SQLException;
 
 import com.xcurechat.client.data.FileData;
 import com.xcurechat.client.data.UserFileData;
+import com.xcurechat.client.rpc.exceptions.InternalSiteException;
 import com.xcurechat.client.rpc.exceptions.SiteException;
+import com.xcurechat.server.files.BlobStoreManager;
 import com.xcurechat.server.jdbc.QueryExecutor;
 
 /**
  * @author zapreevis
  * This executor class is responsible for inserting a new user-profile file into the database.
+ * If there is the files storage then the file data and thumbnail are put there and only their
+ * keys are stored in the database.
  */
 public class InsertNewProfileFileExecutor extends QueryExecutor<Void> {
 	
 	private final UserFileData fileData;
+	//The keys of the stored file data and thumbnail, null if they are to be stored in the DB
+	private final String dataKey;
+	private final String thumbnailKey;
 	
-	public InsertNewProfileFileExecutor( final UserFileData fileData ) {
+	/**
+	 * The basic constructor, puts the file data into the files storage, if there is one
+	 * @throws InternalSiteException if the file data could not be stored
+	 */
+	public InsertNewProfileFileExecutor( final UserFileData fileData ) throws InternalSiteException {
 		this.fileData = fileData;
+		this.dataKey = BlobStoreManager.storeBlob( fileData.fileData );
+		this.thumbnailKey = BlobStoreManager.storeBlob( fileData.thumbnailData );
+		//The keys are the MD5 sums of the data
+		if( dataKey != null ) {
+			fileData.fileDataMD5 = dataKey;
+		}
+		if( thumbnailKey != null ) {
+			fileData.thumbnailDataMD5 = thumbnailKey;
+		}
 	}
 
 	public PreparedStatement prepareStatement( Connection connection ) throws SQLException{
@@ -51,8 +71,9 @@ public class InsertNewProfileFileExecutor extends QueryExecutor<Void> {
 									FILE_NAME_PROFILE_FILES_TABLE + "=?, " +
 									IMG_WIDTH_PROFILE_FILES_TABLE + "=?, " +
 									IMG_HEIGHT_PROFILE_FILES_TABLE + "=?, " +
-									( fileData.thumbnailData != null ? THUMBNAIL_FIELD_PROFILE_FILES_TABLE + "=?, " : "" ) + 
-									DATA_FIELD_PROFILE_FILES_TABLE + "=?, " + 
+									( thumbnailKey != null ? THUMBNAIL_MD5_PROFILE_FILES_TABLE + "=?, " :
+										( fileData.thumbnailData != null ? THUMBNAIL_FIELD_PROFILE_FILES_TABLE + "=?, " : "" ) ) + 
+									( dataKey != null ? DATA_MD5_PROFILE_FILES_TABLE : DATA_FIELD_PROFILE_FILES_TABLE ) + "=?, " + 
 									UPLOAD_DATE_PROFILE_FILES_TABLE + "=NOW()";
 									
 		return connection.prepareStatement( insertQuery, PreparedStatement.RETURN_GENERATED_KEYS );
@@ -65,10 +86,16 @@ public class InsertNewProfileFileExecutor extends QueryExecutor<Void> {
 		pstmt.setString( index++, fileData.fileName );
 		pstmt.setInt( index++, fileData.widthPixels );
 		pstmt.setInt( index++, fileData.heightPixels );
-		if( fileData.thumbnailData != null ) {
+		if( thumbnailKey != null ) {
+			pstmt.setString( index++, thumbnailKey );
+		} else if( fileData.thumbnailData != null ) {
 			pstmt.setBytes( index++, fileData.thumbnailData );
 		}
-		pstmt.setBytes( index++, fileData.fileData );
+		if( dataKey != null ) {
+			pstmt.setString( index++, dataKey );
+		} else {
+			pstmt.setBytes( index++, fileData.fileData );
+		}
 	}
 	
 	public ResultSet executeQuery( PreparedStatement pstmt, Void result ) throws SQLException, SiteException {
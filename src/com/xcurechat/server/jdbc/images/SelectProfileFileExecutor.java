@@ -70,14 +70,24 @@ public class SelectProfileFileExecutor extends QueryExecutor<UserFileData> {
 			fileData.ownerID = userID;
 			fileData.mimeType = resultSet.getString( MIME_TYPE_PROFILE_FILES_TABLE );
 			fileData.fileName = resultSet.getString( FILE_NAME_PROFILE_FILES_TABLE );
-			fileData.thumbnailData = resultSet.getBytes( THUMBNAIL_FIELD_PROFILE_FILES_TABLE );
-			fileData.fileData = resultSet.getBytes( DATA_FIELD_PROFILE_FILES_TABLE );
+			//The data is only loaded if it is not in the files storage
+			fileData.thumbnailDataMD5 = resultSet.getString( THUMBNAIL_MD5_PROFILE_FILES_TABLE );
+			if( fileData.thumbnailDataMD5 == null ) {
+				fileData.thumbnailData = resultSet.getBytes( THUMBNAIL_FIELD_PROFILE_FILES_TABLE );
+			}
+			//The data is only loaded if it is not in the files storage
+			fileData.fileDataMD5 = resultSet.getString( DATA_MD5_PROFILE_FILES_TABLE );
+			if( fileData.fileDataMD5 == null ) {
+				fileData.fileData = resultSet.getBytes( DATA_FIELD_PROFILE_FILES_TABLE );
+			}
 			fileData.widthPixels = resultSet.getInt( IMG_WIDTH_PROFILE_FILES_TABLE );
 			fileData.heightPixels = resultSet.getInt( IMG_HEIGHT_PROFILE_FILES_TABLE );
 		} else {
 			//There are no rows in the result set, there is not required image for the given user
 			fileData.thumbnailData = null;
+			fileData.thumbnailDataMD5 = null;
 			fileData.fileData = null;
+			fileData.fileDataMD5 = null;
 			fileData.fileID = ShortFileDescriptor.UNKNOWN_FILE_ID;
 		}
 	}
@@ -32,24 +32,38 @@ import com.mysql.jdbc.exceptions.jdbc4.MySQLIntegrityConstraintViolationExceptio
 import com.xcurechat.client.data.UserFileData;
 import com.xcurechat.client.rpc.exceptions.SiteException;
 import com.xcurechat.client.rpc.exceptions.InternalSiteException;
+import com.xcurechat.server.files.BlobStoreManager;
 import com.xcurechat.server.jdbc.QueryExecutor;
 
 /**
  * @author zapreevis
  * This executor class is responsible for inserting a new user avatar.
+ * If there is the files storage then the image is put there and only
+ * its key is stored in the database.
  */
 public class InsertNewProfileAvatarExecutor extends QueryExecutor<Void> {
 	
 	private final UserFileData fileData;
+	//The key of the stored image, null if it is to be stored in the DB
+	private final String imageKey;
 	
-	public InsertNewProfileAvatarExecutor( UserFileData fileData ) {
+	/**
+	 * The basic constructor, puts the image into the files storage, if there is one
+	 * @throws InternalSiteException if the image could not be stored
+	 */
+	public InsertNewProfileAvatarExecutor( UserFileData fileData ) throws InternalSiteException {
 		this.fileData = fileData;
+		this.imageKey = BlobStoreManager.storeBlob( fileData.fileData );
+		//The key is the MD5 sum of the image
+		if( imageKey != null ) {
+			fileData.fileDataMD5 = imageKey;
+		}
 	}
 
 	public PreparedStatement prepareStatement( Connection connection ) throws SQLException{
 		final String insertQuery = "INSERT INTO " + AVATAR_IMAGES_TABLE + " SET " +
 									USER_ID_AVATAR_IMAGES_TABLE + "=?, " +
-									IMAGE_FIELD_AVATAR_IMAGES_TABLE + "=?, " +
+									( imageKey != null ? IMAGE_MD5_AVATAR_IMAGES_TABLE : IMAGE_FIELD_AVATAR_IMAGES_TABLE ) + "=?, " +
 									MIME_TYPE_AVATAR_IMAGES_TABLE + "=?";
 		return connection.prepareStatement( insertQuery );
 	}
@@ -57,7 +71,11 @@ public class InsertNewProfileAvatarExecutor extends QueryExecutor<Void> {
 	public void bindParameters( PreparedStatement pstmt ) throws SQLException{
 		int counter = 1;
 		pstmt.setInt( counter++, fileData.ownerID );
-		pstmt.setBytes( counter++, fileData.fileData );
+		if( imageKey != null ) {
+			pstmt.setString( counter++, imageKey );
+		} else {
+			pstmt.setBytes( counter++, fileData.fileData );
+		}
 		pstmt.setString( counter++, fileData.mimeType );
 	}
 	
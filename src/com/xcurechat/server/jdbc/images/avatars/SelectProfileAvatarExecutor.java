@@ -45,6 +45,7 @@ public class SelectProfileAvatarExecutor extends QueryExecutor<UserFileData> {
 
 	public PreparedStatement prepareStatement(Connection connection) throws SQLException {
 		final String selectQuery = "SELECT "+ IMAGE_FIELD_AVATAR_IMAGES_TABLE + ", " +
+									IMAGE_MD5_AVATAR_IMAGES_TABLE + ", " +
 									MIME_TYPE_AVATAR_IMAGES_TABLE +
 									" FROM " + AVATAR_IMAGES_TABLE + " WHERE " +
 									USER_ID_AVATAR_IMAGES_TABLE + "=?";
@@ -63,11 +64,16 @@ public class SelectProfileAvatarExecutor extends QueryExecutor<UserFileData> {
 		//Check if there is required image for the given user
 		fileData.ownerID = userID;
 		if( resultSet.first() ){
-			fileData.fileData = resultSet.getBytes( IMAGE_FIELD_AVATAR_IMAGES_TABLE );
+			//The data is only loaded if it is not in the files storage
+			fileData.fileDataMD5 = resultSet.getString( IMAGE_MD5_AVATAR_IMAGES_TABLE );
+			if( fileData.fileDataMD5 == null ) {
+				fileData.fileData = resultSet.getBytes( IMAGE_FIELD_AVATAR_IMAGES_TABLE );
+			}
 			fileData.mimeType = resultSet.getString( MIME_TYPE_AVATAR_IMAGES_TABLE );
 		} else {
 			//There are no rows in the result set, there is not required image for the given user
 			fileData.fileData = null;
+			fileData.fileDataMD5 = null;
 		}
 	}
 }
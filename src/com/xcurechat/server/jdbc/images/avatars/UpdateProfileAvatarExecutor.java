@@ -26,26 +26,43 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Types;
 
 import com.xcurechat.client.data.UserFileData;
+import com.xcurechat.client.rpc.exceptions.InternalSiteException;
 import com.xcurechat.client.rpc.exceptions.SiteException;
+import com.xcurechat.server.files.BlobStoreManager;
 import com.xcurechat.server.jdbc.QueryExecutor;
 
 /**
  * @author zapreevis
  * This executor class is responsible for updating the user avatar in the database.
+ * If there is the files storage then the image is put there and only its key is
+ * stored in the database.
  */
 public class UpdateProfileAvatarExecutor extends QueryExecutor<Void> {
 	
 	private final UserFileData fileData;
+	//The key of the stored image, null if it is to be stored in the DB
+	private final String imageKey;
 	
-	public UpdateProfileAvatarExecutor( UserFileData fileData ){
+	/**
+	 * The basic constructor, puts the image into the files storage, if there is one
+	 * @throws InternalSiteException if the image could not be stored
+	 */
+	public UpdateProfileAvatarExecutor( UserFileData fileData ) throws InternalSiteException {
 		this.fileData = fileData;
+		this.imageKey = BlobStoreManager.storeBlob( fileData.fileData );
+		//The key is the MD5 sum of the image
+		if( imageKey != null ) {
+			fileData.fileDataMD5 = imageKey;
+		}
 	}
 
 	public PreparedStatement prepareStatement( Connection connection ) throws SQLException{
 		String updateQuery = "UPDATE " +  AVATAR_IMAGES_TABLE + " SET " +
 							IMAGE_FIELD_AVATAR_IMAGES_TABLE + "=?, " +
+							IMAGE_MD5_AVATAR_IMAGES_TABLE + "=?, " +
 							MIME_TYPE_AVATAR_IMAGES_TABLE + "=? " +
 							"WHERE "+ USER_ID_AVATAR_IMAGES_TABLE + "=?";
 
@@ -55,7 +72,14 @@ public class UpdateProfileAvatarExecutor extends QueryExecutor<Void> {
 	
 	public void bindParameters( PreparedStatement pstmt ) throws SQLException{
 		int counter = 1;
-		pstmt.setBytes( counter++, fileData.fileData );
+		//Either the image or its key is stored, the other one is reset
+		if( imageKey != null ) {
+			pstmt.setNull( counter++, Types.BLOB );
+			pstmt.setString( counter++, imageKey );
+		} else {
+			pstmt.setBytes( counter++, fileData.fileData );
+			pstmt.setNull( counter++, Types.CHAR );
+		}
 		pstmt.setString( counter++, fileData.mimeType );
 		pstmt.setInt( counter++, fileData.ownerID );
 	}
@@ -43,6 +43,8 @@ public class MarkMessageAsReadExecutor extends QueryExecutor<Void> {
 	
 	private final int userID;
 	private final int messageID;
+	//True if the message was marked as read by this executor
+	private boolean isMarked = false;
 
 	/**
 	 * Marks a message sent to a user as read
@@ -53,12 +55,21 @@ public class MarkMessageAsReadExecutor extends QueryExecutor<Void> {
 		this.userID = userID;
 		this.messageID = messageID;
 	}
+	
+	/**
+	 * @return true if the message was new, i.e. unread and not hidden, and was marked as read by this executor
+	 */
+	public boolean isMarked() {
+		return isMarked;
+	}
 
 	public PreparedStatement prepareStatement(Connection connection) throws SQLException {
 		String markAsReadQuery = "UPDATE " + MESSAGES_TABLE + " SET " +
 							IS_READ_FIELD_NAME_MESSAGES_TABLE + "=true WHERE " +
 							TO_UID_FIELD_NAME_MESSAGES_TABLE + " = ? AND " +
-							MSG_ID_FIELD_NAME_MESSAGES_TABLE + " = ?" ;  
+							MSG_ID_FIELD_NAME_MESSAGES_TABLE + " = ? AND " +
+							TO_HIDDEN_FIELD_NAME_MESSAGES_TABLE + "=false AND " +
+							IS_READ_FIELD_NAME_MESSAGES_TABLE + "=false" ;  
 		logger.debug("The mark as read message query is: " + markAsReadQuery);
 		return connection.prepareStatement( markAsReadQuery );
 	}
@@ -73,7 +84,10 @@ public class MarkMessageAsReadExecutor extends QueryExecutor<Void> {
 		final int count = pstmt.executeUpdate();
 		if( count == 0) {
 			//NOTE: We do not throw any exception, because it does not really make much sence to do it.
-			logger.error("Unable to mark 'as read' the message " + messageID + " sent to user "+userID+"!");
+			//This also happens if the message was marked as read by a concurrent request of the user
+			logger.warn("Unable to mark 'as read' the message " + messageID + " sent to user "+userID+"!");
+		} else {
+			isMarked = true;
 		}
 		return null;
 	}
@@ -52,6 +52,11 @@ public class AddUniLoginNameExecutor extends QueryExecutor<Void> {
 		this.uniLoginName = LoginUnifier.getUnifiedLogin( loginName );
 	}
 	
+	@Override
+	public String getStatementKey() {
+		return AddUniLoginNameExecutor.class.getName();
+	}
+	
 	public PreparedStatement prepareStatement( Connection connection ) throws SQLException{
 		String updateQuery = "UPDATE " + USERS_TABLE + " SET " +
 							 UNI_LOGIN_FIELD_NAME_USERS_TABLE + "=? " +
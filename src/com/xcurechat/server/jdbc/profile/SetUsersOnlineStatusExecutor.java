@@ -0,0 +1,83 @@
+/**
+ * X-Cure-Chat
+ * Copyright (C) 2013  Dr. Ivan S. Zapreev
+ * www: https://nl.linkedin.com/in/zapreevis
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.#
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * The server-side RPC package, managing DB queries.
+ * (C) Ivan S. Zapreev, 2008
+ */
+package com.xcurechat.server.jdbc.profile;
+
+import java.util.Map;
+import java.util.Map.Entry;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import org.apache.log4j.Logger;
+
+import com.xcurechat.client.rpc.exceptions.InternalSiteException;
+import com.xcurechat.client.rpc.exceptions.SiteException;
+import com.xcurechat.server.jdbc.QuerySetExecutor;
+
+/**
+ * @author zapreevis
+ * This executor class is responsible for setting the online/offline status
+ * of several users with one JDBC batch. It also updates the last online field.
+ */
+public class SetUsersOnlineStatusExecutor extends QuerySetExecutor<Void> {
+	//Get the Log4j logger object
+	private static final Logger logger = Logger.getLogger( SetUsersOnlineStatusExecutor.class );
+	
+	//The mapping from the user ID to the user's online status
+	private final Map<Integer, Boolean> userIDToOnlineStatus;
+	
+	public SetUsersOnlineStatusExecutor( final Map<Integer, Boolean> userIDToOnlineStatus ){
+		this.userIDToOnlineStatus = userIDToOnlineStatus;
+	}
+	
+	public void executeQuerySet( Connection connection, Void result ) throws SQLException, SiteException {
+		final String updateQuery = "UPDATE " + USERS_TABLE + " SET " +
+									IS_ONLINE_FIELD_NAME_USERS_TABLE + "=?, " + 
+									LAST_ONLINE_FIELD_NAME_USERS_TABLE + "=NOW() " +
+									"WHERE "+ UID_FIELD_NAME_USERS_TABLE + "=?";
+		PreparedStatement updateStatusPstmt = null;
+		try {
+			updateStatusPstmt = connection.prepareStatement( updateQuery );
+			for( Entry<Integer, Boolean> entry : userIDToOnlineStatus.entrySet() ) {
+				int counter = 1;
+				updateStatusPstmt.setBoolean( counter++, entry.getValue() );
+				updateStatusPstmt.setInt( counter++, entry.getKey() );
+				updateStatusPstmt.addBatch();
+			}
+			updateStatusPstmt.executeBatch();
+		} catch ( SQLException e ) {
+			logger.error( "An exception while setting the online status of " + userIDToOnlineStatus.size() + " users", e);
+			throw new InternalSiteException( InternalSiteException.DATABASE_EXCEPTION_ERR );
+		} finally {
+			if( updateStatusPstmt != null ) {
+				try{
+					updateStatusPstmt.close();
+				} catch ( SQLException e ) {
+					logger.error( "An exception while closing the SQL prepared statement", e);
+				} finally {
+					updateStatusPstmt = null;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,62 @@
+/**
+ * X-Cure-Chat
+ * Copyright (C) 2013  Dr. Ivan S. Zapreev
+ * www: https://nl.linkedin.com/in/zapreevis
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.#
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * The server-side RPC package, managing DB queries.
+ * (C) Ivan S. Zapreev, 2009
+ */
+package com.xcurechat.server.jdbc.rooms;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * @author zapreevis
+ * This executor allows to select the chat rooms of the online user that have to be online.
+ * These are the same rooms as selected by the SelectAllActualRoomsExecutor, but only the
+ * ones owned by the given user, assuming that the user is online.
+ */
+public class SelectUserActualRoomsExecutor extends SelectAllActualRoomsExecutor {
+	
+	//The id of the rooms' owner
+	private final int ownerID;
+	
+	/**
+	 * The basic constructor
+	 * @param ownerID the id of the online user whose rooms are selected
+	 */
+	public SelectUserActualRoomsExecutor( final int ownerID ){
+		this.ownerID = ownerID;
+	}
+	
+	@Override
+	public PreparedStatement prepareStatement(Connection connection) throws SQLException {
+		final String selectQuery = "SELECT * FROM " + ROOMS_TABLE + " WHERE " +
+									UID_FIELD_NAME_ROOMS_TABLE + " = ? AND ( ( " +
+									IS_PERM_FIELD_NAME_ROOMS_TABLE + " = true ) OR ( " +
+									EXP_DATE_FIELD_NAME_ROOMS_TABLE + " > NOW() ) OR ( " +
+									VISITORS_FIELD_NAME_ROOMS_TABLE + " > 0 ) )";
+		return connection.prepareStatement( selectQuery );
+	}
+
+	@Override
+	public void bindParameters(PreparedStatement pstmt) throws SQLException {
+		int counter = 1;
+		pstmt.setInt( counter++, ownerID );
+	}
+}
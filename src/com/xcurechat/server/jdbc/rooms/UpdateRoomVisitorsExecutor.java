@@ -1,68 +0,0 @@
-/**
- * X-Cure-Chat
- * Copyright (C) 2013  Dr. Ivan S. Zapreev
- * www: https://nl.linkedin.com/in/zapreevis
- *
- * This program is free software: you can redistribute it and/or modify
- * it under the terms of the GNU General Public License as published by
- * the Free Software Foundation, either version 3 of the License, or
- * (at your option) any later version.#
- *
- * This program is distributed in the hope that it will be useful,
- * but WITHOUT ANY WARRANTY; without even the implied warranty of
- * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
- * GNU General Public License for more details.
- *
- * You should have received a copy of the GNU General Public License
- * along with this program.  If not, see <http://www.gnu.org/licenses/>.
- *
- * The server-side RPC package, managing DB queries.
- * (C) Ivan S. Zapreev, 2008
- */
-
-package com.xcurechat.server.jdbc.rooms;
-
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-import java.sql.SQLException;
-
-import com.xcurechat.client.rpc.exceptions.SiteException;
-import com.xcurechat.server.jdbc.QueryExecutor;
-
-/**
- * @author zapreevis
- * This executor class is responsible incrementing and decrementing the 
- * number of room visitors.
- */
-public class UpdateRoomVisitorsExecutor extends QueryExecutor<Void> {
-	private final int roomID;
-	private final boolean isIncrement;
-	
-	public UpdateRoomVisitorsExecutor( final int roomID, final boolean isIncrement ){
-		this.roomID = roomID;
-		this.isIncrement = isIncrement; 
-	}
-
-	public PreparedStatement prepareStatement( Connection connection ) throws SQLException{
-		String updateQuery = "UPDATE " + ROOMS_TABLE + " SET " +
-							VISITORS_FIELD_NAME_ROOMS_TABLE + " = " + VISITORS_FIELD_NAME_ROOMS_TABLE +
-							( isIncrement ? "+" : "-") + "1" + " WHERE "+ RID_FIELD_NAME_ROOMS_TABLE + "=?";
-		
-		return connection.prepareStatement( updateQuery );
-	}
-	
-	public void bindParameters( PreparedStatement pstmt ) throws SQLException{
-		int counter = 1;
-		pstmt.setInt( counter++, roomID );
-	}
-	
-	public ResultSet executeQuery( PreparedStatement pstmt, Void result ) throws SQLException, SiteException {
-		pstmt.executeUpdate();
-		return null;
-	}
-	
-	public void processResultSet( ResultSet resultSet, Void result ) throws SQLException, SiteException {
-		//DO NOTHING
-	}
-}
@@ -0,0 +1,85 @@
+/**
+ * X-Cure-Chat
+ * Copyright (C) 2013  Dr. Ivan S. Zapreev
+ * www: https://nl.linkedin.com/in/zapreevis
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.#
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * The server-side RPC package, managing DB queries.
+ * (C) Ivan S. Zapreev, 2009
+ */
+package com.xcurechat.server.jdbc.rooms;
+
+import java.util.Map;
+import java.util.Map.Entry;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+import org.apache.log4j.Logger;
+
+import com.xcurechat.client.rpc.exceptions.InternalSiteException;
+import com.xcurechat.client.rpc.exceptions.SiteException;
+import com.xcurechat.server.jdbc.QuerySetExecutor;
+
+/**
+ * @author zapreevis
+ * This executor class is responsible for applying the accumulated changes
+ * of the number of visitors to several rooms with one JDBC batch.
+ */
+public class UpdateRoomsVisitorsExecutor extends QuerySetExecutor<Void> {
+	//Get the Log4j logger object
+	private static final Logger logger = Logger.getLogger( UpdateRoomsVisitorsExecutor.class );
+	
+	//The mapping from the room ID to the change of the number of its visitors
+	private final Map<Integer, Integer> roomIDToVisitorsDelta;
+	
+	public UpdateRoomsVisitorsExecutor( final Map<Integer, Integer> roomIDToVisitorsDelta ){
+		this.roomIDToVisitorsDelta = roomIDToVisitorsDelta;
+	}
+	
+	public void executeQuerySet( Connection connection, Void result ) throws SQLException, SiteException {
+		final String updateQuery = "UPDATE " + ROOMS_TABLE + " SET " +
+									VISITORS_FIELD_NAME_ROOMS_TABLE + " = " + VISITORS_FIELD_NAME_ROOMS_TABLE +
+									" + ? WHERE " + RID_FIELD_NAME_ROOMS_TABLE + "=?";
+		PreparedStatement updateVisitorsPstmt = null;
+		try {
+			updateVisitorsPstmt = connection.prepareStatement( updateQuery );
+			for( Entry<Integer, Integer> entry : roomIDToVisitorsDelta.entrySet() ) {
+				//Skip the rooms for which the increments and decrements cancelled out
+				if( entry.getValue() != 0 ) {
+					int counter = 1;
+					updateVisitorsPstmt.setInt( counter++, entry.getValue() );
+					updateVisitorsPstmt.setInt( counter++, entry.getKey() );
+					updateVisitorsPstmt.addBatch();
+				}
+			}
+			updateVisitorsPstmt.executeBatch();
+		} catch ( SQLException e ) {
+			logger.error( "An exception while updating the visitors of " + roomIDToVisitorsDelta.size() + " rooms", e);
+			throw new InternalSiteException( InternalSiteException.DATABASE_EXCEPTION_ERR );
+		} finally {
+			if( updateVisitorsPstmt != null ) {
+				try{
+					updateVisitorsPstmt.close();
+				} catch ( SQLException e ) {
+					logger.error( "An exception while closing the SQL prepared statement", e);
+				} finally {
+					updateVisitorsPstmt = null;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,105 @@
+/**
+ * X-Cure-Chat
+ * Copyright (C) 2013  Dr. Ivan S. Zapreev
+ * www: https://nl.linkedin.com/in/zapreevis
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.#
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * The server-side RPC package, managing DB queries.
+ * (C) Ivan S. Zapreev, 2008
+ */
+package com.xcurechat.server.jdbc.statistics;
+
+import java.util.List;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.sql.SQLException;
+
+import org.apache.log4j.Logger;
+
+import com.xcurechat.client.rpc.exceptions.InternalSiteException;
+import com.xcurechat.client.rpc.exceptions.SiteException;
+
+import com.xcurechat.server.jdbc.QuerySetExecutor;
+
+/**
+ * @author zapreevis
+ * This executor class is responsible for inserting a batch of the user
+ * login/logout statistics entries with one multi-row INSERT.
+ */
+public class InsertUsersStatisticsExecutor extends QuerySetExecutor<Void> {
+	//Get the Log4j logger object
+	private static final Logger logger = Logger.getLogger( InsertUsersStatisticsExecutor.class );
+	
+	//The number of columns inserted for one entry
+	private static final String ONE_ENTRY_VALUES = "(?,?,?,?,?,?)";
+	
+	private final List<UserStatisticsEntry> entries;
+	
+	public InsertUsersStatisticsExecutor( final List<UserStatisticsEntry> entries ){
+		this.entries = entries;
+	}
+	
+	public void executeQuerySet( Connection connection, Void result ) throws SQLException, SiteException {
+		if( entries.isEmpty() ) {
+			return;
+		}
+		
+		//Build the multi-row insert query
+		StringBuffer insertQuery = new StringBuffer();
+		insertQuery.append( "INSERT INTO " + LOGIN_STATS_TABLE + " (" +
+							USER_ID_PROFILE_LOGIN_STATS_TABLE + ", " +
+							IS_LOGIN_FIELD_NAME_LOGIN_STATS_TABLE + ", " +
+							IS_AUTO_FIELD_NAME_LOGIN_STATS_TABLE + ", " +
+							DATE_FIELD_NAME_LOGIN_STATS_TABLE + ", " +
+							HOST_FIELD_NAME_LOGIN_STATS_TABLE + ", " +
+							LOCATION_FIELD_NAME_LOGIN_STATS_TABLE + ") VALUES " );
+		for( int i = 0; i < entries.size(); i++ ) {
+			insertQuery.append( ( i == 0 ? "" : ", " ) + ONE_ENTRY_VALUES );
+		}
+		
+		PreparedStatement insertStatsPstmt = null;
+		try {
+			//Create statement
+			insertStatsPstmt = connection.prepareStatement( insertQuery.toString() );
+			//Bind parameters
+			int counter = 1;
+			for( UserStatisticsEntry entry : entries ) {
+				insertStatsPstmt.setInt( counter++, entry.userID );
+				insertStatsPstmt.setBoolean( counter++, entry.isLogin );
+				insertStatsPstmt.setBoolean( counter++, entry.isAuto );
+				insertStatsPstmt.setTimestamp( counter++, new Timestamp( entry.date.getTime() ) );
+				insertStatsPstmt.setString( counter++, entry.host );
+				insertStatsPstmt.setString( counter++, entry.location );
+			}
+			//Execute query
+			insertStatsPstmt.executeUpdate();
+		} catch ( SQLException e ) {
+			logger.error( "An exception while inserting " + entries.size() + " user statistics entries", e);
+			throw new InternalSiteException( InternalSiteException.DATABASE_EXCEPTION_ERR );
+		} finally {
+			if( insertStatsPstmt != null ) {
+				try{
+					insertStatsPstmt.close();
+				} catch ( SQLException e ) {
+					logger.error( "An exception while closing the SQL prepared statement", e);
+				} finally {
+					insertStatsPstmt = null;
+				}
+			}
+		}
+	}
+}
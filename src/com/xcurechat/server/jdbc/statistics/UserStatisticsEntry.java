@@ -0,0 +1,53 @@
+/**
+ * X-Cure-Chat
+ * Copyright (C) 2013  Dr. Ivan S. Zapreev
+ * www: https://nl.linkedin.com/in/zapreevis
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.#
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * The server-side RPC package, managing DB queries.
+ * (C) Ivan S. Zapreev, 2008
+ */
+package com.xcurechat.server.jdbc.statistics;
+
+import java.util.Date;
+
+/**
+ * @author zapreevis
+ * Stores one user login or logout statistics entry that is to be inserted into the database
+ */
+public class UserStatisticsEntry {
+	//The id of the user that logged in or out
+	public int userID;
+	//True for the login, false for the logout
+	public boolean isLogin;
+	//True if the user was logged out automatically
+	public boolean isAuto;
+	//The date of the login or logout
+	public Date date;
+	//The user's IP address
+	public String host;
+	//The location of the user's IP address
+	public String location;
+	
+	public UserStatisticsEntry( final int userID, final boolean isLogin, final boolean isAuto,
+								final Date date, final String host ) {
+		this.userID = userID;
+		this.isLogin = isLogin;
+		this.isAuto = isAuto;
+		this.date = date;
+		this.host = host;
+		this.location = "";
+	}
+}
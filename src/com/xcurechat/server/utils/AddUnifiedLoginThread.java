@@ -28,6 +28,7 @@ import org.apache.log4j.Logger;
 import com.xcurechat.client.data.ShortUserData;
 import com.xcurechat.client.rpc.exceptions.SiteException;
 
+import com.xcurechat.server.jdbc.ConnectionSession;
 import com.xcurechat.server.jdbc.ConnectionWrapper;
 
 import com.xcurechat.server.jdbc.profile.AddUniLoginNameExecutor;
@@ -52,14 +53,19 @@ public class AddUnifiedLoginThread extends Thread {
 			registerUserConnWrap.executeQuery( users, ConnectionWrapper.XCURE_CHAT_DB );
 			logger.info("Found " + users.size() + " user profiles which do not have unified login names assiged");
 			
-			for( ShortUserData userData : users ) {
-				logger.debug("Seting the unified login name for the user " + userData.getUID() + " with the login name " + userData.getUserLoginName() );
-				try{
-					ConnectionWrapper<Void> updateUserConnWrap = ConnectionWrapper.createConnectionWrapper( new AddUniLoginNameExecutor( userData.getUID(), userData.getUserLoginName()) );
-					updateUserConnWrap.executeQuery( ConnectionWrapper.XCURE_CHAT_DB );
-				} catch( SiteException e ) {
-					logger.error("An unexpected internal site exception while assigning the unified user login for user " + userData.getUID() + ", the user is skipped", e);
+			//Do all the updates on one connection, re-using the prepared statement
+			ConnectionSession session = ConnectionSession.open( ConnectionWrapper.XCURE_CHAT_DB );
+			try {
+				for( ShortUserData userData : users ) {
+					logger.debug("Seting the unified login name for the user " + userData.getUID() + " with the login name " + userData.getUserLoginName() );
+					try{
+						session.execute( new AddUniLoginNameExecutor( userData.getUID(), userData.getUserLoginName()) );
+					} catch( SiteException e ) {
+						logger.error("An unexpected internal site exception while assigning the unified user login for user " + userData.getUID() + ", the user is skipped", e);
+					}
 				}
+			} finally {
+				session.close();
 			}
 		} catch( SiteException e ) {
 			logger.error("An unexpected internal site exception while assigning the unified user logins", e);
@@ -41,6 +41,18 @@ public class Configurator {
 	public static final String NEW_SITE_DOMAIN_PROP_NAME = "new.site.domain.name";
 	//The available first-level site domains
 	public static final String FIRST_LEVEL_SITE_DOMAINS_PROP_NAME = "available.first.level.domains";
+	//True if the chat messages sent by concurrent users are to be inserted into the DB in groups
+	public static final String CHAT_MESSAGES_GROUP_COMMIT_PROP_NAME = "chat.messages.group.commit";
+	//The memory budget of the forum queries cache in Mb
+	public static final String FORUM_CACHE_MEMORY_BUDGET_MB_PROP_NAME = "forum.cache.memory.budget.mb";
+	//The shares of the forum queries cache memory budget, in percent, for the news, navigation and custom search queries
+	public static final String FORUM_CACHE_NEWS_SHARE_PROP_NAME = "forum.cache.news.share";
+	public static final String FORUM_CACHE_NAVIGATION_SHARE_PROP_NAME = "forum.cache.navigation.share";
+	public static final String FORUM_CACHE_CUSTOM_SHARE_PROP_NAME = "forum.cache.custom.share";
+	//The location of the uploaded files storage, if not set the files are stored in the DB
+	public static final String FILES_STORE_LOCATION_PROP_NAME = "files.store.location";
+	//The class implementing the uploaded files storage, should have a constructor taking the location
+	public static final String FILES_STORE_CLASS_PROP_NAME = "files.store.class";
 
 	//The synchronization object
 	private static final Object synchObj = new Object();
@@ -127,4 +139,35 @@ public class Configurator {
 	public static String getSiteFirstLevelDomains(final ServletContext context) {
 		return getProperty( context, FIRST_LEVEL_SITE_DOMAINS_PROP_NAME );
 	}
+
+	/**
+	 * Allows to get the value of the chat messages group commit property
+	 * @return true if the group commit of the chat messages is enabled
+	 */
+	public static boolean isChatMessagesGroupCommit(final ServletContext context) {
+		return Boolean.parseBoolean( getProperty( context, CHAT_MESSAGES_GROUP_COMMIT_PROP_NAME ) );
+	}
+
+	/**
+	 * Allows to get the value of a non-negative integer site property
+	 * @param propertyName the name of the property
+	 * @param defaultValue the value to return if the property is not set or is not a non-negative integer
+	 * @return the property value or the default value
+	 */
+	public static int getIntegerProperty(final ServletContext context, final String propertyName, final int defaultValue ) {
+		final String value = getProperty( context, propertyName );
+		int result = defaultValue;
+		if( value != null ) {
+			try {
+				result = Integer.parseInt( value.trim() );
+				if( result < 0 ) {
+					logger.error("The site property '" + propertyName + "' value '" + value + "' is negative, using " + defaultValue );
+					result = defaultValue;
+				}
+			} catch( NumberFormatException e ) {
+				logger.error("The site property '" + propertyName + "' value '" + value + "' is not an integer, using " + defaultValue );
+			}
+		}
+		return result;
+	}
 }
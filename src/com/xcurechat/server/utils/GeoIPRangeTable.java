@@ -0,0 +1,206 @@
+/**
+ * X-Cure-Chat
+ * Copyright (C) 2013  Dr. Ivan S. Zapreev
+ * www: https://nl.linkedin.com/in/zapreevis
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.#
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ *
+ * The server-side utilities package.
+ * (C) Ivan S. Zapreev, 2009
+ */
+package com.xcurechat.server.utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * @author zapreevis
+ * This class is an immutable in-memory copy of the hostip geolocation data. The data maps the
+ * /24 IPV4 address blocks, i.e. ip40.ip41.ip42.*, to the locations. The consecutive blocks with
+ * the same location are merged into ranges, the ranges are stored in the sorted primitive arrays
+ * and the location of a block is found by the binary search. The location strings are interned.
+ */
+public class GeoIPRangeTable {
+	
+	//The location index of the blocks with unknown location
+	private static final int UNKNOWN_LOCATION_INDEX = -1;
+	//The number of /24 blocks in the IPV4 address space
+	private static final int NUMBER_OF_BLOCKS = 1 << 24;
+	
+	//The sorted first blocks of the ranges, the first range starts with the block 0
+	private final int[] rangeStarts;
+	//The location indexes of the ranges
+	private final int[] rangeLocations;
+	//The distinct location strings
+	private final String[] locations;
+	
+	private GeoIPRangeTable( final int[] rangeStarts, final int[] rangeLocations, final String[] locations ) {
+		this.rangeStarts = rangeStarts;
+		this.rangeLocations = rangeLocations;
+		this.locations = locations;
+	}
+	
+	/**
+	 * Allows to get the /24 block of the IPV4 address ip40.ip41.ip42.ip43
+	 * @param ip40 the first number of the IP address
+	 * @param ip41 the second number of the IP address
+	 * @param ip42 the third number of the IP address
+	 * @return the block index or -1 if the numbers are not proper IP address numbers
+	 */
+	public static int getBlock( final int ip40, final int ip41, final int ip42 ) {
+		if( ( ( ip40 | ip41 | ip42 ) & ~0xFF ) != 0 ) {
+			return -1;
+		}
+		return ( ip40 << 16 ) | ( ip41 << 8 ) | ip42;
+	}
+	
+	/**
+	 * Allows to get the location of the /24 IPV4 address block
+	 * @param block the block index, see getBlock
+	 * @return the location: city, state, country or an empty string for not-known location
+	 */
+	public String getLocation( final int block ) {
+		if( ( block < 0 ) || ( block >= NUMBER_OF_BLOCKS ) ) {
+			return "";
+		}
+		//Find the last range starting at or before the block
+		int low = 0, high = rangeStarts.length - 1;
+		while( low < high ) {
+			final int middle = ( low + high + 1 ) >>> 1;
+			if( rangeStarts[ middle ] <= block ) {
+				low = middle;
+			} else {
+				high = middle - 1;
+			}
+		}
+		final int locationIndex = rangeLocations[ low ];
+		return ( locationIndex == UNKNOWN_LOCATION_INDEX ) ? "" : locations[ locationIndex ];
+	}
+	
+	/**
+	 * @return the number of the address ranges in the table
+	 */
+	public int getNumberOfRanges() {
+		return rangeStarts.length;
+	}
+	
+	/**
+	 * @return the number of the distinct locations in the table
+	 */
+	public int getNumberOfLocations() {
+		return locations.length;
+	}
+	
+	/**
+	 * @author zapreevis
+	 * The builder of the range table. First the locations have to be added, then the
+	 * blocks have to be added in the order of increasing block indexes.
+	 */
+	public static class Builder {
+		//The mapping from the hostip country and city IDs to the location indexes
+		private final Map<Long, Integer> cityToLocationIndex = new HashMap<Long, Integer>();
+		//The mapping from the location strings to their indexes, for interning
+		private final Map<String, Integer> locationToIndex = new HashMap<String, Integer>();
+		//The distinct location strings
+		private final List<String> locations = new ArrayList<String>();
+		
+		//The ranges built so far
+		private int[] rangeStarts = new int[1024];
+		private int[] rangeLocations = new int[1024];
+		private int numberOfRanges = 0;
+		//The last added block
+		private int lastBlock = -1;
+		
+		public Builder() {
+			appendRange( 0, UNKNOWN_LOCATION_INDEX );
+		}
+		
+		private static long getCityKey( final int cityID, final int countryID ) {
+			return ( ( (long) countryID ) << 32 ) | ( cityID & 0xFFFFFFFFL );
+		}
+		
+		/**
+		 * Allows to add the location of the hostip city
+		 * @param cityID the hostip city id
+		 * @param countryID the hostip country id
+		 * @param location the location string: city, state, country
+		 */
+		public void addLocation( final int cityID, final int countryID, final String location ) {
+			Integer locationIndex = locationToIndex.get( location );
+			if( locationIndex == null ) {
+				locationIndex = locations.size();
+				locations.add( location );
+				locationToIndex.put( location, locationIndex );
+			}
+			cityToLocationIndex.put( getCityKey( cityID, countryID ), locationIndex );
+		}
+		
+		/**
+		 * Allows to add the /24 block located in the given hostip city, the blocks
+		 * that are not added or are located in unknown cities have unknown location
+		 * @param block the block index, see getBlock, must be larger than the one added before
+		 * @param cityID the hostip city id
+		 * @param countryID the hostip country id
+		 * @return false if the block is not valid or is not larger than the one added before
+		 */
+		public boolean addBlock( final int block, final int cityID, final int countryID ) {
+			if( ( block <= lastBlock ) || ( block >= NUMBER_OF_BLOCKS ) ) {
+				return false;
+			}
+			final Integer index = cityToLocationIndex.get( getCityKey( cityID, countryID ) );
+			final int locationIndex = ( index == null ) ? UNKNOWN_LOCATION_INDEX : index;
+			//The blocks skipped since the last one have unknown location
+			if( ( block > lastBlock + 1 ) && ( rangeLocations[ numberOfRanges - 1 ] != UNKNOWN_LOCATION_INDEX ) ) {
+				appendRange( lastBlock + 1, UNKNOWN_LOCATION_INDEX );
+			}
+			if( rangeLocations[ numberOfRanges - 1 ] != locationIndex ) {
+				appendRange( block, locationIndex );
+			}
+			lastBlock = block;
+			return true;
+		}
+		
+		private void appendRange( final int rangeStart, final int locationIndex ) {
+			if( numberOfRanges == rangeStarts.length ) {
+				final int newLength = 2 * rangeStarts.length;
+				final int[] newRangeStarts = new int[ newLength ];
+				final int[] newRangeLocations = new int[ newLength ];
+				System.arraycopy( rangeStarts, 0, newRangeStarts, 0, numberOfRanges );
+				System.arraycopy( rangeLocations, 0, newRangeLocations, 0, numberOfRanges );
+				rangeStarts = newRangeStarts;
+				rangeLocations = newRangeLocations;
+			}
+			rangeStarts[ numberOfRanges ] = rangeStart;
+			rangeLocations[ numberOfRanges ] = locationIndex;
+			numberOfRanges++;
+		}
+		
+		/**
+		 * @return the new range table with the added blocks
+		 */
+		public GeoIPRangeTable build() {
+			//The blocks after the last one have unknown location
+			if( ( lastBlock + 1 < NUMBER_OF_BLOCKS ) && ( rangeLocations[ numberOfRanges - 1 ] != UNKNOWN_LOCATION_INDEX ) ) {
+				appendRange( lastBlock + 1, UNKNOWN_LOCATION_INDEX );
+			}
+			final int[] finalRangeStarts = new int[ numberOfRanges ];
+			final int[] finalRangeLocations = new int[ numberOfRanges ];
+			System.arraycopy( rangeStarts, 0, finalRangeStarts, 0, numberOfRanges );
+			System.arraycopy( rangeLocations, 0, finalRangeLocations, 0, numberOfRanges );
+			return new GeoIPRangeTable( finalRangeStarts, finalRangeLocations, locations.toArray( new String[ locations.size() ] ) );
+		}
+	}
+}
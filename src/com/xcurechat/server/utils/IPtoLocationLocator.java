@@ -25,18 +25,73 @@ import java.util.StringTokenizer;
 
 import org.apache.log4j.Logger;
 
+import com.xcurechat.client.rpc.exceptions.SiteException;
+
+import com.xcurechat.server.jdbc.ConnectionSession;
 import com.xcurechat.server.jdbc.ConnectionWrapper;
 import com.xcurechat.server.jdbc.hostip.GeoLocationDataHolder;
+import com.xcurechat.server.jdbc.hostip.SelectHostIPBlocksExecutor;
 import com.xcurechat.server.jdbc.hostip.SelectHostIPExecutor;
+import com.xcurechat.server.jdbc.hostip.SelectHostIPLocationsExecutor;
 
 /**
  * @author zapreevis
- * This class is supposed to help with mapping ip addresses to geolocations 
+ * This class is supposed to help with mapping ip addresses to geolocations.
+ * The hostip data is loaded into the in-memory range table, see loadGeoIPTable,
+ * until then the geolocations are retrieved from the hostip database.
  */
 public class IPtoLocationLocator {
 	//Get the Log4j logger object
 	private static final Logger logger = Logger.getLogger( IPtoLocationLocator.class );
 	
+	//The interval between the reloads of the geolocation range table, by the MaintenanceScheduler
+	public static final long GEO_IP_TABLE_RELOAD_INTERVAL_MILLISEC = 24 * 60 * 60000;
+	
+	//The number of the first-number IP address tables in the hostip database
+	private static final int NUMBER_OF_HOSTIP_TABLES = 256;
+	
+	//The in-memory geolocation range table, null until it is loaded
+	private static volatile GeoIPRangeTable geoIPTable = null;
+	
+	/**
+	 * Allows to (re)load the geolocation range table from the hostip database, all of the database
+	 * is read through one connection. If the loading fails then the old table, if any, is kept.
+	 */
+	public static void loadGeoIPTable() {
+		final long startTimeMillisec = System.currentTimeMillis();
+		GeoIPRangeTable.Builder builder = new GeoIPRangeTable.Builder();
+		try {
+			ConnectionSession session = ConnectionSession.open( ConnectionWrapper.XCURE_HOSTIP_DB );
+			try {
+				session.execute( new SelectHostIPLocationsExecutor(), builder );
+				for( int ip40 = 0; ip40 < NUMBER_OF_HOSTIP_TABLES; ip40++ ) {
+					session.execute( new SelectHostIPBlocksExecutor( ip40 ), builder );
+				}
+			} finally {
+				session.close();
+			}
+		} catch( SiteException e ) {
+			logger.error( "Unable to load the geolocation range table from the hostip database", e );
+			return;
+		}
+		final GeoIPRangeTable table = builder.build();
+		geoIPTable = table;
+		logger.info( "The geolocation range table with " + table.getNumberOfRanges() + " address ranges and " +
+					 table.getNumberOfLocations() + " locations is loaded in " +
+					 ( System.currentTimeMillis() - startTimeMillisec ) + " millisec" );
+	}
+	
+	/**
+	 * Allows to format the location
+	 * @param city the city name
+	 * @param state the state name
+	 * @param country the country name
+	 * @return the location: city, state, country
+	 */
+	public static String formatLocation( final String city, final String state, final String country ) {
+		return city+(state.isEmpty()?"":", "+state)+(country.isEmpty()?"":", "+country);
+	}
+	
 	/**
 	 * Allows to retrieve geolocation by an IP address.
 	 * @param host the host's IP address
@@ -58,6 +113,18 @@ public class IPtoLocationLocator {
 		logger.debug("Retrieving geolocation for the IPV4 host address: " + host +
 					" tokenized as ip40="+ip40+", ip41="+ip41+", ip42="+ip42);
 		
+		//Look up the host location in the range table, if it is loaded
+		final GeoIPRangeTable table = geoIPTable;
+		if( table != null ) {
+			try {
+				return table.getLocation( GeoIPRangeTable.getBlock( Integer.parseInt( ip40 ), Integer.parseInt( ip41 ), Integer.parseInt( ip42 ) ) );
+			} catch ( NumberFormatException e ) {
+				//This might be an IPV6 address
+				logger.debug( "Unable to retrieve the geolocation for the non IPV4 address: " + host );
+				return "";
+			}
+		}
+		
 		//Retrieve host location from the database by its IPV4 address
 		GeoLocationDataHolder data = new GeoLocationDataHolder();
 		try {
@@ -71,6 +138,6 @@ public class IPtoLocationLocator {
 			data.country = "";
 		}
 		
-		return data.city+(data.state.isEmpty()?"":", "+data.state)+(data.country.isEmpty()?"":", "+data.country);
+		return formatLocation( data.city, data.state, data.country );
 	}
 }
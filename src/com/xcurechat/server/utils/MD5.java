@@ -38,14 +38,34 @@ public class MD5 {
 	private static final Logger logger = Logger.getLogger( MD5.class );
 	
 	public static String getMD5( byte[] data ) throws InternalSiteException {
+		MessageDigest m = getMD5Digest();
+		m.update(data,0,data.length);
+		return toMD5String( m );
+	}
+	
+	/**
+	 * Allows to get a new MD5 digest, e.g. for computing the MD5 sum of the
+	 * data that is streamed and thus is not available as one byte array.
+	 * @return the new MD5 digest
+	 * @throws InternalSiteException if the MD5 algorithm is not available
+	 */
+	public static MessageDigest getMD5Digest() throws InternalSiteException {
 		try {
-			MessageDigest m = MessageDigest.getInstance("MD5");
-			m.update(data,0,data.length);
-			BigInteger bigInt = new BigInteger(1,m.digest());
-			return String.format("%1$032X", bigInt);
+			return MessageDigest.getInstance("MD5");
 		} catch ( NoSuchAlgorithmException e ) {
 			logger.error("Unable to find the MD5 algorithm for the digest", e);
 			throw new InternalSiteException( InternalSiteException.UNKNOWN_INTERNAL_SITE_EXCEPTION_ERR );
 		}
 	}
+	
+	/**
+	 * Completes the digest computations and converts the result into the MD5 sum string,
+	 * which has the same format as the one returned by the getMD5 method.
+	 * @param m the MD5 digest that was updated with all the data
+	 * @return the MD5 sum string of 32 upper-case hexadecimal digits
+	 */
+	public static String toMD5String( MessageDigest m ) {
+		BigInteger bigInt = new BigInteger(1,m.digest());
+		return String.format("%1$032X", bigInt);
+	}
 }